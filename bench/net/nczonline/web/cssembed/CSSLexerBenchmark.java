@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2009 Nicholas C. Zakas. All rights reserved.
+ * http://www.nczonline.net/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.nczonline.web.cssembed;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the throughput of CSSLexer against the line-based url() scanner
+ * that CSSURLEmbedder used before it. Only the scanning is measured, no
+ * images are read or encoded.
+ * @author Nicholas C. Zakas
+ */
+public class CSSLexerBenchmark {
+    
+    private static final int WARMUP_ITERATIONS = 10;
+    private static final int ITERATIONS = 20;
+    
+    /**
+     * @param args Optionally, the size of the generated style sheet in MB.
+     */
+    public static void main(String[] args) throws IOException {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        
+        run("formatted", generate(megabytes * 1024 * 1024, true));
+        
+        //the SKIP regex backtracks on long lines, so keep the minified case small
+        run("minified", generate(megabytes * 1024 * 1024 / 256, false));
+    }
+    
+    private static void run(String name, String code) throws IOException {
+        char[] buf = code.toCharArray();
+        int count = 0;
+        
+        for (int i = 0; i < WARMUP_ITERATIONS; i++){
+            count += scanLines(code) + scanTokens(buf);
+        }
+        
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++){
+            count += scanLines(code);
+        }
+        long lineTime = System.nanoTime() - start;
+        
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++){
+            count += scanTokens(buf);
+        }
+        long lexerTime = System.nanoTime() - start;
+        
+        System.out.println(name + " (" + (code.length() / 1024) + " KB, " + scanTokens(buf) + " urls)");
+        System.out.println("  line scanner: " + format(code.length(), lineTime) + " MB/s");
+        System.out.println("  CSSLexer:     " + format(code.length(), lexerTime) + " MB/s");
+        
+        //keeps the JIT from discarding the work
+        if (count == 0){
+            System.out.println("No URLs found.");
+        }
+    }
+    
+    private static String format(int length, long nanos){
+        double mbPerSecond = ((double) length * ITERATIONS / (1024 * 1024)) / (nanos / 1e9);
+        return String.valueOf(Math.round(mbPerSecond * 10) / 10.0);
+    }
+    
+    /*
+     * Creates a style sheet with a mix of rules, comments and url() tokens.
+     */
+    private static String generate(int size, boolean newlines){
+        StringBuilder builder = new StringBuilder(size + 256);
+        String separator = newlines ? "\n" : "";
+        int i = 0;
+        
+        while (builder.length() < size){
+            builder.append("/* Section ").append(i).append(" */").append(separator);
+            builder.append(".rule").append(i).append(" {").append(separator);
+            builder.append("  color: #333; font: 12px/1.5 \"Helvetica Neue\", Arial, sans-serif;").append(separator);
+            builder.append("  background: url(images/icon").append(i % 300).append(".png) no-repeat 0 0;").append(separator);
+            builder.append("}").append(separator);
+            builder.append(".rule").append(i).append(":hover { background-image: url('images/hover").append(i % 300).append(".png'); }").append(separator);
+            i++;
+        }
+        
+        return builder.toString();
+    }
+    
+    /*
+     * The scanning done by the original CSSURLEmbedder.embedImages() loop.
+     */
+    private static int scanLines(String code) throws IOException {
+        BufferedReader reader = new BufferedReader(new StringReader(code));
+        StringBuilder builder = new StringBuilder();
+        String line;
+        int count = 0;
+        
+        while ((line = reader.readLine()) != null){
+            int start = 0;
+            int pos = line.indexOf("url(", start);
+            int npos;
+            
+            Pattern checkForSkip = Pattern.compile("\\/\\*.*" + CSSURLEmbedder.PROC_DIRECTIVE_PREFIX + ".*" + CSSURLEmbedder.PROC_DIRECTIVE_SKIP + ".*\\*\\/", Pattern.CASE_INSENSITIVE);
+            Matcher skipMatch = checkForSkip.matcher(line);
+            if (skipMatch.find()){
+                builder.append(line);
+            } else {
+                while (pos > -1){
+                    pos += 4;
+                    builder.append(line.substring(start, pos));
+                    npos = line.indexOf(")", pos);
+                    String url = line.substring(pos, npos).trim();
+                    if (url.startsWith("\"") || url.startsWith("'")){
+                        url = url.substring(1, url.length()-1);
+                    }
+                    builder.append(url);
+                    count++;
+                    start = npos;
+                    pos = line.indexOf("url(", start);
+                }
+                builder.append(line.substring(start));
+            }
+            builder.append("\n");
+        }
+        
+        return count;
+    }
+    
+    private static int scanTokens(char[] buf){
+        CSSLexer lexer = new CSSLexer(buf, buf.length, true);
+        int count = 0;
+        int type;
+        
+        while ((type = lexer.next()) != CSSLexer.END){
+            if (type == CSSLexer.URL){
+                count++;
+            }
+        }
+        
+        return count;
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright (c) 2009 Nicholas C. Zakas. All rights reserved.
+ * http://www.nczonline.net/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.nczonline.web.cssembed;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import net.nczonline.web.datauri.Base64;
+import net.nczonline.web.datauri.Base64Backend;
+import net.nczonline.web.datauri.DataURIGenerator;
+
+/**
+ * Measures the whole embedding pipeline over generated style sheets: small
+ * and large, with few and many URLs, repeating a few images or all 
+ * distinct ones, in data URI and MHTML mode. The parts the pipeline is 
+ * built on, generating data URIs and Base64 encoding, are measured too.
+ * For each benchmark the time, the bytes allocated and the garbage 
+ * collections per operation are recorded, and everything is written out 
+ * as JSON so that the results of two releases can be compared.
+ * @author Nicholas C. Zakas
+ */
+public class EmbedPipelineBenchmark {
+    
+    //each measurement runs for at least this long
+    private static final long RUN_NANOS = 200000000L;
+    
+    private static final int WARMUP_RUNS = 3;
+    private static final int RUNS = 5;
+    
+    private static final int IMAGE_SIZE = 2048;
+    private static final int DISTINCT_IMAGES = 200;
+    private static final int DUPLICATED_IMAGES = 3;
+    
+    private static final int SMALL_RULES = 50;
+    private static final int LARGE_RULES = 5000;
+    private static final int FEW_URLS = 5;
+    private static final int MANY_URLS = 200;
+    
+    private static final int[] PART_SIZES = { 1024, 64 * 1024, 1024 * 1024 };
+    
+    /**
+     * @param args Optionally, the file to write the JSON results to, and
+     *      text that the names of the benchmarks to run must contain. The
+     *      JSON goes to stdout if there's no file or the file is "-".
+     */
+    public static void main(String[] args) throws Exception {
+        String output = args.length > 0 && !args[0].equals("-") ? args[0] : null;
+        String filter = args.length > 1 ? args[1] : null;
+        
+        File dir = createImages(DISTINCT_IMAGES, IMAGE_SIZE);
+        final String root = dir.getAbsolutePath() + File.separator;
+        List<Result> results = new ArrayList<Result>();
+        
+        try {
+            
+            //the whole pipeline
+            int[] rules = { SMALL_RULES, LARGE_RULES };
+            int[] urls = { FEW_URLS, MANY_URLS };
+            int[] images = { DUPLICATED_IMAGES, DISTINCT_IMAGES };
+            int[] modes = { CSSURLEmbedder.DATAURI_OPTION, CSSURLEmbedder.MHTML_OPTION };
+            
+            for (int r = 0; r < rules.length; r++){
+                for (int u = 0; u < urls.length; u++){
+                    for (int i = 0; i < images.length; i++){
+                        for (int m = 0; m < modes.length; m++){
+                            final String code = createStylesheet(rules[r], urls[u], images[i]);
+                            final int options = modes[m];
+                            String name = "embed." + (rules[r] == SMALL_RULES ? "small" : "large") + 
+                                    "." + (urls[u] == FEW_URLS ? "fewUrls" : "manyUrls") +
+                                    "." + (images[i] == DUPLICATED_IMAGES ? "duplicated" : "unique") +
+                                    "." + (options == CSSURLEmbedder.MHTML_OPTION ? "mhtml" : "datauri");
+                            
+                            run(results, name, filter, code.length(), new Task(){
+                                public void run() throws IOException {
+                                    CSSURLEmbedder embedder = new CSSURLEmbedder(new StringReader(code), options, false, 0);
+                                    embedder.setMHTMLRoot("http://www.example.com/");
+                                    embedder.setFilename("styles.css");
+                                    embedder.embedImages(new StringWriter(), root);
+                                }
+                            });
+                        }
+                    }
+                }
+            }
+            
+            //the parts
+            final Base64Backend backend = DataURIGenerator.getBase64Backend();
+            for (int s = 0; s < PART_SIZES.length; s++){
+                final byte[] bytes = createBytes(s, PART_SIZES[s]);
+                final char[] chars = new char[(bytes.length + 2) / 3 * 4];
+                final File file = new File(dir, "part" + s + ".png");
+                write(file, bytes);
+                String size = (PART_SIZES[s] / 1024) + "k";
+                
+                run(results, "dataURI.file." + size, filter, bytes.length, new Task(){
+                    public void run() throws IOException {
+                        DataURIGenerator.toDataURI(file, null);
+                    }
+                });
+                
+                run(results, "base64.legacy." + size, filter, bytes.length, new Task(){
+                    public void run() throws IOException {
+                        Base64.encodeBytes(bytes);
+                    }
+                });
+                
+                run(results, "base64." + backend.getName() + "." + size, filter, bytes.length, new Task(){
+                    public void run() throws IOException {
+                        backend.encode(bytes, 0, bytes.length, chars, 0);
+                    }
+                });
+            }
+        } finally {
+            File[] files = dir.listFiles();
+            for (int i = 0; i < files.length; i++){
+                files[i].delete();
+            }
+            dir.delete();
+        }
+        
+        Writer out = new OutputStreamWriter(output != null ? new FileOutputStream(output) : System.out, "UTF-8");
+        writeJSON(results, out);
+        out.flush();
+        if (output != null){
+            out.close();
+            System.err.println("Wrote " + results.size() + " results to " + output);
+        }
+    }
+    
+    //--------------------------------------------------------------------------
+    // Measuring
+    //--------------------------------------------------------------------------    
+    
+    private interface Task {
+        void run() throws IOException;
+    }
+    
+    private static class Result {
+        String name;
+        long inputSize;
+        long operations;
+        double bestNanosPerOp = Double.MAX_VALUE;
+        double meanNanosPerOp;
+        long allocatedBytesPerOp = -1;
+        long gcCount;
+        long gcMillis;
+    }
+    
+    /*
+     * Runs a benchmark several times, each time for long enough to take 
+     * measurable time, and records the best and average.
+     */
+    private static void run(List<Result> results, String name, String filter, long inputSize, Task task) throws IOException {
+        if (filter != null && name.indexOf(filter) < 0){
+            return;
+        }
+        
+        //warm up first, so that compiling doesn't skew the batch size
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < RUN_NANOS * WARMUP_RUNS){
+            task.run();
+        }
+        
+        //how many operations take long enough to time
+        int batch = 1;
+        long time;
+        while ((time = time(task, batch)) < RUN_NANOS / 10){
+            batch *= 2;
+        }
+        batch = (int) Math.max(1, batch * RUN_NANOS / Math.max(1, time));
+        
+        Result result = new Result();
+        result.name = name;
+        result.inputSize = inputSize;
+        
+        long gcCount = getGCCount();
+        long gcMillis = getGCMillis();
+        long allocated = getAllocatedBytes();
+        long total = 0;
+        
+        for (int i = 0; i < RUNS; i++){
+            time = time(task, batch);
+            total += time;
+            result.bestNanosPerOp = Math.min(result.bestNanosPerOp, (double) time / batch);
+        }
+        
+        result.operations = (long) batch * RUNS;
+        if (allocated >= 0){
+            result.allocatedBytesPerOp = (getAllocatedBytes() - allocated) / result.operations;
+        }
+        result.gcCount = getGCCount() - gcCount;
+        result.gcMillis = getGCMillis() - gcMillis;
+        result.meanNanosPerOp = (double) total / result.operations;
+        results.add(result);
+        
+        System.err.println(name + ": " + Math.round(result.meanNanosPerOp / 1000) + " us/op, " + 
+                (result.allocatedBytesPerOp >= 0 ? result.allocatedBytesPerOp + " bytes/op, " : "") + 
+                result.gcCount + " GCs");
+    }
+    
+    private static long time(Task task, int count) throws IOException {
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++){
+            task.run();
+        }
+        return System.nanoTime() - start;
+    }
+    
+    /*
+     * Uses the HotSpot extension to ThreadMXBean if it's there, -1 if not.
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        try {
+            Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+            return ((Long) method.invoke(bean, Long.valueOf(Thread.currentThread().getId()))).longValue();
+        } catch (Exception e){
+            return -1;
+        }
+    }
+    
+    private static long getGCCount(){
+        long count = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()){
+            count += Math.max(0, bean.getCollectionCount());
+        }
+        return count;
+    }
+    
+    private static long getGCMillis(){
+        long millis = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()){
+            millis += Math.max(0, bean.getCollectionTime());
+        }
+        return millis;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Output
+    //--------------------------------------------------------------------------    
+    
+    private static void writeJSON(List<Result> results, Writer out) throws IOException {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        
+        out.write("{\n");
+        out.write("  \"date\": " + quote(format.format(new Date())) + ",\n");
+        out.write("  \"javaVersion\": " + quote(System.getProperty("java.version")) + ",\n");
+        out.write("  \"javaVendor\": " + quote(System.getProperty("java.vendor")) + ",\n");
+        out.write("  \"os\": " + quote(System.getProperty("os.name") + " " + System.getProperty("os.arch")) + ",\n");
+        out.write("  \"processors\": " + Runtime.getRuntime().availableProcessors() + ",\n");
+        out.write("  \"maxMemory\": " + Runtime.getRuntime().maxMemory() + ",\n");
+        out.write("  \"base64Backend\": " + quote(DataURIGenerator.getBase64Backend().getName()) + ",\n");
+        out.write("  \"results\": [");
+        
+        for (int i = 0; i < results.size(); i++){
+            Result result = results.get(i);
+            out.write(i == 0 ? "\n" : ",\n");
+            out.write("    {\"name\": " + quote(result.name) +
+                    ", \"inputSize\": " + result.inputSize +
+                    ", \"operations\": " + result.operations +
+                    ", \"meanNanosPerOp\": " + Math.round(result.meanNanosPerOp) +
+                    ", \"bestNanosPerOp\": " + Math.round(result.bestNanosPerOp) +
+                    ", \"opsPerSecond\": " + Math.round(1e9 / result.meanNanosPerOp) +
+                    ", \"allocatedBytesPerOp\": " + result.allocatedBytesPerOp +
+                    ", \"gcCount\": " + result.gcCount +
+                    ", \"gcMillis\": " + result.gcMillis + "}");
+        }
+        
+        out.write("\n  ]\n}\n");
+    }
+    
+    private static String quote(String s){
+        StringBuilder builder = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++){
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\'){
+                builder.append('\\').append(c);
+            } else if (c < 0x20){
+                builder.append(String.format("\\u%04x", Integer.valueOf(c)));
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.append('"').toString();
+    }
+    
+    //--------------------------------------------------------------------------
+    // Corpora
+    //--------------------------------------------------------------------------    
+    
+    /*
+     * Creates a style sheet with the given number of rules, spreading the
+     * url() tokens evenly between them and cycling through the images.
+     */
+    private static String createStylesheet(int rules, int urls, int images){
+        StringBuilder code = new StringBuilder();
+        int step = Math.max(1, rules / urls);
+        int url = 0;
+        
+        for (int i = 0; i < rules; i++){
+            code.append(".rule").append(i).append(" {\n");
+            code.append("    margin: 0 ").append(i % 10).append("px;\n");
+            code.append("    font: 12px/1.5 Arial, sans-serif;\n");
+            if (i % step == 0 && url < urls){
+                code.append("    background: url(icon").append(url % images).append(".png) no-repeat;\n");
+                url++;
+            }
+            code.append("}\n");
+        }
+        
+        return code.toString();
+    }
+    
+    private static byte[] createBytes(int seed, int size){
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+    
+    private static File createImages(int count, int size) throws IOException {
+        File dir = File.createTempFile("cssembed", "");
+        dir.delete();
+        dir.mkdir();
+        
+        for (int i = 0; i < count; i++){
+            write(new File(dir, "icon" + i + ".png"), createBytes(i, size));
+        }
+        
+        return dir;
+    }
+    
+    private static void write(File file, byte[] bytes) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
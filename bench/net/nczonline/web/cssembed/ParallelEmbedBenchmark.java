@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2009 Nicholas C. Zakas. All rights reserved.
+ * http://www.nczonline.net/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.nczonline.web.cssembed;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Measures how embedding a style sheet that references many distinct images
+ * scales with the number of threads used to load and encode them.
+ * @author Nicholas C. Zakas
+ */
+public class ParallelEmbedBenchmark {
+    
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int ITERATIONS = 5;
+    
+    /**
+     * @param args Optionally, the number of images and their size in KB.
+     */
+    public static void main(String[] args) throws IOException {
+        int imageCount = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+        int imageSize = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        
+        File dir = createImages(imageCount, imageSize * 1024);
+        String root = dir.getAbsolutePath() + File.separator;
+        
+        StringBuilder code = new StringBuilder();
+        for (int i = 0; i < imageCount; i++){
+            code.append(".icon").append(i).append(" { background: url(icon").append(i).append(".png); }\n");
+        }
+        
+        try {
+            System.out.println(imageCount + " images of " + imageSize + " KB");
+            
+            long serial = 0;
+            int cores = Runtime.getRuntime().availableProcessors();
+            
+            for (int threads = 1; threads <= Math.max(8, cores); threads *= 2){
+                long time = run(code.toString(), root, threads);
+                if (threads == 1){
+                    serial = time;
+                }
+                System.out.println("  " + threads + " thread(s): " + (time / 1000000) + " ms, " + 
+                        (Math.round(serial * 100.0 / time) / 100.0) + "x");
+            }
+        } finally {
+            File[] files = dir.listFiles();
+            for (int i = 0; i < files.length; i++){
+                files[i].delete();
+            }
+            dir.delete();
+        }
+    }
+    
+    /*
+     * Returns the average time to embed all images, in nanoseconds.
+     */
+    private static long run(String code, String root, int threads) throws IOException {
+        ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        
+        try {
+            for (int i = 0; i < WARMUP_ITERATIONS; i++){
+                embed(code, root, executor);
+            }
+            
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++){
+                embed(code, root, executor);
+            }
+            return (System.nanoTime() - start) / ITERATIONS;
+        } finally {
+            if (executor != null){
+                executor.shutdown();
+            }
+        }
+    }
+    
+    private static void embed(String code, String root, ExecutorService executor) throws IOException {
+        CSSURLEmbedder embedder = new CSSURLEmbedder(new StringReader(code), CSSURLEmbedder.DATAURI_OPTION, false, 0);
+        embedder.setExecutor(executor);
+        embedder.embedImages(new StringWriter(), root);
+    }
+    
+    private static File createImages(int count, int size) throws IOException {
+        File dir = File.createTempFile("cssembed", "");
+        dir.delete();
+        dir.mkdir();
+        
+        Random random = new Random(1);
+        byte[] bytes = new byte[size];
+        
+        for (int i = 0; i < count; i++){
+            random.nextBytes(bytes);
+            OutputStream out = new FileOutputStream(new File(dir, "icon" + i + ".png"));
+            out.write(bytes);
+            out.close();
+        }
+        
+        return dir;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2009 Nicholas C. Zakas. All rights reserved.
+ * http://www.nczonline.net/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.nczonline.web.datauri;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.Random;
+
+/**
+ * Measures how many bytes are allocated to create a data URI, compared to
+ * the size of the data URI itself. The old path built the encoded string
+ * several times over; streaming into a presized builder should allocate
+ * little more than the result.
+ * @author Nicholas C. Zakas
+ */
+public class Base64AllocationBenchmark {
+    
+    private static final int ITERATIONS = 200;
+    
+    /**
+     * @param args Optionally, the image size in KB.
+     */
+    public static void main(String[] args) throws Exception {
+        int size = (args.length > 0 ? Integer.parseInt(args[0]) : 64) * 1024;
+        
+        byte[] bytes = new byte[size];
+        new Random(1).nextBytes(bytes);
+        
+        final File file = File.createTempFile("cssembed", ".png");
+        OutputStream out = new FileOutputStream(file);
+        out.write(bytes);
+        out.close();
+        
+        final byte[] source = bytes;
+        long uriLength = DataURIGenerator.getDataURILength("image/png", size);
+        
+        try {
+            System.out.println("Image of " + (size / 1024) + " KB, data URI of " + uriLength + " chars");
+            
+            report("old: encodeBytes + StringBuffer + StringWriter", uriLength, new Task(){
+                public int run() throws IOException {
+                    return legacyDataURI(source, "image/png").length();
+                }
+            });
+            
+            report("bytes -> presized StringBuilder", uriLength, new Task(){
+                public int run() throws IOException {
+                    return DataURIGenerator.toDataURI(source, "image/png").length();
+                }
+            });
+            
+            DataURIGenerator.setMapThreshold(Integer.MAX_VALUE);
+            report("read file -> presized StringBuilder", uriLength, new Task(){
+                public int run() throws IOException {
+                    return DataURIGenerator.toDataURI(file, null).length();
+                }
+            });
+            
+            DataURIGenerator.setMapThreshold(0);
+            report("mapped file -> presized StringBuilder", uriLength, new Task(){
+                public int run() throws IOException {
+                    return DataURIGenerator.toDataURI(file, null).length();
+                }
+            });
+            DataURIGenerator.setMapThreshold(DataURIGenerator.DEFAULT_MAP_THRESHOLD);
+            
+            report("file -> StringWriter", uriLength, new Task(){
+                public int run() throws IOException {
+                    StringWriter writer = new StringWriter();
+                    DataURIGenerator.generate(file, writer);
+                    return writer.getBuffer().length();
+                }
+            });
+        } finally {
+            file.delete();
+        }
+    }
+    
+    private interface Task {
+        int run() throws IOException;
+    }
+    
+    /*
+     * What generating a data URI used to do, for comparison.
+     */
+    private static String legacyDataURI(byte[] bytes, String mimeType) throws IOException {
+        StringBuffer buffer = new StringBuffer();
+        buffer.append("data:");
+        buffer.append(mimeType);
+        buffer.append(";base64,");
+        buffer.append(new String(Base64.encodeBytes(bytes)));
+        
+        StringWriter writer = new StringWriter();
+        writer.write(buffer.toString());
+        return writer.toString();
+    }
+    
+    private static void report(String name, long uriLength, Task task) throws Exception {
+        
+        //warm up
+        for (int i = 0; i < ITERATIONS; i++){
+            task.run();
+        }
+        
+        long allocated = getAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++){
+            task.run();
+        }
+        long time = (System.nanoTime() - start) / ITERATIONS;
+        
+        String allocation = "n/a";
+        if (allocated >= 0){
+            long perOp = (getAllocatedBytes() - allocated) / ITERATIONS;
+            allocation = perOp + " bytes/op, " + (Math.round(perOp * 100.0 / uriLength) / 100.0) + " bytes per char of output";
+        }
+        
+        System.out.println("  " + name + ": " + (time / 1000) + " us/op, " + allocation);
+    }
+    
+    /*
+     * Uses the HotSpot extension to ThreadMXBean if it's there, -1 if not.
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        try {
+            Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+            return ((Long) method.invoke(bean, Long.valueOf(Thread.currentThread().getId()))).longValue();
+        } catch (Exception e){
+            return -1;
+        }
+    }
+}
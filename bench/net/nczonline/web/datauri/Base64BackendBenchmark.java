@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2009 Nicholas C. Zakas. All rights reserved.
+ * http://www.nczonline.net/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.nczonline.web.datauri;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the encoding speed of each Base64 backend across image sizes,
+ * and shows which one would be chosen at startup. Each backend is warmed up
+ * before being timed, and every size is timed over about the same number of
+ * bytes so that small images aren't lost in timer noise.
+ * @author Nicholas C. Zakas
+ */
+public class Base64BackendBenchmark {
+    
+    private static final int[] SIZES = { 1024, 16 * 1024, 256 * 1024, 4 * 1024 * 1024 };
+    
+    //bytes to encode for each measurement
+    private static final long BYTES_PER_RUN = 64L * 1024 * 1024;
+    
+    private static final int RUNS = 5;
+    
+    /**
+     * @param args Optionally, the names of the backends to compare.
+     */
+    public static void main(String[] args) throws Exception {
+        List<Base64Backend> backends = Base64Backends.getAvailable();
+        if (args.length > 0){
+            backends.clear();
+            for (int i = 0; i < args.length; i++){
+                Base64Backend backend = Base64Backends.forName(args[i]);
+                if (backend == null){
+                    throw new IllegalArgumentException("Unknown backend '" + args[i] + "'.");
+                }
+                backends.add(backend);
+            }
+        }
+        
+        for (int s = 0; s < SIZES.length; s++){
+            byte[] bytes = new byte[SIZES[s]];
+            new Random(1).nextBytes(bytes);
+            char[] chars = new char[(int) Base64Encoder.encodedLength(bytes.length)];
+            int iterations = (int) Math.max(1, BYTES_PER_RUN / bytes.length);
+            
+            System.out.println("Image of " + (bytes.length / 1024) + " KB:");
+            for (Base64Backend backend : backends){
+                
+                //warm up
+                run(backend, bytes, chars, iterations);
+                
+                //best of several runs
+                long best = Long.MAX_VALUE;
+                for (int r = 0; r < RUNS; r++){
+                    best = Math.min(best, run(backend, bytes, chars, iterations));
+                }
+                
+                double mbPerSecond = (double) bytes.length * iterations / (1024 * 1024) / (best / 1e9);
+                System.out.println("  " + backend.getName() + ": " + Math.round(mbPerSecond) + " MB/s");
+            }
+        }
+        
+        long start = System.nanoTime();
+        Base64Backend selected = Base64Backends.select();
+        System.out.println("Selected at startup: " + selected.getName() + " (" + ((System.nanoTime() - start) / 1000000) + " ms)");
+    }
+    
+    private static long run(Base64Backend backend, byte[] bytes, char[] chars, int iterations){
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++){
+            backend.encode(bytes, 0, bytes.length, chars, 0);
+        }
+        return System.nanoTime() - start;
+    }
+}
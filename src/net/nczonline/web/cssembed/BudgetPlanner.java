@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2009 Nicholas C. Zakas. All rights reserved.
+ * http://www.nczonline.net/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.nczonline.web.cssembed;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Chooses which images to embed so that as many requests as possible are
+ * saved without the output growing by more than a budget. Every image that
+ * is embedded saves one request, however often it's used, so the most 
+ * images fit when the cheapest are taken first; ties go to the image used
+ * the most, then to the one found first.
+ * @author Nicholas C. Zakas
+ */
+class BudgetPlanner {
+    
+    //gzip can only refer back this far to repeat an earlier copy
+    private static final int GZIP_WINDOW = 32768;
+    
+    //the longest repeat gzip can describe, each costing about 3 bytes
+    private static final int GZIP_MAX_MATCH = 258;
+    
+    private long budget;
+    private boolean gzip;
+    private boolean mhtml;
+    private int maxUriLength;
+    
+    //each distinct image, in the order first found
+    private HashMap<String,Candidate> candidates = new HashMap<String,Candidate>();
+    private ArrayList<Candidate> order = new ArrayList<Candidate>();
+    
+    private long used = 0;
+    
+    //--------------------------------------------------------------------------
+    // Constructor
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Creates a new planner.
+     * @param budget The most bytes embedding may add to the output.
+     * @param gzip True to measure the bytes added after gzip compression.
+     * @param mhtml True if images are written once, as MHTML parts, rather
+     *      than at each reference.
+     * @param maxUriLength The maximum length of a data URI, or 0 for no
+     *      limit.
+     */
+    BudgetPlanner(long budget, boolean gzip, boolean mhtml, int maxUriLength){
+        this.budget = budget;
+        this.gzip = gzip;
+        this.mhtml = mhtml;
+        this.maxUriLength = maxUriLength;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Collect images
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Records a reference to an image.
+     * @param url The URL with the root applied, which identifies the image.
+     * @param originalUrl The URL as stated in the source code.
+     * @param uriString The data URI of the image.
+     * @param tokenLength The length of the URL in the source code, which is
+     *      replaced by the data URI.
+     */
+    void add(String url, String originalUrl, String uriString, int tokenLength){
+        Candidate candidate = candidates.get(url);
+        if (candidate == null){
+            candidate = new Candidate(originalUrl, uriString, order.size());
+            candidates.put(url, candidate);
+            order.add(candidate);
+        }
+        candidate.references++;
+        candidate.replaced += tokenLength;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Choose images
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Chooses the images to embed.
+     * @return A decision for each image, in the order they were found.
+     */
+    List<EmbedDecision> choose(){
+        Candidate[] sorted = order.toArray(new Candidate[order.size()]);
+        for (int i=0; i < sorted.length; i++){
+            sorted[i].cost = getCost(sorted[i]);
+        }
+        
+        Arrays.sort(sorted, new Comparator<Candidate>(){
+            public int compare(Candidate a, Candidate b){
+                if (a.cost != b.cost){
+                    return (a.cost < b.cost) ? -1 : 1;
+                } else if (a.references != b.references){
+                    return b.references - a.references;
+                }
+                return a.index - b.index;
+            }
+        });
+        
+        used = 0;
+        for (int i=0; i < sorted.length; i++){
+            Candidate candidate = sorted[i];
+            if (maxUriLength > 0 && candidate.uriString.length() > maxUriLength){
+                candidate.reason = "data URI is longer than " + maxUriLength + " characters";
+            } else if (used + candidate.cost <= budget){
+                used += candidate.cost;
+                candidate.embedded = true;
+                candidate.reason = "fits in budget with " + (budget - used) + " bytes left";
+            } else {
+                candidate.reason = "over budget, " + (budget - used) + " bytes left";
+            }
+        }
+        
+        List<EmbedDecision> decisions = new ArrayList<EmbedDecision>(order.size());
+        for (Candidate candidate : order){
+            decisions.add(new EmbedDecision(candidate.originalUrl, candidate.references, 
+                    candidate.uriString.length(), candidate.cost, candidate.embedded, candidate.reason));
+        }
+        return decisions;
+    }
+    
+    /**
+     * Determines if an image was chosen to be embedded.
+     * @param url The URL with the root applied.
+     * @return True if the image is embedded.
+     */
+    boolean isEmbedded(String url){
+        Candidate candidate = candidates.get(url);
+        return candidate != null && candidate.embedded;
+    }
+    
+    /**
+     * Returns the bytes added by the images chosen.
+     * @return The number of bytes.
+     */
+    long getUsed(){
+        return used;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Helper methods
+    //--------------------------------------------------------------------------    
+    
+    /*
+     * Works out how many bytes embedding an image adds. An MHTML part is
+     * written once; a data URI is written at every reference, in place of 
+     * the URL. After gzip, a repeat within the window costs only the 
+     * back-references that point at the first copy.
+     */
+    private long getCost(Candidate candidate){
+        int length = CSSURLEmbedder.quoteURL(candidate.uriString).length();
+        
+        if (!gzip){
+            return mhtml ? length : (long) length * candidate.references - candidate.replaced;
+        }
+        
+        long first = getCompressedLength(candidate.uriString);
+        if (mhtml || candidate.references == 1){
+            return first;
+        }
+        
+        long repeat = (length <= GZIP_WINDOW) ? (length + GZIP_MAX_MATCH - 1) / GZIP_MAX_MATCH * 3 : first;
+        return first + repeat * (candidate.references - 1);
+    }
+    
+    private static long getCompressedLength(String uriString){
+        byte[] bytes;
+        try {
+            bytes = uriString.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e){
+            throw new RuntimeException(e);
+        }
+        
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()){
+                deflater.deflate(buffer);
+            }
+            return deflater.getBytesWritten();
+        } finally {
+            deflater.end();
+        }
+    }
+    
+    //--------------------------------------------------------------------------
+    // Candidate
+    //--------------------------------------------------------------------------    
+    
+    private static class Candidate {
+        
+        private String originalUrl;
+        private String uriString;
+        private int index;
+        private int references = 0;
+        private long replaced = 0;
+        private long cost = 0;
+        private boolean embedded = false;
+        private String reason = null;
+        
+        Candidate(String originalUrl, String uriString, int index){
+            this.originalUrl = originalUrl;
+            this.uriString = uriString;
+            this.index = index;
+        }
+    }
+}
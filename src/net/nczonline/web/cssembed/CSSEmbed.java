@@ -27,12 +27,26 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.Reader;
 import java.io.Writer;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import net.nczonline.web.datauri.DataURICache;
+import net.nczonline.web.datauri.DataURIDiskCache;
+import net.nczonline.web.datauri.DataURIGenerator;
+import net.nczonline.web.datauri.HttpFetcher;
+import net.nczonline.web.datauri.ImageOptimizer;
 
 
 public class CSSEmbed {    
@@ -47,11 +61,12 @@ public class CSSEmbed {
         boolean verbose = false;
         String charset = null;
         String outputFilename = null;
-        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-        Writer out = null;
-        Reader in = null;
-        String root;
+        DataURIDiskCache diskCache = null;
+        ExecutorService executor = null;
+        MHTMLDocument mhtmlDocument = null;
+        EmbedStats stats = null;
         int options = CSSURLEmbedder.DATAURI_OPTION;
+        boolean failed = false;
         
         //initialize command line parser
         CmdLineParser parser = new CmdLineParser();
@@ -60,11 +75,30 @@ public class CSSEmbed {
         CmdLineParser.Option charsetOpt = parser.addStringOption("charset");
         CmdLineParser.Option rootOpt = parser.addStringOption("root");
         CmdLineParser.Option outputFilenameOpt = parser.addStringOption('o', "output");
+        CmdLineParser.Option outputDirOpt = parser.addStringOption("output-dir");
+        CmdLineParser.Option suffixOpt = parser.addStringOption("suffix");
+        CmdLineParser.Option threadsOpt = parser.addIntegerOption("threads");
+        CmdLineParser.Option watchOpt = parser.addBooleanOption("watch");
         CmdLineParser.Option mhtmlOpt = parser.addBooleanOption("mhtml");
         CmdLineParser.Option mhtmlRootOpt = parser.addStringOption("mhtmlroot");
+        CmdLineParser.Option mhtmlFileOpt = parser.addStringOption("mhtml-file");
         CmdLineParser.Option skipMissingOpt = parser.addBooleanOption("skip-missing");
         CmdLineParser.Option uriLengthOpt = parser.addIntegerOption("max-uri-length");
         CmdLineParser.Option imageSizeOpt = parser.addIntegerOption("max-image-size");
+        CmdLineParser.Option shareThresholdOpt = parser.addIntegerOption("share-threshold");
+        CmdLineParser.Option budgetOpt = parser.addIntegerOption("budget");
+        CmdLineParser.Option budgetGzipOpt = parser.addBooleanOption("budget-gzip");
+        CmdLineParser.Option streamOpt = parser.addBooleanOption("stream");
+        CmdLineParser.Option optimizeOpt = parser.addBooleanOption("optimize");
+        CmdLineParser.Option minifySVGOpt = parser.addBooleanOption("minify-svg");
+        CmdLineParser.Option cacheSizeOpt = parser.addIntegerOption("cache-size");
+        CmdLineParser.Option cacheDirOpt = parser.addStringOption("cache-dir");
+        CmdLineParser.Option cacheDirSizeOpt = parser.addIntegerOption("cache-dir-size");
+        CmdLineParser.Option imageThreadsOpt = parser.addIntegerOption("image-threads");
+        CmdLineParser.Option remoteCacheDirOpt = parser.addStringOption("remote-cache-dir");
+        CmdLineParser.Option remoteTimeoutOpt = parser.addIntegerOption("remote-timeout");
+        CmdLineParser.Option statsOpt = parser.addBooleanOption("stats");
+        CmdLineParser.Option reportOpt = parser.addStringOption("report");
         
         try {
             
@@ -95,17 +129,7 @@ public class CSSEmbed {
           
             //get the file arguments
             String[] fileArgs = parser.getRemainingArgs();
-            String inputFilename = null;
             
-            //if no file is given, use stdin
-            if (fileArgs.length == 0){
-                in = new InputStreamReader(System.in, charset);
-            } else {
-                //only the first filename is used
-                inputFilename = fileArgs[0];                     
-                in = new InputStreamReader(new FileInputStream(inputFilename), charset);            
-            }
-
             //determine if there's a maximum URI length
             int uriLength = CSSURLEmbedder.DEFAULT_MAX_URI_LENGTH;
             Integer maxUriLength = (Integer) parser.getOptionValue(uriLengthOpt);
@@ -135,6 +159,10 @@ public class CSSEmbed {
             if (mhtml && mhtmlRoot == null){
                 throw new Exception("Must use --mhtmlroot when using --mhtml.");
             }
+            String mhtmlFile = (String) parser.getOptionValue(mhtmlFileOpt);
+            if (mhtmlFile != null && !mhtml){
+                throw new Exception("Must use --mhtml when using --mhtml-file.");
+            }
             
             //are missing files ok?
             boolean skipMissingFiles = parser.getOptionValue(skipMissingOpt) != null;
@@ -142,52 +170,191 @@ public class CSSEmbed {
                 options = options | CSSURLEmbedder.SKIP_MISSING_OPTION;
             }
             
-            CSSURLEmbedder embedder = new CSSURLEmbedder(in, options, verbose, uriLength, imageSize);            
-            embedder.setMHTMLRoot(mhtmlRoot);
+            //get output filename
+            outputFilename = (String) parser.getOptionValue(outputFilenameOpt);
             
-            //close in case writing to the same file
-            in.close(); in = null;
+            //streaming is turned off for any file that's also the output
+            if (parser.getOptionValue(streamOpt) != null){
+                options = options | CSSURLEmbedder.STREAMING_OPTION;
+            }
             
-            //get root for relative URLs
-            root = (String) parser.getOptionValue(rootOpt);
-            if(root == null){
+            FileEmbedder fileEmbedder = new FileEmbedder(options, verbose, charset);
+            fileEmbedder.setMHTMLRoot(mhtmlRoot);
+            fileEmbedder.setMaxUriLength(uriLength);
+            fileEmbedder.setMaxImageSize(imageSize);
+            
+            //images used this many times are stored once, in a custom property
+            Integer shareThreshold = (Integer) parser.getOptionValue(shareThresholdOpt);
+            if (shareThreshold != null){
+                fileEmbedder.setShareThreshold(Math.max(0, shareThreshold.intValue()));
+            }
             
-                if (inputFilename != null) {
-                    //no root specified, so get from input file
-                    root = (new File(inputFilename)).getCanonicalPath();
-                    root = root.substring(0, root.lastIndexOf(File.separator));                
-                } else {
-                    throw new Exception("Must use --root when not specifying a filename.");
+            //choose the images that save the most requests within a size budget
+            Integer budget = (Integer) parser.getOptionValue(budgetOpt);
+            boolean budgetGzip = parser.getOptionValue(budgetGzipOpt) != null;
+            if (budgetGzip && budget == null){
+                throw new Exception("Must use --budget when using --budget-gzip.");
+            }
+            if (budget != null){
+                fileEmbedder.setBudget(Math.max(0, budget.intValue()), budgetGzip);
+            }
+            
+            //cache data URIs so repeated images are only encoded once
+            DataURICache cache = null;
+            Integer cacheSizeOption = (Integer) parser.getOptionValue(cacheSizeOpt);
+            if (cacheSizeOption == null || cacheSizeOption.intValue() > 0){
+                cache = DataURICache.getSharedCache();
+                if (cacheSizeOption != null){
+                    cache.setMaxSize(cacheSizeOption.intValue());
                 }
             }
             
-            if (!root.endsWith(File.separator)){
-                root += File.separator;
+            //keep encoded images between runs if there's a cache directory
+            String cacheDir = (String) parser.getOptionValue(cacheDirOpt);
+            if (cacheDir != null){
+                long cacheDirSize = DataURIDiskCache.DEFAULT_MAX_SIZE;
+                Integer cacheDirSizeOption = (Integer) parser.getOptionValue(cacheDirSizeOpt);
+                if (cacheDirSizeOption != null){
+                    cacheDirSize = Math.max(0, cacheDirSizeOption.intValue());
+                }
+                
+                diskCache = new DataURIDiskCache(new File(cacheDir), cacheDirSize);
+                if (cache == null){
+                    cache = new DataURICache(0);
+                }
+                
+                if (verbose){
+                    System.err.println("[INFO] Using cache directory '" + diskCache.getDirectory().getAbsolutePath() + "'.");
+                }
+            }
+            
+            fileEmbedder.setCache(cache);
+            fileEmbedder.setDiskCache(diskCache);
+            
+            //remove comments and whitespace from SVG images
+            fileEmbedder.setEncoder(DataURIGenerator.getDefault().toBuilder()
+                    .setMinifySVG(parser.getOptionValue(minifySVGOpt) != null).build());
+            
+            //make PNG and GIF images smaller before encoding them
+            ImageOptimizer optimizer = null;
+            if (parser.getOptionValue(optimizeOpt) != null){
+                optimizer = new ImageOptimizer();
+                fileEmbedder.setOptimizer(optimizer);
             }
             
             if (verbose){
-                System.err.println("[INFO] Using '" + root + "' as root for relative file paths.");
+                System.err.println("[INFO] Using Base64 backend '" + DataURIGenerator.getBase64Backend().getName() + "'.");
             }
-                                  
-            //get output filename
-            outputFilename = (String) parser.getOptionValue(outputFilenameOpt);            
-            if (outputFilename == null) {
-                if (verbose){
-                    System.err.println("[INFO] No output file specified, defaulting to stdout.");
-                }                
+            
+            //load and encode images in parallel
+            Integer imageThreads = (Integer) parser.getOptionValue(imageThreadsOpt);
+            if (imageThreads != null && imageThreads.intValue() > 1){
+                executor = Executors.newFixedThreadPool(imageThreads.intValue());
+                fileEmbedder.setExecutor(executor);
+            }
+            
+            //keep downloaded images between runs, only downloading them again if they've changed
+            String remoteCacheDir = (String) parser.getOptionValue(remoteCacheDirOpt);
+            Integer remoteTimeout = (Integer) parser.getOptionValue(remoteTimeoutOpt);
+            if (remoteCacheDir != null || remoteTimeout != null){
+                HttpFetcher fetcher = (remoteCacheDir == null) ? new HttpFetcher() : new HttpFetcher(new File(remoteCacheDir));
+                if (remoteTimeout != null){
+                    fetcher.setConnectTimeout(remoteTimeout.intValue());
+                    fetcher.setReadTimeout(remoteTimeout.intValue());
+                }
+                fileEmbedder.setFetcher(fetcher);
+            }
+            
+            //get root for relative URLs
+            String root = (String) parser.getOptionValue(rootOpt);
+            fileEmbedder.setRoot(root);
+            
+            if (verbose && root != null){
+                System.err.println("[INFO] Using '" + fileEmbedder.getRoot(null) + "' as root for relative file paths.");
+            }
+            
+            //several files, directories or patterns are processed in one go
+            String outputDir = (String) parser.getOptionValue(outputDirOpt);
+            String suffix = (String) parser.getOptionValue(suffixOpt);
+            boolean watch = parser.getOptionValue(watchOpt) != null;
+            List<File> inputs = new ArrayList<File>();
+            List<File> outputs = new ArrayList<File>();
+            
+            if (outputDir != null || suffix != null || fileArgs.length > 1 || 
+                    (fileArgs.length == 1 && isBatchArg(fileArgs[0]))){
+                
+                if (outputFilename != null){
+                    throw new Exception("Use --output-dir or --suffix instead of -o with multiple input files.");
+                }
+                if (outputDir == null && suffix == null){
+                    throw new Exception("Must use --output-dir or --suffix with multiple input files.");
+                }
+                
+                mapFiles(fileArgs, outputDir, suffix, verbose, inputs, outputs);
+                
+            } else if (watch){
+                if (fileArgs.length == 0 || outputFilename == null){
+                    throw new Exception("Must use an input file and -o, --output-dir or --suffix with --watch.");
+                }
+                
+                inputs.add(new File(fileArgs[0]).getCanonicalFile());
+                outputs.add(new File(outputFilename));
+            }
+            
+            //images for all files go into one document, written as the files are processed
+            if (mhtmlFile != null){
+                if (watch){
+                    throw new Exception("Can't use --mhtml-file with --watch.");
+                }
+                
+                mhtmlDocument = new MHTMLDocument(new File(mhtmlFile), charset);
+                fileEmbedder.setMHTMLDocument(mhtmlDocument);
+            }
+            
+            //count and time each file and image, which is skipped entirely otherwise
+            boolean showStats = parser.getOptionValue(statsOpt) != null;
+            String reportFile = (String) parser.getOptionValue(reportOpt);
+            if (showStats || reportFile != null){
+                if (watch){
+                    throw new Exception("Can't use --stats or --report with --watch.");
+                }
+                
+                stats = new EmbedStats();
+                fileEmbedder.setStats(stats);
+            }
+            
+            if (watch){
+                
+                //runs until the process is stopped
+                new StylesheetWatcher(fileEmbedder, inputs, outputs, verbose).run();
+                
+            } else if (!inputs.isEmpty()){
+                Integer threads = (Integer) parser.getOptionValue(threadsOpt);
+                failed = !embedAll(fileEmbedder, inputs, outputs, threads == null ? 1 : threads.intValue(), verbose);
                 
-                out = new OutputStreamWriter(System.out);
             } else {
-                File outputFile = new File(outputFilename);
+                embedSingle(fileEmbedder, fileArgs.length == 0 ? null : fileArgs[0], outputFilename, charset, verbose);
+            }
+            
+            if (mhtmlDocument != null){
+                mhtmlDocument.close();
+                
                 if (verbose){
-                    System.err.println("[INFO] Output file is '" + outputFile.getAbsolutePath() + "'");
+                    System.err.println("[INFO] Wrote " + mhtmlDocument.size() + " images to '" + mhtmlFile + "'.");
                 }
-                embedder.setFilename(outputFile.getName());
-                out = new OutputStreamWriter(bytes, charset);
-            }            
+            }
             
-            //set verbose option
-            embedder.embedImages(out, root);
+            if (stats != null){
+                writeStats(stats, showStats, reportFile, verbose);
+            }
+            
+            if (verbose && optimizer != null){
+                System.err.println("[INFO] Image optimizer: " + optimizer + ".");
+            }
+            
+            if (verbose && cache != null){
+                System.err.println("[INFO] Data URI cache: " + cache + ".");
+            }
             
         } catch (CmdLineParser.OptionException e) {
             usage();
@@ -197,24 +364,269 @@ public class CSSEmbed {
             if (verbose){
                 e.printStackTrace();
             }
-            System.exit(1);
+            failed = true;
         } finally {
-            if (out != null) {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            
+            if (mhtmlDocument != null) {
                 try {
-                    out.close();
-                    
-                    if(bytes.size() > 0) {
-                        bytes.writeTo(new FileOutputStream(outputFilename));
-                    }
+                    mhtmlDocument.close();
+                } catch (IOException e) {
+                    System.err.println("[WARNING] Could not write MHTML file. " + e.getMessage());
+                }
+            }
+            
+            if (diskCache != null) {
+                try {
+                    diskCache.trim();
                 } catch (IOException e) {
-                    System.err.println("[ERROR] " + e.getMessage());
+                    System.err.println("[WARNING] Could not trim cache directory. " + e.getMessage());
+                }
+            }
+        }
+        
+        if (failed){
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * Embeds images into a single file or stdin, writing to a single file or
+     * stdout.
+     * @param fileEmbedder The embedder to use.
+     * @param inputFilename The input filename, or null for stdin.
+     * @param outputFilename The output filename, or null for stdout.
+     * @param charset The character set for stdin and stdout.
+     * @param verbose True to output informational messages.
+     * @throws java.io.IOException
+     */
+    private static void embedSingle(FileEmbedder fileEmbedder, String inputFilename, String outputFilename, 
+            String charset, boolean verbose) throws IOException {
+        
+        if (outputFilename != null){
+            File outputFile = new File(outputFilename);
+            if (verbose){
+                System.err.println("[INFO] Output file is '" + outputFile.getAbsolutePath() + "'");
+            }
+            
+            if (inputFilename != null){
+                fileEmbedder.embed(new File(inputFilename), outputFile);
+                return;
+            }
+        } else if (verbose){
+            System.err.println("[INFO] No output file specified, defaulting to stdout.");
+        }
+        
+        Reader in;
+        String root;
+        if (inputFilename == null){
+            in = new InputStreamReader(System.in, charset);
+            root = fileEmbedder.getRoot(null);
+        } else {
+            in = new InputStreamReader(new FileInputStream(inputFilename), charset);
+            root = fileEmbedder.getRoot(new File(inputFilename));
+        }
+        
+        //only replace the output file once everything has worked
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Writer out = (outputFilename == null) ? new OutputStreamWriter(System.out) : new OutputStreamWriter(bytes, charset);
+        
+        try {
+            fileEmbedder.embed(in, out, root, inputFilename == null ? "stdin" : inputFilename, 
+                    outputFilename == null ? null : new File(outputFilename).getName(), fileEmbedder.getOptions());
+        } finally {
+            in.close();
+            out.close();
+        }
+        
+        if (bytes.size() > 0){
+            FileOutputStream fos = new FileOutputStream(outputFilename);
+            try {
+                bytes.writeTo(fos);
+            } finally {
+                fos.close();
+            }
+        }
+    }
+    /**
+     * Works out the input files for the file arguments and where each one
+     * goes, which is the output directory and/or the input's name with a
+     * suffix added.
+     * @param fileArgs The files, directories and glob patterns to process.
+     * @param outputDir The output directory, or null to write next to the input.
+     * @param suffix The suffix to add to output filenames, or null for none.
+     * @param verbose True to output informational messages.
+     * @param inputs Receives the input files.
+     * @param outputs Receives the output file for each input.
+     * @throws java.io.IOException When an argument doesn't match any files.
+     */
+    private static void mapFiles(String[] fileArgs, String outputDir, String suffix, boolean verbose,
+            List<File> inputs, List<File> outputs) throws IOException {
+        
+        FileExpander expander = new FileExpander();
+        for (int i = 0; i < fileArgs.length; i++){
+            expander.add(fileArgs[i]);
+        }
+        
+        for (Map.Entry<File,String> entry : expander.getFiles().entrySet()){
+            File input = entry.getKey();
+            
+            //don't process the output of an earlier run
+            if (suffix != null && getBaseName(input.getName()).endsWith(suffix)){
+                if (verbose){
+                    System.err.println("[INFO] Skipping '" + input + "', it looks like an output file.");
+                }
+                continue;
+            }
+            
+            inputs.add(input);
+            if (outputDir == null){
+                outputs.add(new File(input.getParentFile(), addSuffix(input.getName(), suffix)));
+            } else {
+                outputs.add(new File(outputDir, addSuffix(entry.getValue(), suffix)));
+            }
+        }
+    }
+    
+    /**
+     * Writes the stats for the run as a summary on stderr, a JSON report in
+     * a file, or both.
+     * @param stats The stats to write.
+     * @param showStats True to write the summary.
+     * @param reportFile The file to write the report to, or null for none.
+     * @param verbose True to output informational messages.
+     * @throws java.io.IOException
+     */
+    private static void writeStats(EmbedStats stats, boolean showStats, String reportFile, boolean verbose) throws IOException {
+        stats.finish();
+        
+        if (showStats){
+            stats.writeSummary(new OutputStreamWriter(System.err));
+        }
+        
+        if (reportFile != null){
+            Writer out = new OutputStreamWriter(new FileOutputStream(reportFile), "UTF-8");
+            try {
+                stats.writeJSON(out);
+            } finally {
+                out.close();
+            }
+            
+            if (verbose){
+                System.err.println("[INFO] Wrote stats to '" + reportFile + "'.");
+            }
+        }
+    }
+    
+    /**
+     * Embeds images into many files. A summary line is written for each
+     * file in the order given, even when files are processed in parallel.
+     * @param fileEmbedder The embedder to use.
+     * @param inputs The files to process.
+     * @param outputs The output file for each input.
+     * @param threads The number of files to process at once.
+     * @param verbose True to output informational messages.
+     * @return True if every file was processed, false if any failed.
+     * @throws java.io.IOException
+     */
+    private static boolean embedAll(final FileEmbedder fileEmbedder, List<File> inputs, List<File> outputs, 
+            int threads, boolean verbose) throws IOException {
+        
+        ExecutorService pool = null;
+        if (threads > 1 && inputs.size() > 1){
+            pool = Executors.newFixedThreadPool(Math.min(threads, inputs.size()));
+        }
+        
+        List<FutureTask<Integer>> results = new ArrayList<FutureTask<Integer>>();
+        final long[] times = new long[inputs.size()];
+        boolean success = true;
+        
+        try {
+            for (int i = 0; i < inputs.size(); i++){
+                final int index = i;
+                final File input = inputs.get(i);
+                final File output = outputs.get(i);
+                FutureTask<Integer> task = new FutureTask<Integer>(new Callable<Integer>(){
+                    public Integer call() throws IOException {
+                        long start = System.currentTimeMillis();
+                        try {
+                            return Integer.valueOf(fileEmbedder.embed(input, output).getConversions());
+                        } finally {
+                            times[index] = System.currentTimeMillis() - start;
+                        }
+                    }
+                });
+                
+                //without a pool, each file is processed when its result is needed
+                if (pool != null){
+                    pool.execute(task);
+                }
+                results.add(task);
+            }
+            
+            for (int i = 0; i < inputs.size(); i++){
+                FutureTask<Integer> task = results.get(i);
+                
+                if (pool == null){
+                    task.run();
+                }
+                
+                try {
+                    int conversions = task.get().intValue();
+                    System.err.println("[INFO] " + inputs.get(i) + " -> " + outputs.get(i) + " (" + conversions + 
+                            " images, " + times[i] + " ms)");
+                } catch (ExecutionException e){
+                    Throwable cause = e.getCause();
+                    System.err.println("[ERROR] " + inputs.get(i) + ": " + cause.getMessage());
                     if (verbose){
-                        e.printStackTrace();
+                        cause.printStackTrace();
                     }
+                    success = false;
+                } catch (InterruptedException e){
+                    throw new InterruptedIOException("Interrupted while embedding images.");
                 }
-            }            
+            }
+        } finally {
+            if (pool != null){
+                pool.shutdownNow();
+            }
+        }
+        
+        return success;
+    }
+    
+    /**
+     * Determines if a single file argument should be processed in batch
+     * mode, which is the case for directories and glob patterns.
+     */
+    private static boolean isBatchArg(String arg){
+        return new File(arg).isDirectory() || (!new File(arg).exists() && FileExpander.isPattern(arg));
+    }
+    
+    /**
+     * Returns a filename without its extension.
+     */
+    private static String getBaseName(String filename){
+        int dot = filename.lastIndexOf('.');
+        return (dot > 0) ? filename.substring(0, dot) : filename;
+    }
+    
+    /**
+     * Adds a suffix to a path before the extension of the filename, so that
+     * "a/b.css" with the suffix "-embed" becomes "a/b-embed.css".
+     */
+    private static String addSuffix(String path, String suffix){
+        if (suffix == null){
+            return path;
         }
         
+        int dot = path.lastIndexOf('.');
+        if (dot <= path.lastIndexOf('/') + 1){
+            return path + suffix;
+        }
+        return path.substring(0, dot) + suffix + path.substring(dot);
     }
     
     /**
@@ -222,18 +634,41 @@ public class CSSEmbed {
      */
     private static void usage() {
         System.out.println(
-            "\nUsage: java -jar cssembed-x.y.z.jar [options] [input file]\n\n"
+            "\nUsage: java -jar cssembed-x.y.z.jar [options] [input files]\n\n"
 
                         + "Global Options\n"
                         + "  -h, --help            Displays this information.\n"
                         + "  --charset <charset>   Character set of the input file.\n"
                         + "  --mhtml               Enable MHTML mode.\n"
                         + "  --mhtmlroot <root>    Use <root> as the MHTML root for the file.\n"                        
+                        + "  --mhtml-file <file>   Place images for all files into one MHTML <file>.\n"
                         + "  -v, --verbose         Display informational messages and warnings.\n"
                         + "  --root <root>         Prepends <root> to all relative URLs.\n"
                         + "  --skip-missing        Don't throw an error for missing image files.\n"
                         + "  --max-uri-length len  Maximum length for a data URI. Defaults to 32768.\n"
                         + "  --max-image-size size Maximum image size (in bytes) to convert.\n"
-                        + "  -o <file>             Place the output into <file>. Defaults to stdout.");
+                        + "  --share-threshold n   Store images used n or more times once, in CSS variables.\n"
+                        + "  --budget size         Embed the images saving the most requests in size bytes.\n"
+                        + "  --budget-gzip         Measure the budget after gzip compression.\n"
+                        + "  --stream              Write output as it's processed instead of all at once.\n"
+                        + "  --optimize            Losslessly shrink PNG and GIF images before embedding.\n"
+                        + "  --minify-svg          Remove comments and whitespace from SVG images.\n"
+                        + "  --cache-size size     Maximum size (in bytes) of the data URI cache, 0 disables.\n"
+                        + "  --cache-dir <dir>     Keep encoded images in <dir> between runs.\n"
+                        + "  --cache-dir-size size Maximum size (in bytes) of the cache directory.\n"
+                        + "  --image-threads n     Load and encode images using n threads.\n"
+                        + "  --remote-cache-dir d  Keep downloaded images in directory d between runs.\n"
+                        + "  --remote-timeout ms   Timeout for downloading images.\n"
+                        + "  --stats               Display counters and timings for each file when done.\n"
+                        + "  --report <file>       Write counters and timings for each file and image to\n"
+                        + "                        <file> as JSON.\n"
+                        + "  -o <file>             Place the output into <file>. Defaults to stdout.\n\n"
+                        
+                        + "Batch Options\n"
+                        + "  Input files may be files, directories or patterns such as css/**/*.css.\n"
+                        + "  --output-dir <dir>    Place output files into <dir>.\n"
+                        + "  --suffix <suffix>     Add <suffix> to output filenames, before the extension.\n"
+                        + "  --threads n           Process n files at once.\n"
+                        + "  --watch               Keep running and rebuild outputs when their files change.");
     }
 }
\ No newline at end of file
@@ -36,8 +36,22 @@ import org.apache.tools.ant.util.IdentityMapper;
 
 import java.io.*;
 
+import net.nczonline.web.datauri.DataURICache;
+import net.nczonline.web.datauri.DataURIDiskCache;
+import net.nczonline.web.datauri.DataURIEncoder;
+import net.nczonline.web.datauri.DataURIGenerator;
+import net.nczonline.web.datauri.HttpFetcher;
+import net.nczonline.web.datauri.ImageOptimizer;
+
+import java.util.ArrayList;
 import java.util.Vector;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 //Define a custom Ant Task that calls into the CSS Embedder
 public class CSSEmbedTask extends Task {
@@ -47,13 +61,42 @@ public class CSSEmbedTask extends Task {
     private String root;
     private boolean mhtml;
     private String mhtmlRoot;
+    private File mhtmlFile;
     private boolean skipMissing;
     private boolean verbose = false;
     private int maxUriLength = 0;
     private int maxImageSize = 0;
+    private int shareThreshold = 0;
+    private long budget = 0;
+    private boolean budgetGzip = false;
+    private boolean stream = false;
+    private boolean optimize = false;
+    private boolean minifySvg = false;
+    private long cacheSize = DataURICache.DEFAULT_MAX_SIZE;
+    private File cacheDir;
+    private long cacheDirSize = DataURIDiskCache.DEFAULT_MAX_SIZE;
+    private int imageThreads = 1;
+    private int threads = 1;
+    private File dependencyFile;
+    private File remoteCacheDir;
+    private int remoteTimeout = 0;
+    private boolean stats = false;
+    private File reportFile;
     private File srcFile;
     private File destFile;
     
+    //state for a single run of the task
+    private DataURICache cache;
+    private DataURIDiskCache diskCache;
+    private ExecutorService imageExecutor;
+    private DependencyTracker tracker;
+    private HttpFetcher fetcher;
+    private MHTMLDocument mhtmlDocument;
+    private ImageOptimizer optimizer;
+    private DataURIEncoder encoder;
+    private EmbedStats embedStats;
+    private FileEmbedder fileEmbedder;
+    
     //support nested resource collections & mappers
     private Mapper mapperElement = null;
     private Vector rcs = new Vector();
@@ -75,6 +118,10 @@ public class CSSEmbedTask extends Task {
         this.mhtmlRoot = mhtmlRoot;
     }
     
+    public void setMhtmlFile(File mhtmlFile) {
+        this.mhtmlFile = mhtmlFile;
+    }
+    
     public void setSkipMissing(boolean skipMissing) {
         this.skipMissing = skipMissing;
     }
@@ -91,6 +138,70 @@ public class CSSEmbedTask extends Task {
         this.maxImageSize = maxImageSize;
     }
     
+    public void setShareThreshold(int shareThreshold) {
+        this.shareThreshold = shareThreshold;
+    }
+    
+    public void setBudget(long budget) {
+        this.budget = budget;
+    }
+    
+    public void setBudgetGzip(boolean budgetGzip) {
+        this.budgetGzip = budgetGzip;
+    }
+    
+    public void setStream(boolean stream) {
+        this.stream = stream;
+    }
+    
+    public void setStats(boolean stats) {
+        this.stats = stats;
+    }
+    
+    public void setReportFile(File reportFile) {
+        this.reportFile = reportFile;
+    }
+    
+    public void setOptimize(boolean optimize) {
+        this.optimize = optimize;
+    }
+    
+    public void setMinifySvg(boolean minifySvg) {
+        this.minifySvg = minifySvg;
+    }
+    
+    public void setCacheSize(long cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+    
+    public void setCacheDir(File cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+    
+    public void setCacheDirSize(long cacheDirSize) {
+        this.cacheDirSize = cacheDirSize;
+    }
+    
+    public void setImageThreads(int imageThreads) {
+        this.imageThreads = imageThreads;
+    }
+    
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+    
+    public void setDependencyFile(File dependencyFile) {
+        this.dependencyFile = dependencyFile;
+    }
+    
+    public void setRemoteCacheDir(File remoteCacheDir) {
+        this.remoteCacheDir = remoteCacheDir;
+    }
+    
+    public void setRemoteTimeout(int remoteTimeout) {
+        this.remoteTimeout = remoteTimeout;
+    }
+    
     public void setSrcFile(File srcFile) {
         this.srcFile = srcFile;
     }
@@ -151,6 +262,15 @@ public class CSSEmbedTask extends Task {
         if(this.mhtmlRoot != null && !this.mhtml) {
             log("mhtmlRoot has no effect if mhtml mode is not activated", Project.MSG_WARN);
         }
+        
+        if(this.mhtmlFile != null && !this.mhtml) {
+            throw new BuildException("Must activate mhtml mode to use mhtmlFile", getLocation());
+        }
+        
+        //every file has to be processed again to fill the shared document
+        if(this.mhtmlFile != null && this.dependencyFile != null) {
+            log("dependencyFile has no effect if mhtmlFile is used", Project.MSG_WARN);
+        }
     }
     
     //run the task
@@ -163,14 +283,195 @@ public class CSSEmbedTask extends Task {
             options = options | CSSURLEmbedder.SKIP_MISSING_OPTION;
         }
         
-        if(srcFile != null && srcFile.exists()) {
+        //share the data URI cache between all files, and between task runs
+        cache = null;
+        if(cacheSize > 0) {
+            cache = DataURICache.getSharedCache();
+            cache.setMaxSize(cacheSize);
+        }
+        
+        //keep encoded images between builds if there's a cache directory
+        diskCache = null;
+        if(cacheDir != null) {
+            try {
+                diskCache = new DataURIDiskCache(cacheDir, cacheDirSize);
+            } catch(IOException ex) {
+                throw new BuildException(ex.getMessage(), ex, getLocation());
+            }
+            
+            if(cache == null) {
+                cache = new DataURICache(0);
+            }
+        }
+        
+        //skip outputs whose source and images haven't changed since last time
+        tracker = null;
+        if(dependencyFile != null && mhtmlFile == null) {
+            try {
+                tracker = new DependencyTracker(dependencyFile);
+            } catch(IOException ex) {
+                throw new BuildException(ex.getMessage(), ex, getLocation());
+            }
+        }
+        
+        //keep downloaded images between builds, only downloading them again if they've changed
+        fetcher = null;
+        if(remoteCacheDir != null || remoteTimeout > 0) {
+            try {
+                fetcher = (remoteCacheDir == null) ? new HttpFetcher() : new HttpFetcher(remoteCacheDir);
+            } catch(IOException ex) {
+                throw new BuildException(ex.getMessage(), ex, getLocation());
+            }
+            
+            if(remoteTimeout > 0) {
+                fetcher.setConnectTimeout(remoteTimeout);
+                fetcher.setReadTimeout(remoteTimeout);
+            }
+        }
+        
+        //images for all files go into one document, written as the files are processed
+        mhtmlDocument = null;
+        if(mhtmlFile != null) {
+            try {
+                mhtmlDocument = new MHTMLDocument(mhtmlFile, charset);
+            } catch(IOException ex) {
+                throw new BuildException(ex.getMessage(), ex, getLocation());
+            }
+        }
+        
+        //make PNG and GIF images smaller before encoding them
+        optimizer = optimize ? new ImageOptimizer() : null;
+        
+        //settings for this run only, so other tasks in the same build aren't affected
+        encoder = DataURIGenerator.getDefault().toBuilder().setMinifySVG(minifySvg).build();
+        
+        //count and time each file and image, which is skipped entirely otherwise
+        embedStats = (stats || reportFile != null) ? new EmbedStats() : null;
+        
+        //load and encode the images in each file in parallel
+        imageExecutor = null;
+        if(imageThreads > 1) {
+            imageExecutor = Executors.newFixedThreadPool(imageThreads);
+        }
+        
+        //stream straight to each output file unless it's also the input file
+        fileEmbedder = new FileEmbedder(stream ? options | CSSURLEmbedder.STREAMING_OPTION : options, verbose, charset);
+        fileEmbedder.setRoot(root);
+        fileEmbedder.setMHTMLRoot(mhtmlRoot);
+        fileEmbedder.setMHTMLDocument(mhtmlDocument);
+        fileEmbedder.setMaxUriLength(maxUriLength);
+        fileEmbedder.setMaxImageSize(maxImageSize);
+        fileEmbedder.setShareThreshold(shareThreshold);
+        fileEmbedder.setBudget(budget, budgetGzip);
+        fileEmbedder.setCache(cache);
+        fileEmbedder.setDiskCache(diskCache);
+        fileEmbedder.setExecutor(imageExecutor);
+        fileEmbedder.setFetcher(fetcher);
+        fileEmbedder.setOptimizer(optimizer);
+        fileEmbedder.setEncoder(encoder);
+        fileEmbedder.setStats(embedStats);
+        
+        try {
+            embedAll(getJobs());
+            
+            if(mhtmlDocument != null) {
+                mhtmlDocument.close();
+                
+                if(verbose) {
+                    log("[INFO] Wrote " + mhtmlDocument.size() + " images to '" + mhtmlFile + "'");
+                }
+            }
+        } catch(IOException ex) {
+            throw new BuildException(ex.getMessage(), ex, getLocation());
+        } finally {
+            if(mhtmlDocument != null) {
+                try {
+                    mhtmlDocument.close();
+                } catch(IOException ex) {
+                    log("Could not write MHTML file: " + ex.getMessage(), Project.MSG_WARN);
+                }
+                mhtmlDocument = null;
+            }
+            
+            if(imageExecutor != null) {
+                imageExecutor.shutdownNow();
+                imageExecutor = null;
+            }
+            fileEmbedder = null;
+            
+            if(diskCache != null) {
+                try {
+                    diskCache.trim();
+                } catch(IOException ex) {
+                    log("Could not trim cache directory: " + ex.getMessage(), Project.MSG_WARN);
+                }
+            }
+            
+            //save even if a file failed, so the ones that worked are kept
+            if(tracker != null) {
+                try {
+                    tracker.save();
+                } catch(IOException ex) {
+                    log("Could not save dependency file: " + ex.getMessage(), Project.MSG_WARN);
+                }
+            }
+        }
+        
+        if(verbose && optimizer != null) {
+            log("[INFO] Image optimizer: " + optimizer);
+        }
+        
+        if(verbose && cache != null) {
+            log("[INFO] Data URI cache: " + cache);
+        }
+        
+        if(embedStats != null) {
             try {
-                embed(srcFile, destFile, options);
+                writeStats();
             } catch(IOException ex) {
-                throw new BuildException(ex.getMessage(), ex);
+                throw new BuildException(ex.getMessage(), ex, getLocation());
+            }
+            embedStats = null;
+        }
+    }
+    
+    //log the stats for the run and write the report, if asked for
+    private void writeStats() throws IOException {
+        embedStats.finish();
+        
+        if(stats) {
+            StringWriter summary = new StringWriter();
+            embedStats.writeSummary(summary);
+            
+            BufferedReader lines = new BufferedReader(new StringReader(summary.toString()));
+            String line;
+            while((line = lines.readLine()) != null) {
+                log(line);
             }
         }
         
+        if(reportFile != null) {
+            Writer out = new OutputStreamWriter(new FileOutputStream(reportFile), "UTF-8");
+            try {
+                embedStats.writeJSON(out);
+            } finally {
+                out.close();
+            }
+            
+            if(verbose) {
+                log("[INFO] Wrote stats to '" + reportFile + "'");
+            }
+        }
+    }
+    
+    //collect the source file and all nested resources, in order
+    private List<EmbedJob> getJobs() {
+        List<EmbedJob> jobs = new ArrayList<EmbedJob>();
+        
+        if(srcFile != null && srcFile.exists()) {
+            jobs.add(new EmbedJob(srcFile, destFile));
+        }
+        
         FileNameMapper mapper = getMapper();
         
         for(Iterator it = this.rcs.iterator(); it.hasNext();) {
@@ -184,58 +485,125 @@ public class CSSEmbedTask extends Task {
                 if (mapped != null && mapped.length > 0) {
                     for(int k = 0; k < mapped.length; k++) {
                         File out = getProject().resolveFile(in.getParent() + File.separator + mapped[k]);
-                        
-                        try {
-                            embed(in, out, options);
-                        } catch(IOException ex) {
-                            throw new BuildException(ex.getMessage(), ex);
-                        }
+                        jobs.add(new EmbedJob(in, out));
                     }
                 }
             }
         }
+        
+        return jobs;
     }
     
-    private void embed(File input, File output, int options) throws IOException {
-        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-        Reader in = new InputStreamReader(new FileInputStream(input), charset);
-        Writer out = new OutputStreamWriter(bytes, charset);
-        String pathRoot = root;
-        
-        if(pathRoot == null) {
-            pathRoot = input.getCanonicalPath();
-            pathRoot = pathRoot.substring(0, pathRoot.lastIndexOf(File.separator));                
+    //embed images in every file, using a pool of workers if threads is set
+    private void embedAll(List<EmbedJob> jobs) throws BuildException {
+        if(threads <= 1 || jobs.size() <= 1) {
+            for(EmbedJob job : jobs) {
+                try {
+                    job.call();
+                } catch(IOException ex) {
+                    throw new BuildException(ex.getMessage(), ex, getLocation());
+                } finally {
+                    job.flushLog();
+                }
+            }
+            return;
         }
         
-        if (!pathRoot.endsWith(File.separator)){
-            pathRoot += File.separator;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, jobs.size()));
+        List<Future<Object>> results = new ArrayList<Future<Object>>();
+        
+        try {
+            for(EmbedJob job : jobs) {
+                results.add(executor.submit(job));
+            }
+            
+            //report each file in order, stopping at the first failure
+            for(int i = 0; i < jobs.size(); i++) {
+                try {
+                    results.get(i).get();
+                } catch(InterruptedException ex) {
+                    throw new BuildException("Interrupted while embedding images", ex, getLocation());
+                } catch(ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    if(cause instanceof BuildException) {
+                        throw (BuildException) cause;
+                    }
+                    throw new BuildException(cause.getMessage(), cause, getLocation());
+                } finally {
+                    jobs.get(i).flushLog();
+                }
+            }
+        } finally {
+            executor.shutdownNow();
         }
+    }
+    
+    //embeds images in a single file, holding on to log messages, including the embedder's, until asked
+    private class EmbedJob implements Callable<Object> {
+        private File input;
+        private File output;
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private PrintStream messages = new PrintStream(buffer, true);
         
-        if(verbose) {
-            log("[INFO] embedding images from '" + input + "'");
+        EmbedJob(File input, File output) {
+            this.input = input;
+            this.output = output;
         }
         
-        CSSURLEmbedder embedder = new CSSURLEmbedder(in, options, verbose, maxUriLength, maxImageSize);
+        public Object call() throws IOException {
+            embed(input, output, this);
+            return null;
+        }
         
-        if(mhtml) {
-            embedder.setMHTMLRoot(mhtmlRoot);
-            embedder.setFilename(output.getName());
+        void log(String message) {
+            messages.println(message);
         }
         
-        embedder.embedImages(out, pathRoot);
+        void flushLog() {
+            String text = buffer.toString();
+            buffer.reset();
+            
+            if(text.length() > 0) {
+                String[] lines = text.split("\r?\n");
+                for(int i = 0; i < lines.length; i++) {
+                    CSSEmbedTask.this.log(lines[i]);
+                }
+            }
+        }
+    }
+    
+    //describes everything other than the input that affects an output
+    private String getSettings(int options) {
+        return options + "," + charset + "," + root + "," + mhtmlRoot + "," + maxUriLength + "," + maxImageSize + "," + shareThreshold + "," + budget + "," + budgetGzip + "," + optimize + "," + minifySvg;
+    }
+    
+    private void embed(File input, File output, EmbedJob job) throws IOException {
         
-        in.close();
-        out.close();
+        //streaming only changes how the output is written, not what's in it
+        String settings = getSettings(fileEmbedder.getOptions() & ~CSSURLEmbedder.STREAMING_OPTION);
         
-        if(bytes.size() > 0) {
-            FileOutputStream fos = new FileOutputStream(output);
-            
-            if(verbose) {
-                log("[INFO] Writing to file: " + output);
+        if(tracker != null) {
+            if(tracker.isUpToDate(output, settings, input)) {
+                if(verbose) {
+                    job.log("[INFO] '" + output + "' is up to date, skipping");
+                }
+                return;
             }
             
-            bytes.writeTo(fos);
-            fos.close();
+            //forget the old record in case this file fails part way through
+            tracker.remove(output);
+        }
+        
+        if(verbose) {
+            job.log("[INFO] embedding images from '" + input + "'");
+            job.log("[INFO] Writing to file: " + output);
+        }
+        
+        CSSURLEmbedder embedder = fileEmbedder.embed(input, output, job.messages);
+        
+        //downloaded images can't be checked, so always rebuild those files
+        if(tracker != null && !embedder.hasRemoteDependencies()) {
+            tracker.record(output, settings, input, embedder.getDependencies());
         }
     }
-}
\ No newline at end of file
+}
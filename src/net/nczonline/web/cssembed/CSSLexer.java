@@ -0,0 +1,553 @@
+/*
+ * Copyright (c) 2009 Nicholas C. Zakas. All rights reserved.
+ * http://www.nczonline.net/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.nczonline.web.cssembed;
+
+/**
+ * Single pass tokenizer that finds the parts of a style sheet CSSEmbed cares
+ * about: url() tokens, comments and newlines. Everything else (strings,
+ * escapes, selectors, declarations) is skipped over without being reported,
+ * though braces and at-rules are followed to tell if a token is inside an
+ * at-rule such as @font-face.
+ * Tokens are reported as offsets into the character buffer so that no
+ * intermediate strings are created.
+ * <p>
+ * The lexer can work on a buffer that only holds part of the input. When it
+ * runs out of characters in the middle of a token it returns INCOMPLETE and
+ * rewinds to the start of that token, so the caller can shift the buffer,
+ * read more characters and call next() again.
+ * @author Nicholas C. Zakas
+ */
+class CSSLexer {
+    
+    /** The end of the input has been reached. */
+    public static final int END = 0;
+    
+    /** A url() token. The value offsets exclude whitespace and quotes. */
+    public static final int URL = 1;
+    
+    /** A comment. The value offsets exclude the comment delimiters. */
+    public static final int COMMENT = 2;
+    
+    /** A newline outside of any other token. */
+    public static final int NEWLINE = 3;
+    
+    /** A url() token that isn't properly formed. */
+    public static final int BAD_URL = 4;
+    
+    /** More input is needed to finish the current token. */
+    public static final int INCOMPLETE = 5;
+    
+    //returned by the scan methods when no token should be reported
+    private static final int NONE = -1;
+    
+    //at-rules whose blocks hold ordinary rules rather than descriptors
+    private static final String[] GROUP_RULES = {
+        "media", "supports", "document", "-moz-document", "layer", "container", "scope", "starting-style"
+    };
+    
+    //the at-rule whose prelude is being read, if any
+    private static final int AT_NONE = 0;
+    private static final int AT_GROUP = 1;
+    private static final int AT_OTHER = 2;
+    
+    private char[] buf;
+    private int pos;
+    private int limit;
+    private boolean last;
+    
+    //tracks whether the character just before the buffer is part of an identifier
+    private boolean identBefore = false;
+    
+    //set by skipString() when the closing quote was found
+    private boolean terminated;
+    
+    private int line = 1;
+    private int lineStart = 0;
+    private int tokenLine;
+    private int tokenLineStart;
+    
+    //the depth of braces, and the depth of the outermost at-rule block or -1
+    private int depth = 0;
+    private int atRuleDepth = -1;
+    private int atRule = AT_NONE;
+    
+    private int tokenStart;
+    private int tokenEnd;
+    private int valueStart;
+    private int valueEnd;
+    
+    //--------------------------------------------------------------------------
+    // Constructors
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Creates a new lexer for the given buffer.
+     * @param buf The characters to tokenize.
+     * @param limit The number of valid characters in the buffer.
+     * @param last True if the buffer holds the end of the input.
+     */
+    public CSSLexer(char[] buf, int limit, boolean last){
+        setInput(buf, limit, last);
+    }
+    
+    //--------------------------------------------------------------------------
+    // Input handling
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Changes the buffer being tokenized. The current position is kept, so
+     * this is used after more characters have been read into the buffer.
+     * @param buf The characters to tokenize.
+     * @param limit The number of valid characters in the buffer.
+     * @param last True if the buffer holds the end of the input.
+     */
+    public void setInput(char[] buf, int limit, boolean last){
+        this.buf = buf;
+        this.limit = limit;
+        this.last = last;
+    }
+    
+    /**
+     * Informs the lexer that the first count characters have been removed
+     * from the front of the buffer. Must be called before the buffer is
+     * actually shifted.
+     * @param count The number of characters removed.
+     */
+    public void shift(int count){
+        if (count > 0){
+            identBefore = isIdentChar(buf[count - 1]);
+            pos -= count;
+            lineStart -= count;
+        }
+    }
+    
+    //--------------------------------------------------------------------------
+    // Token information
+    //--------------------------------------------------------------------------    
+    
+    public int getPosition(){
+        return pos;
+    }
+    
+    public int getTokenStart(){
+        return tokenStart;
+    }
+    
+    public int getTokenEnd(){
+        return tokenEnd;
+    }
+    
+    public int getValueStart(){
+        return valueStart;
+    }
+    
+    public int getValueEnd(){
+        return valueEnd;
+    }
+    
+    /**
+     * Determines if the last token is inside the block or the prelude of an
+     * at-rule other than a conditional group rule such as @media. Custom 
+     * properties don't apply to descriptors like those of @font-face.
+     * @return True if the token is inside such an at-rule.
+     */
+    public boolean isInAtRule(){
+        return atRuleDepth > -1 || atRule == AT_OTHER;
+    }
+    
+    /**
+     * Returns the line on which the last token started.
+     * @return The 1-based line number.
+     */
+    public int getLine(){
+        return tokenLine;
+    }
+    
+    /**
+     * Returns the column of the last token's value.
+     * @return The 0-based column.
+     */
+    public int getColumn(){
+        return valueStart - tokenLineStart;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Tokenizing
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Advances to the next token.
+     * @return The type of token found, END when all input has been consumed,
+     *      or INCOMPLETE when more input is needed.
+     */
+    public int next(){
+        int result;
+        
+        while (pos < limit){
+            tokenLine = line;
+            tokenLineStart = lineStart;
+            
+            switch (buf[pos]){
+                case '\n':
+                    tokenStart = pos;
+                    tokenEnd = valueStart = valueEnd = ++pos;
+                    line++;
+                    lineStart = pos;
+                    return NEWLINE;
+                    
+                case '/':
+                    if (pos + 1 == limit){
+                        if (!last){
+                            return INCOMPLETE;
+                        }
+                        pos++;
+                    } else if (buf[pos + 1] == '*'){
+                        return scanComment();
+                    } else {
+                        pos++;
+                    }
+                    break;
+                    
+                case '"':
+                case '\'':
+                    result = scanString();
+                    if (result != NONE){
+                        return result;
+                    }
+                    break;
+                    
+                case '\\':
+                    if (pos + 1 == limit && !last){
+                        return INCOMPLETE;
+                    }
+                    
+                    //an escaped newline is still a newline
+                    pos += (pos + 1 < limit && buf[pos + 1] != '\n') ? 2 : 1;
+                    break;
+                    
+                case '@':
+                    if (!scanAtKeyword()){
+                        return INCOMPLETE;
+                    }
+                    break;
+                    
+                case '{':
+                    depth++;
+                    if (atRule == AT_OTHER && atRuleDepth == -1){
+                        atRuleDepth = depth;
+                    }
+                    atRule = AT_NONE;
+                    pos++;
+                    break;
+                    
+                case '}':
+                    if (depth == atRuleDepth){
+                        atRuleDepth = -1;
+                    }
+                    if (depth > 0){
+                        depth--;
+                    }
+                    atRule = AT_NONE;
+                    pos++;
+                    break;
+                    
+                case ';':
+                    atRule = AT_NONE;
+                    pos++;
+                    break;
+                    
+                case 'u':
+                case 'U':
+                    if (pos + 4 > limit && !last){
+                        return INCOMPLETE;
+                    }
+                    
+                    if (isUrlStart(pos)){
+                        return scanUrl();
+                    }
+                    pos++;
+                    break;
+                    
+                default:
+                    pos++;
+            }
+        }
+        
+        return last ? END : INCOMPLETE;
+    }
+    
+    /*
+     * Determines if a url( token starts at the given position. The token
+     * must not be the tail end of a longer identifier.
+     */
+    private boolean isUrlStart(int start){
+        if (start + 4 > limit){
+            return false;
+        }
+        
+        char c = buf[start + 1];
+        if (c != 'r' && c != 'R'){
+            return false;
+        }
+        c = buf[start + 2];
+        if (c != 'l' && c != 'L'){
+            return false;
+        }
+        if (buf[start + 3] != '('){
+            return false;
+        }
+        
+        return start > 0 ? !isIdentChar(buf[start - 1]) : !identBefore;
+    }
+    
+    /*
+     * Reads the name of an at-rule, so that its block can be recognized.
+     * Returns false if more input is needed to finish the name.
+     */
+    private boolean scanAtKeyword(){
+        int p = pos + 1;
+        while (p < limit && isIdentChar(buf[p])){
+            p++;
+        }
+        
+        if (p == limit && !last){
+            return false;
+        }
+        
+        String name = new String(buf, pos + 1, p - pos - 1).toLowerCase();
+        atRule = AT_OTHER;
+        for (int i = 0; i < GROUP_RULES.length; i++){
+            if (GROUP_RULES[i].equals(name)){
+                atRule = AT_GROUP;
+                break;
+            }
+        }
+        
+        pos = p;
+        return true;
+    }
+    
+    private int scanComment(){
+        int start = pos;
+        int p = pos + 2;
+        
+        while (p < limit){
+            char c = buf[p];
+            if (c == '*' && p + 1 < limit && buf[p + 1] == '/'){
+                return token(COMMENT, start, p + 2, start + 2, p);
+            } else if (c == '\n'){
+                line++;
+                lineStart = p + 1;
+            }
+            p++;
+        }
+        
+        //unterminated comments run to the end of the input
+        if (last){
+            return token(COMMENT, start, limit, start + 2, limit);
+        } 
+        
+        return rewind(start);
+    }
+    
+    /*
+     * Skips over a string outside of a url() token. Strings that aren't
+     * terminated end at the next newline, which is left in place.
+     */
+    private int scanString(){
+        int start = pos;
+        char quote = buf[pos];
+        int p = skipString(quote, pos + 1);
+        
+        if (p == -1){
+            return rewind(start);
+        }
+        
+        pos = p;
+        return NONE;
+    }
+    
+    /*
+     * Finds the end of a string starting just after the opening quote. Returns
+     * the position after the closing quote, the position of an unescaped
+     * newline if the string is unterminated, or -1 if more input is needed.
+     */
+    private int skipString(char quote, int p){
+        terminated = false;
+        
+        while (p < limit){
+            char c = buf[p];
+            if (c == quote){
+                terminated = true;
+                return p + 1;
+            } else if (c == '\n'){
+                return p;
+            } else if (c == '\\'){
+                if (p + 1 < limit && buf[p + 1] == '\n'){
+                    line++;
+                    lineStart = p + 2;
+                }
+                p += 2;
+            } else {
+                p++;
+            }
+        }
+        
+        return last ? limit : -1;
+    }
+    
+    private int scanUrl(){
+        int start = pos;
+        int p = skipWhitespace(pos + 4);
+        int vStart;
+        int vEnd;
+        
+        if (p == limit){
+            return last ? badUrl(start, limit) : rewind(start);
+        }
+        
+        char c = buf[p];
+        if (c == '"' || c == '\''){
+            vStart = p + 1;
+            p = skipString(c, vStart);
+            
+            if (p == -1){
+                return rewind(start);
+            } else if (!terminated){
+                return badUrl(start, p);
+            }
+            
+            vEnd = p - 1;
+            p = skipWhitespace(p);
+            
+            if (p == limit){
+                return last ? badUrl(start, limit) : rewind(start);
+            } else if (buf[p] != ')'){
+                return badUrl(start, p);
+            }
+        } else {
+            vStart = p;
+            vEnd = p;
+            
+            while (p < limit && buf[p] != ')'){
+                c = buf[p];
+                if (c == '\\'){
+                    if (p + 1 < limit && buf[p + 1] == '\n'){
+                        line++;
+                        lineStart = p + 2;
+                    }
+                    p += 2;
+                    vEnd = Math.min(p, limit);
+                } else {
+                    if (c == '\n'){
+                        line++;
+                        lineStart = p + 1;
+                    } else if (!isWhitespace(c)){
+                        vEnd = p + 1;
+                    }
+                    p++;
+                }
+            }
+            
+            if (p >= limit){
+                return last ? badUrl(start, limit) : rewind(start);
+            }
+        }
+        
+        return token(URL, start, p + 1, vStart, vEnd);
+    }
+    
+    private int skipWhitespace(int p){
+        while (p < limit && isWhitespace(buf[p])){
+            if (buf[p] == '\n'){
+                line++;
+                lineStart = p + 1;
+            }
+            p++;
+        }
+        return p;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Helper methods
+    //--------------------------------------------------------------------------    
+    
+    private int token(int type, int start, int end, int vStart, int vEnd){
+        tokenStart = start;
+        tokenEnd = end;
+        valueStart = vStart;
+        valueEnd = vEnd;
+        pos = end;
+        return type;
+    }
+    
+    private int badUrl(int start, int end){
+        return token(BAD_URL, start, end, start + 4, end);
+    }
+    
+    /*
+     * Goes back to the start of a token that couldn't be finished with the
+     * characters available, undoing any line counting done inside of it.
+     */
+    private int rewind(int start){
+        pos = start;
+        line = tokenLine;
+        lineStart = tokenLineStart;
+        return INCOMPLETE;
+    }
+    
+    private static boolean isWhitespace(char c){
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+    
+    private static boolean isIdentChar(char c){
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') 
+                || c == '-' || c == '_' || c > 0x7f;
+    }
+    
+    /**
+     * Determines if a range of the buffer contains the given text, ignoring
+     * case. The text must be lower case.
+     * @param buf The buffer to search.
+     * @param start The start of the range.
+     * @param end The end of the range.
+     * @param text The lower case text to look for.
+     * @return The position of the text, or -1 if not found.
+     */
+    static int indexOfIgnoreCase(char[] buf, int start, int end, String text){
+        int length = text.length();
+        
+        outer:
+        for (int i = start; i <= end - length; i++){
+            for (int j = 0; j < length; j++){
+                if (Character.toLowerCase(buf[i + j]) != text.charAt(j)){
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        
+        return -1;
+    }
+}
@@ -23,19 +23,32 @@
  
 package net.nczonline.web.cssembed;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
 import java.io.FileNotFoundException;
+import java.io.FilterWriter;
 import java.io.Reader;
-import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.net.URL;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import net.nczonline.web.datauri.DataURICache;
+import net.nczonline.web.datauri.DataURIDiskCache;
+import net.nczonline.web.datauri.DataURIEncoder;
 import net.nczonline.web.datauri.DataURIGenerator;
-import java.util.regex.*;
+import net.nczonline.web.datauri.ImageOptimizer;
+import net.nczonline.web.datauri.LoadStats;
+import net.nczonline.web.datauri.MimeTypeRegistry;
+import net.nczonline.web.datauri.RemoteFetcher;
 
 /**
  * Generator for Data URIs.
@@ -46,30 +59,56 @@ public class CSSURLEmbedder {
     public static final int DATAURI_OPTION = 1;
     public static final int MHTML_OPTION = 2;
     public static final int SKIP_MISSING_OPTION = 4;
+    public static final int STREAMING_OPTION = 8;
 
     public static final int DEFAULT_MAX_URI_LENGTH = 32768;
+    public static final int DEFAULT_SPILL_THRESHOLD = 1048576;
 	
 	public static final String PROC_DIRECTIVE_PREFIX = "CssEmbed";
 	public static final String PROC_DIRECTIVE_SKIP = "SKIP";
     
     protected static String MHTML_SEPARATOR = "CSSEmbed_Image";
     
-    private static HashSet<String> imageTypes;    
-    static {
-        imageTypes = new HashSet<String>();
-        imageTypes.add("jpg");
-        imageTypes.add("jpeg");
-        imageTypes.add("gif");
-        imageTypes.add("png");
-    }        
+    private static final int BUFFER_SIZE = 8192;
+    
+    //token start, value start, value end, token end, line, column, 1 if it can be shared
+    private static final int URL_FIELDS = 7;
+    
+    //remembered for URLs without an extension whose type couldn't be found
+    private static final String UNKNOWN_TYPE = "application/octet-stream";
+    
+    private static final String DIRECTIVE_PREFIX_LOWER = PROC_DIRECTIVE_PREFIX.toLowerCase();
+    private static final String DIRECTIVE_SKIP_LOWER = PROC_DIRECTIVE_SKIP.toLowerCase();
     
     private boolean verbose = false;
+    private PrintStream log = System.err;
     private String code = null;
+    private Reader in = null;
     private int options = 1;
     private String mhtmlRoot = "";
     private String outputFilename = "";
     private int maxUriLength = DEFAULT_MAX_URI_LENGTH;  //IE8 only allows dataURIs up to 32KB
     private int maxImageSize;
+    private int spillThreshold = DEFAULT_SPILL_THRESHOLD;
+    private DataURICache cache = null;
+    private DataURIDiskCache diskCache = null;
+    private Executor executor = null;
+    private RemoteFetcher fetcher = null;
+    private ImageOptimizer optimizer = null;
+    private DataURIEncoder encoder = null;
+    private volatile DataURIEncoder imageEncoder = null;
+    private LinkedHashSet<File> dependencies = new LinkedHashSet<File>();
+    private boolean remoteDependencies = false;
+    private int conversions = 0;
+    private MHTMLParts mhtmlParts = null;
+    private MHTMLDocument mhtmlDocument = null;
+    private int shareThreshold = 0;
+    private SharedImages sharedImages = null;
+    private long savedLength = 0;
+    private long budget = 0;
+    private boolean budgetGzip = false;
+    private List<EmbedDecision> decisions = null;
+    private EmbedStats.FileStats stats = null;
     
     //--------------------------------------------------------------------------
     // Constructors
@@ -80,7 +119,7 @@ public class CSSURLEmbedder {
     }
     
     public CSSURLEmbedder(Reader in, int options) throws IOException {
-        this(in, false);
+        this(in, options, false);
     }
     
     public CSSURLEmbedder(Reader in, boolean verbose) throws IOException {
@@ -96,13 +135,56 @@ public class CSSURLEmbedder {
     }
     
     public CSSURLEmbedder(Reader in, int options, boolean verbose, int maxUriLength, int maxImageSize) throws IOException {
-        this.code = readCode(in);
         this.verbose = verbose;
         this.options = options;
+        
+        //in streaming mode, the input isn't read until images are embedded
+        if (hasOption(STREAMING_OPTION)){
+            this.in = in;
+        } else {
+            this.code = readCode(in);
+        }
+        
         this.maxUriLength = maxUriLength;
         this.maxImageSize = maxImageSize;
     }
 
+    /*
+     * Creates an embedder for one call to EmbedderConfig.embed(), taking
+     * settings that have already been checked. Either the reader or the
+     * code is given.
+     */
+    CSSURLEmbedder(EmbedderConfig config, Reader in, String code) throws IOException {
+        this.verbose = config.getVerbose();
+        this.options = config.getOptions();
+
+        if (code != null){
+            this.code = code;
+        } else if (hasOption(STREAMING_OPTION)){
+            this.in = in;
+        } else {
+            this.code = readCode(in);
+        }
+
+        this.maxUriLength = config.getMaxUriLength();
+        this.maxImageSize = config.getMaxImageSize();
+        this.mhtmlRoot = config.getMHTMLRoot();
+        this.outputFilename = config.getFilename();
+        this.mhtmlDocument = config.getMHTMLDocument();
+        this.shareThreshold = config.getShareThreshold();
+        this.spillThreshold = config.getSpillThreshold();
+        this.budget = config.getBudget();
+        this.budgetGzip = config.getBudgetGzip();
+        this.cache = config.getCache();
+        this.diskCache = config.getDiskCache();
+        this.executor = config.getExecutor();
+        this.optimizer = config.getOptimizer();
+
+        //already has the verbose flag and fetcher, so it's used as it is
+        this.encoder = config.getEncoder();
+        this.log = encoder.getLog();
+    }
+
     //--------------------------------------------------------------------------
     // Get/Set verbose flag
     //--------------------------------------------------------------------------    
@@ -113,6 +195,21 @@ public class CSSURLEmbedder {
     
     public void setVerbose(boolean newVerbose){
         verbose = newVerbose;
+        imageEncoder = null;
+    }
+    
+    /**
+     * Returns where informational messages and warnings are written when
+     * verbose, including those from loading images.
+     * @return The stream, stderr unless set.
+     */
+    public PrintStream getLog(){
+        return log;
+    }
+    
+    public void setLog(PrintStream log){
+        this.log = log;
+        imageEncoder = null;
     }
     
     //--------------------------------------------------------------------------
@@ -122,6 +219,10 @@ public class CSSURLEmbedder {
     private boolean hasOption(int option){
         return (options & option) > 0;
     }
+    
+    private boolean isSharing(){
+        return shareThreshold > 0 && !hasOption(MHTML_OPTION);
+    }
 
     //--------------------------------------------------------------------------
     // MHTML Support
@@ -143,6 +244,265 @@ public class CSSURLEmbedder {
         this.outputFilename = filename;
     }
     
+    public MHTMLDocument getMHTMLDocument(){
+        return mhtmlDocument;
+    }
+    
+    /**
+     * Sets a shared MHTML document to place images into in MHTML mode. The
+     * output then references the document instead of starting with its own
+     * MHTML header, so images used by several files are only stored once.
+     * @param mhtmlDocument The document to use, or null to include the 
+     *      images in the output.
+     */
+    public void setMHTMLDocument(MHTMLDocument mhtmlDocument){
+        this.mhtmlDocument = mhtmlDocument;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Shared images
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Returns the number of times an image must be used before its data URI
+     * is stored once, in a custom property on :root, and referenced with
+     * var() everywhere it's used. Images are only shared when that makes the
+     * output smaller. Fonts, and anything inside at-rules such as @font-face
+     * where custom properties don't apply, are always written in place. 
+     * Doesn't apply in MHTML mode.
+     * @return The threshold, or 0 if images are never shared.
+     */
+    public int getShareThreshold(){
+        return shareThreshold;
+    }
+    
+    public void setShareThreshold(int shareThreshold){
+        this.shareThreshold = shareThreshold;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Streaming support
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Returns the number of characters of held back output (the MHTML header
+     * and body) kept in memory before spilling to a temporary file when
+     * in streaming mode.
+     * @return The spill threshold in characters.
+     */
+    public int getSpillThreshold(){
+        return spillThreshold;
+    }
+    
+    public void setSpillThreshold(int spillThreshold){
+        this.spillThreshold = spillThreshold;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Data URI cache
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Returns the cache used for data URIs of local files.
+     * @return The cache, or null if data URIs aren't cached.
+     */
+    public DataURICache getCache(){
+        return cache;
+    }
+    
+    public void setCache(DataURICache cache){
+        this.cache = cache;
+    }
+    
+    /**
+     * Returns the cache used to keep encoded local files between runs. The
+     * disk cache is consulted for files that aren't in the data URI cache,
+     * so it's only used when a data URI cache has been set.
+     * @return The disk cache, or null if there is none.
+     */
+    public DataURIDiskCache getDiskCache(){
+        return diskCache;
+    }
+    
+    public void setDiskCache(DataURIDiskCache diskCache){
+        this.diskCache = diskCache;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Parallel image loading
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Returns the executor used to load and encode images in parallel. The
+     * output is the same as when images are loaded one at a time.
+     * @return The executor, or null if images are loaded one at a time.
+     */
+    public Executor getExecutor(){
+        return executor;
+    }
+    
+    public void setExecutor(Executor executor){
+        this.executor = executor;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Remote images
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Returns the fetcher used to download images from HTTP and HTTPS URLs.
+     * @return The fetcher, or null to use the DataURIGenerator default.
+     */
+    public RemoteFetcher getFetcher(){
+        return fetcher;
+    }
+    
+    public void setFetcher(RemoteFetcher fetcher){
+        this.fetcher = fetcher;
+        this.imageEncoder = null;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Data URI encoder
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Returns the encoder used to generate data URIs. Its verbose flag, log
+     * and fetcher are replaced by the ones for this embedder, if set, 
+     * without changing the encoder itself.
+     * @return The encoder, or null to use the DataURIGenerator default.
+     */
+    public DataURIEncoder getEncoder(){
+        return encoder;
+    }
+    
+    public void setEncoder(DataURIEncoder encoder){
+        this.encoder = encoder;
+        this.imageEncoder = null;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Image optimization
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Returns the optimizer used to make local PNG and GIF images smaller
+     * before they're embedded. When there's a data URI cache, each image is
+     * only optimized once.
+     * @return The optimizer, or null if images are embedded as they are.
+     */
+    public ImageOptimizer getOptimizer(){
+        return optimizer;
+    }
+    
+    public void setOptimizer(ImageOptimizer optimizer){
+        this.optimizer = optimizer;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Size budget
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Returns the most bytes that embedding images may add to the output.
+     * With a budget, every image is loaded before any is embedded, and the
+     * images to embed are chosen to save as many requests as possible 
+     * rather than being taken in the order they're found. The rest are
+     * left as URLs. Streaming input is read whole first.
+     * @return The budget in bytes, or 0 if there is none.
+     */
+    public long getBudget(){
+        return budget;
+    }
+    
+    public void setBudget(long budget){
+        this.budget = budget;
+    }
+    
+    /**
+     * Determines if the budget is measured after gzip compression, which
+     * counts repeats of an image as much cheaper than the first copy. The
+     * compressed size is an estimate.
+     * @return True if the budget applies to compressed bytes.
+     */
+    public boolean getBudgetGzip(){
+        return budgetGzip;
+    }
+    
+    public void setBudgetGzip(boolean budgetGzip){
+        this.budgetGzip = budgetGzip;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Stats
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Returns where counters and timers for each image are recorded. 
+     * Without somewhere to record them, nothing is counted or timed.
+     * @return The stats for the file, or null if there are none.
+     */
+    public EmbedStats.FileStats getStats(){
+        return stats;
+    }
+    
+    public void setStats(EmbedStats.FileStats stats){
+        this.stats = stats;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Get results
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Returns the number of images embedded by the last call to embedImages().
+     * @return The number of images converted.
+     */
+    public int getConversions(){
+        return conversions;
+    }
+    
+    /**
+     * Returns the number of characters saved by the last call to 
+     * embedImages() by sharing images that are used many times.
+     * @return The number of characters saved.
+     */
+    public long getSavedLength(){
+        return savedLength;
+    }
+    
+    /**
+     * Returns the decision made about each image by the last call to
+     * embedImages(), in the order the images were found.
+     * @return The decisions, or null if there was no budget.
+     */
+    public List<EmbedDecision> getDecisions(){
+        return decisions;
+    }
+    
+    /**
+     * Returns the local files referenced by the images embedded so far, in
+     * the order they were first found. Files that could not be found are
+     * included so that their later creation can be detected.
+     * @return The files the output depends on.
+     */
+    public List<File> getDependencies(){
+        synchronized (dependencies){
+            return new ArrayList<File>(dependencies);
+        }
+    }
+    
+    /**
+     * Determines if any image was downloaded rather than read from disk.
+     * Such output can't be checked for changes without downloading again.
+     * @return True if a remote image was embedded, false if not.
+     */
+    public boolean hasRemoteDependencies(){
+        synchronized (dependencies){
+            return remoteDependencies;
+        }
+    }
+    
     //--------------------------------------------------------------------------
     // Embed images
     //--------------------------------------------------------------------------
@@ -163,158 +523,623 @@ public class CSSURLEmbedder {
      * @throws java.io.IOException
      */
     public void embedImages(Writer out, String root) throws IOException {
-        BufferedReader reader = new BufferedReader(new StringReader(code));        
-        StringBuilder builder = new StringBuilder();
-        StringBuilder mhtmlHeader = new StringBuilder();
-        HashMap<String,Integer> foundMedia = new HashMap<String,Integer>();
-        String line;
-        int lineNum = 1;        
-        int conversions = 0;
+        Reader reader;
+        Writer builder;
+        Writer mhtmlHeader;
         
-        //create initial MHTML code
-        if (hasOption(MHTML_OPTION)){
-            mhtmlHeader.append("/*\n");
-            mhtmlHeader.append("Content-Type: multipart/related; boundary=\"");
-            mhtmlHeader.append(MHTML_SEPARATOR);
-            mhtmlHeader.append("\"\n\n");
+        //pick up changes to the settings or the default encoder since last time
+        imageEncoder = null;
+        getImageEncoder();
+        
+        /*
+         * In streaming mode, the input is read in chunks and each line is
+         * written out as soon as it's done. The MHTML header has to come first,
+         * so in that case both the header and the body are held back in
+         * buffers that spill to disk when they get too large. With a budget,
+         * every image has to be known before any is written, so the input 
+         * is read whole.
+         */
+        if (hasOption(STREAMING_OPTION) && budget > 0 && in != null){
+            code = readCode(in);
+            in = null;
         }
         
-        while((line = reader.readLine()) != null){
+        long started = 0;
+        if (stats != null){
+            started = System.nanoTime();
+            out = new CountingWriter(out);
+            if (code != null){
+                stats.addInput(code.length());
+            }
+        }
+        
+        if (hasOption(STREAMING_OPTION) && code == null){
+            if (in == null){
+                throw new IOException("Input has already been consumed.");
+            }
+            reader = in;
+            in = null;
             
-            int start = 0;
-            int pos = line.indexOf("url(", start);
-            int npos;
+            if (hasOption(MHTML_OPTION) && mhtmlDocument == null){
+                builder = new SpillBuffer(spillThreshold);
+                mhtmlHeader = new SpillBuffer(spillThreshold);
+            } else if (isSharing()){
+                builder = new SpillBuffer(spillThreshold);
+                mhtmlHeader = null;
+            } else {
+                builder = out;
+                mhtmlHeader = null;
+            }
+        } else {
+            reader = null;
+            builder = new StringWriter(code.length());
+            mhtmlHeader = new StringWriter();
+        }
+        
+        try {
+            embedImages(reader, builder, mhtmlHeader, out, root);
+        } finally {
+            if (reader != null){
+                reader.close();
+            }
             
-            if (lineNum > 1){
-                builder.append("\n");
+            if (builder instanceof SpillBuffer){
+                builder.close();
+            }
+            if (mhtmlHeader instanceof SpillBuffer){
+                mhtmlHeader.close();
             }
-			
-			Pattern checkForSkip = Pattern.compile("\\/\\*.*" + PROC_DIRECTIVE_PREFIX + ".*" + PROC_DIRECTIVE_SKIP + ".*\\*\\/", Pattern.CASE_INSENSITIVE);
-			Matcher skipMatch = checkForSkip.matcher(line);
-			if (skipMatch.find()) {
-				builder.append(line);
-				if (verbose) {
-					System.err.println("[INFO] line #" + lineNum + " skipped due to SKIP directive (" + PROC_DIRECTIVE_PREFIX + ": " + PROC_DIRECTIVE_SKIP + ")");
-				}
-			} else if (pos > -1){
-                while (pos > -1){
-                    pos += 4;
-                    builder.append(line.substring(start, pos));
-                    npos = line.indexOf(")", pos);
-                    String url = line.substring(pos, npos).trim();
+        }
+        
+        if (stats != null){
+            stats.addOutput(((CountingWriter) out).getCount());
+            stats.addTotal(System.nanoTime() - started);
+        }
+    }
+    
+    /**
+     * Embeds data URI images. The source code is tokenized in a single pass,
+     * and url() tokens are held at least until the end of their line so that
+     * a SKIP directive anywhere on the line can be honored.
+     * @param reader The source code to read, or null to use the code read
+     *      by the constructor.
+     * @param builder Where to write the processed source code.
+     * @param mhtmlHeader Where to write the MHTML header.
+     * @param out The place to write out the source code.
+     * @param root The root to prepend to any relative paths.
+     * @throws java.io.IOException
+     */
+    private void embedImages(Reader reader, Writer builder, Writer mhtmlHeader, Writer out, String root) throws IOException {
+        HashMap<String,Integer> foundMedia = new HashMap<String,Integer>();
+        int conversions = 0;
+        
+        char[] buf;
+        int limit;
+        boolean eof;
+        
+        if (reader == null){
+            buf = code.toCharArray();
+            limit = buf.length;
+            eof = true;
+        } else {
+            buf = new char[BUFFER_SIZE];
+            limit = 0;
+            eof = false;
+        }
+        
+        //url() tokens not yet written out, URL_FIELDS ints for each
+        int[] urls = new int[URL_FIELDS * 8];
+        int urlCount = 0;
+        int lineStartCount = 0;
+        int skipLine = 0;
+        int flushed = 0;
+        
+        //create initial MHTML code, unless the images go into a shared document
+        if (hasOption(MHTML_OPTION) && mhtmlDocument == null){
+            mhtmlParts = new MHTMLParts();
+            MHTMLParts.writeHeader(mhtmlHeader);
+        }
+        
+        //images are inserted into the body at the end, once it's known which are used the most
+        sharedImages = isSharing() ? new SharedImages(shareThreshold) : null;
+        savedLength = 0;
+        decisions = null;
+        
+        CSSLexer lexer = new CSSLexer(buf, limit, eof);
+        int type;
+        
+        do {
+            type = lexer.next();
+            
+            switch (type){
+                case CSSLexer.URL:
+                    if (skipLine == 0){
+                        if (urlCount * URL_FIELDS == urls.length){
+                            int[] newUrls = new int[urls.length * 2];
+                            System.arraycopy(urls, 0, newUrls, 0, urls.length);
+                            urls = newUrls;
+                        }
+                        
+                        int i = urlCount++ * URL_FIELDS;
+                        urls[i] = lexer.getTokenStart();
+                        urls[i + 1] = lexer.getValueStart();
+                        urls[i + 2] = lexer.getValueEnd();
+                        urls[i + 3] = lexer.getTokenEnd();
+                        urls[i + 4] = lexer.getLine();
+                        urls[i + 5] = lexer.getColumn();
+                        urls[i + 6] = lexer.isInAtRule() ? 0 : 1;
+                    }
+                    break;
                     
-                    //eliminate quotes at the beginning and end
-                    if (url.startsWith("\"")){
-                        if (url.endsWith("\"")){
-                            url = url.substring(1, url.length()-1);
-                        } else {
-                            throw new IOException("Invalid CSS URL format (" + url + ") at line " + lineNum + ", col " + pos + ".");
-                        }                        
-                    } else if (url.startsWith("'")){
-                        if (url.endsWith("'")){
-                            url = url.substring(1, url.length()-1);
-                        } else {
-                            throw new IOException("Invalid CSS URL format (" + url + ") at line " + lineNum + ", col " + pos + ".");
-                        }                         
+                case CSSLexer.BAD_URL:
+                    throw new IOException("Invalid CSS URL format (" + 
+                            new String(buf, lexer.getValueStart(), lexer.getValueEnd() - lexer.getValueStart()).trim() + 
+                            ") at line " + lexer.getLine() + ", col " + lexer.getColumn() + ".");
+                    
+                case CSSLexer.COMMENT:
+                    if (skipLine == 0 && isSkipDirective(buf, lexer.getValueStart(), lexer.getValueEnd())){
+                        skipLine = lexer.getLine();
                     }
+                    break;
                     
-                    //check for duplicates
-                    if (foundMedia.containsKey(url)){
-                        if (verbose){
-                            System.err.println("[WARNING] Duplicate URL '" + url + "' found at line " + lineNum + ", previously declared at line " + foundMedia.get(url) + ".");
-                        }                        
-                    }                    
-                    foundMedia.put(url, lineNum);                    
+                case CSSLexer.NEWLINE:
+                case CSSLexer.END:
+                    if (skipLine > 0){
+                        if (verbose) {
+                            log.println("[INFO] line #" + skipLine + " skipped due to SKIP directive (" + PROC_DIRECTIVE_PREFIX + ": " + PROC_DIRECTIVE_SKIP + ")");
+                        }
+                        urlCount = lineStartCount;
+                        skipLine = 0;
+                    }
+                    lineStartCount = urlCount;
                     
-                    //Begin processing URL
-                    String newUrl = url;                    
-                    if (verbose){
-                        System.err.println("[INFO] Found URL '" + url + "' at line " + lineNum + ", col " + pos + ".");
+                    /*
+                     * When streaming, each line is written out as soon as 
+                     * it's done. Otherwise everything is written at the end so
+                     * that all images can be loaded at once.
+                     */
+                    if (reader != null || type == CSSLexer.END){
+                        int end = (type == CSSLexer.END) ? limit : lexer.getTokenEnd();
+                        conversions += writeSection(buf, flushed, end, urls, urlCount, builder, mhtmlHeader, root, foundMedia);
+                        flushed = end;
+                        urlCount = 0;
+                        lineStartCount = 0;
                     }
-                    if (url.indexOf("http:") != 0 && root != null){
-                        newUrl = root + url;
-                        if (verbose){
-                            System.err.println("[INFO] Applying root to URL, URL is now '" + newUrl + "'.");
-                        }                        
+                    break;
+                    
+                case CSSLexer.INCOMPLETE:
+                    
+                    //output whatever won't be affected by the rest of the line
+                    if (urlCount == 0){
+                        builder.write(buf, flushed, lexer.getPosition() - flushed);
+                        flushed = lexer.getPosition();
                     }
                     
-                    //get the data URI format
-                    String uriString = getImageURIString(newUrl, url);
+                    //move the unfinished part to the front of the buffer
+                    lexer.shift(flushed);
+                    System.arraycopy(buf, flushed, buf, 0, limit - flushed);
+                    limit -= flushed;                    
+                    for (int i = 0; i < urlCount * URL_FIELDS; i += URL_FIELDS){
+                        urls[i] -= flushed;
+                        urls[i + 1] -= flushed;
+                        urls[i + 2] -= flushed;
+                        urls[i + 3] -= flushed;
+                    }
+                    flushed = 0;
                     
-                    //if it doesn't begin with data:, it's not a data URI
-                    if (uriString.startsWith("data:")){
-                        if (maxUriLength > 0 && uriString.length() > maxUriLength){
-                            if (verbose){
-                                System.err.println("[WARNING] File " + newUrl + " creates a data URI larger than " + maxUriLength + " bytes. Skipping.");
-                            }      
-                            builder.append(url);
-                        } else {
-
-                            /*
-                             * Determine what to do. Eventually, you should be able to
-                             * have both a data URI and MHTML in the same file.
-                             */
-                            if (hasOption(MHTML_OPTION)){
-                                String entryName = getFilename(url);
-
-                                //create MHTML header entry
-                                mhtmlHeader.append("--");
-                                mhtmlHeader.append(MHTML_SEPARATOR);
-                                mhtmlHeader.append("\nContent-Location:");
-                                mhtmlHeader.append(entryName);
-                                mhtmlHeader.append("\nContent-Transfer-Encoding:base64\n\n");
-                                mhtmlHeader.append(uriString.substring(uriString.indexOf(",")+1));
-                                mhtmlHeader.append("\n");
-
-                                //output the URI
-                                builder.append("mhtml:");
-                                builder.append(getMHTMLPath());
-                                builder.append("!");
-                                builder.append(entryName);
-                                conversions++;
-                            } else if (hasOption(DATAURI_OPTION)){
-                                builder.append(uriString);
-                                conversions++;
-                            }
-                        }
+                    if (limit == buf.length){
+                        char[] newBuf = new char[buf.length * 2];
+                        System.arraycopy(buf, 0, newBuf, 0, limit);
+                        buf = newBuf;
+                    }
+                    
+                    int count = reader.read(buf, limit, buf.length - limit);
+                    if (count == -1){
+                        eof = true;
                     } else {
-                        //TODO: Clean up, duplicate code
-                        builder.append(uriString);
+                        limit += count;
+                        if (stats != null){
+                            stats.addInput(count);
+                        }
                     }
+                    lexer.setInput(buf, limit, eof);
+                    break;
+            }
+        } while (type != CSSLexer.END);
 
-                    start = npos;                    
-                    pos = line.indexOf("url(", start);
-                } 
+        long writeStarted = (stats != null) ? System.nanoTime() : 0;
+        
+        if (hasOption(MHTML_OPTION) && mhtmlDocument == null && conversions > 0){
+            MHTMLParts.writeFooter(mhtmlHeader);
+            writeBuffer(mhtmlHeader, out);
+        }
+        
+        if (verbose){
+            log.println("[INFO] Converted " + conversions + " images to data URIs.");
+        }
+        this.conversions = conversions;
+
+        if (sharedImages != null){
+            sharedImages.writeTo(builder, out);
+            savedLength = sharedImages.getSavedLength();
+            
+            if (verbose && sharedImages.getSharedCount() > 0){
+                log.println("[INFO] Shared " + sharedImages.getSharedCount() + " images as custom properties, saving " + savedLength + " characters.");
+            }
+            sharedImages = null;
+        } else if (builder != out){
+            writeBuffer(builder, out);
+        }
+        
+        if (stats != null){
+            stats.addWrite(System.nanoTime() - writeStarted);
+        }
+    }
+    
+    /**
+     * Writes out a section of the source code, replacing url() tokens with
+     * data URIs or MHTML references. If there is an executor, the images are
+     * all loaded at once before any are replaced. Otherwise, each image is
+     * loaded as its URL is reached, unless there's a budget, in which case
+     * all are loaded first so that the ones to embed can be chosen.
+     * @param buf The source code.
+     * @param start The start of the section.
+     * @param end The end of the section.
+     * @param urls The url() tokens in the section, URL_FIELDS ints for each.
+     * @param urlCount The number of url() tokens.
+     * @param builder Where to write the processed source code.
+     * @param mhtmlHeader Where to write the MHTML header.
+     * @param root The root to prepend to any relative paths.
+     * @param foundMedia The URLs found so far and the line of each.
+     * @return The number of URLs that were replaced.
+     * @throws java.io.IOException
+     */
+    private int writeSection(char[] buf, int start, int end, int[] urls, int urlCount, Writer builder, 
+            Writer mhtmlHeader, String root, HashMap<String,Integer> foundMedia) throws IOException {
+        
+        HashMap<String,FutureTask<String>> images = null;
+        HashMap<String,String> chosen = null;
+        int conversions = 0;
+        
+        //time spent waiting for images isn't time spent writing
+        long started = (stats != null) ? System.nanoTime() : 0;
+        long waited = 0;
+        
+        if (executor != null && urlCount > 1){
+            images = loadImages(buf, urls, urlCount, root);
+        }
+        
+        try {
+            if (budget > 0){
+                chosen = chooseImages(buf, urls, urlCount, root, images);
+                if (stats != null){
+                    waited = System.nanoTime() - started;
+                }
+            }
+            
+            for (int i = 0; i < urlCount * URL_FIELDS; i += URL_FIELDS){
+                String url = new String(buf, urls[i + 1], urls[i + 2] - urls[i + 1]);
+                String newUrl = resolveURL(url, urls[i + 4], urls[i + 5], root, foundMedia);
+                String uriString;
+                long loadStarted = (stats != null && chosen == null) ? System.nanoTime() : 0;
                 
-                //finish out the line
-                if (start < line.length()){
-                    builder.append(line.substring(start));
+                //get the data URI format
+                if (chosen != null){
+                    uriString = chosen.get(newUrl);
+                } else if (images != null){
+                    uriString = getResult(images.get(newUrl));
+                } else {
+                    uriString = getImageURIString(newUrl, url);
+                }
+                
+                if (loadStarted != 0){
+                    waited += System.nanoTime() - loadStarted;
+                }
+                
+                String replacement = (uriString != null) ? embedURL(newUrl, url, uriString, mhtmlHeader) : null;
+                
+                if (stats != null){
+                    stats.addReference(url, replacement != null);
+                }
+                
+                //fonts and anything in @font-face and the like have to stay in place
+                if (replacement != null && sharedImages != null && urls[i + 6] == 1 && replacement.startsWith("data:image/")){
+                    
+                    //the whole url() token is inserted later
+                    builder.write(buf, start, urls[i] - start);
+                    sharedImages.add(getLength(builder), getFilename(url), replacement);
+                    start = urls[i + 3];
+                    conversions++;
+                } else if (replacement != null){
+                    builder.write(buf, start, urls[i] + 4 - start);
+                    builder.write(quoteURL(replacement));
+                    builder.write(')');
+                    start = urls[i + 3];
+                    conversions++;
                 }
-            } else {
-                builder.append(line);
             }
+        } finally {
             
-            lineNum++;
+            //don't leave work running if something went wrong
+            if (images != null){
+                for (FutureTask<String> task : images.values()){
+                    task.cancel(true);
+                }
+            }
         }
-        reader.close();
-
-        if (hasOption(MHTML_OPTION) && conversions > 0){
+        
+        builder.write(buf, start, end - start);
+        
+        if (stats != null){
+            stats.addWrite(System.nanoTime() - started - waited);
+        }
+        return conversions;
+    }
+    
+    /**
+     * Starts loading each distinct image referenced by the given url() tokens
+     * on the executor.
+     * @param buf The source code.
+     * @param urls The url() tokens, URL_FIELDS ints for each.
+     * @param urlCount The number of url() tokens.
+     * @param root The root to prepend to any relative paths.
+     * @return The tasks loading each image, keyed by URL with the root applied.
+     */
+    private HashMap<String,FutureTask<String>> loadImages(char[] buf, int[] urls, int urlCount, String root){
+        HashMap<String,FutureTask<String>> images = new HashMap<String,FutureTask<String>>();
+        
+        for (int i = 0; i < urlCount * URL_FIELDS; i += URL_FIELDS){
+            final String url = new String(buf, urls[i + 1], urls[i + 2] - urls[i + 1]);
+            final String newUrl = applyRoot(url, root);
+            
+            if (!images.containsKey(newUrl)){
+                FutureTask<String> task = new FutureTask<String>(new Callable<String>(){
+                    public String call() throws IOException {
+                        return getImageURIString(newUrl, url);
+                    }
+                });
+                images.put(newUrl, task);
+                executor.execute(task);
+            }
+        }
+        
+        return images;
+    }
+    
+    /**
+     * Loads every image referenced by the given url() tokens and chooses
+     * which to embed within the budget, recording the decisions.
+     * @param buf The source code.
+     * @param urls The url() tokens, URL_FIELDS ints for each.
+     * @param urlCount The number of url() tokens.
+     * @param root The root to prepend to any relative paths.
+     * @param images The tasks loading each image, or null to load them here.
+     * @return The data URI of each image chosen, keyed by URL with the root
+     *      applied.
+     * @throws java.io.IOException
+     */
+    private HashMap<String,String> chooseImages(char[] buf, int[] urls, int urlCount, String root, 
+            HashMap<String,FutureTask<String>> images) throws IOException {
+        
+        BudgetPlanner planner = new BudgetPlanner(budget, budgetGzip, hasOption(MHTML_OPTION), maxUriLength);
+        HashMap<String,String> uris = new HashMap<String,String>();
+        
+        for (int i = 0; i < urlCount * URL_FIELDS; i += URL_FIELDS){
+            String url = new String(buf, urls[i + 1], urls[i + 2] - urls[i + 1]);
+            String newUrl = applyRoot(url, root);
+            String uriString = uris.get(newUrl);
+            
+            if (uriString == null){
+                uriString = (images != null) ? getResult(images.get(newUrl)) : getImageURIString(newUrl, url);
+                uris.put(newUrl, uriString);
+            }
+            
+            //the url( and ) stay, everything between is replaced
+            if (uriString.startsWith("data:")){
+                planner.add(newUrl, url, uriString, urls[i + 3] - urls[i] - 5);
+            }
+        }
+        
+        decisions = planner.choose();
+        
+        if (stats != null){
+            for (EmbedDecision decision : decisions){
+                if (!decision.isEmbedded()){
+                    stats.skip(decision.getURL(), (maxUriLength > 0 && decision.getLength() > maxUriLength) ? 
+                            EmbedStats.URI_TOO_LONG : EmbedStats.OVER_BUDGET);
+                }
+            }
+        }
+        
+        HashMap<String,String> chosen = new HashMap<String,String>();
+        for (String newUrl : uris.keySet()){
+            if (planner.isEmbedded(newUrl)){
+                chosen.put(newUrl, uris.get(newUrl));
+            }
+        }
+        
+        if (verbose){
+            for (EmbedDecision decision : decisions){
+                log.println("[INFO] Budget: " + decision + ".");
+            }
+            log.println("[INFO] Budget: chose " + chosen.size() + " of " + decisions.size() + 
+                    " images, adding " + planner.getUsed() + " of " + budget + " bytes" + (budgetGzip ? " after gzip." : "."));
+        }
+        
+        return chosen;
+    }
+    
+    /*
+     * Waits for an image to finish loading, passing along anything thrown.
+     */
+    private static String getResult(FutureTask<String> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e){
+            throw new InterruptedIOException("Interrupted while loading images.");
+        } catch (ExecutionException e){
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException){
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException){
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error){
+                throw (Error) cause;
+            }
+            throw new IOException(cause.getMessage());
+        }
+    }
+    
+    /**
+     * Records a URL found in the source code and determines where to load it 
+     * from.
+     * @param url The URL as stated in the source code, without quotes.
+     * @param lineNum The line on which the URL was found.
+     * @param col The column at which the URL was found.
+     * @param root The root to prepend to any relative paths.
+     * @param foundMedia The URLs found so far and the line of each.
+     * @return The URL with the root applied.
+     */
+    private String resolveURL(String url, int lineNum, int col, String root, HashMap<String,Integer> foundMedia){
+        
+        //check for duplicates
+        if (foundMedia.containsKey(url)){
+            if (verbose){
+                log.println("[WARNING] Duplicate URL '" + url + "' found at line " + lineNum + ", previously declared at line " + foundMedia.get(url) + ".");
+            }                        
+        }                    
+        foundMedia.put(url, lineNum);                    
 
-            //Add one more boundary to fix IE/Vista issue
-            mhtmlHeader.append("\n--");
-            mhtmlHeader.append(MHTML_SEPARATOR);
-            mhtmlHeader.append("--\n");
+        //Begin processing URL
+        String newUrl = applyRoot(url, root);
+        if (verbose){
+            log.println("[INFO] Found URL '" + url + "' at line " + lineNum + ", col " + col + ".");
+            if (newUrl != url){
+                log.println("[INFO] Applying root to URL, URL is now '" + newUrl + "'.");
+            }
+        }
+        
+        return newUrl;
+    }
+    
+    private static String applyRoot(String url, String root){
+        if (!DataURIGenerator.isRemote(url) && root != null){
+            return root + url;
+        }
+        return url;
+    }
+    
+    /**
+     * Determines the replacement for a single URL found in the source code.
+     * @param newUrl The URL with the root applied.
+     * @param url The URL as stated in the source code, without quotes.
+     * @param uriString The data URI for the URL, if it's an image.
+     * @param mhtmlHeader Where to write the MHTML header.
+     * @return The URL to use in place of the original, or null if the 
+     *      original should be left alone.
+     * @throws java.io.IOException
+     */
+    private String embedURL(String newUrl, String url, String uriString, Writer mhtmlHeader) throws IOException {
 
-            //close comment
-            mhtmlHeader.append("*/\n");
-            out.write(mhtmlHeader.toString());
+        //if it doesn't begin with data:, it's not a data URI
+        if (!uriString.startsWith("data:")){
+            return null;
         }
         
-        if (verbose){
-            System.err.println("[INFO] Converted " + conversions + " images to data URIs.");
+        if (maxUriLength > 0 && uriString.length() > maxUriLength){
+            if (verbose){
+                log.println("[WARNING] File " + newUrl + " creates a data URI larger than " + maxUriLength + " bytes. Skipping.");
+            }      
+            skip(url, EmbedStats.URI_TOO_LONG);
+            return null;
         }
 
-        out.write(builder.toString());        
+        /*
+         * Determine what to do. Eventually, you should be able to
+         * have both a data URI and MHTML in the same file.
+         */
+        if (hasOption(MHTML_OPTION)){
+            String filename = getFilename(url);
+            
+            //MHTML parts have to be Base64
+            uriString = DataURIGenerator.toBase64DataURI(uriString);
+            boolean found;
+            String entryName;
+            
+            //create MHTML header entry, once for each distinct image
+            if (mhtmlDocument != null){
+                found = mhtmlDocument.contains(uriString);
+                entryName = mhtmlDocument.add(filename, uriString);
+            } else {
+                found = mhtmlParts.contains(uriString);
+                entryName = mhtmlParts.add(filename, uriString, mhtmlHeader);
+            }
+            
+            if (verbose){
+                if (found){
+                    log.println("[INFO] Image " + newUrl + " is already in the MHTML document as '" + entryName + "'.");
+                } else if (!entryName.equals(filename)){
+                    log.println("[INFO] Image " + newUrl + " has the same filename as another image. Naming it '" + entryName + "'.");
+                }
+            }
+
+            //output the URI
+            return "mhtml:" + getMHTMLPath() + "!" + entryName;
+        } else if (hasOption(DATAURI_OPTION)){
+            return uriString;
+        }
+        
+        return null;
+    }
+    
+    /*
+     * Determines if a comment contains the SKIP directive.
+     */
+    private static boolean isSkipDirective(char[] buf, int start, int end){
+        int pos = CSSLexer.indexOfIgnoreCase(buf, start, end, DIRECTIVE_PREFIX_LOWER);
+        return pos > -1 && CSSLexer.indexOfIgnoreCase(buf, pos + DIRECTIVE_PREFIX_LOWER.length(), end, DIRECTIVE_SKIP_LOWER) > -1;
+    }
+    
+    /**
+     * Copies the contents of a buffer created by embedImages() to the output.
+     * @param buffer The buffer to copy.
+     * @param out The place to write out the source code.
+     * @throws java.io.IOException
+     */
+    private void writeBuffer(Writer buffer, Writer out) throws IOException {
+        if (buffer instanceof SpillBuffer){
+            ((SpillBuffer) buffer).writeTo(out);
+        } else {
+            out.write(buffer.toString());
+        }
+    }
+    
+    /**
+     * Quotes a URL for use in url() if it has characters that aren't allowed
+     * in an unquoted URL, as percent-encoded SVG data URIs do.
+     * @param url The URL, which mustn't contain double quotes, backslashes
+     *      or line breaks.
+     * @return The URL, quoted if necessary.
+     */
+    static String quoteURL(String url){
+        for (int i = 0; i < url.length(); i++){
+            char c = url.charAt(i);
+            if (c == ' ' || c == '\'' || c == '(' || c == ')'){
+                return "\"" + url + "\"";
+            }
+        }
+        return url;
+    }
+    
+    /*
+     * Returns the number of characters written to a buffer so far.
+     */
+    private static long getLength(Writer buffer){
+        if (buffer instanceof SpillBuffer){
+            return ((SpillBuffer) buffer).length();
+        } else {
+            return ((StringWriter) buffer).getBuffer().length();
+        }
     }
     
     /**
@@ -327,82 +1152,178 @@ public class CSSURLEmbedder {
      * @throws java.io.IOException
      */
     String getImageURIString(String url, String originalUrl) throws IOException {
+        if (stats == null){
+            return loadImageURIString(url, originalUrl);
+        }
+        
+        //reading and encoding are counted on this thread while the image loads
+        long started = System.nanoTime();
+        LoadStats load = LoadStats.start();
+        
+        try {
+            return loadImageURIString(url, originalUrl);
+        } finally {
+            load.stop();
+            stats.addLoad(originalUrl, load, System.nanoTime() - started);
+        }
+    }
+    
+    private String loadImageURIString(String url, String originalUrl) throws IOException {
+        
+        //without an extension, only the contents say if it's an image
+        DataURIEncoder encoder = getImageEncoder();
+        MimeTypeRegistry mimeTypes = encoder.getMimeTypes();
+        boolean image = isImage(url, mimeTypes);
+        boolean untyped = !image && isUntyped(url, originalUrl, mimeTypes);
         
         //it's an image, so encode it
-        if (isImage(url)){
+        if (image || untyped){
             
-            DataURIGenerator.setVerbose(verbose);
-                
-            StringWriter writer = new StringWriter();
+            String uri;
             
             try {
-                if (url.startsWith("http://")){
+                if (DataURIGenerator.isRemote(url)){
+                    synchronized (dependencies){
+                        remoteDependencies = true;
+                    }
+                    
                     if (verbose){
-                        System.err.println("[INFO] Downloading '" + url + "' to generate data URI.");
+                        log.println("[INFO] Downloading '" + url + "' to generate data URI.");
                     }                
                     
-                    DataURIGenerator.generate(new URL(url), writer); 
+                    //the server's Content-Length lets a large file be skipped without downloading it
+                    uri = encoder.toDataURI(new URL(url), null, getMaxByteCount(url)); 
+                    
+                    if (uri == null){
+                        if (verbose){
+                            log.println("[WARNING] File " + url + " is too large to embed. Skipping.");
+                        }
+                        skip(originalUrl, EmbedStats.TOO_LARGE);
+                        uri = originalUrl;
+                    }
                   
                 } else {
                     if (verbose){
-                        System.err.println("[INFO] Opening file '" + url + "' to generate data URI.");
+                        log.println("[INFO] Opening file '" + url + "' to generate data URI.");
                     }                
                     
                     File file = new File(url);
                     
+                    synchronized (dependencies){
+                        dependencies.add(file);
+                    }
+                    
                     if (verbose && !file.isFile()){
-                        System.err.println("[INFO] Could not find file '" + file.getCanonicalPath() + "'.");
+                        log.println("[INFO] Could not find file '" + file.getCanonicalPath() + "'.");
                     }
                     
                     //check file size if we've been asked to
                     if (maxImageSize > 0 && file.length() > maxImageSize){
                         if (verbose){
-                            System.err.println("[INFO] File '" + originalUrl + "' is larger than " + maxImageSize + " bytes. Skipping.");
+                            log.println("[INFO] File '" + originalUrl + "' is larger than " + maxImageSize + " bytes. Skipping.");
+                        }
+                        
+                        skip(originalUrl, EmbedStats.TOO_LARGE);
+                        uri = originalUrl;
+                        
+                    } else if (maxUriLength > 0 && optimizer == null && file.isFile() && file.length() > getMaxByteCount(url)){
+                        
+                        //the data URI would only be thrown away, so don't read or encode the file
+                        if (verbose){
+                            log.println("[WARNING] File " + url + " creates a data URI larger than " + maxUriLength + " bytes. Skipping.");
                         }
                         
-                        writer.write(originalUrl);
+                        skip(originalUrl, EmbedStats.URI_TOO_LONG);
+                        uri = originalUrl;
                         
+                    } else if (cache != null){
+                        uri = cache.generate(file, null, diskCache, optimizer, encoder);
+                    } else if (optimizer != null){
+                        uri = optimizer.toDataURI(file, null, encoder);
                     } else {
-                        DataURIGenerator.generate(new File(url), writer); 
+                        uri = encoder.toDataURI(file, null); 
                     }
                 }
 
                 if (verbose){
-                    System.err.println("[INFO] Generated data URI for '" + url + "'.");
+                    log.println("[INFO] Generated data URI for '" + url + "'.");
                 }
             } catch (FileNotFoundException e){ 
-                if(hasOption(SKIP_MISSING_OPTION)) {
+                if(untyped || hasOption(SKIP_MISSING_OPTION)) {
                     if (verbose){
-                        System.err.println("[INFO] Could not find file. " + e.getMessage() + " Skipping.");
+                        log.println("[INFO] Could not find file. " + e.getMessage() + " Skipping.");
                     }
                 
-                    writer.write(originalUrl);
+                    skip(originalUrl, EmbedStats.MISSING_FILE);
+                    uri = originalUrl;
                 } else {
                     throw e;
                 }
+            } catch (IOException e){
+                if (!untyped){
+                    throw e;
+                }
+                
+                //it was only a guess that this might be an image
+                if (verbose){
+                    log.println("[INFO] Could not determine the type of '" + originalUrl + "'. " + e.getMessage() + " Skipping.");
+                }
+                mimeTypes.putDetectedType(url, UNKNOWN_TYPE);
+                skip(originalUrl, EmbedStats.UNKNOWN_TYPE);
+                uri = originalUrl;
             }
             
-            return writer.toString();
+            if (untyped && uri.startsWith("data:")){
+                uri = checkDetectedType(url, originalUrl, uri, mimeTypes);
+            }
+            
+            return uri;
             
         } else {
             
             if (verbose){
-                System.err.println("[INFO] URL '" + originalUrl + "' is not an image, skipping.");
+                log.println("[INFO] URL '" + originalUrl + "' is not an image, skipping.");
             }
             
             //not an image, ignore
+            skip(originalUrl, EmbedStats.NOT_AN_IMAGE);
             return originalUrl;
         }
         
     }
 
+    /**
+     * Works out the most bytes an image can have and still be embedded,
+     * from the maximum image size and the maximum data URI length. The MIME
+     * type is taken from the extension; if it isn't known, the limit is
+     * worked out as if the MIME type were empty, so that it's never too low.
+     * @param url The URL of the image.
+     * @return The most bytes to read, or -1 for no limit.
+     */
+    private long getMaxByteCount(String url){
+        long limit = (maxImageSize > 0) ? maxImageSize : -1;
+        
+        if (maxUriLength > 0){
+            DataURIEncoder encoder = getImageEncoder();
+            String mimeType = encoder.guessMimeType(url);
+            long max = encoder.getMaxByteCount(mimeType == null ? "" : mimeType, maxUriLength);
+            limit = (limit < 0) ? max : Math.min(limit, max);
+        }
+        
+        return limit;
+    }
+
     /*
-     * Detects if the given url represents an image
-     * This method simply checks the file extension. 
-     * A better way to detect an image is via content type response headers or by content sniffing, 
-     * but both are expensive approaches. We can do without them for now. 
+     * Detects if the given url represents an image or font.
+     * This method checks the file extension, ignoring case, which is as
+     * cheap as it gets. URLs without an extension are sniffed when they're
+     * loaded, and the type found is remembered for the next time.
      */
     static boolean isImage(String url) {
+        return isImage(url, DataURIGenerator.getMimeTypes());
+    }
+    
+    static boolean isImage(String url, MimeTypeRegistry mimeTypes) {
     	int startPos = url.lastIndexOf(".") + 1;
     	/*
     	 * Some images are of the form some-image.png?parameter=value
@@ -412,9 +1333,110 @@ public class CSSURLEmbedder {
     		endPos = url.length();
     	}
     	String fileType = url.substring(startPos, endPos);
-    	return imageTypes.contains(fileType);
+    	String mimeType = mimeTypes.getExtensionType(fileType);
+    	if (mimeType == null){
+    		mimeType = mimeTypes.getDetectedType(url);
+    	}
+    	return mimeType != null && MimeTypeRegistry.isEmbeddable(mimeType);
 	}
+    
+    /*
+     * Detects if the given url has no extension and hasn't been sniffed yet,
+     * such as an image from a CDN, so that it has to be loaded to find out
+     * what it is. Fragments and URLs with schemes other than HTTP, such as
+     * data: URLs, are never loaded.
+     */
+    static boolean isUntyped(String url, String originalUrl) {
+        return isUntyped(url, originalUrl, DataURIGenerator.getMimeTypes());
+    }
+    
+    static boolean isUntyped(String url, String originalUrl, MimeTypeRegistry mimeTypes) {
+        if (originalUrl.length() == 0 || originalUrl.charAt(0) == '#'){
+            return false;
+        }
+        if (!DataURIGenerator.isRemote(originalUrl) && originalUrl.indexOf(':') > -1){
+            return false;
+        }
+        
+        int end = url.length();
+        for (int i = 0; i < url.length(); i++){
+            char c = url.charAt(i);
+            if (c == '?' || c == '#'){
+                end = i;
+                break;
+            }
+        }
+        
+        int start = Math.max(url.lastIndexOf('/', end - 1), url.lastIndexOf('\\', end - 1)) + 1;
+        if (start >= end || url.lastIndexOf('.', end - 1) >= start){
+            return false;
+        }
+        
+        return mimeTypes.getDetectedType(url) == null;
+    }
+    
+    /*
+     * Checks the type of a data URI generated for a URL without an 
+     * extension, remembering it for the URL. Only images and fonts are
+     * embedded; for anything else the original URL is returned.
+     */
+    private String checkDetectedType(String url, String originalUrl, String uri, MimeTypeRegistry mimeTypes){
+        int end = uri.indexOf(';');
+        int comma = uri.indexOf(',');
+        if (end < 0 || (comma > -1 && comma < end)){
+            end = comma;
+        }
+        
+        String mimeType = uri.substring(5, end);
+        mimeTypes.putDetectedType(url, mimeType);
+        
+        if (!MimeTypeRegistry.isEmbeddable(mimeType)){
+            if (verbose){
+                log.println("[INFO] URL '" + originalUrl + "' is " + mimeType + ", not an image. Skipping.");
+            }
+            skip(originalUrl, EmbedStats.NOT_AN_IMAGE);
+            return originalUrl;
+        }
+        
+        if (verbose){
+            log.println("[INFO] URL '" + originalUrl + "' is " + mimeType + ".");
+        }
+        return uri;
+    }
 
+    /*
+     * Returns the encoder to load images with, which is the one set or the
+     * default, with this embedder's verbose flag, log and fetcher. Nothing 
+     * shared is changed, so embedders on other threads aren't affected.
+     */
+    private DataURIEncoder getImageEncoder(){
+        DataURIEncoder current = imageEncoder;
+        
+        if (current == null){
+            current = (encoder != null) ? encoder : DataURIGenerator.getDefault();
+            if (current.isVerbose() != verbose || current.getLog() != log || 
+                    (fetcher != null && current.getFetcher() != fetcher)){
+                DataURIEncoder.Builder builder = current.toBuilder().setVerbose(verbose).setLog(log);
+                if (fetcher != null){
+                    builder.setFetcher(fetcher);
+                }
+                current = builder.build();
+            }
+            imageEncoder = current;
+        }
+        
+        return current;
+    }
+    
+    /*
+     * Records why an image wasn't embedded, if anyone is asking.
+     */
+    private void skip(String url, String reason){
+        if (stats != null){
+            stats.skip(url, reason);
+        }
+    }
+    
 	private String getFilename(String path){
         if (path.indexOf("/") > -1){
             return path.substring(path.lastIndexOf("/")+1);
@@ -431,21 +1453,53 @@ public class CSSURLEmbedder {
             result += "/";
         }
         
-        result += outputFilename;
+        result += (mhtmlDocument != null) ? mhtmlDocument.getName() : outputFilename;
         
         return result;
     }
     
     private String readCode(Reader in) throws IOException {
         StringBuilder builder = new StringBuilder();
-        int c;
+        char[] buffer = new char[BUFFER_SIZE];
+        int count;
         
-        while ((c = in.read()) != -1){
-            builder.append((char)c);
+        while ((count = in.read(buffer)) != -1){
+            builder.append(buffer, 0, count);
         }
         
         in.close();
         return builder.toString();
     }
+    
+    /*
+     * Counts the characters written through it, for stats.
+     */
+    private static class CountingWriter extends FilterWriter {
+        
+        private long count = 0;
+        
+        CountingWriter(Writer out){
+            super(out);
+        }
+        
+        public void write(int c) throws IOException {
+            out.write(c);
+            count++;
+        }
+        
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            out.write(cbuf, off, len);
+            count += len;
+        }
+        
+        public void write(String str, int off, int len) throws IOException {
+            out.write(str, off, len);
+            count += len;
+        }
+        
+        long getCount(){
+            return count;
+        }
+    }
             
 }
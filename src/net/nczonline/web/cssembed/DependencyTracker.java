@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2009 Nicholas C. Zakas. All rights reserved.
+ * http://www.nczonline.net/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.nczonline.web.cssembed;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Records, for each output file, the source file and images it was built
+ * from, so that outputs whose inputs haven't changed can be skipped. Each
+ * file is recorded by its length and last modified time; the records are
+ * kept in a properties file keyed by the output's path.
+ * @author Nicholas C. Zakas
+ */
+class DependencyTracker {
+    
+    private static final String SEPARATOR = "\n";
+    
+    private File file;
+    private Properties records = new Properties();
+    private boolean changed = false;
+    
+    //--------------------------------------------------------------------------
+    // Constructor
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Creates a tracker backed by the given file, loading any records it
+     * already contains.
+     * @param file The file to keep records in.
+     * @throws java.io.IOException
+     */
+    DependencyTracker(File file) throws IOException {
+        this.file = file;
+        
+        if (file.isFile()){
+            InputStream in = new FileInputStream(file);
+            try {
+                records.load(in);
+            } finally {
+                in.close();
+            }
+        }
+    }
+    
+    //--------------------------------------------------------------------------
+    // Check and record outputs
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Determines if an output is up to date, meaning that it exists, that it
+     * was built from the same source file with the same settings, and that
+     * none of the files it was built from have changed since.
+     * @param output The output file.
+     * @param settings A description of the settings used to build the output.
+     * @param input The source file the output is now built from.
+     * @return True if the output can be skipped, false if not.
+     * @throws java.io.IOException
+     */
+    synchronized boolean isUpToDate(File output, String settings, File input) throws IOException {
+        String record = records.getProperty(getKey(output));
+        
+        if (record == null || !output.isFile()){
+            return false;
+        }
+        
+        String[] lines = record.split(SEPARATOR);
+        if (!lines[0].equals(settings)){
+            return false;
+        }
+        
+        //another source file may now map to the same output
+        if (lines.length < 2 || !getPath(lines[1]).equals(input.getCanonicalPath())){
+            return false;
+        }
+        
+        //each line after the settings is "length,modified,path", starting with the source file
+        for (int i = 1; i < lines.length; i++){
+            File dependency = new File(getPath(lines[i]));
+            
+            if (!lines[i].equals(describe(dependency))){
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Records the files an output was built from.
+     * @param output The output file.
+     * @param settings A description of the settings used to build the output.
+     * @param input The source file.
+     * @param dependencies The images referenced by the source file.
+     * @throws java.io.IOException
+     */
+    synchronized void record(File output, String settings, File input, List<File> dependencies) throws IOException {
+        StringBuilder record = new StringBuilder(settings);
+        record.append(SEPARATOR).append(describe(input));
+        
+        for (File dependency : dependencies){
+            record.append(SEPARATOR).append(describe(dependency));
+        }
+        
+        records.setProperty(getKey(output), record.toString());
+        changed = true;
+    }
+    
+    /**
+     * Forgets an output, so that it's rebuilt next time.
+     * @param output The output file.
+     * @throws java.io.IOException
+     */
+    synchronized void remove(File output) throws IOException {
+        if (records.remove(getKey(output)) != null){
+            changed = true;
+        }
+    }
+    
+    /**
+     * Writes the records back to disk if any have changed.
+     * @throws java.io.IOException
+     */
+    synchronized void save() throws IOException {
+        if (!changed){
+            return;
+        }
+        
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()){
+            throw new IOException("Could not create directory '" + parent + "'.");
+        }
+        
+        OutputStream out = new FileOutputStream(file);
+        try {
+            records.store(out, "CSSEmbed dependencies");
+        } finally {
+            out.close();
+        }
+        
+        changed = false;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Helper methods
+    //--------------------------------------------------------------------------    
+    
+    private static String getKey(File output) throws IOException {
+        return output.getCanonicalPath();
+    }
+    
+    /*
+     * Returns the path from a line describing a file.
+     */
+    private static String getPath(String line){
+        return line.substring(line.indexOf(',', line.indexOf(',') + 1) + 1);
+    }
+    
+    /**
+     * Describes the current state of a file as "length,modified,path". A
+     * missing file is recorded with a length and time of -1.
+     */
+    private static String describe(File file) throws IOException {
+        String path = file.getCanonicalPath();
+        
+        if (!file.isFile()){
+            return "-1,-1," + path;
+        }
+        
+        return file.length() + "," + file.lastModified() + "," + path;
+    }
+}
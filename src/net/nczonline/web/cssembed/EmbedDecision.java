@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2009 Nicholas C. Zakas. All rights reserved.
+ * http://www.nczonline.net/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.nczonline.web.cssembed;
+
+/**
+ * The decision made about one image when embedding under a size budget,
+ * with what it would cost and why it was or wasn't embedded.
+ * @author Nicholas C. Zakas
+ */
+public class EmbedDecision {
+    
+    private String url;
+    private int references;
+    private int length;
+    private long cost;
+    private boolean embedded;
+    private String reason;
+    
+    EmbedDecision(String url, int references, int length, long cost, boolean embedded, String reason){
+        this.url = url;
+        this.references = references;
+        this.length = length;
+        this.cost = cost;
+        this.embedded = embedded;
+        this.reason = reason;
+    }
+    
+    /**
+     * Returns the URL of the image as it appears in the source code.
+     * @return The URL.
+     */
+    public String getURL(){
+        return url;
+    }
+    
+    /**
+     * Returns the number of url() tokens that reference the image.
+     * @return The number of references.
+     */
+    public int getReferences(){
+        return references;
+    }
+    
+    /**
+     * Returns the length of the data URI for the image.
+     * @return The number of characters.
+     */
+    public int getLength(){
+        return length;
+    }
+    
+    /**
+     * Returns the number of bytes embedding the image adds to the output,
+     * counting every reference, or an estimate of the number after gzip 
+     * compression if the budget is measured that way.
+     * @return The number of bytes.
+     */
+    public long getCost(){
+        return cost;
+    }
+    
+    public boolean isEmbedded(){
+        return embedded;
+    }
+    
+    /**
+     * Returns why the image was or wasn't embedded.
+     * @return The reason.
+     */
+    public String getReason(){
+        return reason;
+    }
+    
+    public String toString(){
+        return url + ": " + (embedded ? "embedded" : "not embedded") + ", " + reason + " (" + 
+                references + (references == 1 ? " use, " : " uses, ") + cost + " bytes)";
+    }
+}
@@ -0,0 +1,603 @@
+/*
+ * Copyright (c) 2009 Nicholas C. Zakas. All rights reserved.
+ * http://www.nczonline.net/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.nczonline.web.cssembed;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import net.nczonline.web.datauri.LoadStats;
+
+/**
+ * Counters and timers for a run, kept for each file and for each image in
+ * it, and written out as a summary or a JSON report. Nothing is counted
+ * unless an embedder has been given an object to count into, so leaving
+ * stats off costs a null check here and there. Safe to use from several
+ * threads at once.
+ * @author Nicholas C. Zakas
+ */
+public class EmbedStats {
+    
+    public static final String NOT_AN_IMAGE = "not an image";
+    public static final String MISSING_FILE = "missing file";
+    public static final String UNKNOWN_TYPE = "unknown type";
+    public static final String TOO_LARGE = "image too large";
+    public static final String URI_TOO_LONG = "data URI too long";
+    public static final String OVER_BUDGET = "over budget";
+    public static final String NOT_EMBEDDED = "not embedded";
+    
+    private List<FileStats> files = new ArrayList<FileStats>();
+    private long started = System.nanoTime();
+    private long nanos = -1;
+    
+    //--------------------------------------------------------------------------
+    // Files
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Starts counting for a file.
+     * @param name The name of the file, as given by the user.
+     * @return The object to count into for the file.
+     */
+    public synchronized FileStats addFile(String name){
+        FileStats file = new FileStats(name);
+        files.add(file);
+        return file;
+    }
+    
+    /**
+     * Returns the files counted so far, in the order they were started.
+     * @return The files.
+     */
+    public synchronized List<FileStats> getFiles(){
+        return new ArrayList<FileStats>(files);
+    }
+    
+    /**
+     * Stops the clock for the whole run. Otherwise the run is timed up to
+     * when the stats are written.
+     */
+    public synchronized void finish(){
+        if (nanos < 0){
+            nanos = System.nanoTime() - started;
+        }
+    }
+    
+    private synchronized long getNanos(){
+        return (nanos < 0) ? System.nanoTime() - started : nanos;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Output
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Writes a summary of the run to the given writer, a few lines of 
+     * totals followed by a line for each file.
+     * @param out Where to write the summary.
+     * @throws java.io.IOException
+     */
+    public void writeSummary(Writer out) throws IOException {
+        List<FileStats> files = getFiles();
+        FileStats total = new FileStats("total");
+        for (FileStats file : files){
+            total.addTotals(file);
+        }
+        
+        out.write("[INFO] Stats: " + files.size() + (files.size() == 1 ? " file, " : " files, ") +
+                total.getURLs() + " URLs, " + total.getEmbedded() + " embedded, read " + total.getBytesRead() + 
+                " bytes, encoded " + total.getEncodedLength() + " characters, output " + 
+                formatDelta(total.getOutputLength() - total.getInputLength()) + " characters.\n");
+        out.write("[INFO] Stats: resolve " + formatMillis(total.getResolveNanos()) + ", read " + 
+                formatMillis(total.getReadNanos()) + ", encode " + formatMillis(total.getEncodeNanos()) + 
+                ", write " + formatMillis(total.getWriteNanos()) + ", total " + formatMillis(getNanos()) + ".\n");
+        
+        Map<String,Integer> cache = total.getCacheResults();
+        if (!cache.isEmpty()){
+            out.write("[INFO] Stats: cache " + formatCounts(cache) + ".\n");
+        }
+        
+        Map<String,Integer> skipped = total.getSkipped();
+        if (!skipped.isEmpty()){
+            out.write("[INFO] Stats: skipped " + formatCounts(skipped) + ".\n");
+        }
+        
+        for (FileStats file : files){
+            out.write("[INFO] Stats: " + file.getName() + ": " + file.getEmbedded() + " of " + file.getURLs() + 
+                    " URLs embedded, " + file.getInputLength() + " -> " + file.getOutputLength() + " characters (" + 
+                    formatDelta(file.getOutputLength() - file.getInputLength()) + "), " + 
+                    formatMillis(file.getTotalNanos()) + ".\n");
+        }
+        out.flush();
+    }
+    
+    /**
+     * Writes the stats as a JSON object, with totals for the run and an
+     * entry for each file and each image in it. Times are in nanoseconds;
+     * times for images are added up even when images load in parallel.
+     * @param out Where to write the report.
+     * @throws java.io.IOException
+     */
+    public void writeJSON(Writer out) throws IOException {
+        List<FileStats> files = getFiles();
+        FileStats total = new FileStats("total");
+        for (FileStats file : files){
+            total.addTotals(file);
+        }
+        
+        out.write("{\n  \"nanos\": " + getNanos() + ",\n  \"totals\": ");
+        writeCounts(out, total, "    ");
+        out.write(",\n  \"files\": [");
+        
+        for (int i = 0; i < files.size(); i++){
+            FileStats file = files.get(i);
+            out.write(i == 0 ? "\n    {\n" : ",\n    {\n");
+            out.write("      \"name\": " + quote(file.getName()) + ",\n      \"counts\": ");
+            writeCounts(out, file, "        ");
+            out.write(",\n      \"images\": [");
+            
+            List<ImageStats> images = file.getImages();
+            for (int j = 0; j < images.size(); j++){
+                ImageStats image = images.get(j);
+                out.write(j == 0 ? "\n" : ",\n");
+                out.write("        {\"url\": " + quote(image.getURL()) + 
+                        ", \"references\": " + image.getReferences() + 
+                        ", \"embedded\": " + image.getEmbedded() + 
+                        ", \"loads\": " + image.getLoads() + 
+                        ", \"bytesRead\": " + image.getBytesRead() + 
+                        ", \"encodedLength\": " + image.getEncodedLength() + 
+                        ", \"resolveNanos\": " + image.getResolveNanos() + 
+                        ", \"readNanos\": " + image.getReadNanos() + 
+                        ", \"encodeNanos\": " + image.getEncodeNanos() + 
+                        ", \"cache\": " + quote(image.getCacheResult()) + 
+                        ", \"skipped\": " + quote(image.getReason()) + "}");
+            }
+            
+            out.write(images.isEmpty() ? "]\n    }" : "\n      ]\n    }");
+        }
+        
+        out.write(files.isEmpty() ? "]\n}\n" : "\n  ]\n}\n");
+        out.flush();
+    }
+    
+    //--------------------------------------------------------------------------
+    // Helper methods
+    //--------------------------------------------------------------------------    
+    
+    private static void writeCounts(Writer out, FileStats file, String indent) throws IOException {
+        out.write("{\n");
+        out.write(indent + "\"inputLength\": " + file.getInputLength() + ",\n");
+        out.write(indent + "\"outputLength\": " + file.getOutputLength() + ",\n");
+        out.write(indent + "\"delta\": " + (file.getOutputLength() - file.getInputLength()) + ",\n");
+        out.write(indent + "\"urls\": " + file.getURLs() + ",\n");
+        out.write(indent + "\"embedded\": " + file.getEmbedded() + ",\n");
+        out.write(indent + "\"bytesRead\": " + file.getBytesRead() + ",\n");
+        out.write(indent + "\"encodedLength\": " + file.getEncodedLength() + ",\n");
+        out.write(indent + "\"resolveNanos\": " + file.getResolveNanos() + ",\n");
+        out.write(indent + "\"readNanos\": " + file.getReadNanos() + ",\n");
+        out.write(indent + "\"encodeNanos\": " + file.getEncodeNanos() + ",\n");
+        out.write(indent + "\"writeNanos\": " + file.getWriteNanos() + ",\n");
+        out.write(indent + "\"totalNanos\": " + file.getTotalNanos() + ",\n");
+        out.write(indent + "\"cache\": ");
+        writeMap(out, file.getCacheResults());
+        out.write(",\n" + indent + "\"skipped\": ");
+        writeMap(out, file.getSkipped());
+        out.write("\n" + indent.substring(2) + "}");
+    }
+    
+    private static void writeMap(Writer out, Map<String,Integer> counts) throws IOException {
+        out.write("{");
+        boolean first = true;
+        for (Map.Entry<String,Integer> entry : counts.entrySet()){
+            out.write((first ? "" : ", ") + quote(entry.getKey()) + ": " + entry.getValue());
+            first = false;
+        }
+        out.write("}");
+    }
+    
+    /*
+     * Quotes a string for JSON, or returns null for null.
+     */
+    static String quote(String value){
+        if (value == null){
+            return "null";
+        }
+        
+        StringBuilder builder = new StringBuilder(value.length() + 2);
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\'){
+                builder.append('\\').append(c);
+            } else if (c < 0x20){
+                String hex = Integer.toHexString(c);
+                builder.append("\\u0000", 0, 6 - hex.length()).append(hex);
+            } else {
+                builder.append(c);
+            }
+        }
+        builder.append('"');
+        return builder.toString();
+    }
+    
+    private static String formatMillis(long nanos){
+        return (nanos / 100000) / 10.0 + " ms";
+    }
+    
+    private static String formatDelta(long delta){
+        return (delta >= 0 ? "+" : "") + delta;
+    }
+    
+    private static String formatCounts(Map<String,Integer> counts){
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String,Integer> entry : counts.entrySet()){
+            if (builder.length() > 0){
+                builder.append(", ");
+            }
+            builder.append(entry.getKey()).append(": ").append(entry.getValue());
+        }
+        return builder.toString();
+    }
+    
+    private static void add(Map<String,Integer> counts, String key, int count){
+        Integer value = counts.get(key);
+        counts.put(key, Integer.valueOf(value == null ? count : value.intValue() + count));
+    }
+    
+    //--------------------------------------------------------------------------
+    // Per-file stats
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Counters and timers for one file. Sizes are in characters. 
+     */
+    public static class FileStats {
+        
+        private String name;
+        private long inputLength = 0;
+        private long outputLength = 0;
+        private int urls = 0;
+        private int embedded = 0;
+        private long writeNanos = 0;
+        private long totalNanos = 0;
+        private LinkedHashMap<String,ImageStats> images = new LinkedHashMap<String,ImageStats>();
+        private TreeMap<String,Integer> skipped = new TreeMap<String,Integer>();
+        
+        //sums over images, for totals that have no images of their own
+        private long bytesRead = 0;
+        private long encodedLength = 0;
+        private long resolveNanos = 0;
+        private long readNanos = 0;
+        private long encodeNanos = 0;
+        private TreeMap<String,Integer> cacheResults = new TreeMap<String,Integer>();
+        
+        FileStats(String name){
+            this.name = name;
+        }
+        
+        public String getName(){
+            return name;
+        }
+        
+        public synchronized long getInputLength(){
+            return inputLength;
+        }
+        
+        public synchronized long getOutputLength(){
+            return outputLength;
+        }
+        
+        /**
+         * Returns the number of url() tokens found, not counting those on
+         * lines with a SKIP directive.
+         * @return The number of tokens.
+         */
+        public synchronized int getURLs(){
+            return urls;
+        }
+        
+        /**
+         * Returns the number of url() tokens replaced.
+         * @return The number of tokens.
+         */
+        public synchronized int getEmbedded(){
+            return embedded;
+        }
+        
+        public synchronized long getBytesRead(){
+            return bytesRead;
+        }
+        
+        /**
+         * Returns the number of characters of data URIs generated. Data
+         * URIs that came from a cache aren't counted.
+         * @return The number of characters.
+         */
+        public synchronized long getEncodedLength(){
+            return encodedLength;
+        }
+        
+        /**
+         * Returns the time spent working out what each URL is and where to 
+         * load it from, other than reading and encoding, added up over 
+         * images.
+         * @return The number of nanoseconds.
+         */
+        public synchronized long getResolveNanos(){
+            return resolveNanos;
+        }
+        
+        public synchronized long getReadNanos(){
+            return readNanos;
+        }
+        
+        public synchronized long getEncodeNanos(){
+            return encodeNanos;
+        }
+        
+        /**
+         * Returns the time spent writing the output, not counting time 
+         * spent waiting for images.
+         * @return The number of nanoseconds.
+         */
+        public synchronized long getWriteNanos(){
+            return writeNanos;
+        }
+        
+        public synchronized long getTotalNanos(){
+            return totalNanos;
+        }
+        
+        /**
+         * Returns how many images were found in the data URI cache, by 
+         * each of the LoadStats.CACHE_ results.
+         * @return The counts, keyed by result.
+         */
+        public synchronized Map<String,Integer> getCacheResults(){
+            return new TreeMap<String,Integer>(cacheResults);
+        }
+        
+        /**
+         * Returns how many url() tokens weren't replaced, by reason.
+         * @return The counts, keyed by reason.
+         */
+        public synchronized Map<String,Integer> getSkipped(){
+            return new TreeMap<String,Integer>(skipped);
+        }
+        
+        /**
+         * Returns the images found, in the order they were first seen.
+         * @return The images.
+         */
+        public synchronized List<ImageStats> getImages(){
+            List<ImageStats> result = new ArrayList<ImageStats>(images.size());
+            for (ImageStats image : images.values()){
+                result.add(image.copy());
+            }
+            return Collections.unmodifiableList(result);
+        }
+        
+        synchronized void addInput(long length){
+            inputLength += length;
+        }
+        
+        synchronized void addOutput(long length){
+            outputLength += length;
+        }
+        
+        synchronized void addWrite(long nanos){
+            writeNanos += nanos;
+        }
+        
+        synchronized void addTotal(long nanos){
+            totalNanos += nanos;
+        }
+        
+        /*
+         * Records one load of an image, which may have come from a cache.
+         */
+        synchronized void addLoad(String url, LoadStats load, long nanos){
+            ImageStats image = getImage(url);
+            long resolve = Math.max(0, nanos - load.getReadNanos() - load.getEncodeNanos());
+            
+            image.loads++;
+            image.bytesRead += load.getBytesRead();
+            image.encodedLength += load.getEncodedLength();
+            image.resolveNanos += resolve;
+            image.readNanos += load.getReadNanos();
+            image.encodeNanos += load.getEncodeNanos();
+            if (load.getCacheResult() != null){
+                image.cacheResult = load.getCacheResult();
+                add(cacheResults, load.getCacheResult(), 1);
+            }
+            
+            bytesRead += load.getBytesRead();
+            encodedLength += load.getEncodedLength();
+            resolveNanos += resolve;
+            readNanos += load.getReadNanos();
+            encodeNanos += load.getEncodeNanos();
+        }
+        
+        /*
+         * Records why an image wasn't embedded.
+         */
+        synchronized void skip(String url, String reason){
+            getImage(url).reason = reason;
+        }
+        
+        /*
+         * Records a url() token and whether it was replaced.
+         */
+        synchronized void addReference(String url, boolean replaced){
+            ImageStats image = getImage(url);
+            image.references++;
+            urls++;
+            
+            if (replaced){
+                image.embedded++;
+                embedded++;
+            } else {
+                add(skipped, image.reason == null ? NOT_EMBEDDED : image.reason, 1);
+            }
+        }
+        
+        private ImageStats getImage(String url){
+            ImageStats image = images.get(url);
+            if (image == null){
+                image = new ImageStats(url);
+                images.put(url, image);
+            }
+            return image;
+        }
+        
+        /*
+         * Adds the counts for a file into these, for totals.
+         */
+        synchronized void addTotals(FileStats file){
+            synchronized (file){
+                inputLength += file.inputLength;
+                outputLength += file.outputLength;
+                urls += file.urls;
+                embedded += file.embedded;
+                writeNanos += file.writeNanos;
+                totalNanos += file.totalNanos;
+                bytesRead += file.bytesRead;
+                encodedLength += file.encodedLength;
+                resolveNanos += file.resolveNanos;
+                readNanos += file.readNanos;
+                encodeNanos += file.encodeNanos;
+                for (Map.Entry<String,Integer> entry : file.cacheResults.entrySet()){
+                    add(cacheResults, entry.getKey(), entry.getValue().intValue());
+                }
+                for (Map.Entry<String,Integer> entry : file.skipped.entrySet()){
+                    add(skipped, entry.getKey(), entry.getValue().intValue());
+                }
+            }
+        }
+    }
+    
+    //--------------------------------------------------------------------------
+    // Per-image stats
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Counters and timers for one image in a file. An image may be loaded
+     * more than once, such as when streaming, in which case the counts are
+     * added up.
+     */
+    public static class ImageStats {
+        
+        private String url;
+        private int references = 0;
+        private int embedded = 0;
+        private int loads = 0;
+        private long bytesRead = 0;
+        private long encodedLength = 0;
+        private long resolveNanos = 0;
+        private long readNanos = 0;
+        private long encodeNanos = 0;
+        private String cacheResult = null;
+        private String reason = null;
+        
+        ImageStats(String url){
+            this.url = url;
+        }
+        
+        private ImageStats copy(){
+            ImageStats image = new ImageStats(url);
+            image.references = references;
+            image.embedded = embedded;
+            image.loads = loads;
+            image.bytesRead = bytesRead;
+            image.encodedLength = encodedLength;
+            image.resolveNanos = resolveNanos;
+            image.readNanos = readNanos;
+            image.encodeNanos = encodeNanos;
+            image.cacheResult = cacheResult;
+            image.reason = reason;
+            return image;
+        }
+        
+        /**
+         * Returns the URL of the image as it appears in the source code.
+         * @return The URL.
+         */
+        public String getURL(){
+            return url;
+        }
+        
+        public int getReferences(){
+            return references;
+        }
+        
+        public int getEmbedded(){
+            return embedded;
+        }
+        
+        public int getLoads(){
+            return loads;
+        }
+        
+        public long getBytesRead(){
+            return bytesRead;
+        }
+        
+        public long getEncodedLength(){
+            return encodedLength;
+        }
+        
+        public long getResolveNanos(){
+            return resolveNanos;
+        }
+        
+        public long getReadNanos(){
+            return readNanos;
+        }
+        
+        public long getEncodeNanos(){
+            return encodeNanos;
+        }
+        
+        /**
+         * Returns what the data URI cache had the last time the image was
+         * loaded, one of the LoadStats.CACHE_ results.
+         * @return The result, or null if no cache was used.
+         */
+        public String getCacheResult(){
+            return cacheResult;
+        }
+        
+        /**
+         * Returns why the image wasn't embedded.
+         * @return The reason, or null if nothing stopped it.
+         */
+        public String getReason(){
+            return reason;
+        }
+    }
+}
@@ -0,0 +1,417 @@
+/*
+ * Copyright (c) 2009 Nicholas C. Zakas. All rights reserved.
+ * http://www.nczonline.net/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.nczonline.web.cssembed;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.concurrent.Executor;
+import net.nczonline.web.datauri.DataURICache;
+import net.nczonline.web.datauri.DataURIDiskCache;
+import net.nczonline.web.datauri.DataURIEncoder;
+import net.nczonline.web.datauri.DataURIGenerator;
+import net.nczonline.web.datauri.ImageOptimizer;
+import net.nczonline.web.datauri.RemoteFetcher;
+
+/**
+ * Embeds images into CSS using one fixed set of settings: the options, the
+ * root for relative URLs, the limits, the MHTML root and the caches. The
+ * settings are checked once, when the config is built, and can't be 
+ * changed afterwards, so one config can be shared by any number of threads
+ * and each call only has to supply the CSS. Use CSSURLEmbedder directly
+ * for dependencies, stats and the decisions made about each image.
+ * @author Nicholas C. Zakas
+ */
+public final class EmbedderConfig {
+    
+    private static final int ALL_OPTIONS = CSSURLEmbedder.DATAURI_OPTION | CSSURLEmbedder.MHTML_OPTION | 
+            CSSURLEmbedder.SKIP_MISSING_OPTION | CSSURLEmbedder.STREAMING_OPTION;
+    
+    private final int options;
+    private final boolean verbose;
+    private final String root;
+    private final String mhtmlRoot;
+    private final String filename;
+    private final MHTMLDocument mhtmlDocument;
+    private final int maxUriLength;
+    private final int maxImageSize;
+    private final int shareThreshold;
+    private final int spillThreshold;
+    private final long budget;
+    private final boolean budgetGzip;
+    private final DataURICache cache;
+    private final DataURIDiskCache diskCache;
+    private final Executor executor;
+    private final ImageOptimizer optimizer;
+    private final DataURIEncoder encoder;
+    
+    //--------------------------------------------------------------------------
+    // Constructor
+    //--------------------------------------------------------------------------    
+    
+    private EmbedderConfig(Builder builder){
+        this.options = builder.options;
+        this.verbose = builder.verbose;
+        this.root = (builder.root != null && !builder.root.endsWith("/") && !builder.root.endsWith(File.separator)) ?
+                builder.root + File.separator : builder.root;
+        this.mhtmlRoot = builder.mhtmlRoot;
+        this.filename = builder.filename;
+        this.mhtmlDocument = builder.mhtmlDocument;
+        this.maxUriLength = builder.maxUriLength;
+        this.maxImageSize = builder.maxImageSize;
+        this.shareThreshold = builder.shareThreshold;
+        this.spillThreshold = builder.spillThreshold;
+        this.budget = builder.budget;
+        this.budgetGzip = builder.budgetGzip;
+        this.cache = builder.cache;
+        this.diskCache = builder.diskCache;
+        this.executor = builder.executor;
+        this.optimizer = builder.optimizer;
+        
+        //worked out here so that embedders don't each make their own
+        DataURIEncoder current = (builder.encoder != null) ? builder.encoder : DataURIGenerator.getDefault();
+        if (current.isVerbose() != verbose || (builder.fetcher != null && current.getFetcher() != builder.fetcher)){
+            DataURIEncoder.Builder encoderBuilder = current.toBuilder().setVerbose(verbose);
+            if (builder.fetcher != null){
+                encoderBuilder.setFetcher(builder.fetcher);
+            }
+            current = encoderBuilder.build();
+        }
+        this.encoder = current;
+    }
+    
+    /**
+     * Returns a builder with the default settings, which embed images as
+     * data URIs.
+     * @return The builder.
+     */
+    public static Builder builder(){
+        return new Builder();
+    }
+    
+    //--------------------------------------------------------------------------
+    // Settings
+    //--------------------------------------------------------------------------    
+    
+    public int getOptions(){
+        return options;
+    }
+    
+    public boolean getVerbose(){
+        return verbose;
+    }
+    
+    /**
+     * Returns the root prepended to relative URLs, ending in a separator.
+     * @return The root, or null if relative URLs are used as they are.
+     */
+    public String getRoot(){
+        return root;
+    }
+    
+    public String getMHTMLRoot(){
+        return mhtmlRoot;
+    }
+    
+    public String getFilename(){
+        return filename;
+    }
+    
+    public MHTMLDocument getMHTMLDocument(){
+        return mhtmlDocument;
+    }
+    
+    public int getMaxUriLength(){
+        return maxUriLength;
+    }
+    
+    public int getMaxImageSize(){
+        return maxImageSize;
+    }
+    
+    public int getShareThreshold(){
+        return shareThreshold;
+    }
+    
+    public int getSpillThreshold(){
+        return spillThreshold;
+    }
+    
+    public long getBudget(){
+        return budget;
+    }
+    
+    public boolean getBudgetGzip(){
+        return budgetGzip;
+    }
+    
+    public DataURICache getCache(){
+        return cache;
+    }
+    
+    public DataURIDiskCache getDiskCache(){
+        return diskCache;
+    }
+    
+    public Executor getExecutor(){
+        return executor;
+    }
+    
+    public ImageOptimizer getOptimizer(){
+        return optimizer;
+    }
+    
+    /**
+     * Returns the encoder used to generate data URIs, with the verbose 
+     * flag and fetcher of this config already applied.
+     * @return The encoder.
+     */
+    public DataURIEncoder getEncoder(){
+        return encoder;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Embed images
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Embeds images into CSS read from a reader, which is closed afterwards.
+     * May be called from several threads at once.
+     * @param in The CSS code to read.
+     * @param out Where to write the result.
+     * @return The number of images embedded.
+     * @throws java.io.IOException
+     */
+    public int embed(Reader in, Writer out) throws IOException {
+        CSSURLEmbedder embedder = new CSSURLEmbedder(this, in, null);
+        embedder.embedImages(out, root);
+        return embedder.getConversions();
+    }
+    
+    /**
+     * Embeds images into a piece of CSS. May be called from several threads
+     * at once.
+     * @param css The CSS code.
+     * @return The CSS code with images embedded.
+     * @throws java.io.IOException
+     */
+    public String embed(CharSequence css) throws IOException {
+        String code = css.toString();
+        StringWriter out = new StringWriter(code.length());
+        new CSSURLEmbedder(this, null, code).embedImages(out, root);
+        return out.toString();
+    }
+    
+    //--------------------------------------------------------------------------
+    // Builder
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Collects the settings for a config. Not safe to share between threads,
+     * unlike the configs it builds.
+     */
+    public static final class Builder {
+        
+        private int options = CSSURLEmbedder.DATAURI_OPTION;
+        private boolean verbose = false;
+        private String root = null;
+        private String mhtmlRoot = null;
+        private String filename = "";
+        private MHTMLDocument mhtmlDocument = null;
+        private int maxUriLength = CSSURLEmbedder.DEFAULT_MAX_URI_LENGTH;
+        private int maxImageSize = 0;
+        private int shareThreshold = 0;
+        private int spillThreshold = CSSURLEmbedder.DEFAULT_SPILL_THRESHOLD;
+        private long budget = 0;
+        private boolean budgetGzip = false;
+        private DataURICache cache = null;
+        private DataURIDiskCache diskCache = null;
+        private Executor executor = null;
+        private RemoteFetcher fetcher = null;
+        private ImageOptimizer optimizer = null;
+        private DataURIEncoder encoder = null;
+        
+        private Builder(){
+        }
+        
+        /**
+         * Sets the options, made up of the CSSURLEmbedder option constants.
+         * Either DATAURI_OPTION or MHTML_OPTION must be included.
+         * @param options The options.
+         * @return This builder.
+         */
+        public Builder setOptions(int options){
+            this.options = options;
+            return this;
+        }
+        
+        public Builder setVerbose(boolean verbose){
+            this.verbose = verbose;
+            return this;
+        }
+        
+        /**
+         * Sets the root prepended to relative URLs. A separator is added to
+         * the end if there isn't one.
+         * @param root The root, or null to use relative URLs as they are.
+         * @return This builder.
+         */
+        public Builder setRoot(String root){
+            this.root = root;
+            return this;
+        }
+        
+        /**
+         * Sets the root of the URL of the MHTML document, which is required
+         * in MHTML mode.
+         * @param mhtmlRoot The root.
+         * @return This builder.
+         */
+        public Builder setMHTMLRoot(String mhtmlRoot){
+            this.mhtmlRoot = mhtmlRoot;
+            return this;
+        }
+        
+        /**
+         * Sets the name of the output, which MHTML links refer to when the
+         * images aren't placed in a shared document.
+         * @param filename The name of the output.
+         * @return This builder.
+         */
+        public Builder setFilename(String filename){
+            this.filename = filename;
+            return this;
+        }
+        
+        public Builder setMHTMLDocument(MHTMLDocument mhtmlDocument){
+            this.mhtmlDocument = mhtmlDocument;
+            return this;
+        }
+        
+        /**
+         * Sets the longest data URI to embed. Defaults to 32KB, the most
+         * IE8 allows.
+         * @param maxUriLength The longest data URI, or 0 for no limit.
+         * @return This builder.
+         */
+        public Builder setMaxUriLength(int maxUriLength){
+            this.maxUriLength = maxUriLength;
+            return this;
+        }
+        
+        public Builder setMaxImageSize(int maxImageSize){
+            this.maxImageSize = maxImageSize;
+            return this;
+        }
+        
+        public Builder setShareThreshold(int shareThreshold){
+            this.shareThreshold = shareThreshold;
+            return this;
+        }
+        
+        public Builder setSpillThreshold(int spillThreshold){
+            this.spillThreshold = spillThreshold;
+            return this;
+        }
+        
+        public Builder setBudget(long budget){
+            this.budget = budget;
+            return this;
+        }
+        
+        public Builder setBudgetGzip(boolean budgetGzip){
+            this.budgetGzip = budgetGzip;
+            return this;
+        }
+        
+        public Builder setCache(DataURICache cache){
+            this.cache = cache;
+            return this;
+        }
+        
+        public Builder setDiskCache(DataURIDiskCache diskCache){
+            this.diskCache = diskCache;
+            return this;
+        }
+        
+        public Builder setExecutor(Executor executor){
+            this.executor = executor;
+            return this;
+        }
+        
+        public Builder setFetcher(RemoteFetcher fetcher){
+            this.fetcher = fetcher;
+            return this;
+        }
+        
+        public Builder setOptimizer(ImageOptimizer optimizer){
+            this.optimizer = optimizer;
+            return this;
+        }
+        
+        /**
+         * Sets the encoder used to generate data URIs. Defaults to the 
+         * DataURIGenerator default at the time the config is built.
+         * @param encoder The encoder, or null for the default.
+         * @return This builder.
+         */
+        public Builder setEncoder(DataURIEncoder encoder){
+            this.encoder = encoder;
+            return this;
+        }
+        
+        /**
+         * Checks the settings and creates a config with them. The builder can
+         * go on being used without affecting it.
+         * @return The config.
+         * @throws IllegalArgumentException If the settings don't make sense.
+         */
+        public EmbedderConfig build(){
+            if ((options & ~ALL_OPTIONS) != 0){
+                throw new IllegalArgumentException("Unknown options: " + (options & ~ALL_OPTIONS) + ".");
+            }
+            
+            boolean mhtml = (options & CSSURLEmbedder.MHTML_OPTION) != 0;
+            if (!mhtml && (options & CSSURLEmbedder.DATAURI_OPTION) == 0){
+                throw new IllegalArgumentException("Options must include DATAURI_OPTION or MHTML_OPTION.");
+            }
+            if (mhtml && mhtmlRoot == null){
+                throw new IllegalArgumentException("An MHTML root is required in MHTML mode.");
+            }
+            if (!mhtml && mhtmlDocument != null){
+                throw new IllegalArgumentException("An MHTML document can only be used in MHTML mode.");
+            }
+            if (filename == null){
+                throw new IllegalArgumentException("Filename can't be null.");
+            }
+            if (maxUriLength < 0 || maxImageSize < 0 || shareThreshold < 0 || spillThreshold < 0 || budget < 0){
+                throw new IllegalArgumentException("Limits can't be negative.");
+            }
+            
+            return new EmbedderConfig(this);
+        }
+    }
+}
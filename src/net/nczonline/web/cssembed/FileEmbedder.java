@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2009 Nicholas C. Zakas. All rights reserved.
+ * http://www.nczonline.net/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.nczonline.web.cssembed;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.concurrent.Executor;
+import net.nczonline.web.datauri.DataURICache;
+import net.nczonline.web.datauri.DataURIDiskCache;
+import net.nczonline.web.datauri.DataURIEncoder;
+import net.nczonline.web.datauri.ImageOptimizer;
+import net.nczonline.web.datauri.RemoteFetcher;
+
+/**
+ * Embeds images into files using one set of settings, so that many files
+ * can be processed with the same caches. Safe to use from several threads
+ * at once as long as the settings aren't changed.
+ * @author Nicholas C. Zakas
+ */
+class FileEmbedder {
+    
+    private int options;
+    private boolean verbose;
+    private String charset;
+    private String root = null;
+    private String mhtmlRoot = null;
+    private MHTMLDocument mhtmlDocument = null;
+    private int maxUriLength = CSSURLEmbedder.DEFAULT_MAX_URI_LENGTH;
+    private int maxImageSize = 0;
+    private int shareThreshold = 0;
+    private long budget = 0;
+    private boolean budgetGzip = false;
+    private DataURICache cache = null;
+    private DataURIDiskCache diskCache = null;
+    private Executor executor = null;
+    private RemoteFetcher fetcher = null;
+    private ImageOptimizer optimizer = null;
+    private DataURIEncoder encoder = null;
+    private EmbedStats stats = null;
+    
+    //--------------------------------------------------------------------------
+    // Constructor
+    //--------------------------------------------------------------------------    
+    
+    FileEmbedder(int options, boolean verbose, String charset){
+        this.options = options;
+        this.verbose = verbose;
+        this.charset = charset;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Settings
+    //--------------------------------------------------------------------------    
+    
+    int getOptions(){
+        return options;
+    }
+    
+    /**
+     * Sets the root for relative URLs. When null, each file's own directory
+     * is used.
+     */
+    void setRoot(String root){
+        this.root = root;
+    }
+    
+    void setMHTMLRoot(String mhtmlRoot){
+        this.mhtmlRoot = mhtmlRoot;
+    }
+    
+    /**
+     * Sets a document to place MHTML images into instead of each output.
+     */
+    void setMHTMLDocument(MHTMLDocument mhtmlDocument){
+        this.mhtmlDocument = mhtmlDocument;
+    }
+    
+    void setMaxUriLength(int maxUriLength){
+        this.maxUriLength = maxUriLength;
+    }
+    
+    void setMaxImageSize(int maxImageSize){
+        this.maxImageSize = maxImageSize;
+    }
+    
+    void setShareThreshold(int shareThreshold){
+        this.shareThreshold = shareThreshold;
+    }
+    
+    /**
+     * Sets the most bytes embedding may add to each output, or 0 for no 
+     * limit. The budget applies to each file on its own.
+     */
+    void setBudget(long budget, boolean budgetGzip){
+        this.budget = budget;
+        this.budgetGzip = budgetGzip;
+    }
+    
+    void setCache(DataURICache cache){
+        this.cache = cache;
+    }
+    
+    void setDiskCache(DataURIDiskCache diskCache){
+        this.diskCache = diskCache;
+    }
+    
+    void setExecutor(Executor executor){
+        this.executor = executor;
+    }
+    
+    void setFetcher(RemoteFetcher fetcher){
+        this.fetcher = fetcher;
+    }
+    
+    void setOptimizer(ImageOptimizer optimizer){
+        this.optimizer = optimizer;
+    }
+    
+    void setEncoder(DataURIEncoder encoder){
+        this.encoder = encoder;
+    }
+    
+    EmbedStats getStats(){
+        return stats;
+    }
+    
+    void setStats(EmbedStats stats){
+        this.stats = stats;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Embed images
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Embeds images from one file into another. The output may be the same
+     * file as the input, in which case streaming is turned off. When 
+     * streaming, the output is deleted if embedding fails part way through.
+     * @param input The CSS file to read.
+     * @param output The file to write.
+     * @return The embedder used, which has the number of images embedded 
+     *      and the files they came from.
+     * @throws java.io.IOException
+     */
+    CSSURLEmbedder embed(File input, File output) throws IOException {
+        return embed(input, output, System.err);
+    }
+    
+    /**
+     * Embeds images from one file into another, writing messages about it
+     * to the given stream.
+     * @param input The CSS file to read.
+     * @param output The file to write.
+     * @param log Where to write messages when verbose.
+     * @return The embedder used, which has the number of images embedded 
+     *      and the files they came from.
+     * @throws java.io.IOException
+     */
+    CSSURLEmbedder embed(File input, File output, PrintStream log) throws IOException {
+        int fileOptions = options;
+        
+        //streaming is only possible when not overwriting the input file
+        if ((fileOptions & CSSURLEmbedder.STREAMING_OPTION) != 0 && 
+                input.getCanonicalPath().equals(output.getCanonicalPath())){
+            if (verbose){
+                log.println("[INFO] Input and output are the same file, streaming disabled.");
+            }
+            fileOptions = fileOptions & ~CSSURLEmbedder.STREAMING_OPTION;
+        }
+        
+        File parent = output.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()){
+            throw new IOException("Could not create directory '" + parent + "'.");
+        }
+        
+        String fileRoot = getRoot(input);
+        Reader in = new InputStreamReader(new FileInputStream(input), charset);
+        ByteArrayOutputStream bytes = null;
+        Writer out = null;
+        CSSURLEmbedder embedder;
+        
+        try {
+            if ((fileOptions & CSSURLEmbedder.STREAMING_OPTION) != 0){
+                out = new OutputStreamWriter(new FileOutputStream(output), charset);
+            } else {
+                bytes = new ByteArrayOutputStream();
+                out = new OutputStreamWriter(bytes, charset);
+            }
+            
+            embedder = embed(in, out, fileRoot, input.getPath(), output.getName(), fileOptions, log);
+            out.close();
+            out = null;
+        } finally {
+            try {
+                if (out != null){
+                    
+                    //something went wrong, so don't leave part of the output behind
+                    try {
+                        out.close();
+                    } finally {
+                        if (bytes == null){
+                            output.delete();
+                        }
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        }
+        
+        //only replace the output once everything has worked
+        if (bytes != null){
+            FileOutputStream fos = new FileOutputStream(output);
+            try {
+                bytes.writeTo(fos);
+            } finally {
+                fos.close();
+            }
+        }
+        
+        return embedder;
+    }
+    
+    /**
+     * Embeds images from a reader into a writer.
+     * @param in The CSS code to read.
+     * @param out Where to write the result.
+     * @param root The root for relative URLs.
+     * @param inputName The name of the input, used for stats.
+     * @param outputName The name of the output file, used for MHTML links.
+     * @param options The options to use in place of the ones for this object.
+     * @return The embedder used, which has the number of images embedded 
+     *      and the files they came from.
+     * @throws java.io.IOException
+     */
+    CSSURLEmbedder embed(Reader in, Writer out, String root, String inputName, String outputName, int options) throws IOException {
+        return embed(in, out, root, inputName, outputName, options, System.err);
+    }
+    
+    private CSSURLEmbedder embed(Reader in, Writer out, String root, String inputName, String outputName, int options, 
+            PrintStream log) throws IOException {
+        CSSURLEmbedder embedder = new CSSURLEmbedder(in, options, verbose, maxUriLength, maxImageSize);
+        embedder.setLog(log);
+        embedder.setMHTMLRoot(mhtmlRoot);
+        embedder.setMHTMLDocument(mhtmlDocument);
+        embedder.setShareThreshold(shareThreshold);
+        embedder.setBudget(budget);
+        embedder.setBudgetGzip(budgetGzip);
+        embedder.setCache(cache);
+        embedder.setDiskCache(diskCache);
+        embedder.setExecutor(executor);
+        embedder.setFetcher(fetcher);
+        embedder.setOptimizer(optimizer);
+        embedder.setEncoder(encoder);
+        
+        if (stats != null){
+            embedder.setStats(stats.addFile(inputName));
+        }
+        
+        if (outputName != null){
+            embedder.setFilename(outputName);
+        }
+        
+        embedder.embedImages(out, root);
+        return embedder;
+    }
+    
+    /**
+     * Returns the root for relative URLs in a file, ending in a separator.
+     * @param input The input file, or null when reading from stdin.
+     * @return The root for relative URLs.
+     * @throws java.io.IOException When there's no root and no input file.
+     */
+    String getRoot(File input) throws IOException {
+        String fileRoot = root;
+        
+        if (fileRoot == null){
+            if (input == null){
+                throw new IOException("Must use --root when not specifying a filename.");
+            }
+            
+            //no root specified, so get from input file
+            fileRoot = input.getCanonicalPath();
+            fileRoot = fileRoot.substring(0, fileRoot.lastIndexOf(File.separator));
+        }
+        
+        if (!fileRoot.endsWith(File.separator)){
+            fileRoot += File.separator;
+        }
+        
+        return fileRoot;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2009 Nicholas C. Zakas. All rights reserved.
+ * http://www.nczonline.net/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.nczonline.web.cssembed;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Expands command line file arguments into CSS files. An argument may be a
+ * file, a directory (all CSS files below it) or a glob pattern where "*"
+ * and "?" match within a path segment and "**" matches any number of
+ * directories.
+ * @author Nicholas C. Zakas
+ */
+class FileExpander {
+    
+    private static final String CSS_EXTENSION = ".css";
+    
+    private LinkedHashMap<File,String> files = new LinkedHashMap<File,String>();
+    
+    //--------------------------------------------------------------------------
+    // Add arguments
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Adds the files matching a command line argument. Each file is kept
+     * with its path relative to the directory named in the argument, which
+     * is used to lay out the output directory.
+     * @param arg A file, directory or glob pattern.
+     * @throws java.io.IOException When nothing matches the argument.
+     */
+    void add(String arg) throws IOException {
+        int count = files.size();
+        File file = new File(arg);
+        
+        if (file.isDirectory()){
+            addDirectory(file, "", null);
+        } else if (file.exists() || !isPattern(arg)){
+            addFile(file, file.getName());
+        } else {
+            
+            //split into a directory and a pattern for the rest of the path
+            String path = arg.replace(File.separatorChar, '/');
+            int wildcard = indexOfWildcard(path);
+            int slash = path.lastIndexOf('/', wildcard);
+            File base = new File(slash == -1 ? "." : (slash == 0 ? "/" : path.substring(0, slash)));
+            
+            addDirectory(base, "", toRegex(path.substring(slash + 1)));
+        }
+        
+        if (files.size() == count){
+            throw new IOException("No files found matching '" + arg + "'.");
+        }
+    }
+    
+    /**
+     * Returns the files found so far, in the order they were found, with
+     * their relative paths. A file named more than once is only included
+     * the first time.
+     * @return The files and their relative paths.
+     */
+    LinkedHashMap<File,String> getFiles(){
+        return files;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Helper methods
+    //--------------------------------------------------------------------------    
+    
+    private void addFile(File file, String relativePath) throws IOException {
+        File key = file.getCanonicalFile();
+        if (!files.containsKey(key)){
+            files.put(key, relativePath);
+        }
+    }
+    
+    /**
+     * Adds the files below a directory, in name order. Without a pattern,
+     * only CSS files are added.
+     */
+    private void addDirectory(File dir, String prefix, Pattern pattern) throws IOException {
+        File[] children = dir.listFiles();
+        if (children == null){
+            return;
+        }
+        
+        Arrays.sort(children);
+        
+        for (int i = 0; i < children.length; i++){
+            String relativePath = prefix + children[i].getName();
+            
+            if (children[i].isDirectory()){
+                addDirectory(children[i], relativePath + "/", pattern);
+            } else if (pattern == null ? relativePath.toLowerCase().endsWith(CSS_EXTENSION) : 
+                    pattern.matcher(relativePath).matches()){
+                addFile(children[i], relativePath);
+            }
+        }
+    }
+    
+    static boolean isPattern(String arg){
+        return indexOfWildcard(arg) > -1;
+    }
+    
+    private static int indexOfWildcard(String arg){
+        for (int i = 0; i < arg.length(); i++){
+            char c = arg.charAt(i);
+            if (c == '*' || c == '?'){
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Converts a glob pattern using "/" as the separator into a regular
+     * expression.
+     * @param glob The glob pattern.
+     * @return The equivalent regular expression.
+     */
+    static Pattern toRegex(String glob){
+        StringBuilder regex = new StringBuilder();
+        
+        for (int i = 0; i < glob.length(); i++){
+            char c = glob.charAt(i);
+            
+            if (c == '*'){
+                if (i + 1 < glob.length() && glob.charAt(i + 1) == '*'){
+                    i++;
+                    
+                    //"**/" may also match no directories at all
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '/'){
+                        i++;
+                        regex.append("(?:.*/)?");
+                    } else {
+                        regex.append(".*");
+                    }
+                } else {
+                    regex.append("[^/]*");
+                }
+            } else if (c == '?'){
+                regex.append("[^/]");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        
+        return Pattern.compile(regex.toString());
+    }
+}
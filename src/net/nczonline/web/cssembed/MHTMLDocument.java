@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2009 Nicholas C. Zakas. All rights reserved.
+ * http://www.nczonline.net/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.nczonline.web.cssembed;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * An MHTML document shared by several stylesheets. Each distinct image is
+ * written to the document once, as soon as the first stylesheet that uses
+ * it is processed, so the document is built up while the stylesheets are
+ * being embedded. Any number of embedders may add images at once.
+ * @author Nicholas C. Zakas
+ */
+public class MHTMLDocument {
+    
+    private String name;
+    private Writer out;
+    private MHTMLParts parts = new MHTMLParts();
+    private boolean closed = false;
+    
+    //--------------------------------------------------------------------------
+    // Constructors
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Creates a document that's written to a file.
+     * @param file The file to write.
+     * @param charset The character set to write with.
+     * @throws java.io.IOException
+     */
+    public MHTMLDocument(File file, String charset) throws IOException {
+        this(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), charset)), file.getName());
+    }
+    
+    /**
+     * Creates a document that's written to a writer.
+     * @param out Where to write the document.
+     * @param name The filename stylesheets use to reference the document.
+     * @throws java.io.IOException
+     */
+    public MHTMLDocument(Writer out, String name) throws IOException {
+        this.out = out;
+        this.name = name;
+        MHTMLParts.writeHeader(out);
+    }
+    
+    //--------------------------------------------------------------------------
+    // Getters
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Returns the filename stylesheets use to reference the document.
+     * @return The name of the document.
+     */
+    public String getName(){
+        return name;
+    }
+    
+    /**
+     * Returns the number of distinct images in the document.
+     * @return The number of images.
+     */
+    public int size(){
+        return parts.size();
+    }
+    
+    //--------------------------------------------------------------------------
+    // Add images
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Adds an image to the document, unless it's already there.
+     * @param filename The filename to name the image after.
+     * @param uriString The data URI of the image.
+     * @return The name of the part containing the image.
+     * @throws java.io.IOException If the document has been closed or can't
+     *      be written.
+     */
+    synchronized String add(String filename, String uriString) throws IOException {
+        if (closed){
+            throw new IOException("MHTML document '" + name + "' has already been closed.");
+        }
+        return parts.add(filename, uriString, out);
+    }
+    
+    /**
+     * Determines if an image is already in the document.
+     * @param uriString The data URI of the image.
+     * @return True if the image is in the document, false if not.
+     */
+    boolean contains(String uriString){
+        return parts.contains(uriString);
+    }
+    
+    /**
+     * Finishes the document. No more images can be added afterwards.
+     * @throws java.io.IOException
+     */
+    public synchronized void close() throws IOException {
+        if (!closed){
+            closed = true;
+            try {
+                MHTMLParts.writeFooter(out);
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
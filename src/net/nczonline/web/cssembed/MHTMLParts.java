@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2009 Nicholas C. Zakas. All rights reserved.
+ * http://www.nczonline.net/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.nczonline.web.cssembed;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Keeps track of the parts written to an MHTML document so that each
+ * distinct image is written only once. Parts are named after the image's
+ * filename; when two different images share a filename, the later one gets
+ * a name that includes a hash of its contents.
+ * @author Nicholas C. Zakas
+ */
+class MHTMLParts {
+    
+    //data URI -> part name
+    private HashMap<String,String> parts = new HashMap<String,String>();
+    private HashSet<String> names = new HashSet<String>();
+    
+    //--------------------------------------------------------------------------
+    // Add parts
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Adds an image to the document. If the same image was already added,
+     * nothing is written and the existing part's name is returned.
+     * @param filename The filename to name the part after.
+     * @param uriString The data URI of the image.
+     * @param out Where to write the part, if it's new.
+     * @return The name of the part containing the image.
+     * @throws java.io.IOException
+     */
+    synchronized String add(String filename, String uriString, Appendable out) throws IOException {
+        String name = parts.get(uriString);
+        if (name != null){
+            return name;
+        }
+        
+        name = filename;
+        if (names.contains(name)){
+            String hash = Integer.toHexString(uriString.hashCode());
+            name = insertSuffix(filename, "-" + hash);
+            for (int i=2; names.contains(name); i++){
+                name = insertSuffix(filename, "-" + hash + "-" + i);
+            }
+        }
+        
+        names.add(name);
+        parts.put(uriString, name);
+        
+        out.append("--");
+        out.append(CSSURLEmbedder.MHTML_SEPARATOR);
+        out.append("\nContent-Location:");
+        out.append(name);
+        out.append("\nContent-Transfer-Encoding:base64\n\n");
+        out.append(uriString, uriString.indexOf(",")+1, uriString.length());
+        out.append("\n");
+        
+        return name;
+    }
+    
+    /**
+     * Determines if an image has already been added.
+     * @param uriString The data URI of the image.
+     * @return True if the image is in the document, false if not.
+     */
+    synchronized boolean contains(String uriString){
+        return parts.containsKey(uriString);
+    }
+    
+    /**
+     * Returns the number of distinct images added.
+     * @return The number of parts.
+     */
+    synchronized int size(){
+        return parts.size();
+    }
+    
+    //--------------------------------------------------------------------------
+    // Helper methods
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Writes the start of an MHTML document, which is placed in a comment
+     * so that the document is also valid CSS.
+     * @param out Where to write the header.
+     * @throws java.io.IOException
+     */
+    static void writeHeader(Appendable out) throws IOException {
+        out.append("/*\n");
+        out.append("Content-Type: multipart/related; boundary=\"");
+        out.append(CSSURLEmbedder.MHTML_SEPARATOR);
+        out.append("\"\n\n");
+    }
+    
+    /**
+     * Writes the end of an MHTML document.
+     * @param out Where to write the footer.
+     * @throws java.io.IOException
+     */
+    static void writeFooter(Appendable out) throws IOException {
+        
+        //Add one more boundary to fix IE/Vista issue
+        out.append("\n--");
+        out.append(CSSURLEmbedder.MHTML_SEPARATOR);
+        out.append("--\n");
+        
+        //close comment
+        out.append("*/\n");
+    }
+    
+    /*
+     * Inserts a suffix before a filename's extension.
+     */
+    private static String insertSuffix(String filename, String suffix){
+        int dot = filename.lastIndexOf('.');
+        if (dot > 0){
+            return filename.substring(0, dot) + suffix + filename.substring(dot);
+        } else {
+            return filename + suffix;
+        }
+    }
+}
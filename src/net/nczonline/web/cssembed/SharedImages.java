@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2009 Nicholas C. Zakas. All rights reserved.
+ * http://www.nczonline.net/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.nczonline.web.cssembed;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Collects the data URIs written to a stylesheet so that images used many
+ * times can be stored once, in a custom property on :root, and referenced
+ * with var() everywhere else. The body of the stylesheet is written without
+ * the images; each one is inserted at its recorded position as the body is
+ * copied to the output.
+ * @author Nicholas C. Zakas
+ */
+class SharedImages {
+    
+    private static final String PROPERTY_PREFIX = "--cssembed-";
+    
+    private static final String RULE_START = ":root {\n";
+    private static final String RULE_END = "}\n";
+    
+    private int threshold;
+    
+    //each distinct image, in the order first found
+    private HashMap<String,Integer> ids = new HashMap<String,Integer>();
+    private ArrayList<String> uris = new ArrayList<String>();
+    private ArrayList<String> filenames = new ArrayList<String>();
+    private ArrayList<Integer> uses = new ArrayList<Integer>();
+    
+    //each place an image goes, in order
+    private long[] positions = new long[16];
+    private int[] images = new int[16];
+    private int count = 0;
+    
+    //custom property for each image, or null if it's written in place
+    private String[] names = null;
+    private int sharedCount = 0;
+    private long inlineLength = 0;
+    private long savedLength = 0;
+    
+    //--------------------------------------------------------------------------
+    // Constructor
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Creates a new collection.
+     * @param threshold The number of times an image must be used before 
+     *      it's shared.
+     */
+    SharedImages(int threshold){
+        this.threshold = threshold;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Collect images
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Records an image to be inserted into the body.
+     * @param position The position in the body to insert the image at.
+     * @param filename The filename of the image, used to name its property.
+     * @param uriString The data URI of the image.
+     */
+    void add(long position, String filename, String uriString){
+        Integer id = ids.get(uriString);
+        if (id == null){
+            id = Integer.valueOf(uris.size());
+            ids.put(uriString, id);
+            uris.add(uriString);
+            filenames.add(filename);
+            uses.add(Integer.valueOf(1));
+        } else {
+            uses.set(id.intValue(), Integer.valueOf(uses.get(id.intValue()).intValue() + 1));
+        }
+        
+        if (count == positions.length){
+            long[] newPositions = new long[count * 2];
+            int[] newImages = new int[count * 2];
+            System.arraycopy(positions, 0, newPositions, 0, count);
+            System.arraycopy(images, 0, newImages, 0, count);
+            positions = newPositions;
+            images = newImages;
+        }
+        
+        positions[count] = position;
+        images[count++] = id.intValue();
+        inlineLength += CSSURLEmbedder.quoteURL(uriString).length() + 5;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Write output
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Copies the body to the output, inserting each image either in place
+     * or as a reference to its custom property, and then writes the :root
+     * rule defining the custom properties. An image is only shared when it's
+     * used at least the threshold number of times and sharing makes the
+     * output smaller.
+     * @param body The body, either a StringWriter or a SpillBuffer.
+     * @param out Where to write the output.
+     * @throws java.io.IOException
+     */
+    void writeTo(Writer body, Writer out) throws IOException {
+        chooseShared();
+        
+        Inserter inserter = new Inserter(out);
+        if (body instanceof SpillBuffer){
+            ((SpillBuffer) body).writeTo(inserter);
+        } else {
+            inserter.write(((StringWriter) body).toString());
+        }
+        inserter.finish();
+        
+        if (sharedCount > 0){
+            StringBuilder rule = new StringBuilder();
+            if (inserter.last != '\n'){
+                rule.append('\n');
+            }
+            
+            rule.append(RULE_START);
+            for (int i=0; i < names.length; i++){
+                if (names[i] != null){
+                    rule.append("  ").append(names[i]).append(": url(").append(CSSURLEmbedder.quoteURL(uris.get(i))).append(");\n");
+                }
+            }
+            rule.append(RULE_END);
+            
+            out.append(rule);
+            inserter.inserted += rule.length();
+        }
+        
+        savedLength = inlineLength - inserter.inserted;
+    }
+    
+    /**
+     * Returns the number of distinct images stored in custom properties by
+     * the last call to writeTo().
+     * @return The number of shared images.
+     */
+    int getSharedCount(){
+        return sharedCount;
+    }
+    
+    /**
+     * Returns the number of characters saved by sharing images, compared to
+     * writing every image in place.
+     * @return The number of characters saved.
+     */
+    long getSavedLength(){
+        return savedLength;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Helper methods
+    //--------------------------------------------------------------------------    
+    
+    /*
+     * Decides which images to share and names their custom properties.
+     */
+    private void chooseShared(){
+        HashSet<String> used = new HashSet<String>();
+        long saved = -(RULE_START.length() + RULE_END.length() + 1);
+        
+        names = new String[uris.size()];
+        sharedCount = 0;
+        
+        for (int i=0; i < names.length; i++){
+            int n = uses.get(i).intValue();
+            if (threshold > 0 && n >= threshold){
+                String name = getPropertyName(filenames.get(i), used);
+                long length = CSSURLEmbedder.quoteURL(uris.get(i)).length();
+                
+                //n url(data:...) against n var(--name), plus the definition
+                long imageSaved = n * (length + 5) - n * (name.length() + 5) - (name.length() + length + 11);
+                if (imageSaved > 0){
+                    names[i] = name;
+                    used.add(name);
+                    saved += imageSaved;
+                    sharedCount++;
+                }
+            }
+        }
+        
+        //not worth adding the rule
+        if (sharedCount > 0 && saved <= 0){
+            names = new String[uris.size()];
+            sharedCount = 0;
+        }
+    }
+    
+    /*
+     * Creates a custom property name from a filename, without its extension.
+     */
+    private static String getPropertyName(String filename, HashSet<String> used){
+        int dot = filename.lastIndexOf('.');
+        if (dot > 0){
+            filename = filename.substring(0, dot);
+        }
+        
+        StringBuilder builder = new StringBuilder(PROPERTY_PREFIX);
+        for (int i=0; i < filename.length(); i++){
+            char c = filename.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_'){
+                builder.append(c);
+            } else {
+                builder.append('-');
+            }
+        }
+        
+        String name = builder.toString();
+        for (int i=2; used.contains(name); i++){
+            name = builder.toString() + "-" + i;
+        }
+        return name;
+    }
+    
+    /*
+     * Writer that inserts the images at their positions as the body passes
+     * through it.
+     */
+    private class Inserter extends FilterWriter {
+        
+        private long position = 0;
+        private int next = 0;
+        private long inserted = 0;
+        private char last = '\n';
+        
+        Inserter(Writer out){
+            super(out);
+        }
+        
+        public void write(int c) throws IOException {
+            write(new char[] { (char) c }, 0, 1);
+        }
+        
+        public void write(String str, int off, int len) throws IOException {
+            write(str.toCharArray(), off, len);
+        }
+        
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            if (len == 0){
+                return;
+            }
+            
+            while (next < count && positions[next] <= position + len){
+                int n = (int) (positions[next] - position);
+                out.write(cbuf, off, n);
+                off += n;
+                len -= n;
+                position += n;
+                insert(images[next++]);
+            }
+            
+            if (len > 0){
+                out.write(cbuf, off, len);
+                position += len;
+                last = cbuf[off + len - 1];
+            }
+        }
+        
+        /*
+         * Inserts any images at the very end of the body.
+         */
+        void finish() throws IOException {
+            while (next < count){
+                insert(images[next++]);
+            }
+        }
+        
+        private void insert(int image) throws IOException {
+            String text;
+            if (names[image] != null){
+                text = "var(" + names[image] + ")";
+            } else {
+                text = "url(" + CSSURLEmbedder.quoteURL(uris.get(image)) + ")";
+            }
+            out.write(text);
+            inserted += text.length();
+            last = ')';
+        }
+    }
+}
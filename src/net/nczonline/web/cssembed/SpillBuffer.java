@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2009 Nicholas C. Zakas. All rights reserved.
+ * http://www.nczonline.net/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.nczonline.web.cssembed;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+
+/**
+ * Writer that keeps its contents in memory until a threshold is reached and
+ * then spills everything to a temporary file. Used in streaming mode for
+ * the parts of the output that have to be held back until the end, such as
+ * the MHTML header.
+ * @author Nicholas C. Zakas
+ */
+class SpillBuffer extends Writer {
+    
+    private static final String SPILL_CHARSET = "UTF-8";
+    
+    private int threshold;
+    private StringBuilder memory = new StringBuilder();
+    private File spillFile = null;
+    private Writer spill = null;
+    private long length = 0;
+    
+    //--------------------------------------------------------------------------
+    // Constructors
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Creates a new buffer.
+     * @param threshold The number of characters to keep in memory before
+     *      spilling to disk.
+     */
+    public SpillBuffer(int threshold){
+        this.threshold = threshold;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Writer methods
+    //--------------------------------------------------------------------------    
+    
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        if (spill == null && memory.length() + len > threshold){
+            spillFile = File.createTempFile("cssembed", ".tmp");
+            spillFile.deleteOnExit();
+            spill = new OutputStreamWriter(new FileOutputStream(spillFile), SPILL_CHARSET);
+            spill.append(memory);
+            memory = null;
+        }
+        
+        if (spill != null){
+            spill.write(cbuf, off, len);
+        } else {
+            memory.append(cbuf, off, len);
+        }
+        
+        length += len;
+    }
+    
+    public void write(String str, int off, int len) throws IOException {
+        if (spill == null && memory.length() + len <= threshold){
+            memory.append(str, off, off + len);
+            length += len;
+        } else {
+            super.write(str, off, len);
+        }
+    }
+
+    public void flush() throws IOException {
+        if (spill != null){
+            spill.flush();
+        }
+    }
+
+    /**
+     * Discards the contents of the buffer, including any temporary file.
+     * @throws java.io.IOException
+     */
+    public void close() throws IOException {
+        if (spill != null){
+            spill.close();
+            spill = null;
+        }
+        
+        if (spillFile != null){
+            spillFile.delete();
+            spillFile = null;
+        }
+        
+        memory = null;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Buffer access
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Returns the number of characters written to the buffer.
+     * @return The number of characters written.
+     */
+    public long length(){
+        return length;
+    }
+    
+    /**
+     * Determines if the buffer has spilled to disk.
+     * @return True if a temporary file is in use, false if not.
+     */
+    public boolean isSpilled(){
+        return spillFile != null;
+    }
+    
+    /**
+     * Copies the contents of the buffer to the given writer.
+     * @param out The writer to output to.
+     * @throws java.io.IOException
+     */
+    public void writeTo(Writer out) throws IOException {
+        if (spill == null){
+            out.append(memory);
+        } else {
+            spill.flush();
+            
+            Reader in = new InputStreamReader(new FileInputStream(spillFile), SPILL_CHARSET);
+            char[] buffer = new char[8192];
+            int count;
+            
+            try {
+                while ((count = in.read(buffer)) != -1){
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+}
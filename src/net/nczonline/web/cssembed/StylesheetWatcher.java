@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2009 Nicholas C. Zakas. All rights reserved.
+ * http://www.nczonline.net/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.nczonline.web.cssembed;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches stylesheets and the images they embed, and rebuilds the outputs
+ * affected by each change. A reverse index from every file to the
+ * stylesheets that depend on it is kept up to date as stylesheets are
+ * rebuilt, so only the outputs that use a changed image are regenerated.
+ * @author Nicholas C. Zakas
+ */
+class StylesheetWatcher {
+    
+    /**
+     * How long to wait for more changes before rebuilding, in milliseconds.
+     * Editors often write a file several times when saving.
+     */
+    static final long DEBOUNCE_DELAY = 25;
+    
+    private FileEmbedder fileEmbedder;
+    private List<File> inputs;
+    private List<File> outputs;
+    private boolean verbose;
+    private HashSet<File> outputFiles = new HashSet<File>();
+    
+    //file -> indexes of the stylesheets that depend on it, and the reverse
+    private HashMap<File,Set<Integer>> dependents = new HashMap<File,Set<Integer>>();
+    private HashMap<Integer,List<File>> dependencies = new HashMap<Integer,List<File>>();
+    
+    private WatchService watchService;
+    private HashMap<WatchKey,Path> watchedDirs = new HashMap<WatchKey,Path>();
+    private HashSet<Path> registeredDirs = new HashSet<Path>();
+    
+    //--------------------------------------------------------------------------
+    // Constructor
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Creates a new watcher.
+     * @param fileEmbedder The embedder to rebuild outputs with.
+     * @param inputs The stylesheets to watch.
+     * @param outputs The output file for each stylesheet.
+     * @param verbose True to output informational messages.
+     * @throws java.io.IOException When an output is also an input.
+     */
+    StylesheetWatcher(FileEmbedder fileEmbedder, List<File> inputs, List<File> outputs, boolean verbose) throws IOException {
+        this.fileEmbedder = fileEmbedder;
+        this.inputs = inputs;
+        this.outputs = outputs;
+        this.verbose = verbose;
+        
+        for (int i = 0; i < outputs.size(); i++){
+            File output = outputs.get(i).getCanonicalFile();
+            
+            //rewriting the input would trigger another rebuild, forever
+            if (output.equals(inputs.get(i).getCanonicalFile())){
+                throw new IOException("Can't watch '" + inputs.get(i) + "' when it's also the output file.");
+            }
+            outputFiles.add(output);
+        }
+        
+        watchService = FileSystems.getDefault().newWatchService();
+    }
+    
+    //--------------------------------------------------------------------------
+    // Watch for changes
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Builds every output and then rebuilds outputs as their files change.
+     * Doesn't return until the thread is interrupted.
+     * @throws java.io.IOException
+     */
+    void run() throws IOException {
+        try {
+            buildAll();
+            
+            if (verbose){
+                System.err.println("[INFO] Watching " + registeredDirs.size() + " directories for changes.");
+            }
+            
+            while (true){
+                Set<Integer> affected = getAffected(waitForChanges());
+                if (!affected.isEmpty()){
+                    rebuild(affected);
+                }
+            }
+        } catch (InterruptedException e){
+            //stopped
+        } finally {
+            close();
+        }
+    }
+    
+    /**
+     * Builds every output and indexes the files each one depends on.
+     * @throws java.io.IOException
+     */
+    void buildAll() throws IOException {
+        List<Integer> all = new ArrayList<Integer>();
+        for (int i = 0; i < inputs.size(); i++){
+            all.add(Integer.valueOf(i));
+        }
+        rebuild(all);
+    }
+    
+    void close() throws IOException {
+        watchService.close();
+    }
+    
+    /**
+     * Returns the stylesheets affected by changes to the given files.
+     * @param changed The files that have changed.
+     * @return The indexes of the affected stylesheets, in order.
+     * @throws java.io.IOException
+     */
+    Set<Integer> getAffected(Collection<File> changed) throws IOException {
+        Set<Integer> affected = new TreeSet<Integer>();
+        
+        for (File file : changed){
+            Set<Integer> indexes = dependents.get(file.getCanonicalFile());
+            if (indexes != null){
+                affected.addAll(indexes);
+            }
+        }
+        
+        return affected;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Helper methods
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Rebuilds the given outputs in order, logging how long it took.
+     */
+    private void rebuild(Collection<Integer> indexes) throws IOException {
+        long start = System.nanoTime();
+        
+        for (Integer index : indexes){
+            int i = index.intValue();
+            File input = inputs.get(i);
+            File output = outputs.get(i);
+            
+            try {
+                CSSURLEmbedder embedder = fileEmbedder.embed(input, output);
+                System.err.println("[INFO] " + input + " -> " + output + " (" + embedder.getConversions() + " images)");
+                
+                List<File> files = new ArrayList<File>(embedder.getDependencies());
+                files.add(input);
+                index(index, files);
+            } catch (IOException e){
+                System.err.println("[ERROR] " + input + ": " + e.getMessage());
+                
+                //keep the old dependencies, but always rebuild when the input changes
+                if (!dependencies.containsKey(index)){
+                    index(index, Collections.singletonList(input));
+                }
+            }
+        }
+        
+        System.err.println("[INFO] Rebuilt " + indexes.size() + " stylesheets in " + 
+                ((System.nanoTime() - start) / 1000000) + " ms.");
+    }
+    
+    /**
+     * Replaces the files a stylesheet depends on in the reverse index, and
+     * watches the directories they're in.
+     */
+    private void index(Integer index, List<File> files) throws IOException {
+        List<File> old = dependencies.get(index);
+        if (old != null){
+            for (File file : old){
+                Set<Integer> indexes = dependents.get(file);
+                indexes.remove(index);
+                if (indexes.isEmpty()){
+                    dependents.remove(file);
+                }
+            }
+        }
+        
+        List<File> canonical = new ArrayList<File>();
+        for (File file : files){
+            file = file.getCanonicalFile();
+            canonical.add(file);
+            
+            Set<Integer> indexes = dependents.get(file);
+            if (indexes == null){
+                indexes = new HashSet<Integer>();
+                dependents.put(file, indexes);
+            }
+            indexes.add(index);
+            
+            register(file.getParentFile());
+        }
+        dependencies.put(index, canonical);
+    }
+    
+    private void register(File dir) throws IOException {
+        if (dir == null || !dir.isDirectory()){
+            return;
+        }
+        
+        Path path = dir.toPath();
+        if (registeredDirs.add(path)){
+            WatchKey key = path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, 
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            watchedDirs.put(key, path);
+        }
+    }
+    
+    /**
+     * Waits for files to change, then keeps collecting changes until none
+     * have happened for the debounce delay.
+     * @return The files that changed, not including outputs.
+     */
+    private Set<File> waitForChanges() throws IOException, InterruptedException {
+        Set<File> changed = new HashSet<File>();
+        WatchKey key = watchService.take();
+        
+        while (key != null){
+            Path dir = watchedDirs.get(key);
+            
+            for (WatchEvent<?> event : key.pollEvents()){
+                
+                //events were lost, so assume everything changed
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW){
+                    changed.addAll(dependents.keySet());
+                } else if (dir != null){
+                    File file = dir.resolve((Path) event.context()).toFile().getCanonicalFile();
+                    if (!outputFiles.contains(file)){
+                        changed.add(file);
+                    }
+                }
+            }
+            
+            if (!key.reset()){
+                watchedDirs.remove(key);
+                registeredDirs.remove(dir);
+            }
+            
+            key = watchService.poll(DEBOUNCE_DELAY, TimeUnit.MILLISECONDS);
+        }
+        
+        if (verbose && !changed.isEmpty()){
+            System.err.println("[INFO] Changed: " + changed);
+        }
+        
+        return changed;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2009 Nicholas C. Zakas. All rights reserved.
+ * http://www.nczonline.net/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.nczonline.web.datauri;
+
+/**
+ * A way of Base64-encoding bytes. Data URIs are encoded in chunks of a few
+ * KB through whichever backend is fastest on the running JVM; see 
+ * Base64Backends. Implementations must be safe to use from several threads
+ * at once.
+ * @author Nicholas C. Zakas
+ */
+public interface Base64Backend {
+    
+    /**
+     * Returns a short name for the backend, used to pick it by name.
+     * @return The name.
+     */
+    String getName();
+    
+    /**
+     * Encodes part of a byte array. If the number of bytes isn't a multiple
+     * of 3, the output is padded, so only the last part of a larger input
+     * may have such a length.
+     * @param source The bytes to encode.
+     * @param off The first byte to encode.
+     * @param len The number of bytes to encode.
+     * @param chars Where to write the encoded characters, which must have
+     *      room for (len + 2) / 3 * 4 of them.
+     * @param charOff The position to write the first character at.
+     * @return The number of characters written.
+     */
+    int encode(byte[] source, int off, int len, char[] chars, int charOff);
+}
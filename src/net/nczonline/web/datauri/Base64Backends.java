@@ -0,0 +1,411 @@
+/*
+ * Copyright (c) 2009 Nicholas C. Zakas. All rights reserved.
+ * http://www.nczonline.net/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.nczonline.web.datauri;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The Base64 backends that come with the library, and the choice of the
+ * fastest one. The choice is made by timing the scalar and wide backends on
+ * a sample for a few milliseconds, unless the cssembed.base64 system 
+ * property names one. The JDK backend is only used when named, since it
+ * copies each chunk and calls through reflection. Every backend produces
+ * exactly the same output.
+ * @author Nicholas C. Zakas
+ */
+public final class Base64Backends {
+    
+    /**
+     * System property naming the backend to use instead of timing them.
+     */
+    public static final String PROPERTY = "cssembed.base64";
+    
+    private static final char[] ALPHABET = 
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    
+    //a multiple of 3, so that only a deliberately odd sample is padded
+    private static final int SAMPLE_SIZE = 12288;
+    
+    //time spent on each backend to let the JIT compile it, then to time it
+    private static final long WARMUP_NANOS = 3000000;
+    private static final long MEASURE_NANOS = 1000000;
+    
+    //the best of a few short timings is least affected by pauses
+    private static final int MEASUREMENTS = 3;
+    
+    private static final Base64Backend SCALAR = new ScalarBackend();
+    private static final Base64Backend WIDE = new WideBackend();
+    private static final Base64Backend JDK = JdkBackend.create();
+    
+    private Base64Backends(){
+    }
+    
+    //--------------------------------------------------------------------------
+    // Backends
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Returns the backend that encodes each group of 3 bytes in turn.
+     * @return The backend.
+     */
+    public static Base64Backend scalar(){
+        return SCALAR;
+    }
+    
+    /**
+     * Returns the backend that encodes 12 bytes at a time, packing each 6
+     * bytes into a long and looking up 2 characters for every 12 bits.
+     * @return The backend.
+     */
+    public static Base64Backend wide(){
+        return WIDE;
+    }
+    
+    /**
+     * Returns the backend that uses java.util.Base64, which newer JVMs 
+     * compile to vector instructions. It's never chosen by timing, only by
+     * naming it in the cssembed.base64 system property.
+     * @return The backend, or null on JVMs before Java 8.
+     */
+    public static Base64Backend jdk(){
+        return JDK;
+    }
+    
+    /**
+     * Returns every backend that works on this JVM.
+     * @return The backends.
+     */
+    public static List<Base64Backend> getAvailable(){
+        List<Base64Backend> backends = new ArrayList<Base64Backend>();
+        backends.add(SCALAR);
+        backends.add(WIDE);
+        if (JDK != null){
+            backends.add(JDK);
+        }
+        return backends;
+    }
+    
+    /**
+     * Returns the available backend with the given name.
+     * @param name The name of the backend.
+     * @return The backend, or null if there's none by that name.
+     */
+    public static Base64Backend forName(String name){
+        for (Base64Backend backend : getAvailable()){
+            if (backend.getName().equalsIgnoreCase(name)){
+                return backend;
+            }
+        }
+        return null;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Choose a backend
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Chooses the backend to use: the one named by the cssembed.base64
+     * system property, or else the faster of the scalar and wide backends
+     * at encoding a sample. A backend whose output doesn't match the scalar
+     * one is never chosen.
+     * @return The backend.
+     */
+    public static Base64Backend select(){
+        String name = System.getProperty(PROPERTY);
+        if (name != null){
+            Base64Backend backend = forName(name);
+            if (backend != null){
+                return backend;
+            }
+            System.err.println("[WARNING] Unknown Base64 backend '" + name + "', choosing the fastest.");
+        }
+        
+        byte[] sample = new byte[SAMPLE_SIZE];
+        for (int i=0; i < sample.length; i++){
+            sample[i] = (byte) (i * 31 + (i >>> 7));
+        }
+        char[] chars = new char[SAMPLE_SIZE / 3 * 4];
+        char[] expected = new char[chars.length];
+        SCALAR.encode(sample, 0, sample.length, expected, 0);
+        
+        Base64Backend best = SCALAR;
+        double bestRate = 0;
+        
+        //the JDK backend allocates for every chunk, which a short timing doesn't show
+        Base64Backend[] timed = { SCALAR, WIDE };
+        
+        for (Base64Backend backend : timed){
+            if (!isCorrect(backend, sample, expected, chars)){
+                continue;
+            }
+            
+            double rate = measure(backend, sample, chars);
+            if (rate > bestRate){
+                best = backend;
+                bestRate = rate;
+            }
+        }
+        
+        return best;
+    }
+    
+    /*
+     * Checks the whole sample and a padded part of it against the scalar
+     * backend, which the other backends must match exactly.
+     */
+    private static boolean isCorrect(Base64Backend backend, byte[] sample, char[] expected, char[] chars){
+        try {
+            int count = backend.encode(sample, 0, sample.length, chars, 0);
+            if (count != expected.length || !Arrays.equals(chars, expected)){
+                return false;
+            }
+            
+            char[] padded = new char[8];
+            char[] expectedPadded = new char[8];
+            for (int len = 1; len <= 5; len++){
+                Arrays.fill(padded, '\0');
+                Arrays.fill(expectedPadded, '\0');
+                if (backend.encode(sample, 7, len, padded, 0) != SCALAR.encode(sample, 7, len, expectedPadded, 0) || 
+                        !Arrays.equals(padded, expectedPadded)){
+                    return false;
+                }
+            }
+            return true;
+        } catch (RuntimeException e){
+            return false;
+        }
+    }
+    
+    /*
+     * Returns the number of samples encoded per second once the backend has
+     * had a chance to be compiled.
+     */
+    private static double measure(Base64Backend backend, byte[] sample, char[] chars){
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < WARMUP_NANOS){
+            backend.encode(sample, 0, sample.length, chars, 0);
+        }
+        
+        double best = 0;
+        for (int i=0; i < MEASUREMENTS; i++){
+            int count = 0;
+            long elapsed;
+            start = System.nanoTime();
+            do {
+                backend.encode(sample, 0, sample.length, chars, 0);
+                count++;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < MEASURE_NANOS);
+            
+            best = Math.max(best, count * 1e9 / elapsed);
+        }
+        return best;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Scalar
+    //--------------------------------------------------------------------------    
+    
+    private static class ScalarBackend implements Base64Backend {
+        
+        public String getName(){
+            return "scalar";
+        }
+        
+        public int encode(byte[] source, int off, int len, char[] chars, int charOff){
+            int end = off + len;
+            int count = charOff;
+
+            //encode whole groups of three bytes
+            int i = off;
+            for (; i + 2 < end; i += 3){
+                int bits = ((source[i] & 0xff) << 16) | ((source[i + 1] & 0xff) << 8) | (source[i + 2] & 0xff);
+                chars[count++] = ALPHABET[bits >>> 18];
+                chars[count++] = ALPHABET[(bits >>> 12) & 0x3f];
+                chars[count++] = ALPHABET[(bits >>> 6) & 0x3f];
+                chars[count++] = ALPHABET[bits & 0x3f];
+            }
+            
+            return pad(source, i, end, chars, count) - charOff;
+        }
+    }
+    
+    /*
+     * Encodes the last one or two bytes, if there are any, with padding.
+     * Returns the position after the last character.
+     */
+    private static int pad(byte[] source, int i, int end, char[] chars, int count){
+        if (i < end){
+            int bits = (source[i] & 0xff) << 16;
+            if (i + 1 < end){
+                bits |= (source[i + 1] & 0xff) << 8;
+            }
+            
+            chars[count++] = ALPHABET[bits >>> 18];
+            chars[count++] = ALPHABET[(bits >>> 12) & 0x3f];
+            chars[count++] = (i + 1 < end) ? ALPHABET[(bits >>> 6) & 0x3f] : '=';
+            chars[count++] = '=';
+        }
+        return count;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Wide
+    //--------------------------------------------------------------------------    
+    
+    private static class WideBackend implements Base64Backend {
+        
+        //the two characters for each 12-bit value, side by side
+        private static final char[] PAIRS = new char[4096 * 2];
+        static {
+            for (int i=0; i < 4096; i++){
+                PAIRS[i * 2] = ALPHABET[i >>> 6];
+                PAIRS[i * 2 + 1] = ALPHABET[i & 0x3f];
+            }
+        }
+        
+        public String getName(){
+            return "wide";
+        }
+        
+        public int encode(byte[] source, int off, int len, char[] chars, int charOff){
+            int end = off + len;
+            int count = charOff;
+            int i = off;
+            
+            //12 bytes to 16 characters, as two longs of 48 bits each
+            for (; i + 11 < end; i += 12){
+                long a = ((long) (source[i] & 0xff) << 40) | ((long) (source[i + 1] & 0xff) << 32) |
+                        ((long) (source[i + 2] & 0xff) << 24) | ((source[i + 3] & 0xff) << 16) |
+                        ((source[i + 4] & 0xff) << 8) | (source[i + 5] & 0xff);
+                long b = ((long) (source[i + 6] & 0xff) << 40) | ((long) (source[i + 7] & 0xff) << 32) |
+                        ((long) (source[i + 8] & 0xff) << 24) | ((source[i + 9] & 0xff) << 16) |
+                        ((source[i + 10] & 0xff) << 8) | (source[i + 11] & 0xff);
+                
+                //each index is already doubled, to point at a pair
+                int p = (int) (a >>> 35) & 0x1ffe;
+                chars[count] = PAIRS[p];
+                chars[count + 1] = PAIRS[p + 1];
+                p = (int) (a >>> 23) & 0x1ffe;
+                chars[count + 2] = PAIRS[p];
+                chars[count + 3] = PAIRS[p + 1];
+                p = (int) (a >>> 11) & 0x1ffe;
+                chars[count + 4] = PAIRS[p];
+                chars[count + 5] = PAIRS[p + 1];
+                p = (int) (a << 1) & 0x1ffe;
+                chars[count + 6] = PAIRS[p];
+                chars[count + 7] = PAIRS[p + 1];
+                p = (int) (b >>> 35) & 0x1ffe;
+                chars[count + 8] = PAIRS[p];
+                chars[count + 9] = PAIRS[p + 1];
+                p = (int) (b >>> 23) & 0x1ffe;
+                chars[count + 10] = PAIRS[p];
+                chars[count + 11] = PAIRS[p + 1];
+                p = (int) (b >>> 11) & 0x1ffe;
+                chars[count + 12] = PAIRS[p];
+                chars[count + 13] = PAIRS[p + 1];
+                p = (int) (b << 1) & 0x1ffe;
+                chars[count + 14] = PAIRS[p];
+                chars[count + 15] = PAIRS[p + 1];
+                count += 16;
+            }
+            
+            //the rest, 3 bytes at a time
+            for (; i + 2 < end; i += 3){
+                int bits = ((source[i] & 0xff) << 16) | ((source[i + 1] & 0xff) << 8) | (source[i + 2] & 0xff);
+                int p = (bits >>> 11) & 0x1ffe;
+                chars[count] = PAIRS[p];
+                chars[count + 1] = PAIRS[p + 1];
+                p = (bits << 1) & 0x1ffe;
+                chars[count + 2] = PAIRS[p];
+                chars[count + 3] = PAIRS[p + 1];
+                count += 4;
+            }
+            
+            return pad(source, i, end, chars, count) - charOff;
+        }
+    }
+    
+    //--------------------------------------------------------------------------
+    // JDK
+    //--------------------------------------------------------------------------    
+    
+    private static class JdkBackend implements Base64Backend {
+        
+        private final Object encoder;
+        private final Method encode;
+        
+        //the JDK writes to a byte array, which is kept for each thread
+        private final ThreadLocal<byte[]> outputs = new ThreadLocal<byte[]>();
+        
+        private JdkBackend(Object encoder, Method encode){
+            this.encoder = encoder;
+            this.encode = encode;
+        }
+        
+        /*
+         * java.util.Base64 is only there from Java 8, so it's found by name.
+         */
+        static JdkBackend create(){
+            try {
+                Class<?> base64 = Class.forName("java.util.Base64");
+                Object encoder = base64.getMethod("getEncoder").invoke(null);
+                Method encode = encoder.getClass().getMethod("encode", byte[].class, byte[].class);
+                return new JdkBackend(encoder, encode);
+            } catch (Exception e){
+                return null;
+            }
+        }
+        
+        public String getName(){
+            return "jdk";
+        }
+        
+        public int encode(byte[] source, int off, int len, char[] chars, int charOff){
+            
+            //the JDK only encodes whole arrays
+            byte[] input = (off == 0 && len == source.length) ? source : Arrays.copyOfRange(source, off, off + len);
+            int count = (len + 2) / 3 * 4;
+            byte[] output = outputs.get();
+            if (output == null || output.length < count){
+                output = new byte[count];
+                outputs.set(output);
+            }
+            
+            try {
+                encode.invoke(encoder, input, output);
+            } catch (Exception e){
+                throw new IllegalStateException("Couldn't encode with java.util.Base64.", e);
+            }
+            
+            for (int i=0; i < count; i++){
+                chars[charOff + i] = (char) output[i];
+            }
+            return count;
+        }
+    }
+}
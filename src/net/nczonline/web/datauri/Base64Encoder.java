@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2009 Nicholas C. Zakas. All rights reserved.
+ * http://www.nczonline.net/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.nczonline.web.datauri;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+/**
+ * Base64 encoder that writes straight into a Writer or other Appendable
+ * through a small buffer, instead of building the whole encoded string
+ * first. Input can come from a byte array or be read from a stream. The
+ * encoding itself is done by a Base64Backend, which is the fastest one
+ * available unless another has been set.
+ * @author Nicholas C. Zakas
+ */
+class Base64Encoder {
+    
+    //must be a multiple of 4 characters and so of 3 bytes
+    private static final int CHAR_BUFFER_SIZE = 4096;
+    private static final int BYTE_BUFFER_SIZE = CHAR_BUFFER_SIZE / 4 * 3;
+    
+    //chosen the first time anything is encoded
+    private static volatile Base64Backend backend = null;
+    
+    private Base64Encoder(){
+    }
+    
+    //--------------------------------------------------------------------------
+    // Get/Set backend
+    //--------------------------------------------------------------------------    
+    
+    static Base64Backend getBackend(){
+        Base64Backend current = backend;
+        if (current == null){
+            synchronized (Base64Encoder.class){
+                if (backend == null){
+                    backend = Base64Backends.select();
+                }
+                current = backend;
+            }
+        }
+        return current;
+    }
+    
+    static void setBackend(Base64Backend newBackend){
+        backend = newBackend;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Encode
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Returns the number of characters needed to encode the given number of
+     * bytes, including padding.
+     * @param byteCount The number of bytes to encode.
+     * @return The length of the encoded output.
+     */
+    static long encodedLength(long byteCount){
+        return (byteCount + 2) / 3 * 4;
+    }
+    
+    /**
+     * Encodes part of a byte array.
+     * @param source The bytes to encode.
+     * @param off The first byte to encode.
+     * @param len The number of bytes to encode.
+     * @param out Where to write the encoded characters.
+     * @throws java.io.IOException
+     */
+    static void encode(byte[] source, int off, int len, Appendable out) throws IOException {
+        encode(source, off, len, out, getBackend());
+    }
+    
+    /**
+     * Encodes part of a byte array using the given backend.
+     * @param source The bytes to encode.
+     * @param off The first byte to encode.
+     * @param len The number of bytes to encode.
+     * @param out Where to write the encoded characters.
+     * @param backend The backend to encode with.
+     * @throws java.io.IOException
+     */
+    static void encode(byte[] source, int off, int len, Appendable out, Base64Backend backend) throws IOException {
+        encode(source, off, len, new char[(int) Math.min(CHAR_BUFFER_SIZE, encodedLength(len))], out, backend);
+    }
+    
+    /**
+     * Encodes the remaining bytes in a buffer, which may be a direct or
+     * memory-mapped buffer. The buffer's position is moved to its limit.
+     * @param source The bytes to encode.
+     * @param out Where to write the encoded characters.
+     * @throws java.io.IOException
+     */
+    static void encode(ByteBuffer source, Appendable out) throws IOException {
+        encode(source, out, getBackend());
+    }
+    
+    /**
+     * Encodes the remaining bytes in a buffer using the given backend. The
+     * buffer's position is moved to its limit.
+     * @param source The bytes to encode.
+     * @param out Where to write the encoded characters.
+     * @param backend The backend to encode with.
+     * @throws java.io.IOException
+     */
+    static void encode(ByteBuffer source, Appendable out, Base64Backend backend) throws IOException {
+        if (source.hasArray()){
+            encode(source.array(), source.arrayOffset() + source.position(), source.remaining(), out, backend);
+            source.position(source.limit());
+            return;
+        }
+        
+        //copy out a few KB at a time, each a multiple of 3 bytes until the last
+        byte[] bytes = new byte[Math.min(BYTE_BUFFER_SIZE, source.remaining())];
+        char[] chars = new char[CHAR_BUFFER_SIZE];
+        
+        while (source.hasRemaining()){
+            int length = Math.min(bytes.length, source.remaining());
+            source.get(bytes, 0, length);
+            encode(bytes, 0, length, chars, out, backend);
+        }
+    }
+    
+    /**
+     * Encodes part of a byte array using the given buffer, whose length must
+     * be a multiple of 4. Each time round, as many bytes as fill the buffer
+     * are encoded, so only the last part can need padding.
+     */
+    private static void encode(byte[] source, int off, int len, char[] chars, Appendable out, Base64Backend backend) throws IOException {
+        int end = off + len;
+        int chunk = chars.length / 4 * 3;
+        
+        for (int i = off; i < end; i += chunk){
+            int count = backend.encode(source, i, Math.min(chunk, end - i), chars, 0);
+            write(chars, count, out);
+        }
+    }
+    
+    /**
+     * Encodes everything that can be read from a stream. The stream isn't
+     * closed.
+     * @param in The stream to read.
+     * @param out Where to write the encoded characters.
+     * @return The number of bytes read.
+     * @throws java.io.IOException
+     */
+    static long encode(InputStream in, Appendable out) throws IOException {
+        Base64Backend current = getBackend();
+        byte[] bytes = new byte[BYTE_BUFFER_SIZE];
+        char[] chars = new char[CHAR_BUFFER_SIZE];
+        long total = 0;
+        int length = 0;
+        int read;
+        
+        while ((read = in.read(bytes, length, bytes.length - length)) != -1){
+            length += read;
+            total += read;
+            
+            //only full buffers are encoded, so padding only comes at the end
+            if (length == bytes.length){
+                encode(bytes, 0, length, chars, out, current);
+                length = 0;
+            }
+        }
+        
+        if (length > 0){
+            encode(bytes, 0, length, chars, out, current);
+        }
+        
+        return total;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Helper methods
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Writes characters without copying them where the destination allows.
+     */
+    private static void write(char[] chars, int count, Appendable out) throws IOException {
+        if (out instanceof Writer){
+            ((Writer) out).write(chars, 0, count);
+        } else if (out instanceof StringBuilder){
+            ((StringBuilder) out).append(chars, 0, count);
+        } else {
+            out.append(CharBuffer.wrap(chars, 0, count));
+        }
+    }
+}
@@ -104,13 +104,13 @@ public class DataURI {
             }            
             
             //set verbose option
-            DataURIGenerator.setVerbose(verbose);
+            DataURIEncoder encoder = DataURIGenerator.getDefault().toBuilder().setVerbose(verbose).build();
             
             //determine if the filename is a local file or a URL
-            if (inputFilename.startsWith("http://")){
-                DataURIGenerator.generate(new URL(inputFilename), out, mimeType);
+            if (DataURIGenerator.isRemote(inputFilename)){
+                encoder.generate(new URL(inputFilename), out, mimeType);
             } else {
-                DataURIGenerator.generate(new File(inputFilename), out, mimeType);
+                encoder.generate(new File(inputFilename), out, mimeType);
             }          
             
         } catch (CmdLineParser.OptionException e) {
@@ -0,0 +1,478 @@
+/*
+ * Copyright (c) 2009 Nicholas C. Zakas. All rights reserved.
+ * http://www.nczonline.net/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.nczonline.web.datauri;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of generated data URIs for local files. Files are looked up by path,
+ * size and last modified time, so an unchanged file is only read and encoded
+ * once. Files with identical contents share a single data URI. The cache is
+ * limited to a maximum number of bytes and evicts the least recently used
+ * data URIs when it grows past that. All methods are safe to call from
+ * multiple threads.
+ * @author Nicholas C. Zakas
+ */
+public class DataURICache {
+    
+    public static final long DEFAULT_MAX_SIZE = 64L * 1024 * 1024;
+    
+    //maximum number of file entries, which are small and only point at data URIs
+    private static final int MAX_FILES = 16384;
+    
+    //added to the keys of optimized data URIs
+    private static final String OPTIMIZED_SUFFIX = "-optimized";
+    
+    //added to the keys of minified SVG data URIs
+    private static final String MINIFIED_SUFFIX = "-minified";
+    
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    
+    private static DataURICache sharedCache = null;
+    
+    private long maxSize;
+    private long size = 0;
+    
+    private long hits = 0;
+    private long contentHits = 0;
+    private long diskHits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    
+    //information about each file that has been seen, keyed by path
+    private LinkedHashMap<String,FileEntry> files = new LinkedHashMap<String,FileEntry>(16, 0.75f, true){
+        protected boolean removeEldestEntry(Map.Entry<String,FileEntry> eldest){
+            return size() > MAX_FILES;
+        }
+    };
+    
+    //data URIs keyed by MIME type and content hash, in least recently used order
+    private LinkedHashMap<String,String> contents = new LinkedHashMap<String,String>(16, 0.75f, true);
+    
+    //--------------------------------------------------------------------------
+    // Constructors
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Creates a new cache.
+     * @param maxSize The maximum number of bytes of data URIs to keep.
+     */
+    public DataURICache(long maxSize){
+        this.maxSize = maxSize;
+    }
+    
+    /**
+     * Returns the cache shared by everything running in this process.
+     * @return The shared cache.
+     */
+    public static synchronized DataURICache getSharedCache(){
+        if (sharedCache == null){
+            sharedCache = new DataURICache(DEFAULT_MAX_SIZE);
+        }
+        return sharedCache;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Get/Set maximum size
+    //--------------------------------------------------------------------------    
+    
+    public synchronized long getMaxSize(){
+        return maxSize;
+    }
+    
+    public synchronized void setMaxSize(long maxSize){
+        this.maxSize = maxSize;
+        evict();
+    }
+    
+    //--------------------------------------------------------------------------
+    // Statistics
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Returns the number of lookups for a file that was already cached.
+     * @return The number of hits.
+     */
+    public synchronized long getHits(){
+        return hits;
+    }
+    
+    /**
+     * Returns the number of lookups for a file that wasn't cached but had
+     * the same contents as another file that was. These files are read but
+     * not encoded.
+     * @return The number of content hits.
+     */
+    public synchronized long getContentHits(){
+        return contentHits;
+    }
+    
+    /**
+     * Returns the number of lookups for a file that wasn't cached but was
+     * found unchanged in a disk cache. These files are neither read nor
+     * encoded.
+     * @return The number of disk hits.
+     */
+    public synchronized long getDiskHits(){
+        return diskHits;
+    }
+    
+    /**
+     * Returns the number of lookups that required a file to be encoded.
+     * @return The number of misses.
+     */
+    public synchronized long getMisses(){
+        return misses;
+    }
+    
+    /**
+     * Returns the number of data URIs removed to stay under the maximum size.
+     * @return The number of evictions.
+     */
+    public synchronized long getEvictions(){
+        return evictions;
+    }
+    
+    /**
+     * Returns the approximate number of bytes used by cached data URIs.
+     * @return The size of the cache in bytes.
+     */
+    public synchronized long getSize(){
+        return size;
+    }
+    
+    public synchronized String toString(){
+        return hits + " hits, " + contentHits + " content hits, " + diskHits + " disk hits, " + misses + " misses, " + 
+                evictions + " evictions, " + size + " bytes";
+    }
+    
+    //--------------------------------------------------------------------------
+    // Generate data URIs
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Returns the data URI for a file, generating it only if the file isn't 
+     * already in the cache or has changed since it was added.
+     * @param file The file from which to generate the data URI.
+     * @param mimeType The MIME type to use for the data URI, or null to
+     *      determine it from the filename.
+     * @return The data URI.
+     * @throws java.io.IOException
+     */
+    public String generate(File file, String mimeType) throws IOException {
+        return generate(file, mimeType, null);
+    }
+    
+    /**
+     * Returns the data URI for a file, generating it only if the file isn't 
+     * already in the cache or has changed since it was added. Files that 
+     * aren't in this cache are looked for in the given disk cache before
+     * being encoded, and newly encoded files are added to it.
+     * @param file The file from which to generate the data URI.
+     * @param mimeType The MIME type to use for the data URI, or null to
+     *      determine it from the filename.
+     * @param diskCache The disk cache to use, or null for none.
+     * @return The data URI.
+     * @throws java.io.IOException
+     */
+    public String generate(File file, String mimeType, DataURIDiskCache diskCache) throws IOException {
+        return generate(file, mimeType, diskCache, null);
+    }
+    
+    /**
+     * Returns the data URI for a file, optimizing the image before it's 
+     * encoded. Optimized data URIs are kept apart from unoptimized ones, 
+     * under the content hash of the original file, so each image is only
+     * optimized once.
+     * @param file The file from which to generate the data URI.
+     * @param mimeType The MIME type to use for the data URI, or null to
+     *      determine it from the filename.
+     * @param diskCache The disk cache to use, or null for none.
+     * @param optimizer The optimizer to use, or null to encode the file as
+     *      it is.
+     * @return The data URI.
+     * @throws java.io.IOException
+     */
+    public String generate(File file, String mimeType, DataURIDiskCache diskCache, ImageOptimizer optimizer) throws IOException {
+        return generate(file, mimeType, diskCache, optimizer, DataURIGenerator.getDefault());
+    }
+    
+    /**
+     * Returns the data URI for a file, reading and encoding it with the
+     * given encoder if it isn't in the cache. Entries aren't kept apart by
+     * encoder, so encoders that share a cache should agree on MIME types
+     * and SVG minification.
+     * @param file The file from which to generate the data URI.
+     * @param mimeType The MIME type to use for the data URI, or null to
+     *      determine it from the filename.
+     * @param diskCache The disk cache to use, or null for none.
+     * @param optimizer The optimizer to use, or null to encode the file as
+     *      it is.
+     * @param encoder The encoder to read and encode the file with.
+     * @return The data URI.
+     * @throws java.io.IOException
+     */
+    public String generate(File file, String mimeType, DataURIDiskCache diskCache, ImageOptimizer optimizer, 
+            DataURIEncoder encoder) throws IOException {
+        String absolutePath = file.getAbsolutePath();
+        String path = absolutePath;
+        if (mimeType != null){
+            path = path + "|" + mimeType;
+        }
+        
+        String suffix = (optimizer != null) ? OPTIMIZED_SUFFIX : "";
+        String svgSuffix = encoder.getMinifySVG() ? suffix + MINIFIED_SUFFIX : suffix;
+        
+        //the type isn't always known yet, so minifying keeps files apart whatever they are
+        path = path + svgSuffix;
+        
+        long length = file.length();
+        long modified = file.lastModified();
+        String uri = lookup(path, length, modified);
+        LoadStats stats = LoadStats.current();
+        
+        if (uri != null){
+            if (stats != null){
+                stats.setCacheResult(LoadStats.CACHE_HIT);
+            }
+            return uri;
+        }
+        
+        //reading and encoding happens outside of the lock
+        String knownType = (mimeType != null) ? mimeType : encoder.guessMimeType(file.getName());
+        
+        //without a type from the extension, the file has to be read to find one
+        if (diskCache != null && knownType != null){
+            String hash = diskCache.getHash(absolutePath, length, modified);
+            if (hash != null){
+                String knownSuffix = SVGEncoder.isSVG(knownType) ? svgSuffix : suffix;
+                String key = knownType + ";" + hash + knownSuffix;
+                
+                synchronized (this){
+                    uri = contents.get(key);
+                    if (uri != null){
+                        contentHits++;
+                        files.put(path, new FileEntry(length, modified, key));
+                        if (stats != null){
+                            stats.setCacheResult(LoadStats.CACHE_CONTENT_HIT);
+                        }
+                        return uri;
+                    }
+                }
+                
+                String payload = diskCache.getPayload(hash + knownSuffix);
+                if (payload != null){
+                    String payloadType = (mimeType != null) ? mimeType : getPayloadType(payload, knownType, encoder.getMimeTypes());
+                    if (optimizer != null){
+                        payloadType = ImageOptimizer.getMimeType(payload, payloadType);
+                    }
+                    uri = toDataURI(payloadType, payload);
+                    
+                    synchronized (this){
+                        diskHits++;
+                        store(path, new FileEntry(length, modified, key), uri);
+                    }
+                    if (stats != null){
+                        stats.setCacheResult(LoadStats.CACHE_DISK_HIT);
+                    }
+                    return uri;
+                }
+            }
+        }
+        
+        ByteBuffer bytes = encoder.readFile(file);
+        mimeType = encoder.getMimeType(file.getName(), mimeType, bytes);
+        String hash = hash(bytes.duplicate());
+        if (SVGEncoder.isSVG(mimeType)){
+            suffix = svgSuffix;
+        }
+        String key = mimeType + ";" + hash + suffix;
+        FileEntry entry = new FileEntry(length, modified, key);
+        String cacheResult = LoadStats.CACHE_CONTENT_HIT;
+
+        synchronized (this){
+            uri = contents.get(key);
+            if (uri != null){
+                contentHits++;
+                files.put(path, entry);
+            }
+        }
+        
+        if (uri == null){
+            cacheResult = LoadStats.CACHE_MISS;
+            if (optimizer != null){
+                uri = optimizer.toDataURI(bytes, mimeType, encoder);
+            } else {
+                uri = encoder.toDataURI(bytes, mimeType);
+            }
+
+            synchronized (this){
+                misses++;
+                store(path, entry, uri);
+            }
+        }
+        
+        if (stats != null){
+            stats.setCacheResult(cacheResult);
+        }
+        
+        if (diskCache != null){
+            diskCache.put(absolutePath, length, modified, hash, hash + suffix, getPayload(uri));
+        }
+        
+        return uri;
+    }
+    
+    /**
+     * Removes everything from the cache. Statistics are not reset.
+     */
+    public synchronized void clear(){
+        files.clear();
+        contents.clear();
+        size = 0;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Helper methods
+    //--------------------------------------------------------------------------    
+    
+    private synchronized String lookup(String path, long length, long modified){
+        FileEntry entry = files.get(path);
+        
+        if (entry != null){
+            if (entry.length == length && entry.modified == modified){
+                String uri = contents.get(entry.key);
+                if (uri != null){
+                    hits++;
+                    return uri;
+                }
+            }
+            
+            //the file has changed or its data URI was evicted
+            files.remove(path);
+        }
+        
+        return null;
+    }
+    
+    private void store(String path, FileEntry entry, String uri){
+        files.put(path, entry);
+        if (!contents.containsKey(entry.key)){
+            contents.put(entry.key, uri);
+            size += weigh(uri);
+            evict();
+        }
+    }
+    
+    /*
+     * Removes the least recently used data URIs until the cache fits.
+     */
+    private void evict(){
+        Iterator<String> it = contents.values().iterator();
+        while (size > maxSize && it.hasNext()){
+            size -= weigh(it.next());
+            it.remove();
+            evictions++;
+        }
+    }
+    
+    /*
+     * Returns the part of a data URI kept in a disk cache. Base64 data is 
+     * kept as it is; percent-encoded data keeps its leading comma so that
+     * the two can be told apart.
+     */
+    private static String getPayload(String uri){
+        int comma = uri.indexOf(',');
+        return uri.regionMatches(comma - 7, ";base64", 0, 7) ? uri.substring(comma + 1) : uri.substring(comma);
+    }
+    
+    /*
+     * Works out the MIME type of a cached payload from the bytes at its 
+     * start, which only takes decoding the first few characters.
+     */
+    private static String getPayloadType(String payload, String mimeType, MimeTypeRegistry mimeTypes){
+        if (payload.startsWith(",")){
+            return mimeType;
+        }
+        
+        //every 4 characters are 3 bytes
+        int chars = Math.min(payload.length(), (mimeTypes.getSniffLength() + 2) / 3 * 4);
+        
+        try {
+            String detected = mimeTypes.detect(ByteBuffer.wrap(Base64.decode(payload.substring(0, chars), Base64.DONT_GUNZIP)));
+            return (detected != null) ? detected : mimeType;
+        } catch (IOException e){
+            return mimeType;
+        }
+    }
+    
+    private static String toDataURI(String mimeType, String payload){
+        return payload.startsWith(",") ? "data:" + mimeType + payload : "data:" + mimeType + ";base64," + payload;
+    }
+    
+    private static long weigh(String uri){
+        return uri.length() * 2L;
+    }
+    
+    static String hash(byte[] bytes){
+        return hash(ByteBuffer.wrap(bytes));
+    }
+    
+    static String hash(ByteBuffer bytes){
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e){
+            throw new IllegalStateException(e.getMessage());
+        }
+        
+        digest.update(bytes);
+        byte[] result = digest.digest();
+        char[] chars = new char[result.length * 2];
+        for (int i = 0; i < result.length; i++){
+            chars[i * 2] = HEX[(result[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[result[i] & 0xf];
+        }
+        return new String(chars);
+    }
+    
+    private static class FileEntry {
+        long length;
+        long modified;
+        String key;
+        
+        FileEntry(long length, long modified, String key){
+            this.length = length;
+            this.modified = modified;
+            this.key = key;
+        }
+    }
+}
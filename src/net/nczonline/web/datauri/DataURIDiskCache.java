@@ -0,0 +1,324 @@
+/*
+ * Copyright (c) 2009 Nicholas C. Zakas. All rights reserved.
+ * http://www.nczonline.net/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.nczonline.web.datauri;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+
+/**
+ * Cache of Base64-encoded file contents kept in a directory so that it 
+ * survives between runs. Encoded contents are stored by content hash in the
+ * data directory. For each file that has been encoded, a small index entry
+ * records its path, size, last modified time and content hash, so an
+ * unchanged file can be found without reading it.
+ * <p>
+ * Several processes may use the same directory at once. Entries are written
+ * to temporary files and renamed into place, so readers never see partial
+ * entries, and only one process at a time trims the cache down to size.
+ * @author Nicholas C. Zakas
+ */
+public class DataURIDiskCache {
+    
+    public static final long DEFAULT_MAX_SIZE = 256L * 1024 * 1024;
+    
+    private static final String CHARSET = "US-ASCII";
+    
+    //temporary files older than this were left behind by a process that died
+    private static final long STALE_TEMP_AGE = 60L * 60 * 1000;
+    
+    private File dir;
+    private File indexDir;
+    private File dataDir;
+    private long maxSize;
+    
+    //--------------------------------------------------------------------------
+    // Constructors
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Creates a new cache in the given directory, creating the directory if
+     * necessary.
+     * @param dir The directory to store the cache in.
+     * @param maxSize The maximum number of bytes to keep in the directory.
+     * @throws java.io.IOException When the directory can't be created.
+     */
+    public DataURIDiskCache(File dir, long maxSize) throws IOException {
+        this.dir = dir;
+        this.indexDir = new File(dir, "index");
+        this.dataDir = new File(dir, "data");
+        this.maxSize = maxSize;
+        
+        if (!indexDir.isDirectory() && !indexDir.mkdirs() && !indexDir.isDirectory()){
+            throw new IOException("Could not create cache directory '" + indexDir + "'.");
+        }
+        if (!dataDir.isDirectory() && !dataDir.mkdirs() && !dataDir.isDirectory()){
+            throw new IOException("Could not create cache directory '" + dataDir + "'.");
+        }
+    }
+    
+    public File getDirectory(){
+        return dir;
+    }
+    
+    public long getMaxSize(){
+        return maxSize;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Cache access
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Returns the content hash recorded for a file.
+     * @param path The absolute path of the file.
+     * @param length The current size of the file.
+     * @param modified The current last modified time of the file.
+     * @return The content hash, or null if the file isn't in the cache or
+     *      has changed since it was stored.
+     */
+    public String getHash(String path, long length, long modified){
+        File indexFile = new File(indexDir, DataURICache.hash(getBytes(path)));
+        Properties entry = new Properties();
+        
+        try {
+            InputStream in = new FileInputStream(indexFile);
+            try {
+                entry.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e){
+            return null;
+        }
+        
+        if (path.equals(entry.getProperty("path")) && 
+                String.valueOf(length).equals(entry.getProperty("length")) &&
+                String.valueOf(modified).equals(entry.getProperty("modified"))){
+            indexFile.setLastModified(System.currentTimeMillis());
+            return entry.getProperty("hash");
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Returns the Base64-encoded contents stored for a content hash.
+     * @param hash The content hash, or the key the contents were stored under.
+     * @return The Base64-encoded contents, or null if not in the cache.
+     */
+    public String getPayload(String hash){
+        File dataFile = new File(dataDir, hash);
+        StringWriter writer = new StringWriter((int) dataFile.length());
+        
+        try {
+            Reader in = new InputStreamReader(new FileInputStream(dataFile), CHARSET);
+            try {
+                char[] buffer = new char[8192];
+                int count;
+                while ((count = in.read(buffer)) != -1){
+                    writer.write(buffer, 0, count);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e){
+            return null;
+        }
+        
+        dataFile.setLastModified(System.currentTimeMillis());
+        return writer.toString();
+    }
+    
+    /**
+     * Stores the Base64-encoded contents of a file.
+     * @param path The absolute path of the file.
+     * @param length The size of the file when it was read.
+     * @param modified The last modified time of the file when it was read.
+     * @param hash The content hash.
+     * @param payload The Base64-encoded contents of the file.
+     * @throws java.io.IOException
+     */
+    public void put(String path, long length, long modified, String hash, String payload) throws IOException {
+        put(path, length, modified, hash, hash, payload);
+    }
+    
+    /**
+     * Stores Base64-encoded contents derived from a file, such as an 
+     * optimized version of it, under a key other than the content hash.
+     * @param path The absolute path of the file.
+     * @param length The size of the file when it was read.
+     * @param modified The last modified time of the file when it was read.
+     * @param hash The content hash of the file.
+     * @param key The key to store the contents under, which is passed to
+     *      getPayload() to get them back.
+     * @param payload The Base64-encoded contents.
+     * @throws java.io.IOException
+     */
+    public void put(String path, long length, long modified, String hash, String key, String payload) throws IOException {
+        File dataFile = new File(dataDir, key);
+        if (!dataFile.exists()){
+            File temp = File.createTempFile(key, ".tmp", dataDir);
+            Writer out = new OutputStreamWriter(new FileOutputStream(temp), CHARSET);
+            try {
+                out.write(payload);
+            } finally {
+                out.close();
+            }
+            moveTo(temp, dataFile);
+        }
+        
+        Properties entry = new Properties();
+        entry.setProperty("path", path);
+        entry.setProperty("length", String.valueOf(length));
+        entry.setProperty("modified", String.valueOf(modified));
+        entry.setProperty("hash", hash);
+        
+        String indexName = DataURICache.hash(getBytes(path));
+        File temp = File.createTempFile(indexName, ".tmp", indexDir);
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            entry.store(out, null);
+        } finally {
+            out.close();
+        }
+        moveTo(temp, new File(indexDir, indexName));
+    }
+    
+    /**
+     * Deletes the least recently used entries until the cache directory is
+     * no larger than the maximum size. If another process is already doing
+     * this, returns without doing anything.
+     * @return The number of files deleted.
+     * @throws java.io.IOException
+     */
+    public int trim() throws IOException {
+        RandomAccessFile lockFile = new RandomAccessFile(new File(dir, "lock"), "rw");
+        int deleted = 0;
+        
+        try {
+            FileChannel channel = lockFile.getChannel();
+            FileLock lock = channel.tryLock();
+            if (lock == null){
+                return 0;
+            }
+            
+            try {
+                File[] indexFiles = indexDir.listFiles();
+                File[] dataFiles = dataDir.listFiles();
+                File[] files = new File[indexFiles.length + dataFiles.length];
+                System.arraycopy(indexFiles, 0, files, 0, indexFiles.length);
+                System.arraycopy(dataFiles, 0, files, indexFiles.length, dataFiles.length);
+                
+                final long[] modified = new long[files.length];
+                Integer[] order = new Integer[files.length];
+                long size = 0;
+                long now = System.currentTimeMillis();
+                
+                for (int i = 0; i < files.length; i++){
+                    modified[i] = files[i].lastModified();
+                    order[i] = Integer.valueOf(i);
+                    
+                    if (files[i].getName().endsWith(".tmp")){
+                        if (now - modified[i] > STALE_TEMP_AGE && files[i].delete()){
+                            deleted++;
+                        }
+                        modified[i] = Long.MAX_VALUE;
+                    } else {
+                        size += files[i].length();
+                    }
+                }
+                
+                //oldest first
+                Arrays.sort(order, new Comparator<Integer>(){
+                    public int compare(Integer a, Integer b){
+                        long diff = modified[a.intValue()] - modified[b.intValue()];
+                        return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+                    }
+                });
+                
+                for (int i = 0; i < order.length && size > maxSize; i++){
+                    File file = files[order[i].intValue()];
+                    if (modified[order[i].intValue()] != Long.MAX_VALUE){
+                        long length = file.length();
+                        if (file.delete()){
+                            size -= length;
+                            deleted++;
+                        }
+                    }
+                }
+            } finally {
+                lock.release();
+            }
+        } finally {
+            lockFile.close();
+        }
+        
+        return deleted;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Helper methods
+    //--------------------------------------------------------------------------    
+    
+    /*
+     * Renames a finished temporary file into place. If the target already
+     * exists, another process wrote the same entry first.
+     */
+    static void moveTo(File temp, File target) throws IOException {
+        if (!temp.renameTo(target)){
+            
+            //some platforms won't rename over an existing file
+            target.delete();
+            if (!temp.renameTo(target)){
+                temp.delete();
+                if (!target.exists()){
+                    throw new IOException("Could not write cache entry '" + target + "'.");
+                }
+            }
+        }
+    }
+    
+    private static byte[] getBytes(String path){
+        try {
+            return path.getBytes("UTF-8");
+        } catch (IOException e){
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,626 @@
+/*
+ * Copyright (c) 2009 Nicholas C. Zakas. All rights reserved.
+ * http://www.nczonline.net/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.nczonline.web.datauri;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+/**
+ * Generates data URIs using one fixed set of settings: the MIME type 
+ * registry, the Base64 backend, the fetcher for remote files and where to
+ * log. An encoder can't be changed once it's built, so one instance can be
+ * shared by any number of threads, and encoders with different settings
+ * can be used side by side. The static methods of DataURIGenerator use a
+ * default encoder.
+ * @author Nicholas C. Zakas
+ */
+public final class DataURIEncoder {
+    
+    /**
+     * Files of at least this many bytes are memory-mapped rather than read.
+     */
+    public static final int DEFAULT_MAP_THRESHOLD = 1048576;
+    
+    private static final HashMap<String,String> textTypes = new HashMap<String,String>();
+    
+    //smaller files are read into a buffer that's kept for each thread
+    private static final ThreadLocal<byte[]> readBuffers = new ThreadLocal<byte[]>();
+    
+    static {
+        textTypes.put("htm", "text/html");
+        textTypes.put("html", "text/html");
+        textTypes.put("xml", "application/xml");
+        textTypes.put("xhtml", "application/xhtml+xml");  
+        textTypes.put("js", "application/x-javascript");
+        textTypes.put("css", "text/css");
+        textTypes.put("txt", "text/plain");
+    }
+    
+    private final MimeTypeRegistry mimeTypes;
+    private final Base64Backend backend;
+    private final RemoteFetcher fetcher;
+    private final boolean verbose;
+    private final PrintStream log;
+    private final int mapThreshold;
+    private final boolean minifySVG;
+    
+    //--------------------------------------------------------------------------
+    // Constructor
+    //--------------------------------------------------------------------------    
+    
+    private DataURIEncoder(Builder builder){
+        this.mimeTypes = (builder.mimeTypes != null) ? builder.mimeTypes : MimeTypeRegistry.createDefault();
+        this.backend = builder.backend;
+        this.fetcher = (builder.fetcher != null) ? builder.fetcher : new HttpFetcher();
+        this.verbose = builder.verbose;
+        this.log = builder.log;
+        this.mapThreshold = builder.mapThreshold;
+        this.minifySVG = builder.minifySVG;
+    }
+    
+    /**
+     * Returns a builder with the default settings.
+     * @return The builder.
+     */
+    public static Builder builder(){
+        return new Builder();
+    }
+    
+    /**
+     * Returns a builder with the settings of this encoder, for making one
+     * that's a little different.
+     * @return The builder.
+     */
+    public Builder toBuilder(){
+        Builder builder = new Builder();
+        builder.mimeTypes = mimeTypes;
+        builder.backend = backend;
+        builder.fetcher = fetcher;
+        builder.verbose = verbose;
+        builder.log = log;
+        builder.mapThreshold = mapThreshold;
+        builder.minifySVG = minifySVG;
+        return builder;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Settings
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Returns the registry used to work out the MIME types of images and
+     * fonts, from their extensions and their contents. The registry is
+     * safe to use from several threads, but it isn't copied, so anything
+     * added to it shows up in every encoder that uses it.
+     * @return The registry.
+     */
+    public MimeTypeRegistry getMimeTypes(){
+        return mimeTypes;
+    }
+    
+    /**
+     * Returns the backend used to Base64-encode data URIs. Unless one was
+     * given, this is the default backend, which is the fastest available 
+     * unless another has been set through DataURIGenerator.
+     * @return The backend.
+     */
+    public Base64Backend getBase64Backend(){
+        return (backend != null) ? backend : Base64Encoder.getBackend();
+    }
+    
+    /**
+     * Returns the fetcher used to download URLs.
+     * @return The fetcher.
+     */
+    public RemoteFetcher getFetcher(){
+        return fetcher;
+    }
+    
+    public boolean isVerbose(){
+        return verbose;
+    }
+    
+    /**
+     * Returns where informational messages are written when verbose.
+     * @return The stream.
+     */
+    public PrintStream getLog(){
+        return log;
+    }
+    
+    /**
+     * Returns the size at which files are memory-mapped and encoded straight
+     * from the mapping. Smaller files are read into a buffer that's reused
+     * by each thread, so the threshold is also the most memory that buffer
+     * takes.
+     * @return The threshold in bytes.
+     */
+    public int getMapThreshold(){
+        return mapThreshold;
+    }
+    
+    /**
+     * Determines if comments and unneeded whitespace are removed from SVG
+     * images before they're encoded.
+     * @return True if SVG images are minified, false if not.
+     */
+    public boolean getMinifySVG(){
+        return minifySVG;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Generate data URIs from a file
+    //--------------------------------------------------------------------------
+    
+    /**
+     * Generates a data URI from a file, outputting it to the given writer.
+     * @param file The file from which to generate the data URI.
+     * @param out Where to output the data URI.
+     * @param mimeType The MIME type to use for the data URI, or null to
+     *      determine it from the contents or the filename.
+     * @throws java.io.IOException
+     */    
+    public void generate(File file, Writer out, String mimeType) throws IOException {
+        
+        //read or map the file
+        ByteBuffer bytes = readFile(file);
+        
+        //verify MIME type and charset
+        mimeType = getMimeType(file.getName(), mimeType, bytes);      
+        
+        //actually write
+        generateDataURI(bytes, out, mimeType);
+    }   
+    
+    /**
+     * Generates a data URI from a file and returns it. The file is encoded
+     * straight into a string of the right size, so this is cheaper than
+     * generating into a StringWriter.
+     * @param file The file from which to generate the data URI.
+     * @param mimeType The MIME type to use for the data URI, or null to
+     *      determine it from the contents or the filename.
+     * @return The data URI.
+     * @throws java.io.IOException
+     */
+    public String toDataURI(File file, String mimeType) throws IOException {
+        ByteBuffer bytes = readFile(file);
+        return toDataURI(bytes, getMimeType(file.getName(), mimeType, bytes));
+    }
+  
+    //--------------------------------------------------------------------------
+    // Generate data URIs from a URL
+    //--------------------------------------------------------------------------
+    
+    /**
+     * Generates a data URI from a URL, outputting it to the given writer.
+     * @param url The URL form which to generate the data URI.
+     * @param out Where to output the data URI.
+     * @param mimeType The MIME type to use for the data URI, or null to
+     *      use the one sent by the server.
+     * @throws java.io.IOException
+     */    
+    public void generate(URL url, Writer out, String mimeType) throws IOException {
+        
+        //download the URL
+        RemoteResource resource = fetcher.fetch(url, -1);
+        
+        //actually write
+        generateDataURI(ByteBuffer.wrap(resource.getBytes()), out, getRemoteMimeType(url, mimeType, resource));
+    }
+    
+    /**
+     * Generates a data URI from a URL and returns it, unless the file is
+     * larger than the given number of bytes. Where the server says how large
+     * the file is, a larger file isn't downloaded at all.
+     * @param url The URL from which to generate the data URI.
+     * @param mimeType The MIME type to use for the data URI, or null to
+     *      use the one sent by the server.
+     * @param maxLength The most bytes to download, or -1 for no limit.
+     * @return The data URI, or null if the file is too large.
+     * @throws java.io.IOException
+     */
+    public String toDataURI(URL url, String mimeType, long maxLength) throws IOException {
+        return toDataURI(url, mimeType, fetcher, maxLength);
+    }
+    
+    /*
+     * Generates a data URI from a URL using the given fetcher in place of
+     * this encoder's own.
+     */
+    String toDataURI(URL url, String mimeType, RemoteFetcher remoteFetcher, long maxLength) throws IOException {
+        LoadStats stats = LoadStats.current();
+        long start = (stats != null) ? System.nanoTime() : 0;
+        RemoteResource resource = remoteFetcher.fetch(url, maxLength);
+        if (resource == null){
+            return null;
+        }
+        if (stats != null){
+            stats.addRead(resource.getBytes().length, System.nanoTime() - start);
+        }
+        return toDataURI(ByteBuffer.wrap(resource.getBytes()), getRemoteMimeType(url, mimeType, resource));
+    }
+    
+    //--------------------------------------------------------------------------
+    // MIME types and lengths
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Returns the MIME type for a filename or URL from its extension,
+     * ignoring any query string, without printing anything.
+     * @param filename The filename or URL.
+     * @return The MIME type, or null if it isn't known.
+     */
+    public String guessMimeType(String filename){
+        int end = filename.length();
+        for (int i = 0; i < filename.length(); i++){
+            char c = filename.charAt(i);
+            if (c == '?' || c == '#'){
+                end = i;
+                break;
+            }
+        }
+        
+        String type = getFileType(filename.substring(0, end)).toLowerCase();
+        String mimeType = mimeTypes.getExtensionType(type);
+        if (mimeType != null){
+            return mimeType;
+        } else if (textTypes.containsKey(type)){
+            return textTypes.get(type) + ";charset=UTF-8";
+        }
+        return null;
+    }
+    
+    /**
+     * Returns the most bytes that can be encoded without the data URI going
+     * over the given length. SVG images may be percent-encoded at one
+     * character for each byte, or be minified first, in which case there's
+     * no telling how large an image can be.
+     * @param mimeType The MIME type to specify in the data URI.
+     * @param maxUriLength The maximum length of the data URI.
+     * @return The number of bytes, which may be 0.
+     */
+    public long getMaxByteCount(String mimeType, long maxUriLength){
+        long chars = maxUriLength - DataURIGenerator.getDataURILength(mimeType, 0);
+        if (SVGEncoder.isSVG(mimeType)){
+            return minifySVG ? Long.MAX_VALUE : Math.max(0, chars + ";base64".length());
+        }
+        return (chars < 0) ? 0 : chars / 4 * 3;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Helper methods
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Reads the contents of a file. Large files are memory-mapped; smaller
+     * ones are read into this thread's buffer, so the result is only good
+     * until the next call on the same thread.
+     * @param file The file to read.
+     * @return The bytes in the file, from position to limit.
+     * @throws java.io.IOException
+     */
+    ByteBuffer readFile(File file) throws IOException {
+        LoadStats stats = LoadStats.current();
+        if (stats == null){
+            return read(file);
+        }
+        
+        long start = System.nanoTime();
+        ByteBuffer bytes = read(file);
+        stats.addRead(bytes.remaining(), System.nanoTime() - start);
+        return bytes;
+    }
+    
+    private ByteBuffer read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            
+            if (size > Integer.MAX_VALUE){
+                throw new IOException("File '" + file + "' is too large to embed.");
+            }
+            
+            //the mapping stays valid after the channel is closed
+            if (size >= mapThreshold){
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            
+            byte[] bytes = readBuffers.get();
+            if (bytes == null || bytes.length < size){
+                bytes = new byte[(int) size];
+                readBuffers.set(bytes);
+            }
+            
+            //a single read isn't guaranteed to fill the buffer
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, (int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) != -1){
+                //keep reading
+            }
+            buffer.flip();
+            return buffer;
+        } finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * Generates a data URI from the remaining bytes in a buffer and outputs
+     * to the given writer.
+     * @param bytes The bytes to output to the data URI.
+     * @param out Where to output the data URI.
+     * @param mimeType The MIME type to specify in the data URI.
+     * @throws java.io.IOException
+     */
+    void generateDataURI(ByteBuffer bytes, Appendable out, String mimeType) throws IOException {
+        Base64Backend current = getBase64Backend();
+        
+        if (SVGEncoder.isSVG(mimeType)){
+            SVGEncoder.generateDataURI(bytes, out, mimeType, minifySVG, current);
+            return;
+        }
+        
+        out.append("data:");        
+        out.append(mimeType);
+        out.append(";base64,");
+        Base64Encoder.encode(bytes, out, current);
+    }    
+    
+    /**
+     * Generates a data URI from the remaining bytes in a buffer and returns it.
+     * @param bytes The bytes to output to the data URI.
+     * @param mimeType The MIME type to specify in the data URI.
+     * @return The data URI.
+     * @throws java.io.IOException
+     */
+    String toDataURI(ByteBuffer bytes, String mimeType) throws IOException {
+        LoadStats stats = LoadStats.current();
+        long start = (stats != null) ? System.nanoTime() : 0;
+        StringBuilder builder = new StringBuilder((int) DataURIGenerator.getDataURILength(mimeType, bytes.remaining()));
+        generateDataURI(bytes, builder, mimeType);
+        if (stats != null){
+            stats.addEncode(builder.length(), System.nanoTime() - start);
+        }
+        return builder.toString();
+    }
+    
+    /**
+     * Retrieves the extension for the filename. 
+     * @param filename The filename to get the extension from.
+     * @return All characters after the final "." in the filename.
+     */
+    private static String getFileType(String filename){
+        String type = "";
+
+        int idx = filename.lastIndexOf('.');
+        if (idx >= 0 && idx < filename.length() - 1) {
+            type = filename.substring(idx + 1);
+        }
+        
+        return type;
+    }
+
+    /**
+     * Determines the MIME type to use for the given filename. If a MIME type
+     * is passed in, then that is used by default. Otherwise, the filename
+     * is inspected to determine the appropriate MIME type.
+     * @param filename The filename to check.
+     * @param mimeType The provided MIME type or null if nothing was provided.
+     * @return The MIME type string to use for the filename.
+     * @throws java.io.IOException When no MIME type can be determined.
+     */
+    String getMimeType(String filename, String mimeType) throws IOException {
+        if (mimeType == null){
+            
+            String type = getFileType(filename);
+            String binaryType = mimeTypes.getExtensionType(type);
+
+            //if it's an image type, don't use a charset
+            if (binaryType != null){    
+                mimeType = binaryType;        
+            } else if (textTypes.containsKey(type)){
+                mimeType = textTypes.get(type) + ";charset=UTF-8";    
+            } else {
+                throw new IOException("No MIME type provided and MIME type couldn't be automatically determined.");                
+            }
+
+            if (verbose){
+                log.println("[INFO] No MIME type provided, defaulting to '" + mimeType + "'.");
+            }      
+        }
+        
+        return mimeType;      
+    }
+    
+    /**
+     * Determines the MIME type to use for a file that has been read. If a
+     * MIME type is passed in, then that is used. Otherwise, the first few
+     * bytes of the file are checked against the known signatures, so that
+     * a file with the wrong extension or none still gets the right type, 
+     * and only if nothing matches is the filename used.
+     * @param filename The filename to check.
+     * @param mimeType The provided MIME type or null if nothing was provided.
+     * @param bytes The contents of the file, from position to limit.
+     * @return The MIME type string to use for the file.
+     * @throws java.io.IOException When no MIME type can be determined.
+     */
+    String getMimeType(String filename, String mimeType, ByteBuffer bytes) throws IOException {
+        if (mimeType == null){
+            String detected = mimeTypes.detect(bytes);
+            if (detected != null){
+                if (verbose){
+                    log.println("[INFO] No MIME type provided, detected '" + detected + "' from the contents of '" + filename + "'.");
+                }
+                return detected;
+            }
+        }
+        
+        return getMimeType(filename, mimeType);
+    }
+    
+    /**
+     * Determines the MIME type for a downloaded file. If no MIME type is
+     * given, the one its contents match is used, or else the one sent by 
+     * the server, or else the one for the file extension.
+     */
+    private String getRemoteMimeType(URL url, String mimeType, RemoteResource resource) throws IOException {
+        
+        //if no MIME type has been specified, get from the contents or the connection
+        if (mimeType == null){            
+            mimeType = mimeTypes.detect(ByteBuffer.wrap(resource.getBytes()));
+            if (mimeType == null){
+                mimeType = getMimeType(url.getFile(), resource.getContentType());
+            }
+            if (verbose){
+                log.println("[INFO] No MIME type provided, using detected type of '" + mimeType + "'.");
+            }            
+        }
+        
+        //sometimes charset is in the MIME type
+        if (mimeType.indexOf("; charset=") > -1){                        
+            mimeType = mimeType.replace(" ", ""); //remove the space
+        } else {
+            mimeType = getMimeTypeWithCharset(mimeType);
+        }
+        
+        return mimeType;
+    }
+    
+    private String getMimeTypeWithCharset(String mimeType){           
+
+        if (mimeTypes.isKnownType(mimeType)){
+            if (verbose){
+                log.println("[INFO] Image file detected, skipping charset.");
+            }             
+            return mimeType;
+        } else {
+            if (verbose){
+                log.println("[INFO] Using charset 'UTF-8'.");
+            }   
+            return mimeType + ";charset=UTF-8";
+        }
+
+    }
+    
+    //--------------------------------------------------------------------------
+    // Builder
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Collects the settings for an encoder. A builder isn't safe to use
+     * from several threads, but the encoders it builds are.
+     */
+    public static final class Builder {
+        
+        private MimeTypeRegistry mimeTypes = null;
+        private Base64Backend backend = null;
+        private RemoteFetcher fetcher = null;
+        private boolean verbose = false;
+        private PrintStream log = System.err;
+        private int mapThreshold = DEFAULT_MAP_THRESHOLD;
+        private boolean minifySVG = false;
+        
+        private Builder(){
+        }
+        
+        /**
+         * Sets the registry of MIME types. Defaults to a new registry with
+         * the usual image and font types.
+         * @param mimeTypes The registry.
+         * @return This builder.
+         */
+        public Builder setMimeTypes(MimeTypeRegistry mimeTypes){
+            this.mimeTypes = mimeTypes;
+            return this;
+        }
+        
+        /**
+         * Sets the Base64 backend. Defaults to the one chosen for the 
+         * process the first time anything is encoded.
+         * @param backend The backend, or null for the default.
+         * @return This builder.
+         */
+        public Builder setBase64Backend(Base64Backend backend){
+            this.backend = backend;
+            return this;
+        }
+        
+        /**
+         * Sets the fetcher used to download URLs. Defaults to a new
+         * HttpFetcher without a cache directory.
+         * @param fetcher The fetcher.
+         * @return This builder.
+         */
+        public Builder setFetcher(RemoteFetcher fetcher){
+            this.fetcher = fetcher;
+            return this;
+        }
+        
+        public Builder setVerbose(boolean verbose){
+            this.verbose = verbose;
+            return this;
+        }
+        
+        /**
+         * Sets where informational messages are written when verbose. 
+         * Defaults to stderr.
+         * @param log The stream.
+         * @return This builder.
+         */
+        public Builder setLog(PrintStream log){
+            this.log = log;
+            return this;
+        }
+        
+        public Builder setMapThreshold(int mapThreshold){
+            this.mapThreshold = mapThreshold;
+            return this;
+        }
+        
+        public Builder setMinifySVG(boolean minifySVG){
+            this.minifySVG = minifySVG;
+            return this;
+        }
+        
+        /**
+         * Creates an encoder with the settings so far. The builder can go on
+         * being used without affecting it.
+         * @return The encoder.
+         */
+        public DataURIEncoder build(){
+            if (log == null){
+                throw new IllegalArgumentException("Log can't be null.");
+            }
+            return new DataURIEncoder(this);
+        }
+    }
+}
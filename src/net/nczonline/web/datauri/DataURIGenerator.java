@@ -23,53 +23,149 @@
  
 package net.nczonline.web.datauri;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.Writer;
-import java.util.HashMap;
-import java.io.FileInputStream;
-import java.io.InputStream;
 import java.net.URL;
-import java.net.URLConnection;
+import java.nio.ByteBuffer;
 
 /**
- * Generator for Data URIs.
+ * Generator for Data URIs. The static methods here use a default 
+ * DataURIEncoder, and the setters replace it with one that has the new 
+ * setting, so they affect everything using the defaults. Code that runs
+ * alongside other code with different settings should build its own
+ * DataURIEncoder instead.
  * @author Nicholas C. Zakas
  */
 public class DataURIGenerator {
- 
-
-    private static HashMap binaryTypes = new HashMap();
-    private static HashMap textTypes = new HashMap();
-    private static boolean verbose = false;
- 
-    //initialize file types and MIME types
-    static {        
-        binaryTypes.put("gif", "image/gif");
-        binaryTypes.put("jpg", "image/jpeg");
-        binaryTypes.put("png", "image/png");
-        binaryTypes.put("jpeg", "image/jpeg");   
-        
-        textTypes.put("htm", "text/html");
-        textTypes.put("html", "text/html");
-        textTypes.put("xml", "application/xml");
-        textTypes.put("xhtml", "application/xhtml+xml");  
-        textTypes.put("js", "application/x-javascript");
-        textTypes.put("css", "text/css");
-        textTypes.put("txt", "text/plain");
-    }    
+    
+    /**
+     * Files of at least this many bytes are memory-mapped rather than read.
+     */
+    public static final int DEFAULT_MAP_THRESHOLD = DataURIEncoder.DEFAULT_MAP_THRESHOLD;
+    
+    private static volatile DataURIEncoder defaultEncoder = DataURIEncoder.builder().build();
+    
+    //--------------------------------------------------------------------------
+    // Get/Set default encoder
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Returns the encoder used by the static methods.
+     * @return The default encoder.
+     */
+    public static DataURIEncoder getDefault(){
+        return defaultEncoder;
+    }
+    
+    public static void setDefault(DataURIEncoder encoder){
+        if (encoder == null){
+            throw new IllegalArgumentException("Encoder can't be null.");
+        }
+        defaultEncoder = encoder;
+    }
     
     //--------------------------------------------------------------------------
     // Get/Set verbose flag
     //--------------------------------------------------------------------------    
     
     public static boolean getVerbose(){
-        return verbose;
+        return defaultEncoder.isVerbose();
     }
     
-    public static void setVerbose(boolean newVerbose){
-        verbose = newVerbose;
+    public static synchronized void setVerbose(boolean newVerbose){
+        if (defaultEncoder.isVerbose() != newVerbose){
+            defaultEncoder = defaultEncoder.toBuilder().setVerbose(newVerbose).build();
+        }
+    }
+    
+    //--------------------------------------------------------------------------
+    // Get/Set memory-mapping threshold
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Returns the size at which files are memory-mapped and encoded straight
+     * from the mapping. Smaller files are read into a buffer that's reused
+     * by each thread, so the threshold is also the most memory that buffer
+     * takes.
+     * @return The threshold in bytes.
+     */
+    public static int getMapThreshold(){
+        return defaultEncoder.getMapThreshold();
+    }
+    
+    public static synchronized void setMapThreshold(int newMapThreshold){
+        defaultEncoder = defaultEncoder.toBuilder().setMapThreshold(newMapThreshold).build();
+    }
+    
+    //--------------------------------------------------------------------------
+    // Get/Set remote fetcher
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Returns the fetcher used to download URLs when no other is given.
+     * @return The default fetcher.
+     */
+    public static RemoteFetcher getFetcher(){
+        return defaultEncoder.getFetcher();
+    }
+    
+    public static synchronized void setFetcher(RemoteFetcher newFetcher){
+        defaultEncoder = defaultEncoder.toBuilder().setFetcher(newFetcher).build();
+    }
+    
+    //--------------------------------------------------------------------------
+    // Get/Set SVG minification
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Determines if comments and unneeded whitespace are removed from SVG
+     * images before they're encoded.
+     * @return True if SVG images are minified, false if not.
+     */
+    public static boolean getMinifySVG(){
+        return defaultEncoder.getMinifySVG();
+    }
+    
+    public static synchronized void setMinifySVG(boolean newMinifySVG){
+        if (defaultEncoder.getMinifySVG() != newMinifySVG){
+            defaultEncoder = defaultEncoder.toBuilder().setMinifySVG(newMinifySVG).build();
+        }
+    }
+    
+    //--------------------------------------------------------------------------
+    // Get/Set Base64 backend
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Returns the backend used to Base64-encode data URIs by encoders that 
+     * weren't given one. Unless one has been set, the fastest available is
+     * chosen the first time it's needed.
+     * @return The backend.
+     */
+    public static Base64Backend getBase64Backend(){
+        return Base64Encoder.getBackend();
+    }
+    
+    public static void setBase64Backend(Base64Backend newBackend){
+        Base64Encoder.setBackend(newBackend);
+    }
+    
+    //--------------------------------------------------------------------------
+    // Get/Set MIME type registry
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Returns the registry used to work out the MIME types of images and
+     * fonts, from their extensions and their contents.
+     * @return The registry.
+     */
+    public static MimeTypeRegistry getMimeTypes(){
+        return defaultEncoder.getMimeTypes();
+    }
+    
+    public static synchronized void setMimeTypes(MimeTypeRegistry newMimeTypes){
+        defaultEncoder = defaultEncoder.toBuilder().setMimeTypes(newMimeTypes).build();
     }
     
     //--------------------------------------------------------------------------
@@ -78,7 +174,8 @@ public class DataURIGenerator {
     
     /**
      * Generates a data URI from a file, outputting it to the given writer. The
-     * MIME type is determined from examining the filename.
+     * MIME type is determined from the start of the file or, failing that,
+     * from the filename.
      * @param file The file from which to generate the data URI.
      * @param out Where to output the data URI.
      * @throws java.io.IOException
@@ -95,8 +192,22 @@ public class DataURIGenerator {
      * @throws java.io.IOException
      */    
     public static void generate(File file, Writer out, String mimeType) throws IOException {
-        generateDataURI(file, out, mimeType);        
+        defaultEncoder.generate(file, out, mimeType);        
     }   
+    
+    /**
+     * Generates a data URI from a file and returns it. The file is encoded
+     * straight into a string of the right size, so this is cheaper than
+     * generating into a StringWriter.
+     * @param file The file from which to generate the data URI.
+     * @param mimeType The MIME type to use for the data URI, or null to
+     *      determine it from the contents or the filename.
+     * @return The data URI.
+     * @throws java.io.IOException
+     */
+    public static String toDataURI(File file, String mimeType) throws IOException {
+        return defaultEncoder.toDataURI(file, mimeType);
+    }
   
     //--------------------------------------------------------------------------
     // Generate data URIs from a URL
@@ -121,175 +232,150 @@ public class DataURIGenerator {
      * @throws java.io.IOException
      */    
     public static void generate(URL url, Writer out, String mimeType) throws IOException {
-        generateDataURI(url, out, mimeType);        
+        defaultEncoder.generate(url, out, mimeType);        
     }
     
+    /**
+     * Generates a data URI from a URL and returns it.
+     * @param url The URL from which to generate the data URI.
+     * @param mimeType The MIME type to use for the data URI, or null to
+     *      use the one sent by the server.
+     * @param remoteFetcher The fetcher to download the URL with, or null
+     *      to use the default one.
+     * @return The data URI.
+     * @throws java.io.IOException
+     */
+    public static String toDataURI(URL url, String mimeType, RemoteFetcher remoteFetcher) throws IOException {
+        return toDataURI(url, mimeType, remoteFetcher, -1);
+    }
+    
+    /**
+     * Generates a data URI from a URL and returns it, unless the file is
+     * larger than the given number of bytes. Where the server says how large
+     * the file is, a larger file isn't downloaded at all.
+     * @param url The URL from which to generate the data URI.
+     * @param mimeType The MIME type to use for the data URI, or null to
+     *      use the one sent by the server.
+     * @param remoteFetcher The fetcher to download the URL with, or null
+     *      to use the default one.
+     * @param maxLength The most bytes to download, or -1 for no limit.
+     * @return The data URI, or null if the file is too large.
+     * @throws java.io.IOException
+     */
+    public static String toDataURI(URL url, String mimeType, RemoteFetcher remoteFetcher, long maxLength) throws IOException {
+        DataURIEncoder encoder = defaultEncoder;
+        return encoder.toDataURI(url, mimeType, remoteFetcher != null ? remoteFetcher : encoder.getFetcher(), maxLength);
+    }
+    
+    /**
+     * Determines if a URL should be downloaded rather than read from disk.
+     * @param url The URL to check.
+     * @return True for HTTP and HTTPS URLs, false otherwise.
+     */
+    public static boolean isRemote(String url){
+        return url.regionMatches(true, 0, "http://", 0, 7) || url.regionMatches(true, 0, "https://", 0, 8);
+    }
+  
     //--------------------------------------------------------------------------
-    // Helper methods
+    // Predict data URI lengths
     //--------------------------------------------------------------------------    
-   
+    
     /**
-     * Generates a data URI from the specified file and outputs to the given writer.
-     * @param file The file to from which to create a data URI.
-     * @param out Where to output the data URI.
+     * Returns the length of the data URI for the given number of bytes.
+     * Base64 output is exactly 4 characters for every 3 bytes or part of 3
+     * bytes, so this doesn't need the bytes themselves. SVG images are only
+     * Base64-encoded when that's smaller, so for them this is the longest
+     * the data URI can be.
      * @param mimeType The MIME type to specify in the data URI.
-     * @param charset The character set to specify in the data URI.
-     * @throws java.io.IOException
+     * @param byteCount The number of bytes to encode.
+     * @return The number of characters in the data URI.
      */
-    private static void generateDataURI(File file, Writer out, String mimeType) throws IOException{
-        
-        //read the bytes from the file
-        InputStream in = new FileInputStream(file);
-        byte[] bytes = new byte[(int) file.length()];
-        in.read(bytes);
-        in.close();  
-        
-        //verify MIME type and charset
-        mimeType = getMimeType(file.getName(), mimeType);      
-        
-        //actually write
-        generateDataURI(bytes, out, mimeType);        
+    public static long getDataURILength(String mimeType, long byteCount){
+        return "data:".length() + mimeType.length() + ";base64,".length() + Base64Encoder.encodedLength(byteCount);
     }
-
+    
     /**
-     * Generates a data URI from the specified URL and outputs to the given writer.
-     * @param url The URL to from which to create a data URI.
-     * @param out Where to output the data URI.
+     * Returns the most bytes that can be encoded without the data URI going
+     * over the given length. SVG images may be percent-encoded at one
+     * character for each byte, or be minified first, in which case there's
+     * no telling how large an image can be.
      * @param mimeType The MIME type to specify in the data URI.
+     * @param maxUriLength The maximum length of the data URI.
+     * @return The number of bytes, which may be 0.
+     */
+    public static long getMaxByteCount(String mimeType, long maxUriLength){
+        return defaultEncoder.getMaxByteCount(mimeType, maxUriLength);
+    }
+    
+    /**
+     * Returns a data URI that uses Base64, converting a percent-encoded 
+     * one. Some uses, such as MHTML, only allow Base64.
+     * @param uri The data URI.
+     * @return The data URI using Base64.
      * @throws java.io.IOException
      */
-    private static void generateDataURI(URL url, Writer out, String mimeType) throws IOException{
-        
-        //get information about the URL
-        URLConnection conn = url.openConnection();
-        
-        //if no MIME type has been specified, get from the connection
-        if (mimeType == null){            
-            mimeType = getMimeType(url.getFile(), conn.getContentType());
-            if (verbose){
-                System.err.println("[INFO] No MIME type provided, using detected type of '" + mimeType + "'.");
-            }            
-        }
-        
-        //sometimes charset is in the MIME type
-        if (mimeType.indexOf("; charset=") > -1){                        
-            mimeType = mimeType.replace(" ", ""); //remove the space
-        } else {
-            mimeType = getMimeTypeWithCharset(mimeType);
-        }
-        
-        //read the bytes from the URL
-        InputStream in = conn.getInputStream();       
-        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-        int c;
-        
-        while((c = in.read()) != -1){
-            byteStream.write(c);
-        }
-        
-        byteStream.flush();
-        in.close();        
-        
-        //actually write
-        generateDataURI(byteStream.toByteArray(), out, mimeType);        
+    public static String toBase64DataURI(String uri) throws IOException {
+        return SVGEncoder.toBase64(uri);
+    }
+    
+    /**
+     * Returns the MIME type for a filename or URL from its extension,
+     * ignoring any query string, without printing anything.
+     * @param filename The filename or URL.
+     * @return The MIME type, or null if it isn't known.
+     */
+    public static String guessMimeType(String filename){
+        return defaultEncoder.guessMimeType(filename);
+    }
+  
+    //--------------------------------------------------------------------------
+    // Helper methods
+    //--------------------------------------------------------------------------    
+   
+    /**
+     * Reads the contents of a file. Large files are memory-mapped; smaller
+     * ones are read into this thread's buffer, so the result is only good
+     * until the next call on the same thread.
+     * @param file The file to read.
+     * @return The bytes in the file, from position to limit.
+     * @throws java.io.IOException
+     */
+    static ByteBuffer readFile(File file) throws IOException {
+        return defaultEncoder.readFile(file);
     }
 
     /**
      * Generates a data URI from a byte array and outputs to the given writer.
+     * The encoded bytes go straight into the writer, without building the
+     * whole data URI in memory first.
      * @param bytes The array of bytes to output to the data URI.
      * @param out Where to output the data URI.
      * @param mimeType The MIME type to specify in the data URI.
-     * @param charset The character set to specify in the data URI.
      * @throws java.io.IOException
      */
-    private static void generateDataURI(byte[] bytes, Writer out, String mimeType) throws IOException {
-        
-        //create the output
-        StringBuffer buffer = new StringBuffer();        
-        buffer.append("data:");        
-        
-        //add MIME type        
-        buffer.append(mimeType);
-        
-        //output base64-encoding
-        buffer.append(";base64,");
-        buffer.append(new String(Base64.encodeBytes(bytes)));
-        
-        //output to writer
-        out.write(buffer.toString());        
+    static void generateDataURI(byte[] bytes, Appendable out, String mimeType) throws IOException {
+        defaultEncoder.generateDataURI(ByteBuffer.wrap(bytes), out, mimeType);
     }    
     
     /**
-     * Determines if the given filename represents an image file.
-     * @param filename The filename to check.
-     * @return True if the filename represents an image, false if not.
+     * Generates a data URI from a byte array and returns it.
+     * @param bytes The array of bytes to output to the data URI.
+     * @param mimeType The MIME type to specify in the data URI.
+     * @return The data URI.
+     * @throws java.io.IOException
      */
-    private static boolean isImageFile(String filename){
-        String fileType = getFileType(filename);
-        return binaryTypes.containsKey(fileType) && binaryTypes.get(fileType).toString().startsWith("image");
+    static String toDataURI(byte[] bytes, String mimeType) throws IOException {
+        return defaultEncoder.toDataURI(ByteBuffer.wrap(bytes), mimeType);
     }
     
     /**
-     * Retrieves the extension for the filename. 
-     * @param filename The filename to get the extension from.
-     * @return All characters after the final "." in the filename.
-     */
-    private static String getFileType(String filename){
-        String type = "";
-
-        int idx = filename.lastIndexOf('.');
-        if (idx >= 0 && idx < filename.length() - 1) {
-            type = filename.substring(idx + 1);
-        }
-        
-        return type;
-    }
-
-    /**
-     * Determines the MIME type to use for the given filename. If a MIME type
-     * is passed in, then that is used by default. Otherwise, the filename
-     * is inspected to determine the appropriate MIME type.
-     * @param filename The filename to check.
-     * @param mimeType The provided MIME type or null if nothing was provided.
-     * @return The MIME type string to use for the filename.
-     * @throws java.io.IOException When no MIME type can be determined.
+     * Generates a data URI from the remaining bytes in a buffer and returns it.
+     * @param bytes The bytes to output to the data URI.
+     * @param mimeType The MIME type to specify in the data URI.
+     * @return The data URI.
+     * @throws java.io.IOException
      */
-    private static String getMimeType(String filename, String mimeType) throws IOException {
-        if (mimeType == null){
-            
-            String type = getFileType(filename);
-
-            //if it's an image type, don't use a charset
-            if (binaryTypes.containsKey(type)){    
-                mimeType = (String) binaryTypes.get(type);        
-            } else if (textTypes.containsKey(type)){
-                mimeType = (String) textTypes.get(type) + ";charset=UTF-8";    
-            } else {
-                throw new IOException("No MIME type provided and MIME type couldn't be automatically determined.");                
-            }
-
-            if (verbose){
-                System.err.println("[INFO] No MIME type provided, defaulting to '" + mimeType + "'.");
-            }      
-        }
-        
-        return mimeType;      
-    }
-    
-    private static String getMimeTypeWithCharset(String mimeType){           
-
-        if (binaryTypes.containsValue(mimeType)){
-            if (verbose){
-                System.err.println("[INFO] Image file detected, skipping charset.");
-            }             
-            return mimeType;
-        } else {
-            if (verbose){
-                System.err.println("[INFO] Using charset 'UTF-8'.");
-            }   
-            return mimeType + ";charset=UTF-8";
-        }
-
+    static String toDataURI(ByteBuffer bytes, String mimeType) throws IOException {
+        return defaultEncoder.toDataURI(bytes, mimeType);
     }
-            
 }
@@ -0,0 +1,382 @@
+/*
+ * Copyright (c) 2009 Nicholas C. Zakas. All rights reserved.
+ * http://www.nczonline.net/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.nczonline.web.datauri;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads files over HTTP and HTTPS. Connections have timeouts and are
+ * kept alive between requests to the same host, and the number of
+ * requests made to each host at once is limited. If a cache directory is
+ * given, responses with an ETag or Last-Modified header are kept there and
+ * later requests for the same URL are made conditional, so that an
+ * unchanged file comes back as a 304 instead of being downloaded again.
+ * @author Nicholas C. Zakas
+ */
+public class HttpFetcher implements RemoteFetcher {
+    
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    public static final int DEFAULT_READ_TIMEOUT = 30000;
+    public static final int DEFAULT_MAX_HOST_CONNECTIONS = 4;
+    
+    private static final int BUFFER_SIZE = 16384;
+    
+    private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private int readTimeout = DEFAULT_READ_TIMEOUT;
+    private int maxHostConnections = DEFAULT_MAX_HOST_CONNECTIONS;
+    private File cacheDir = null;
+    private ConcurrentHashMap<String,Semaphore> hosts = new ConcurrentHashMap<String,Semaphore>();
+    private AtomicLong requests = new AtomicLong();
+    private AtomicLong notModified = new AtomicLong();
+    
+    //--------------------------------------------------------------------------
+    // Constructors
+    //--------------------------------------------------------------------------    
+    
+    public HttpFetcher(){
+    }
+    
+    /**
+     * Creates a fetcher that keeps downloaded files in a directory.
+     * @param cacheDir The directory to keep files in, which is created if
+     *      it doesn't exist.
+     * @throws java.io.IOException If the directory can't be created.
+     */
+    public HttpFetcher(File cacheDir) throws IOException {
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()){
+            throw new IOException("Could not create cache directory '" + cacheDir + "'.");
+        }
+        this.cacheDir = cacheDir;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Settings
+    //--------------------------------------------------------------------------    
+    
+    public int getConnectTimeout(){
+        return connectTimeout;
+    }
+    
+    public void setConnectTimeout(int connectTimeout){
+        this.connectTimeout = connectTimeout;
+    }
+    
+    public int getReadTimeout(){
+        return readTimeout;
+    }
+    
+    public void setReadTimeout(int readTimeout){
+        this.readTimeout = readTimeout;
+    }
+    
+    /**
+     * Returns the most requests made to a single host at once. Set this
+     * before the first request.
+     * @return The number of requests.
+     */
+    public int getMaxHostConnections(){
+        return maxHostConnections;
+    }
+    
+    public void setMaxHostConnections(int maxHostConnections){
+        this.maxHostConnections = Math.max(1, maxHostConnections);
+    }
+    
+    public File getCacheDirectory(){
+        return cacheDir;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Statistics
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Returns the number of HTTP requests made.
+     * @return The number of requests.
+     */
+    public long getRequests(){
+        return requests.get();
+    }
+    
+    /**
+     * Returns the number of requests answered from the cache directory
+     * because the server said the file hadn't changed.
+     * @return The number of 304 responses.
+     */
+    public long getNotModified(){
+        return notModified.get();
+    }
+    
+    //--------------------------------------------------------------------------
+    // Fetch
+    //--------------------------------------------------------------------------    
+    
+    public RemoteResource fetch(URL url, long maxLength) throws IOException {
+        Semaphore permits = getPermits(url);
+        
+        try {
+            permits.acquire();
+        } catch (InterruptedException e){
+            throw new InterruptedIOException("Interrupted while waiting to download '" + url + "'.");
+        }
+        
+        try {
+            return download(url, maxLength, true);
+        } finally {
+            permits.release();
+        }
+    }
+    
+    //--------------------------------------------------------------------------
+    // Helper methods
+    //--------------------------------------------------------------------------    
+    
+    private Semaphore getPermits(URL url){
+        String host = url.getProtocol() + "://" + url.getHost() + ":" + url.getPort();
+        Semaphore permits = hosts.get(host);
+        
+        if (permits == null){
+            Semaphore created = new Semaphore(maxHostConnections);
+            permits = hosts.putIfAbsent(host, created);
+            if (permits == null){
+                permits = created;
+            }
+        }
+        
+        return permits;
+    }
+    
+    /**
+     * Downloads a URL, making the request conditional if there's a cached
+     * copy and conditional is true.
+     */
+    private RemoteResource download(URL url, long maxLength, boolean conditional) throws IOException {
+        String name = DataURICache.hash(url.toString().getBytes("UTF-8"));
+        Properties cached = conditional ? readEntry(name) : null;
+        
+        URLConnection conn = url.openConnection();
+        conn.setConnectTimeout(connectTimeout);
+        conn.setReadTimeout(readTimeout);
+        
+        if (conn instanceof HttpURLConnection){
+            HttpURLConnection http = (HttpURLConnection) conn;
+            
+            if (cached != null){
+                if (cached.getProperty("etag") != null){
+                    http.setRequestProperty("If-None-Match", cached.getProperty("etag"));
+                }
+                if (cached.getProperty("lastModified") != null){
+                    http.setRequestProperty("If-Modified-Since", cached.getProperty("lastModified"));
+                }
+            }
+            
+            int status = http.getResponseCode();
+            requests.incrementAndGet();
+            
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null){
+                drain(http.getInputStream());
+                byte[] bytes = readCachedBytes(name);
+                
+                //the data file may have gone since the entry was read
+                if (bytes != null){
+                    notModified.incrementAndGet();
+                    if (maxLength >= 0 && bytes.length > maxLength){
+                        return null;
+                    }
+                    return new RemoteResource(cached.getProperty("contentType"), bytes, true);
+                }
+                return download(url, maxLength, false);
+            }
+            
+            if (status >= 400){
+                
+                //reading the error lets the connection be reused
+                drain(http.getErrorStream());
+                
+                if (status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_GONE){
+                    throw new FileNotFoundException(url.toString());
+                }
+                throw new IOException("Server returned HTTP " + status + " for '" + url + "'.");
+            }
+        }
+        
+        //reject large files from the headers alone
+        long contentLength = conn.getContentLengthLong();
+        if (maxLength >= 0 && contentLength > maxLength){
+            disconnect(conn);
+            return null;
+        }
+        
+        InputStream in = conn.getInputStream();
+        byte[] bytes;
+        try {
+            bytes = readFully(in, (int) contentLength, maxLength);
+        } finally {
+            in.close();
+        }
+        
+        //there was no Content-Length, but the body was too long
+        if (bytes == null){
+            disconnect(conn);
+            return null;
+        }
+        
+        String etag = conn.getHeaderField("ETag");
+        String lastModified = conn.getHeaderField("Last-Modified");
+        if (cacheDir != null && (etag != null || lastModified != null)){
+            writeEntry(name, url, conn.getContentType(), etag, lastModified, bytes);
+        }
+        
+        return new RemoteResource(conn.getContentType(), bytes, false);
+    }
+    
+    /**
+     * Reads a stream to the end, or returns null if it has more than
+     * maxLength bytes.
+     */
+    private static byte[] readFully(InputStream in, int length, long maxLength) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(length > 0 ? length : BUFFER_SIZE);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        
+        while ((read = in.read(buffer)) != -1){
+            bytes.write(buffer, 0, read);
+            if (maxLength >= 0 && bytes.size() > maxLength){
+                return null;
+            }
+        }
+        
+        return bytes.toByteArray();
+    }
+    
+    /**
+     * Closes the connection rather than reading the rest of a body that
+     * isn't wanted.
+     */
+    private static void disconnect(URLConnection conn){
+        if (conn instanceof HttpURLConnection){
+            ((HttpURLConnection) conn).disconnect();
+        }
+    }
+    
+    private static void drain(InputStream in) throws IOException {
+        if (in != null){
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                while (in.read(buffer) != -1){
+                    //discard
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+    
+    private Properties readEntry(String name) throws IOException {
+        if (cacheDir == null){
+            return null;
+        }
+        
+        File file = new File(cacheDir, name + ".properties");
+        if (!file.isFile()){
+            return null;
+        }
+        
+        Properties entry = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            entry.load(in);
+        } finally {
+            in.close();
+        }
+        return entry;
+    }
+    
+    private byte[] readCachedBytes(String name) throws IOException {
+        File file = new File(cacheDir, name + ".data");
+        if (!file.isFile()){
+            return null;
+        }
+        
+        InputStream in = new FileInputStream(file);
+        try {
+            return readFully(in, (int) file.length(), -1);
+        } finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * Saves a response. The data is written before the entry, so an entry
+     * always has data to go with it.
+     */
+    private void writeEntry(String name, URL url, String contentType, String etag, String lastModified, 
+            byte[] bytes) throws IOException {
+        
+        File temp = File.createTempFile(name, ".tmp", cacheDir);
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        DataURIDiskCache.moveTo(temp, new File(cacheDir, name + ".data"));
+        
+        Properties entry = new Properties();
+        entry.setProperty("url", url.toString());
+        if (contentType != null){
+            entry.setProperty("contentType", contentType);
+        }
+        if (etag != null){
+            entry.setProperty("etag", etag);
+        }
+        if (lastModified != null){
+            entry.setProperty("lastModified", lastModified);
+        }
+        
+        temp = File.createTempFile(name, ".tmp", cacheDir);
+        out = new FileOutputStream(temp);
+        try {
+            entry.store(out, null);
+        } finally {
+            out.close();
+        }
+        DataURIDiskCache.moveTo(temp, new File(cacheDir, name + ".properties"));
+    }
+}
@@ -0,0 +1,661 @@
+/*
+ * Copyright (c) 2009 Nicholas C. Zakas. All rights reserved.
+ * http://www.nczonline.net/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.nczonline.web.datauri;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Makes PNG and GIF images smaller without changing how they look. For PNG
+ * images, chunks that don't affect rendering (text, timestamps, gamma and 
+ * color profile information and so on) are removed and the image data is
+ * compressed again at the highest level, trying several ways of filtering
+ * each row. Single frame GIF images are converted to PNG when that's
+ * smaller. The original image is kept whenever the result isn't smaller,
+ * and anything that can't be understood, such as animated PNG, is left
+ * alone.
+ * <p>
+ * Optimizing is much slower than encoding, so it's meant to be used with a
+ * DataURICache, which keeps optimized data URIs by content hash.
+ * @author Nicholas C. Zakas
+ */
+public class ImageOptimizer {
+    
+    //images that would inflate to more than this are left alone
+    public static final int DEFAULT_MAX_PIXEL_BYTES = 64 * 1024 * 1024;
+    
+    private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+    
+    //Base64 for the PNG signature, used to recognize encoded PNG images
+    private static final String PNG_PAYLOAD_PREFIX = "iVBORw0KGgo";
+    
+    //chunks needed to display an image; everything else is removed
+    private static final String[] RENDERING_CHUNKS = { "IHDR", "PLTE", "tRNS", "IDAT", "IEND" };
+    
+    private boolean convertGIF = true;
+    private int maxPixelBytes = DEFAULT_MAX_PIXEL_BYTES;
+    private AtomicLong images = new AtomicLong();
+    private AtomicLong inputBytes = new AtomicLong();
+    private AtomicLong outputBytes = new AtomicLong();
+    
+    //--------------------------------------------------------------------------
+    // Settings
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Determines if single frame GIF images are converted to PNG when that
+     * makes them smaller.
+     * @return True if GIF images are converted, false if not.
+     */
+    public boolean isConvertGIF(){
+        return convertGIF;
+    }
+    
+    public void setConvertGIF(boolean convertGIF){
+        this.convertGIF = convertGIF;
+    }
+    
+    /**
+     * Returns the largest number of bytes an image's pixels may take up once
+     * decompressed for the image to be optimized.
+     * @return The maximum number of bytes.
+     */
+    public int getMaxPixelBytes(){
+        return maxPixelBytes;
+    }
+    
+    public void setMaxPixelBytes(int maxPixelBytes){
+        this.maxPixelBytes = maxPixelBytes;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Statistics
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Returns the number of images that have been optimized.
+     * @return The number of images.
+     */
+    public long getImages(){
+        return images.get();
+    }
+    
+    /**
+     * Returns the number of bytes saved on all images optimized so far.
+     * @return The number of bytes saved.
+     */
+    public long getSavedBytes(){
+        return inputBytes.get() - outputBytes.get();
+    }
+    
+    public String toString(){
+        return getImages() + " images optimized, " + getSavedBytes() + " bytes saved";
+    }
+    
+    //--------------------------------------------------------------------------
+    // Optimize images
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Generates a data URI from a file, optimizing the image first.
+     * @param file The file from which to generate the data URI.
+     * @param mimeType The MIME type of the file, or null to determine it
+     *      from its contents or the filename.
+     * @return The data URI.
+     * @throws java.io.IOException
+     */
+    public String toDataURI(File file, String mimeType) throws IOException {
+        return toDataURI(file, mimeType, DataURIGenerator.getDefault());
+    }
+    
+    /**
+     * Generates a data URI from a file with the given encoder, optimizing
+     * the image first.
+     * @param file The file from which to generate the data URI.
+     * @param mimeType The MIME type of the file, or null to determine it
+     *      from its contents or the filename.
+     * @param encoder The encoder to read and encode the file with.
+     * @return The data URI.
+     * @throws java.io.IOException
+     */
+    public String toDataURI(File file, String mimeType, DataURIEncoder encoder) throws IOException {
+        ByteBuffer bytes = encoder.readFile(file);
+        return toDataURI(bytes, encoder.getMimeType(file.getName(), mimeType, bytes), encoder);
+    }
+    
+    /**
+     * Optimizes an image and returns its data URI. The MIME type of the data
+     * URI is changed if the image was converted to another format.
+     * @param bytes The image.
+     * @param mimeType The MIME type of the image.
+     * @param encoder The encoder to encode the result with.
+     * @return The data URI.
+     * @throws java.io.IOException
+     */
+    String toDataURI(ByteBuffer bytes, String mimeType, DataURIEncoder encoder) throws IOException {
+        LoadStats stats = LoadStats.current();
+        long start = (stats != null) ? System.nanoTime() : 0;
+        ByteBuffer result = optimize(bytes);
+        if (stats != null){
+            stats.addOptimize(System.nanoTime() - start);
+        }
+        return encoder.toDataURI(result, getMimeType(result, mimeType));
+    }
+    
+    /**
+     * Optimizes an image. The buffer is not changed.
+     * @param bytes The image, from its position to its limit. PNG and GIF
+     *      images are recognized by their contents; anything else is
+     *      returned as it is.
+     * @return The optimized image, which is a PNG image if a GIF image was
+     *      converted, or the original buffer if the image couldn't be made
+     *      smaller.
+     */
+    public ByteBuffer optimize(ByteBuffer bytes){
+        byte[] data = new byte[bytes.remaining()];
+        bytes.duplicate().get(data);
+        
+        byte[] result;
+        if (startsWith(data, PNG_SIGNATURE)){
+            result = optimizePNG(data);
+        } else if (convertGIF && isGIF(data)){
+            result = convertGIF(data);
+        } else {
+            return bytes;
+        }
+        
+        images.incrementAndGet();
+        inputBytes.addAndGet(data.length);
+        
+        if (result == null || result.length >= data.length){
+            outputBytes.addAndGet(data.length);
+            return bytes;
+        }
+        
+        outputBytes.addAndGet(result.length);
+        return ByteBuffer.wrap(result);
+    }
+    
+    /**
+     * Returns the MIME type of an optimized image, which is image/png if the 
+     * image has been converted to PNG.
+     * @param bytes The optimized image.
+     * @param mimeType The MIME type of the original image.
+     * @return The MIME type of the optimized image.
+     */
+    static String getMimeType(ByteBuffer bytes, String mimeType){
+        if (bytes.remaining() >= PNG_SIGNATURE.length){
+            for (int i=0; i < PNG_SIGNATURE.length; i++){
+                if (bytes.get(bytes.position() + i) != PNG_SIGNATURE[i]){
+                    return mimeType;
+                }
+            }
+            return "image/png";
+        }
+        return mimeType;
+    }
+    
+    /**
+     * Returns the MIME type of an optimized image that has already been
+     * Base64-encoded, which is image/png if the image has been converted.
+     * @param payload The Base64-encoded optimized image.
+     * @param mimeType The MIME type of the original image.
+     * @return The MIME type of the optimized image.
+     */
+    static String getMimeType(String payload, String mimeType){
+        return payload.startsWith(PNG_PAYLOAD_PREFIX) ? "image/png" : mimeType;
+    }
+    
+    //--------------------------------------------------------------------------
+    // PNG
+    //--------------------------------------------------------------------------    
+    
+    /*
+     * Removes chunks that aren't needed and compresses the image data again.
+     * Returns null if the image can't be optimized.
+     */
+    private byte[] optimizePNG(byte[] data){
+        if (!startsWith(data, PNG_SIGNATURE)){
+            return null;
+        }
+        
+        ByteArrayOutputStream before = new ByteArrayOutputStream();
+        ByteArrayOutputStream after = new ByteArrayOutputStream();
+        ByteArrayOutputStream idat = new ByteArrayOutputStream();
+        ByteArrayOutputStream current = before;
+        byte[] header = null;
+        int pos = PNG_SIGNATURE.length;
+        boolean ended = false;
+        
+        //collect the chunks to keep on either side of the image data
+        while (!ended){
+            if (pos + 12 > data.length){
+                return null;
+            }
+            
+            int length = readInt(data, pos);
+            if (length < 0 || length > data.length - pos - 12){
+                return null;
+            }
+            
+            String type = getType(data, pos + 4);
+            CRC32 crc = new CRC32();
+            crc.update(data, pos + 4, length + 4);
+            if ((int) crc.getValue() != readInt(data, pos + 8 + length)){
+                return null;
+            }
+            
+            if (type.equals("IHDR")){
+                header = new byte[length];
+                System.arraycopy(data, pos + 8, header, 0, length);
+            } else if (type.equals("acTL")){
+                
+                //animated PNG frames are in chunks that would be removed
+                return null;
+            } else if (type.equals("IEND")){
+                ended = true;
+            }
+            
+            if (type.equals("IDAT")){
+                idat.write(data, pos + 8, length);
+                current = after;
+            } else if (isRenderingChunk(type)){
+                current.write(data, pos, length + 12);
+            }
+            
+            pos += length + 12;
+        }
+        
+        if (header == null || header.length != 13 || idat.size() == 0){
+            return null;
+        }
+        
+        byte[] compressed = compressImageData(header, idat.toByteArray());
+        if (compressed == null){
+            return null;
+        }
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+        out.write(PNG_SIGNATURE, 0, PNG_SIGNATURE.length);
+        writeBytes(before, out);
+        writeChunk(out, "IDAT", compressed);
+        writeBytes(after, out);
+        return out.toByteArray();
+    }
+    
+    /*
+     * Compresses the image data again, keeping the smallest of several ways
+     * of filtering the rows. Returns null if the data can't be understood.
+     */
+    private byte[] compressImageData(byte[] header, byte[] idat){
+        long width = readInt(header, 0) & 0xffffffffL;
+        long height = readInt(header, 4) & 0xffffffffL;
+        int bitDepth = header[8];
+        int channels = getChannels(header[9]);
+        boolean interlaced = header[12] != 0;
+        
+        if (channels == 0 || width == 0 || height == 0){
+            return null;
+        }
+        
+        int bitsPerPixel = bitDepth * channels;
+        long rowBytes = (width * bitsPerPixel + 7) / 8;
+        long size = height * (rowBytes + 1);
+        
+        //interlaced images have more, shorter rows
+        if (size > maxPixelBytes || (interlaced && size * 2 > maxPixelBytes)){
+            return null;
+        }
+        
+        byte[] filtered = inflate(idat, interlaced ? (int) size * 2 : (int) size);
+        if (filtered == null){
+            return null;
+        }
+        
+        //the original data is kept if nothing beats it
+        byte[] best = smaller(idat, deflate(filtered, Deflater.DEFAULT_STRATEGY));
+        
+        //the rows of interlaced images are only compressed again as they are
+        if (!interlaced && filtered.length == size){
+            int bpp = Math.max(1, bitsPerPixel / 8);
+            byte[] raw = unfilter(filtered, (int) rowBytes, (int) height, bpp);
+            if (raw == null){
+                return null;
+            }
+            
+            byte[][] candidates = {
+                filter(raw, (int) rowBytes, (int) height, bpp, false),
+                filter(raw, (int) rowBytes, (int) height, bpp, true)
+            };
+            
+            for (int i=0; i < candidates.length; i++){
+                best = smaller(best, deflate(candidates[i], Deflater.DEFAULT_STRATEGY));
+                best = smaller(best, deflate(candidates[i], Deflater.FILTERED));
+            }
+        }
+        
+        return best;
+    }
+    
+    /*
+     * Reverses the filter on each row, returning just the pixel data.
+     */
+    private static byte[] unfilter(byte[] filtered, int rowBytes, int height, int bpp){
+        byte[] raw = new byte[rowBytes * height];
+        
+        for (int y=0; y < height; y++){
+            int in = y * (rowBytes + 1) + 1;
+            int row = y * rowBytes;
+            int type = filtered[in - 1];
+            
+            for (int x=0; x < rowBytes; x++){
+                int a = (x >= bpp) ? raw[row + x - bpp] & 0xff : 0;
+                int b = (y > 0) ? raw[row + x - rowBytes] & 0xff : 0;
+                int c = (x >= bpp && y > 0) ? raw[row + x - rowBytes - bpp] & 0xff : 0;
+                int value = filtered[in + x];
+                
+                switch (type){
+                    case 0: break;
+                    case 1: value += a; break;
+                    case 2: value += b; break;
+                    case 3: value += (a + b) >> 1; break;
+                    case 4: value += paeth(a, b, c); break;
+                    default: return null;
+                }
+                
+                raw[row + x] = (byte) value;
+            }
+        }
+        
+        return raw;
+    }
+    
+    /*
+     * Filters each row, either with no filter at all or with whichever filter
+     * gives the smallest sum of absolute differences, which usually
+     * compresses best.
+     */
+    private static byte[] filter(byte[] raw, int rowBytes, int height, int bpp, boolean adaptive){
+        byte[] filtered = new byte[(rowBytes + 1) * height];
+        byte[] row = new byte[rowBytes];
+        
+        for (int y=0; y < height; y++){
+            int out = y * (rowBytes + 1);
+            long bestSum = Long.MAX_VALUE;
+            
+            for (int type = 0; type <= (adaptive ? 4 : 0); type++){
+                long sum = 0;
+                
+                for (int x=0; x < rowBytes; x++){
+                    int i = y * rowBytes + x;
+                    int a = (x >= bpp) ? raw[i - bpp] & 0xff : 0;
+                    int b = (y > 0) ? raw[i - rowBytes] & 0xff : 0;
+                    int c = (x >= bpp && y > 0) ? raw[i - rowBytes - bpp] & 0xff : 0;
+                    int value = raw[i] & 0xff;
+                    
+                    switch (type){
+                        case 1: value -= a; break;
+                        case 2: value -= b; break;
+                        case 3: value -= (a + b) >> 1; break;
+                        case 4: value -= paeth(a, b, c); break;
+                    }
+                    
+                    row[x] = (byte) value;
+                    sum += Math.abs((int) row[x]);
+                }
+                
+                if (sum < bestSum){
+                    bestSum = sum;
+                    filtered[out] = (byte) type;
+                    System.arraycopy(row, 0, filtered, out + 1, rowBytes);
+                }
+            }
+        }
+        
+        return filtered;
+    }
+    
+    private static int paeth(int a, int b, int c){
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        
+        if (pa <= pb && pa <= pc){
+            return a;
+        } else if (pb <= pc){
+            return b;
+        } else {
+            return c;
+        }
+    }
+    
+    private static int getChannels(int colorType){
+        switch (colorType){
+            case 0: return 1;   //grayscale
+            case 2: return 3;   //RGB
+            case 3: return 1;   //palette
+            case 4: return 2;   //grayscale and alpha
+            case 6: return 4;   //RGB and alpha
+            default: return 0;
+        }
+    }
+    
+    private static boolean isRenderingChunk(String type){
+        for (int i=0; i < RENDERING_CHUNKS.length; i++){
+            if (RENDERING_CHUNKS[i].equals(type)){
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    //--------------------------------------------------------------------------
+    // GIF
+    //--------------------------------------------------------------------------    
+    
+    /*
+     * Converts a single frame GIF image to an optimized PNG image. Returns 
+     * null if the image can't be converted.
+     */
+    private byte[] convertGIF(byte[] data){
+        if (!isGIF(data) || data.length < 10){
+            return null;
+        }
+        
+        Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("gif");
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("png");
+        if (!readers.hasNext() || !writers.hasNext()){
+            return null;
+        }
+        
+        ImageReader reader = readers.next();
+        ImageWriter writer = writers.next();
+        
+        try {
+            reader.setInput(new MemoryCacheImageInputStream(new ByteArrayInputStream(data)));
+            if (reader.getNumImages(true) != 1){
+                return null;
+            }
+            
+            //a frame smaller than the image would lose its position
+            BufferedImage image = reader.read(0);
+            int width = (data[6] & 0xff) | (data[7] & 0xff) << 8;
+            int height = (data[8] & 0xff) | (data[9] & 0xff) << 8;
+            if (image.getWidth() != width || image.getHeight() != height){
+                return null;
+            }
+            
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ImageOutputStream out = new MemoryCacheImageOutputStream(bytes);
+            try {
+                writer.setOutput(out);
+                writer.write(image);
+            } finally {
+                out.close();
+            }
+            
+            byte[] png = bytes.toByteArray();
+            byte[] optimized = optimizePNG(png);
+            return (optimized != null) ? smaller(png, optimized) : png;
+            
+        } catch (IOException e){
+            return null;
+        } catch (RuntimeException e){
+            return null;
+        } finally {
+            reader.dispose();
+            writer.dispose();
+        }
+    }
+    
+    private static boolean isGIF(byte[] data){
+        return data.length >= 6 && data[0] == 'G' && data[1] == 'I' && data[2] == 'F' && data[3] == '8';
+    }
+    
+    //--------------------------------------------------------------------------
+    // Helper methods
+    //--------------------------------------------------------------------------    
+    
+    /*
+     * Decompresses zlib data, returning null if it's not valid or is larger
+     * than the given size.
+     */
+    private static byte[] inflate(byte[] data, int maxSize){
+        Inflater inflater = new Inflater();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(maxSize, data.length * 4));
+        byte[] buffer = new byte[8192];
+        
+        try {
+            inflater.setInput(data);
+            while (!inflater.finished()){
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())){
+                    return null;
+                }
+                out.write(buffer, 0, count);
+                if (out.size() > maxSize){
+                    return null;
+                }
+            }
+        } catch (DataFormatException e){
+            return null;
+        } finally {
+            inflater.end();
+        }
+        
+        return out.toByteArray();
+    }
+    
+    private static byte[] deflate(byte[] data, int strategy){
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+        byte[] buffer = new byte[8192];
+        
+        try {
+            deflater.setStrategy(strategy);
+            deflater.setInput(data);
+            deflater.finish();
+            while (!deflater.finished()){
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            deflater.end();
+        }
+        
+        return out.toByteArray();
+    }
+    
+    private static void writeChunk(ByteArrayOutputStream out, String type, byte[] data){
+        byte[] typeBytes = new byte[4];
+        for (int i=0; i < typeBytes.length; i++){
+            typeBytes[i] = (byte) type.charAt(i);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data);
+        
+        writeInt(out, data.length);
+        out.write(typeBytes, 0, typeBytes.length);
+        out.write(data, 0, data.length);
+        writeInt(out, (int) crc.getValue());
+    }
+    
+    private static void writeBytes(ByteArrayOutputStream from, ByteArrayOutputStream to){
+        byte[] bytes = from.toByteArray();
+        to.write(bytes, 0, bytes.length);
+    }
+    
+    private static String getType(byte[] data, int pos){
+        char[] type = new char[4];
+        for (int i=0; i < type.length; i++){
+            type[i] = (char) (data[pos + i] & 0xff);
+        }
+        return new String(type);
+    }
+    
+    private static int readInt(byte[] data, int pos){
+        return (data[pos] & 0xff) << 24 | (data[pos + 1] & 0xff) << 16 | (data[pos + 2] & 0xff) << 8 | (data[pos + 3] & 0xff);
+    }
+    
+    private static void writeInt(ByteArrayOutputStream out, int value){
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+    
+    private static boolean startsWith(byte[] data, byte[] prefix){
+        if (data.length < prefix.length){
+            return false;
+        }
+        for (int i=0; i < prefix.length; i++){
+            if (data[i] != prefix[i]){
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static byte[] smaller(byte[] a, byte[] b){
+        return (b.length < a.length) ? b : a;
+    }
+}
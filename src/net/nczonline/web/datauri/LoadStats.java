@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2009 Nicholas C. Zakas. All rights reserved.
+ * http://www.nczonline.net/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.nczonline.web.datauri;
+
+/**
+ * Counts the bytes read and the time spent reading and encoding while
+ * data URIs are generated on one thread. Nothing is counted unless
+ * start() has been called on the thread, so when no one is asking the
+ * cost is a thread-local lookup per file.
+ * @author Nicholas C. Zakas
+ */
+public class LoadStats {
+    
+    public static final String CACHE_HIT = "hit";
+    public static final String CACHE_CONTENT_HIT = "content hit";
+    public static final String CACHE_DISK_HIT = "disk hit";
+    public static final String CACHE_MISS = "miss";
+    
+    private static final ThreadLocal<LoadStats> current = new ThreadLocal<LoadStats>();
+    
+    private long bytesRead = 0;
+    private long encodedLength = 0;
+    private long readNanos = 0;
+    private long encodeNanos = 0;
+    private String cacheResult = null;
+    
+    //--------------------------------------------------------------------------
+    // Start/stop counting
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Starts counting on the current thread, replacing anything counted 
+     * before.
+     * @return The object that will hold the counts.
+     */
+    public static LoadStats start(){
+        LoadStats stats = new LoadStats();
+        current.set(stats);
+        return stats;
+    }
+    
+    /**
+     * Stops counting on the current thread.
+     */
+    public void stop(){
+        if (current.get() == this){
+            current.remove();
+        }
+    }
+    
+    /*
+     * Returns the object counting on the current thread, or null if no one
+     * is counting.
+     */
+    static LoadStats current(){
+        return current.get();
+    }
+    
+    //--------------------------------------------------------------------------
+    // Counts
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Returns the number of bytes read from files or downloaded.
+     * @return The number of bytes.
+     */
+    public long getBytesRead(){
+        return bytesRead;
+    }
+    
+    /**
+     * Returns the number of characters in the data URIs generated.
+     * @return The number of characters.
+     */
+    public long getEncodedLength(){
+        return encodedLength;
+    }
+    
+    /**
+     * Returns the time spent reading files or downloading them.
+     * @return The number of nanoseconds.
+     */
+    public long getReadNanos(){
+        return readNanos;
+    }
+    
+    /**
+     * Returns the time spent optimizing images and encoding them.
+     * @return The number of nanoseconds.
+     */
+    public long getEncodeNanos(){
+        return encodeNanos;
+    }
+    
+    /**
+     * Returns what the data URI cache had for the last file, one of the 
+     * CACHE_ constants.
+     * @return The result, or null if no cache was used.
+     */
+    public String getCacheResult(){
+        return cacheResult;
+    }
+    
+    void addRead(long bytes, long nanos){
+        bytesRead += bytes;
+        readNanos += nanos;
+    }
+    
+    void addEncode(long length, long nanos){
+        encodedLength += length;
+        encodeNanos += nanos;
+    }
+    
+    void addOptimize(long nanos){
+        encodeNanos += nanos;
+    }
+    
+    void setCacheResult(String cacheResult){
+        this.cacheResult = cacheResult;
+    }
+}
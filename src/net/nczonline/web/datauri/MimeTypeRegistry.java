@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2009 Nicholas C. Zakas. All rights reserved.
+ * http://www.nczonline.net/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.nczonline.web.datauri;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the MIME types of embeddable files. Types are found from file
+ * extensions, ignoring case, and from the first few bytes of the file, so
+ * that files without an extension, or with the wrong one, still get the 
+ * right type. The type detected for each path can also be remembered, so
+ * that a path only has to be read once to find out what it is. All methods
+ * are safe to call from multiple threads.
+ * @author Nicholas C. Zakas
+ */
+public class MimeTypeRegistry {
+    
+    //maximum number of paths to remember types for
+    private static final int MAX_PATHS = 16384;
+    
+    private final ConcurrentHashMap<String,String> extensions = new ConcurrentHashMap<String,String>();
+    private final ConcurrentHashMap<String,String> paths = new ConcurrentHashMap<String,String>();
+    
+    //replaced rather than changed, so it can be read without locking
+    private volatile Signature[] signatures = new Signature[0];
+    
+    //the most bytes any signature looks at
+    private volatile int sniffLength = 0;
+    
+    //--------------------------------------------------------------------------
+    // Constructors
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Creates a new registry without any types. Use createDefault() for one
+     * that knows the usual image and font types.
+     */
+    public MimeTypeRegistry(){
+    }
+    
+    /**
+     * Creates a new registry that knows the extensions and signatures of
+     * the image and font types that browsers support in data URIs.
+     * @return The registry.
+     */
+    public static MimeTypeRegistry createDefault(){
+        MimeTypeRegistry registry = new MimeTypeRegistry();
+        
+        registry.addExtension("gif", "image/gif");
+        registry.addExtension("jpg", "image/jpeg");
+        registry.addExtension("jpeg", "image/jpeg");
+        registry.addExtension("png", "image/png");
+        registry.addExtension("svg", SVGEncoder.MIME_TYPE);
+        registry.addExtension("webp", "image/webp");
+        registry.addExtension("avif", "image/avif");
+        registry.addExtension("bmp", "image/bmp");
+        registry.addExtension("ico", "image/x-icon");
+        registry.addExtension("cur", "image/x-icon");
+        registry.addExtension("woff", "font/woff");
+        registry.addExtension("woff2", "font/woff2");
+        registry.addExtension("ttf", "font/ttf");
+        registry.addExtension("otf", "font/otf");
+        
+        registry.addSignature("image/png", "89 50 4E 47 0D 0A 1A 0A");
+        registry.addSignature("image/gif", "47 49 46 38 37 61");
+        registry.addSignature("image/gif", "47 49 46 38 39 61");
+        registry.addSignature("image/jpeg", "FF D8 FF");
+        registry.addSignature("image/webp", "52 49 46 46 ?? ?? ?? ?? 57 45 42 50");
+        registry.addSignature("image/avif", "?? ?? ?? ?? 66 74 79 70 61 76 69 66");
+        registry.addSignature("image/bmp", "42 4D ?? ?? ?? ?? 00 00 00 00");
+        registry.addSignature("image/x-icon", "00 00 01 00");
+        registry.addSignature("image/x-icon", "00 00 02 00");
+        registry.addSignature(SVGEncoder.MIME_TYPE, "3C 73 76 67");
+        registry.addSignature("font/woff", "77 4F 46 46");
+        registry.addSignature("font/woff2", "77 4F 46 32");
+        registry.addSignature("font/ttf", "00 01 00 00 00");
+        registry.addSignature("font/otf", "4F 54 54 4F");
+        
+        return registry;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Registration
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Adds a file extension, replacing any type it already had.
+     * @param extension The extension, without the ".". Case doesn't matter.
+     * @param mimeType The MIME type of files with the extension.
+     */
+    public void addExtension(String extension, String mimeType){
+        extensions.put(extension.toLowerCase(), mimeType);
+    }
+    
+    /**
+     * Adds a signature that files of a type start with. Signatures are 
+     * checked in the order they were added and the first to match wins.
+     * @param mimeType The MIME type of files that match.
+     * @param pattern The bytes the file starts with, as pairs of hex digits.
+     *      "??" matches any byte. Spaces are ignored.
+     * @throws IllegalArgumentException If the pattern isn't valid.
+     */
+    public synchronized void addSignature(String mimeType, String pattern){
+        Signature signature = new Signature(mimeType, pattern);
+        
+        Signature[] newSignatures = new Signature[signatures.length + 1];
+        System.arraycopy(signatures, 0, newSignatures, 0, signatures.length);
+        newSignatures[signatures.length] = signature;
+        
+        signatures = newSignatures;
+        sniffLength = Math.max(sniffLength, signature.bytes.length);
+    }
+    
+    //--------------------------------------------------------------------------
+    // Lookup
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Returns the MIME type for a file extension.
+     * @param extension The extension, without the ".". Case doesn't matter.
+     * @return The MIME type, or null if the extension isn't known.
+     */
+    public String getExtensionType(String extension){
+        
+        //extensions are nearly always lower case already
+        String mimeType = extensions.get(extension);
+        if (mimeType == null){
+            mimeType = extensions.get(extension.toLowerCase());
+        }
+        return mimeType;
+    }
+    
+    /**
+     * Determines if the given MIME type is one of the types in the registry.
+     * @param mimeType The MIME type to check.
+     * @return True if an extension or signature has the type.
+     */
+    public boolean isKnownType(String mimeType){
+        if (extensions.containsValue(mimeType)){
+            return true;
+        }
+        
+        Signature[] current = signatures;
+        for (int i=0; i < current.length; i++){
+            if (current[i].mimeType.equals(mimeType)){
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Returns the number of bytes that detect() looks at, which is the
+     * length of the longest signature.
+     * @return The number of bytes.
+     */
+    public int getSniffLength(){
+        return sniffLength;
+    }
+    
+    /**
+     * Works out the MIME type of a file from its first few bytes. Only the
+     * bytes that signatures look at are read, and the buffer isn't changed.
+     * @param bytes The file, from position to limit.
+     * @return The MIME type, or null if no signature matches.
+     */
+    public String detect(ByteBuffer bytes){
+        Signature[] current = signatures;
+        for (int i=0; i < current.length; i++){
+            if (current[i].matches(bytes)){
+                return current[i].mimeType;
+            }
+        }
+        return null;
+    }
+    
+    //--------------------------------------------------------------------------
+    // Detected types for each path
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Returns the type detected earlier for a path.
+     * @param path The path or URL.
+     * @return The MIME type, or null if nothing has been detected.
+     */
+    public String getDetectedType(String path){
+        return paths.get(path);
+    }
+    
+    /**
+     * Remembers the type detected for a path.
+     * @param path The path or URL.
+     * @param mimeType The MIME type.
+     */
+    public void putDetectedType(String path, String mimeType){
+        
+        //paths are cheap to detect again, so start over rather than track use
+        if (paths.size() >= MAX_PATHS){
+            paths.clear();
+        }
+        paths.put(path, mimeType);
+    }
+    
+    /**
+     * Forgets all detected types, such as when files may have changed.
+     */
+    public void clearDetectedTypes(){
+        paths.clear();
+    }
+    
+    /**
+     * Determines if files of a MIME type can be embedded in a style sheet,
+     * which is true for images and fonts.
+     * @param mimeType The MIME type to check.
+     * @return True if the type can be embedded.
+     */
+    public static boolean isEmbeddable(String mimeType){
+        return mimeType.startsWith("image/") || mimeType.startsWith("font/");
+    }
+    
+    //--------------------------------------------------------------------------
+    // Signature
+    //--------------------------------------------------------------------------    
+    
+    private static class Signature {
+        
+        private final String mimeType;
+        private final byte[] bytes;
+        private final boolean[] wildcards;
+        
+        Signature(String mimeType, String pattern){
+            String digits = pattern.replace(" ", "");
+            if (digits.length() == 0 || digits.length() % 2 != 0){
+                throw new IllegalArgumentException("Invalid signature '" + pattern + "'.");
+            }
+            
+            this.mimeType = mimeType;
+            bytes = new byte[digits.length() / 2];
+            wildcards = new boolean[bytes.length];
+            
+            for (int i=0; i < bytes.length; i++){
+                String pair = digits.substring(i * 2, i * 2 + 2);
+                if (pair.equals("??")){
+                    wildcards[i] = true;
+                } else {
+                    try {
+                        bytes[i] = (byte) Integer.parseInt(pair, 16);
+                    } catch (NumberFormatException e){
+                        throw new IllegalArgumentException("Invalid signature '" + pattern + "'.");
+                    }
+                }
+            }
+        }
+        
+        boolean matches(ByteBuffer buffer){
+            if (buffer.remaining() < bytes.length){
+                return false;
+            }
+            
+            int start = buffer.position();
+            for (int i=0; i < bytes.length; i++){
+                if (!wildcards[i] && buffer.get(start + i) != bytes[i]){
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
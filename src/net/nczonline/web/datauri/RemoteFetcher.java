@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2009 Nicholas C. Zakas. All rights reserved.
+ * http://www.nczonline.net/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.nczonline.web.datauri;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Downloads remote files so that data URIs can be generated from them.
+ * Implementations must be safe to call from several threads at once.
+ * @author Nicholas C. Zakas
+ */
+public interface RemoteFetcher {
+    
+    /**
+     * Downloads the contents of a URL, unless it's larger than the given
+     * number of bytes. When the server says how large the file is, larger
+     * files should be rejected without downloading them.
+     * @param url The URL to download.
+     * @param maxLength The most bytes to download, or -1 for no limit.
+     * @return The contents and their MIME type, or null if the file is
+     *      larger than maxLength.
+     * @throws java.io.FileNotFoundException When the URL doesn't exist.
+     * @throws java.io.IOException When the URL can't be downloaded.
+     */
+    RemoteResource fetch(URL url, long maxLength) throws IOException;
+}
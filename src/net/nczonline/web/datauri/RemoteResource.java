@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2009 Nicholas C. Zakas. All rights reserved.
+ * http://www.nczonline.net/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.nczonline.web.datauri;
+
+/**
+ * The contents of a downloaded file.
+ * @author Nicholas C. Zakas
+ */
+public class RemoteResource {
+    
+    private String contentType;
+    private byte[] bytes;
+    private boolean cached;
+    
+    /**
+     * Creates a new resource.
+     * @param contentType The Content-Type sent by the server, or null.
+     * @param bytes The contents.
+     * @param cached True if the contents came from a local cache because
+     *      the server said they hadn't changed.
+     */
+    public RemoteResource(String contentType, byte[] bytes, boolean cached){
+        this.contentType = contentType;
+        this.bytes = bytes;
+        this.cached = cached;
+    }
+    
+    public String getContentType(){
+        return contentType;
+    }
+    
+    public byte[] getBytes(){
+        return bytes;
+    }
+    
+    public boolean isCached(){
+        return cached;
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2009 Nicholas C. Zakas. All rights reserved.
+ * http://www.nczonline.net/
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.nczonline.web.datauri;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes SVG images for data URIs. SVG is text, so percent-encoding just
+ * the characters that need it is usually much smaller than Base64, and
+ * compresses better too. Both forms are generated and the smaller one is
+ * used. Spaces, apostrophes and parentheses are left as they are, so a
+ * percent-encoded data URI has to be quoted when used in CSS.
+ * @author Nicholas C. Zakas
+ */
+class SVGEncoder {
+    
+    public static final String MIME_TYPE = "image/svg+xml";
+    
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    
+    //printable ASCII that still has to be encoded
+    private static final String RESERVED = "\"%#<>\\`^{|}";
+    
+    //--------------------------------------------------------------------------
+    // Encode
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Determines if a MIME type is for SVG.
+     * @param mimeType The MIME type to check.
+     * @return True for SVG, false otherwise.
+     */
+    static boolean isSVG(String mimeType){
+        return mimeType.regionMatches(true, 0, MIME_TYPE, 0, MIME_TYPE.length());
+    }
+    
+    /**
+     * Generates a data URI for an SVG image, using whichever of Base64 and
+     * percent-encoding is smaller once gzipped, as the CSS would be when 
+     * served, or if that's the same, before. Images that aren't valid UTF-8
+     * are always Base64-encoded.
+     * @param bytes The SVG image.
+     * @param out Where to output the data URI.
+     * @param mimeType The MIME type to specify in the data URI.
+     * @param minify True to remove comments and unneeded whitespace first.
+     * @throws java.io.IOException
+     */
+    static void generateDataURI(ByteBuffer bytes, Appendable out, String mimeType, boolean minify) throws IOException {
+        generateDataURI(bytes, out, mimeType, minify, Base64Encoder.getBackend());
+    }
+    
+    /**
+     * Generates a data URI for an SVG image, Base64-encoding with the given
+     * backend if that's chosen.
+     * @param bytes The SVG image.
+     * @param out Where to output the data URI.
+     * @param mimeType The MIME type to specify in the data URI.
+     * @param minify True to remove comments and unneeded whitespace first.
+     * @param backend The backend to encode with.
+     * @throws java.io.IOException
+     */
+    static void generateDataURI(ByteBuffer bytes, Appendable out, String mimeType, boolean minify, 
+            Base64Backend backend) throws IOException {
+        String svg;
+        try {
+            svg = UTF8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(bytes.duplicate()).toString();
+        } catch (CharacterCodingException e){
+            out.append("data:").append(mimeType).append(";base64,");
+            Base64Encoder.encode(bytes, out, backend);
+            return;
+        }
+        
+        //the byte order mark isn't needed
+        if (svg.length() > 0 && svg.charAt(0) == '\uFEFF'){
+            svg = svg.substring(1);
+        }
+        
+        if (minify){
+            svg = minify(svg);
+        }
+        
+        byte[] data = svg.getBytes("UTF-8");
+        StringBuilder base64 = new StringBuilder("data:").append(mimeType).append(";base64,");
+        Base64Encoder.encode(data, 0, data.length, base64, backend);
+        
+        StringBuilder encoded = new StringBuilder("data:").append(mimeType).append(',');
+        percentEncode(data, encoded);
+        
+        int base64Length = gzipLength(base64);
+        int encodedLength = gzipLength(encoded);
+        
+        if (encodedLength < base64Length || (encodedLength == base64Length && encoded.length() < base64.length())){
+            out.append(encoded);
+        } else {
+            out.append(base64);
+        }
+    }
+    
+    /**
+     * Converts a percent-encoded data URI to Base64. Base64 data URIs are
+     * returned as they are.
+     * @param uri The data URI.
+     * @return The data URI using Base64.
+     * @throws java.io.IOException
+     */
+    static String toBase64(String uri) throws IOException {
+        int comma = uri.indexOf(',');
+        if (comma < 0 || uri.regionMatches(true, comma - 7, ";base64", 0, 7)){
+            return uri;
+        }
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(uri.length());
+        for (int i = comma + 1; i < uri.length(); i++){
+            char c = uri.charAt(i);
+            if (c == '%' && i + 2 < uri.length()){
+                bytes.write(Integer.parseInt(uri.substring(i + 1, i + 3), 16));
+                i += 2;
+            } else if (c < 0x80){
+                bytes.write(c);
+            } else {
+                byte[] utf8 = String.valueOf(c).getBytes("UTF-8");
+                bytes.write(utf8, 0, utf8.length);
+            }
+        }
+        
+        byte[] data = bytes.toByteArray();
+        StringBuilder builder = new StringBuilder(uri.substring(0, comma)).append(";base64,");
+        Base64Encoder.encode(data, 0, data.length, builder);
+        return builder.toString();
+    }
+    
+    //--------------------------------------------------------------------------
+    // Helper methods
+    //--------------------------------------------------------------------------    
+    
+    /**
+     * Removes comments, whitespace between tags and extra whitespace inside
+     * tags. Images with text, styles, scripts or CDATA sections, where
+     * whitespace may matter, only have their comments removed, and those
+     * with CDATA sections aren't changed at all.
+     * @param svg The SVG image.
+     * @return The minified image.
+     */
+    static String minify(String svg){
+        if (svg.indexOf("<![CDATA[") > -1){
+            return svg;
+        }
+        
+        boolean textContent = svg.indexOf("<text") > -1 || svg.indexOf("<style") > -1 || 
+                svg.indexOf("<script") > -1 || svg.indexOf("xml:space") > -1;
+        StringBuilder builder = new StringBuilder(svg.length());
+        boolean inTag = false;
+        char quote = 0;
+        
+        for (int i = 0; i < svg.length(); i++){
+            char c = svg.charAt(i);
+            
+            if (quote != 0){
+                if (c == quote){
+                    quote = 0;
+                }
+                builder.append(c);
+            } else if (!inTag && svg.startsWith("<!--", i)){
+                int end = svg.indexOf("-->", i + 4);
+                i = (end < 0) ? svg.length() : end + 2;
+            } else if (c == '<'){
+                inTag = true;
+                builder.append(c);
+            } else if (c == '>'){
+                inTag = false;
+                trimEnd(builder);
+                builder.append(c);
+            } else if (inTag && (c == '"' || c == '\'')){
+                quote = c;
+                builder.append(c);
+            } else if (Character.isWhitespace(c)){
+                int end = i;
+                while (end + 1 < svg.length() && Character.isWhitespace(svg.charAt(end + 1))){
+                    end++;
+                }
+                
+                if (inTag){
+                    if (svg.charAt(end + 1 < svg.length() ? end + 1 : end) != '/'){
+                        builder.append(' ');
+                    }
+                } else if (textContent || builder.length() == 0 || end + 1 >= svg.length() ||
+                        builder.charAt(builder.length() - 1) != '>' || svg.charAt(end + 1) != '<'){
+                    builder.append(svg, i, end + 1);
+                }
+                i = end;
+            } else {
+                builder.append(c);
+            }
+        }
+        
+        return builder.toString().trim();
+    }
+    
+    private static void trimEnd(StringBuilder builder){
+        while (builder.length() > 0 && builder.charAt(builder.length() - 1) == ' '){
+            builder.setLength(builder.length() - 1);
+        }
+    }
+    
+    /*
+     * Percent-encodes everything other than printable ASCII that's safe in
+     * a quoted CSS string.
+     */
+    private static void percentEncode(byte[] data, StringBuilder out){
+        for (int i = 0; i < data.length; i++){
+            int b = data[i] & 0xff;
+            if (b < 0x20 || b >= 0x7f || RESERVED.indexOf(b) > -1){
+                out.append('%').append(HEX[b >> 4]).append(HEX[b & 0xf]);
+            } else {
+                out.append((char) b);
+            }
+        }
+    }
+    
+    /*
+     * Returns the number of bytes text takes up once gzipped.
+     */
+    private static int gzipLength(CharSequence text) throws UnsupportedEncodingException {
+        byte[] data = text.toString().getBytes("US-ASCII");
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        byte[] buffer = new byte[4096];
+        int length = 0;
+        
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            while (!deflater.finished()){
+                length += deflater.deflate(buffer);
+            }
+        } finally {
+            deflater.end();
+        }
+        
+        return length;
+    }
+}
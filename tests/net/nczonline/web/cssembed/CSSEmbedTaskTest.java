@@ -0,0 +1,120 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package net.nczonline.web.cssembed;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Nicholas C. Zakas
+ */
+public class CSSEmbedTaskTest {
+    
+    private static final int FILES = 6;
+    
+    private TestFiles files;
+    private File dir;
+    private Project project;
+    private List<String> messages;
+    
+    @Before
+    public void setUp() throws IOException {
+        files = new TestFiles();
+        dir = files.getDir();
+        
+        messages = Collections.synchronizedList(new ArrayList<String>());
+        project = new Project();
+        project.setBaseDir(dir);
+        project.addBuildListener(new BuildListener(){
+            public void buildStarted(BuildEvent event){}
+            public void buildFinished(BuildEvent event){}
+            public void targetStarted(BuildEvent event){}
+            public void targetFinished(BuildEvent event){}
+            public void taskStarted(BuildEvent event){}
+            public void taskFinished(BuildEvent event){}
+            public void messageLogged(BuildEvent event){
+                messages.add(event.getMessage());
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        files.delete();
+    }
+    
+    private CSSEmbedTask createTask(){
+        CSSEmbedTask task = new CSSEmbedTask();
+        task.setProject(project);
+        task.setThreads(4);
+        task.setVerbose(true);
+        
+        FileSet fileSet = new FileSet();
+        fileSet.setProject(project);
+        fileSet.setDir(dir);
+        fileSet.setIncludes("*.css");
+        task.add(fileSet);
+        return task;
+    }
+    
+    @Test
+    public void testThreads() throws IOException {
+        for (int i = 0; i < FILES; i++){
+            files.createFile("image" + i + ".gif", "GIF89a");
+            files.createFile("style" + i + ".css", "a { background: url(image" + i + ".gif); }\nb { background: url(image" + i + ".gif); }");
+        }
+        
+        createTask().execute();
+        
+        for (int i = 0; i < FILES; i++){
+            assertEquals("a { background: url(data:image/gif;base64,R0lGODlh); }\nb { background: url(data:image/gif;base64,R0lGODlh); }", 
+                    files.readFile(new File(dir, "style" + i + ".css")));
+        }
+        
+        //the embedder's messages for each file come together, after the task's own
+        int current = -1;
+        int found = 0;
+        for (String message : messages){
+            for (int i = 0; i < FILES; i++){
+                if (message.startsWith("[INFO] embedding images from") && message.indexOf("style" + i + ".css") > -1){
+                    current = i;
+                } else if (message.indexOf("image" + i + ".gif") > -1){
+                    assertEquals(message, i, current);
+                    found++;
+                }
+            }
+        }
+        assertTrue(found >= FILES * 2);
+    }
+    
+    @Test
+    public void testFailingWorker() throws IOException {
+        for (int i = 0; i < FILES; i++){
+            files.createFile("image" + i + ".gif", "GIF89a");
+            files.createFile("style" + i + ".css", "a { background: url(image" + (i == 3 ? "-missing" : "") + i + ".gif); }");
+        }
+        
+        try {
+            createTask().execute();
+            fail("The missing image should have failed the build.");
+        } catch (BuildException e){
+            assertTrue(e.getMessage().indexOf("image-missing3.gif") > -1);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package net.nczonline.web.cssembed;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Nicholas C. Zakas
+ */
+public class CSSLexerTest {
+    
+    /*
+     * Returns the values of all url() tokens in the code.
+     */
+    private List<String> findUrls(String code){
+        char[] buf = code.toCharArray();
+        CSSLexer lexer = new CSSLexer(buf, buf.length, true);
+        List<String> urls = new ArrayList<String>();
+        int type;
+        
+        while ((type = lexer.next()) != CSSLexer.END){
+            if (type == CSSLexer.URL){
+                urls.add(code.substring(lexer.getValueStart(), lexer.getValueEnd()));
+            }
+        }
+        
+        return urls;
+    }
+    
+    @Test
+    public void testUrlFormats() {
+        List<String> urls = findUrls("a{background:url(a.png)} b{background:url( 'b.png' )} c{background:URL(\"c.png\")}");
+        assertEquals(3, urls.size());
+        assertEquals("a.png", urls.get(0));
+        assertEquals("b.png", urls.get(1));
+        assertEquals("c.png", urls.get(2));
+    }
+    
+    @Test
+    public void testUrlSpanningLines() {
+        List<String> urls = findUrls("a{background:url(\n    \"a.png\"\n)}");
+        assertEquals(1, urls.size());
+        assertEquals("a.png", urls.get(0));
+    }
+    
+    @Test
+    public void testUrlWithParenInQuotes() {
+        List<String> urls = findUrls("a{background:url('a(1).png')}");
+        assertEquals(1, urls.size());
+        assertEquals("a(1).png", urls.get(0));
+    }
+    
+    @Test
+    public void testUrlInCommentAndString() {
+        List<String> urls = findUrls("/* url(a.png) */ a{content:\"url(b.png)\"; background:url(c.png)}");
+        assertEquals(1, urls.size());
+        assertEquals("c.png", urls.get(0));
+    }
+    
+    @Test
+    public void testUrlAfterIdentifier() {
+        List<String> urls = findUrls("a{background:myurl(a.png)}");
+        assertEquals(0, urls.size());
+    }
+    
+    @Test
+    public void testBadUrl() {
+        char[] buf = "a{background:url(\"a.png)}".toCharArray();
+        CSSLexer lexer = new CSSLexer(buf, buf.length, true);
+        assertEquals(CSSLexer.BAD_URL, lexer.next());
+    }
+    
+    @Test
+    public void testLineNumbers() {
+        char[] buf = "/*\n\n*/\na{\nbackground:url(a.png)}".toCharArray();
+        CSSLexer lexer = new CSSLexer(buf, buf.length, true);
+        assertEquals(CSSLexer.COMMENT, lexer.next());
+        assertEquals(CSSLexer.NEWLINE, lexer.next());
+        assertEquals(CSSLexer.NEWLINE, lexer.next());
+        assertEquals(CSSLexer.URL, lexer.next());
+        assertEquals(5, lexer.getLine());
+        assertEquals(15, lexer.getColumn());
+    }
+    
+    @Test
+    public void testIncompleteInput() {
+        String code = "a{background:url('a.png')} /* url(b.png) */ b{background:url(c.png)}";
+        
+        //feed the code in chunks of every size and make sure nothing changes
+        for (int split = 1; split < code.length(); split++){
+            char[] buf = code.toCharArray();
+            int limit = split;
+            CSSLexer lexer = new CSSLexer(buf, limit, false);
+            List<String> urls = new ArrayList<String>();
+            int type;
+            
+            while ((type = lexer.next()) != CSSLexer.END){
+                if (type == CSSLexer.URL){
+                    urls.add(code.substring(lexer.getValueStart(), lexer.getValueEnd()));
+                } else if (type == CSSLexer.INCOMPLETE){
+                    limit = Math.min(limit + split, buf.length);
+                    lexer.setInput(buf, limit, limit == buf.length);
+                }
+            }
+            
+            assertEquals("Split at " + split, 2, urls.size());
+            assertEquals("a.png", urls.get(0));
+            assertEquals("c.png", urls.get(1));
+        }
+    }
+    
+    @Test
+    public void testInAtRule() {
+        String code = "@import url(a.css);\n@font-face{src:url(a.woff)}\n@media print{a{background:url(b.png)} " +
+                "@page{background:url(c.png)}}\n@keyframes k{from{background:url(d.png)}}\nb{background:url(e.png)}";
+        
+        //split the input to check that at-rules are followed across buffers
+        for (int split = 1; split < code.length(); split++){
+            char[] buf = new char[code.length()];
+            code.getChars(0, split, buf, 0);
+            CSSLexer lexer = new CSSLexer(buf, split, false);
+            StringBuilder found = new StringBuilder();
+            int type;
+            
+            while ((type = lexer.next()) != CSSLexer.END){
+                if (type == CSSLexer.URL){
+                    found.append(buf[lexer.getValueStart()]).append(lexer.isInAtRule() ? '@' : ' ');
+                } else if (type == CSSLexer.INCOMPLETE){
+                    code.getChars(split, code.length(), buf, split);
+                    lexer.setInput(buf, code.length(), true);
+                }
+            }
+            
+            assertEquals("a@a@b c@d@e ", found.toString());
+        }
+    }
+}
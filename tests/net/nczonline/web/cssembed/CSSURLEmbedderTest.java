@@ -10,11 +10,15 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import net.nczonline.web.datauri.DataURICache;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -168,6 +172,28 @@ public class CSSURLEmbedderTest {
         assertEquals(code, result);
     }
     
+    @Test
+    public void testMaxLengthPredictedBeforeReading() throws IOException {
+        String filename = CSSURLEmbedderTest.class.getResource("folder.png").getPath().replace("%20", " ");
+        String root = filename.substring(0, filename.lastIndexOf("/")+1);
+        String code = "background: url(folder.png);";
+        DataURICache cache = new DataURICache(DataURICache.DEFAULT_MAX_SIZE);
+        
+        //one character short, so the file is never read
+        StringWriter writer = new StringWriter();
+        embedder = new CSSURLEmbedder(new StringReader(code), CSSURLEmbedder.DATAURI_OPTION, false, folderDataURI.length() - 1);
+        embedder.setCache(cache);
+        embedder.embedImages(writer, root);
+        assertEquals(code, writer.toString());
+        assertEquals(0L, cache.getMisses());
+        
+        writer = new StringWriter();
+        embedder = new CSSURLEmbedder(new StringReader(code), CSSURLEmbedder.DATAURI_OPTION, false, folderDataURI.length());
+        embedder.setCache(cache);
+        embedder.embedImages(writer, root);
+        assertEquals("background: url(" + folderDataURI + ");", writer.toString());
+    }
+    
     @Test
     public void testAbsoluteLocalFileUnderMaxImageSize() throws IOException {
         String filename = CSSURLEmbedderTest.class.getResource("folder.png").getPath().replace("%20", " ");
@@ -216,6 +242,292 @@ public class CSSURLEmbedderTest {
         assertEquals("background: url(" + folderDataURI + ");", result);
     }
 
+    @Test
+    public void testRepeatedImageWithMhtml() throws IOException {
+        String filename = CSSURLEmbedderTest.class.getResource("folder.png").getPath().replace("%20", " ");
+        String code = "a { background: url(folder.png); }\nb { background: url(./folder.png); }";
+        String mhtmlUrl = "http://www.example.com/dir/";
+        
+        StringWriter writer = new StringWriter();
+        embedder = new CSSURLEmbedder(new StringReader(code), CSSURLEmbedder.MHTML_OPTION, true);
+        embedder.setMHTMLRoot(mhtmlUrl);
+        embedder.setFilename("styles_ie.css");
+        embedder.embedImages(writer, filename.substring(0, filename.lastIndexOf("/")+1));
+        
+        String result = writer.toString();
+        assertEquals("/*\nContent-Type: multipart/related; boundary=\"" + CSSURLEmbedder.MHTML_SEPARATOR + 
+                "\"\n\n--" + CSSURLEmbedder.MHTML_SEPARATOR + "\nContent-Location:folder.png\n" +
+                "Content-Transfer-Encoding:base64\n\n" + folderDataURI.substring(folderDataURI.indexOf(",")+1) +
+                "\n\n--" + CSSURLEmbedder.MHTML_SEPARATOR + "--\n" +
+                "*/\na { background: url(mhtml:" + mhtmlUrl + "styles_ie.css!folder.png); }\n" +
+                "b { background: url(mhtml:" + mhtmlUrl + "styles_ie.css!folder.png); }", result);
+        assertEquals(2, embedder.getConversions());
+    }
+
+    @Test
+    public void testSharedMhtmlDocument() throws IOException {
+        String filename = CSSURLEmbedderTest.class.getResource("folder.png").getPath().replace("%20", " ");
+        String root = filename.substring(0, filename.lastIndexOf("/")+1);
+        String code = "background: url(folder.png);";
+        String mhtmlUrl = "http://www.example.com/dir/";
+        StringWriter document = new StringWriter();
+        MHTMLDocument mhtmlDocument = new MHTMLDocument(document, "images.txt");
+        
+        for (int i=0; i < 2; i++){
+            StringWriter writer = new StringWriter();
+            embedder = new CSSURLEmbedder(new StringReader(code), CSSURLEmbedder.MHTML_OPTION, true);
+            embedder.setMHTMLRoot(mhtmlUrl);
+            embedder.setFilename("styles_ie" + i + ".css");
+            embedder.setMHTMLDocument(mhtmlDocument);
+            embedder.embedImages(writer, root);
+            assertEquals("background: url(mhtml:" + mhtmlUrl + "images.txt!folder.png);", writer.toString());
+        }
+        
+        mhtmlDocument.close();
+        assertEquals(1, mhtmlDocument.size());
+        assertEquals("/*\nContent-Type: multipart/related; boundary=\"" + CSSURLEmbedder.MHTML_SEPARATOR + 
+                "\"\n\n--" + CSSURLEmbedder.MHTML_SEPARATOR + "\nContent-Location:folder.png\n" +
+                "Content-Transfer-Encoding:base64\n\n" + folderDataURI.substring(folderDataURI.indexOf(",")+1) +
+                "\n\n--" + CSSURLEmbedder.MHTML_SEPARATOR + "--\n*/\n", document.toString());
+    }
+
+    @Test
+    public void testSharedImages() throws IOException {
+        String filename = CSSURLEmbedderTest.class.getResource("folder.png").getPath().replace("%20", " ");
+        String root = filename.substring(0, filename.lastIndexOf("/")+1);
+        String code = "a { background: url(folder.png); }\nb { background: url('folder.png'); }\nc { background: url(folder.png); }";
+        String expected = "a { background: var(--cssembed-folder); }\nb { background: var(--cssembed-folder); }\n" +
+                "c { background: var(--cssembed-folder); }\n:root {\n  --cssembed-folder: url(" + folderDataURI + ");\n}\n";
+        
+        StringWriter writer = new StringWriter();
+        embedder = new CSSURLEmbedder(new StringReader(code), CSSURLEmbedder.DATAURI_OPTION, true);
+        embedder.setShareThreshold(3);
+        embedder.embedImages(writer, root);
+        assertEquals(expected, writer.toString());
+        assertEquals(3, embedder.getConversions());
+        
+        //compared to writing every image in place
+        StringWriter inline = new StringWriter();
+        new CSSURLEmbedder(new StringReader(code), CSSURLEmbedder.DATAURI_OPTION).embedImages(inline, root);
+        assertEquals((long) (inline.toString().length() - expected.length()), embedder.getSavedLength());
+        
+        //streaming holds the body back until the end
+        writer = new StringWriter();
+        embedder = new CSSURLEmbedder(new StringReader(code), CSSURLEmbedder.DATAURI_OPTION | CSSURLEmbedder.STREAMING_OPTION, true);
+        embedder.setShareThreshold(3);
+        embedder.setSpillThreshold(10);
+        embedder.embedImages(writer, root);
+        assertEquals(expected, writer.toString());
+    }
+    
+    @Test
+    public void testSharedImagesNotInAtRules() throws IOException {
+        File font = File.createTempFile("cssembed", ".woff2");
+        OutputStream out = new FileOutputStream(font);
+        out.write("wOF2".getBytes("UTF-8"));
+        out.close();
+        
+        try {
+            String root = font.getParentFile().getAbsolutePath() + File.separator;
+            String rule = "@font-face { font-family: f; src: url(" + font.getName() + "); }\n";
+            String code = rule + rule + rule + "@page { background: url(" + font.getName() + "); }";
+            
+            StringWriter writer = new StringWriter();
+            embedder = new CSSURLEmbedder(new StringReader(code), CSSURLEmbedder.DATAURI_OPTION);
+            embedder.setShareThreshold(2);
+            embedder.embedImages(writer, root);
+            
+            //custom properties don't work in @font-face, so each font stays in place
+            assertEquals(-1, writer.toString().indexOf("var("));
+            assertEquals(4, embedder.getConversions());
+            assertTrue(writer.toString().indexOf("src: url(data:font/woff2;base64,d09GMg==); }") > -1);
+        } finally {
+            font.delete();
+        }
+    }
+    
+    @Test
+    public void testSharedImagesUnderThreshold() throws IOException {
+        String filename = CSSURLEmbedderTest.class.getResource("folder.png").getPath().replace("%20", " ");
+        String code = "a { background: url(folder.png); }\nb { background: url(folder.png); }";
+        
+        StringWriter writer = new StringWriter();
+        embedder = new CSSURLEmbedder(new StringReader(code), CSSURLEmbedder.DATAURI_OPTION, true);
+        embedder.setShareThreshold(3);
+        embedder.embedImages(writer, filename.substring(0, filename.lastIndexOf("/")+1));
+        assertEquals("a { background: url(" + folderDataURI + "); }\nb { background: url(" + folderDataURI + "); }", writer.toString());
+        assertEquals(0L, embedder.getSavedLength());
+    }
+
+    @Test
+    public void testSVGImage() throws IOException {
+        File file = File.createTempFile("cssembed", ".svg");
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        out.write("<svg xmlns='http://www.w3.org/2000/svg'><path d='M0 0h1v1H0z'/></svg>");
+        out.close();
+        
+        try {
+            String code = "background: url(" + file.getName() + ");";
+            String root = file.getParentFile().getAbsolutePath() + File.separator;
+            
+            //percent-encoded, and quoted because of the spaces
+            StringWriter writer = new StringWriter();
+            embedder = new CSSURLEmbedder(new StringReader(code), CSSURLEmbedder.DATAURI_OPTION);
+            embedder.embedImages(writer, root);
+            assertEquals("background: url(\"data:image/svg+xml,%3Csvg xmlns='http://www.w3.org/2000/svg'%3E" +
+                    "%3Cpath d='M0 0h1v1H0z'/%3E%3C/svg%3E\");", writer.toString());
+            
+            //MHTML parts are always Base64
+            writer = new StringWriter();
+            embedder = new CSSURLEmbedder(new StringReader(code), CSSURLEmbedder.MHTML_OPTION);
+            embedder.setMHTMLRoot("http://www.example.com/");
+            embedder.setFilename("styles_ie.css");
+            embedder.embedImages(writer, root);
+            assertTrue(writer.toString().indexOf("Content-Transfer-Encoding:base64\n\nPHN2Zy") > -1);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testImageTypeFromContents() throws IOException {
+        String filename = CSSURLEmbedderTest.class.getResource("folder.png").getPath().replace("%20", " ");
+        File untyped = File.createTempFile("cssembed", "");
+        File mislabelled = File.createTempFile("cssembed", ".GIF");
+        File text = File.createTempFile("cssembed", "");
+        copy(new File(filename), untyped);
+        copy(new File(filename), mislabelled);
+        Writer out = new OutputStreamWriter(new FileOutputStream(text), "UTF-8");
+        out.write("not an image");
+        out.close();
+        
+        try {
+            String code = "a { background: url(" + untyped.getName() + "); }\n" +
+                    "b { background: url(" + mislabelled.getName() + "); }\n" +
+                    "c { background: url(" + text.getName() + "); }\n" +
+                    "d { filter: url(#blur); }";
+            String root = untyped.getParentFile().getAbsolutePath() + File.separator;
+            
+            StringWriter writer = new StringWriter();
+            embedder = new CSSURLEmbedder(new StringReader(code), CSSURLEmbedder.DATAURI_OPTION);
+            embedder.embedImages(writer, root);
+            assertEquals("a { background: url(" + folderDataURI + "); }\n" +
+                    "b { background: url(" + folderDataURI + "); }\n" +
+                    "c { background: url(" + text.getName() + "); }\n" +
+                    "d { filter: url(#blur); }", writer.toString());
+            
+            //the types found are remembered
+            assertTrue(CSSURLEmbedder.isImage(root + untyped.getName()));
+            assertFalse(CSSURLEmbedder.isImage(root + text.getName()));
+            assertFalse(CSSURLEmbedder.isUntyped(root + text.getName(), text.getName()));
+        } finally {
+            untyped.delete();
+            mislabelled.delete();
+            text.delete();
+        }
+    }
+    
+    @Test
+    public void testBudget() throws IOException {
+        String filename = CSSURLEmbedderTest.class.getResource("folder.png").getPath().replace("%20", " ");
+        File svg = File.createTempFile("cssembed", ".svg");
+        Writer out = new OutputStreamWriter(new FileOutputStream(svg), "UTF-8");
+        out.write("<svg xmlns='http://www.w3.org/2000/svg'/>");
+        out.close();
+        
+        try {
+            String code = "a { background: url(folder.png); }\n" +
+                    "b { background: url(" + svg.getName() + "); }\n" +
+                    "c { background: url(folder.png); }";
+            File png = new File(filename);
+            copy(png, new File(svg.getParentFile(), "folder.png"));
+            String root = svg.getParentFile().getAbsolutePath() + File.separator;
+            
+            //the first image is too large, but the second fits
+            StringWriter writer = new StringWriter();
+            embedder = new CSSURLEmbedder(new StringReader(code), CSSURLEmbedder.DATAURI_OPTION);
+            embedder.setBudget(folderDataURI.length());
+            embedder.embedImages(writer, root);
+            assertEquals("a { background: url(folder.png); }\n" +
+                    "b { background: url(\"data:image/svg+xml,%3Csvg xmlns='http://www.w3.org/2000/svg'/%3E\"); }\n" +
+                    "c { background: url(folder.png); }", writer.toString());
+            
+            assertEquals(2, embedder.getDecisions().size());
+            EmbedDecision decision = embedder.getDecisions().get(0);
+            assertEquals("folder.png", decision.getURL());
+            assertEquals(2, decision.getReferences());
+            assertEquals((long) (folderDataURI.length() - "folder.png".length()) * 2, decision.getCost());
+            assertFalse(decision.isEmbedded());
+            assertTrue(embedder.getDecisions().get(1).isEmbedded());
+            
+            //both repeats of the image cost little after gzip
+            writer = new StringWriter();
+            embedder = new CSSURLEmbedder(new StringReader(code), CSSURLEmbedder.DATAURI_OPTION);
+            embedder.setBudget(folderDataURI.length());
+            embedder.setBudgetGzip(true);
+            embedder.embedImages(writer, root);
+            assertTrue(embedder.getDecisions().get(0).isEmbedded());
+            assertTrue(embedder.getDecisions().get(1).isEmbedded());
+            assertEquals(3, embedder.getConversions());
+        } finally {
+            svg.delete();
+            new File(svg.getParentFile(), "folder.png").delete();
+        }
+    }
+    
+    @Test
+    public void testStats() throws IOException {
+        String filename = CSSURLEmbedderTest.class.getResource("folder.png").getPath().replace("%20", " ");
+        String code = "a { background: url(folder.png); }\n" +
+                "b { background: url(fooga.png); }\n" +
+                "c { background: url(folder.png); }\n" +
+                "d { background: url(styles.css); }";
+        
+        EmbedStats stats = new EmbedStats();
+        StringWriter writer = new StringWriter();
+        embedder = new CSSURLEmbedder(new StringReader(code), CSSURLEmbedder.DATAURI_OPTION | CSSURLEmbedder.SKIP_MISSING_OPTION);
+        embedder.setStats(stats.addFile("test.css"));
+        embedder.embedImages(writer, filename.substring(0, filename.lastIndexOf("/")+1));
+        
+        EmbedStats.FileStats file = stats.getFiles().get(0);
+        assertEquals((long) code.length(), file.getInputLength());
+        assertEquals((long) writer.toString().length(), file.getOutputLength());
+        assertEquals(4, file.getURLs());
+        assertEquals(2, file.getEmbedded());
+        assertEquals((long) folderDataURI.length() * 2, file.getEncodedLength());
+        assertEquals(Integer.valueOf(1), file.getSkipped().get(EmbedStats.MISSING_FILE));
+        assertEquals(Integer.valueOf(1), file.getSkipped().get(EmbedStats.NOT_AN_IMAGE));
+        
+        EmbedStats.ImageStats image = file.getImages().get(0);
+        assertEquals("folder.png", image.getURL());
+        assertEquals(2, image.getReferences());
+        assertEquals(2, image.getLoads());
+        assertEquals(new File(filename).length() * 2, image.getBytesRead());
+        assertNull(image.getReason());
+        assertEquals(EmbedStats.MISSING_FILE, file.getImages().get(1).getReason());
+        
+        StringWriter report = new StringWriter();
+        stats.writeJSON(report);
+        assertTrue(report.toString().startsWith("{\n  \"nanos\": "));
+        assertTrue(report.toString().indexOf("\"name\": \"test.css\"") > -1);
+        assertTrue(report.toString().indexOf("\"skipped\": {\"missing file\": 1, \"not an image\": 1}") > -1);
+    }
+    
+    private static void copy(File from, File to) throws IOException {
+        FileInputStream in = new FileInputStream(from);
+        FileOutputStream out = new FileOutputStream(to);
+        try {
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) != -1){
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
     @Test
     public void testRegularUrlWithMhtml() throws IOException {
         String filename = CSSURLEmbedderTest.class.getResource("folder.png").getPath().replace("%20", " ");
@@ -263,10 +575,13 @@ public class CSSURLEmbedderTest {
     		"file://path/to/image.png",
     		"http://some.server.com/image.png",
     		"http://some.server.com/image.png?param=legalvalue&anotherparam=anothervalue",
-    		"http://some.server.com/image.png?param=illegal.value.with.period"
+    		"http://some.server.com/image.png?param=illegal.value.with.period",
+    		"http://some.server.com/ICON.PNG",
+    		"http://some.server.com/font.woff2",
+    		"http://some.server.com/styles.css"
     	};
     	boolean expectedImage[] = {
-    		true, true, true, false
+    		true, true, true, false, true, true, false
     	};
     	
     	for(int i=0; i<tests.length; i++) {
@@ -294,4 +609,117 @@ public class CSSURLEmbedderTest {
         assertEquals(code, result);
 
     }
+
+    @Test
+    public void testStreamingMultipleLines() throws IOException {
+        String filename = CSSURLEmbedderTest.class.getResource("folder.png").getPath().replace("%20", " ");
+        String code = "a { background: url(folder.png); }\nb { color: red; }\nc { background: url('folder.png'); }";
+        
+        StringWriter writer = new StringWriter();
+        embedder = new CSSURLEmbedder(new StringReader(code), CSSURLEmbedder.DATAURI_OPTION | CSSURLEmbedder.STREAMING_OPTION, true);
+        embedder.embedImages(writer, filename.substring(0, filename.lastIndexOf("/")+1));
+        
+        String result = writer.toString();
+        assertEquals("a { background: url(" + folderDataURI + "); }\nb { color: red; }\nc { background: url(" + folderDataURI + "); }", result);
+    }
+    
+    @Test
+    public void testStreamingWithMhtmlSpill() throws IOException {
+        String filename = CSSURLEmbedderTest.class.getResource("folder.png").getPath().replace("%20", " ");
+        String code = "a { background: url(folder.png); }\nb { color: red; }";
+        String mhtmlUrl = "http://www.example.com/dir/";
+        
+        StringWriter expected = new StringWriter();
+        embedder = new CSSURLEmbedder(new StringReader(code), CSSURLEmbedder.MHTML_OPTION, true);
+        embedder.setMHTMLRoot(mhtmlUrl);
+        embedder.setFilename("styles_ie.css");
+        embedder.embedImages(expected, filename.substring(0, filename.lastIndexOf("/")+1));
+        
+        StringWriter writer = new StringWriter();
+        embedder = new CSSURLEmbedder(new StringReader(code), CSSURLEmbedder.MHTML_OPTION | CSSURLEmbedder.STREAMING_OPTION, true);
+        embedder.setMHTMLRoot(mhtmlUrl);
+        embedder.setFilename("styles_ie.css");
+        embedder.setSpillThreshold(16);
+        embedder.embedImages(writer, filename.substring(0, filename.lastIndexOf("/")+1));
+        
+        assertEquals(expected.toString(), writer.toString());
+    }
+
+    @Test
+    public void testUrlInCommentIgnored() throws IOException {
+        String filename = CSSURLEmbedderTest.class.getResource("folder.png").getPath().replace("%20", " ");
+        String code = "/* background: url(folder.png); */\nbackground: url(\n  folder.png\n);";
+        
+        StringWriter writer = new StringWriter();
+        embedder = new CSSURLEmbedder(new StringReader(code), true);
+        embedder.embedImages(writer, filename.substring(0, filename.lastIndexOf("/")+1));
+        
+        String result = writer.toString();
+        assertEquals("/* background: url(folder.png); */\nbackground: url(" + folderDataURI + ");", result);
+    }
+    
+    @Test
+    public void testStreamingLargeInput() throws IOException {
+        String filename = CSSURLEmbedderTest.class.getResource("folder.png").getPath().replace("%20", " ");
+        StringBuilder code = new StringBuilder();
+        for (int i = 0; i < 2000; i++){
+            code.append(".icon").append(i).append(" { background: url(folder.png); }");
+            if (i % 3 == 0){
+                code.append(" /* CssEmbed: SKIP */");
+            }
+            code.append(i % 7 == 0 ? " " : "\n");
+        }
+        
+        StringWriter expected = new StringWriter();
+        embedder = new CSSURLEmbedder(new StringReader(code.toString()), CSSURLEmbedder.DATAURI_OPTION);
+        embedder.embedImages(expected, filename.substring(0, filename.lastIndexOf("/")+1));
+        
+        StringWriter writer = new StringWriter();
+        embedder = new CSSURLEmbedder(new StringReader(code.toString()), CSSURLEmbedder.DATAURI_OPTION | CSSURLEmbedder.STREAMING_OPTION);
+        embedder.embedImages(writer, filename.substring(0, filename.lastIndexOf("/")+1));
+        
+        assertEquals(expected.toString(), writer.toString());
+        assertTrue(writer.toString().indexOf(folderDataURI) > -1);
+    }
+
+    @Test
+    public void testParallelMatchesSerial() throws IOException {
+        String filename = CSSURLEmbedderTest.class.getResource("folder.png").getPath().replace("%20", " ");
+        String code = "a { background: url(folder.png); }\nb { background: url(./folder.png); } /* CssEmbed: SKIP */\n" +
+                "c { background: url('folder.txt'); }\nd { background: url(\"./folder.png\"); }";
+        String mhtmlUrl = "http://www.example.com/dir/";
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        
+        try {
+            StringWriter expected = new StringWriter();
+            embedder = new CSSURLEmbedder(new StringReader(code), CSSURLEmbedder.MHTML_OPTION);
+            embedder.setMHTMLRoot(mhtmlUrl);
+            embedder.embedImages(expected, filename.substring(0, filename.lastIndexOf("/")+1));
+            
+            StringWriter writer = new StringWriter();
+            embedder = new CSSURLEmbedder(new StringReader(code), CSSURLEmbedder.MHTML_OPTION);
+            embedder.setMHTMLRoot(mhtmlUrl);
+            embedder.setExecutor(executor);
+            embedder.embedImages(writer, filename.substring(0, filename.lastIndexOf("/")+1));
+            
+            assertEquals(expected.toString(), writer.toString());
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test (expected=IOException.class)
+    public void testParallelWithMissingFile() throws IOException {
+        String filename = CSSURLEmbedderTest.class.getResource("folder.png").getPath().replace("%20", " ");
+        String code = "a { background: url(folder.png); }\nb { background: url(fooga.png); }";
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        
+        try {
+            embedder = new CSSURLEmbedder(new StringReader(code), CSSURLEmbedder.DATAURI_OPTION);
+            embedder.setExecutor(executor);
+            embedder.embedImages(new StringWriter(), filename.substring(0, filename.lastIndexOf("/")+1));
+        } finally {
+            executor.shutdown();
+        }
+    }
 }
\ No newline at end of file
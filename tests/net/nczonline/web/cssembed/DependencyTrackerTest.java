@@ -0,0 +1,123 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package net.nczonline.web.cssembed;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Nicholas C. Zakas
+ */
+public class DependencyTrackerTest {
+    
+    private TestFiles files;
+    private File dir;
+    
+    @Before
+    public void setUp() throws IOException {
+        files = new TestFiles();
+        dir = files.getDir();
+    }
+
+    @After
+    public void tearDown() {
+        files.delete();
+    }
+    
+    @Test
+    public void testUnchanged() throws IOException {
+        File input = files.createFile("in.css", "a{}");
+        File output = files.createFile("out.css", "a{}");
+        File image = files.createFile("a.gif", "GIF89a");
+        File depFile = new File(dir, "deps.properties");
+        
+        DependencyTracker tracker = new DependencyTracker(depFile);
+        assertFalse(tracker.isUpToDate(output, "1", input));
+        tracker.record(output, "1", input, Arrays.asList(image));
+        tracker.save();
+        
+        tracker = new DependencyTracker(depFile);
+        assertTrue(tracker.isUpToDate(output, "1", input));
+        assertFalse(tracker.isUpToDate(output, "2", input));
+    }
+    
+    @Test
+    public void testChangedImage() throws IOException {
+        File input = files.createFile("in.css", "a{}");
+        File output = files.createFile("out.css", "a{}");
+        File image = files.createFile("a.gif", "GIF89a");
+        
+        DependencyTracker tracker = new DependencyTracker(new File(dir, "deps.properties"));
+        tracker.record(output, "1", input, Arrays.asList(image));
+        
+        files.createFile("a.gif", "GIF89a+");
+        assertFalse(tracker.isUpToDate(output, "1", input));
+    }
+    
+    @Test
+    public void testMissingImageCreated() throws IOException {
+        File input = files.createFile("in.css", "a{}");
+        File output = files.createFile("out.css", "a{}");
+        File image = new File(dir, "a.gif");
+        
+        DependencyTracker tracker = new DependencyTracker(new File(dir, "deps.properties"));
+        tracker.record(output, "1", input, Arrays.asList(image));
+        assertTrue(tracker.isUpToDate(output, "1", input));
+        
+        files.createFile("a.gif", "GIF89a");
+        assertFalse(tracker.isUpToDate(output, "1", input));
+    }
+    
+    @Test
+    public void testChangedInput() throws IOException {
+        File input = files.createFile("a.css", "a{}");
+        File other = files.createFile("b.css", "a{}");
+        File output = files.createFile("out.css", "a{}");
+        
+        DependencyTracker tracker = new DependencyTracker(new File(dir, "deps.properties"));
+        tracker.record(output, "1", input, Collections.<File>emptyList());
+        assertTrue(tracker.isUpToDate(output, "1", input));
+        
+        //a different source file now maps to the same output
+        assertFalse(tracker.isUpToDate(output, "1", other));
+    }
+    
+    @Test
+    public void testMissingOutput() throws IOException {
+        File input = files.createFile("in.css", "a{}");
+        File output = new File(dir, "out.css");
+        
+        DependencyTracker tracker = new DependencyTracker(new File(dir, "deps.properties"));
+        tracker.record(output, "1", input, Collections.<File>emptyList());
+        assertFalse(tracker.isUpToDate(output, "1", input));
+    }
+    
+    @Test
+    public void testEmbedderDependencies() throws IOException {
+        File image = files.createFile("a.gif", "GIF89a");
+        String code = "a { background: url(a.gif); }\nb { background: url(b.gif); }";
+        
+        CSSURLEmbedder embedder = new CSSURLEmbedder(new StringReader(code), 
+                CSSURLEmbedder.DATAURI_OPTION | CSSURLEmbedder.SKIP_MISSING_OPTION);
+        embedder.embedImages(new StringWriter(), dir.getPath() + File.separator);
+        
+        List<File> dependencies = embedder.getDependencies();
+        assertEquals(2, dependencies.size());
+        assertEquals(image.getCanonicalFile(), dependencies.get(0).getCanonicalFile());
+        assertEquals("b.gif", dependencies.get(1).getName());
+        assertFalse(embedder.hasRemoteDependencies());
+    }
+}
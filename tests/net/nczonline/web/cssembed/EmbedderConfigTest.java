@@ -0,0 +1,117 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package net.nczonline.web.cssembed;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import net.nczonline.web.datauri.DataURICache;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Nicholas C. Zakas
+ */
+public class EmbedderConfigTest {
+    
+    private static String getRoot(){
+        String filename = EmbedderConfigTest.class.getResource("folder.png").getPath().replace("%20", " ");
+        return filename.substring(0, filename.lastIndexOf("/"));
+    }
+    
+    @Test
+    public void testBuild(){
+        EmbedderConfig config = EmbedderConfig.builder().setRoot("/css").setMaxUriLength(0).build();
+        assertEquals(CSSURLEmbedder.DATAURI_OPTION, config.getOptions());
+        assertTrue(config.getRoot().endsWith("/css/") || config.getRoot().endsWith("/css\\"));
+        assertEquals(0, config.getMaxUriLength());
+        assertFalse(config.getEncoder().isVerbose());
+        
+        EmbedderConfig.Builder[] invalid = {
+            EmbedderConfig.builder().setOptions(CSSURLEmbedder.SKIP_MISSING_OPTION),
+            EmbedderConfig.builder().setOptions(CSSURLEmbedder.DATAURI_OPTION | 64),
+            EmbedderConfig.builder().setOptions(CSSURLEmbedder.MHTML_OPTION),
+            EmbedderConfig.builder().setMaxImageSize(-1)
+        };
+        
+        for (int i = 0; i < invalid.length; i++){
+            try {
+                invalid[i].build();
+                fail("Builder " + i + " should have been rejected.");
+            } catch (IllegalArgumentException e){
+                //expected
+            }
+        }
+    }
+    
+    @Test
+    public void testEmbed() throws IOException {
+        EmbedderConfig config = EmbedderConfig.builder().setRoot(getRoot())
+                .setOptions(CSSURLEmbedder.MHTML_OPTION | CSSURLEmbedder.STREAMING_OPTION)
+                .setMHTMLRoot("http://www.example.com/dir/").setFilename("styles_ie.css").build();
+        String code = "a { background: url(folder.png); }\nb { background: url(folder.png); }";
+        
+        StringWriter writer = new StringWriter();
+        assertEquals(2, config.embed(new StringReader(code), writer));
+        assertEquals(writer.toString(), config.embed(code));
+        assertTrue(writer.toString().endsWith("*/\na { background: url(mhtml:http://www.example.com/dir/styles_ie.css!folder.png); }\n" +
+                "b { background: url(mhtml:http://www.example.com/dir/styles_ie.css!folder.png); }"));
+    }
+    
+    @Test
+    public void testConcurrentEmbed() throws Exception {
+        final EmbedderConfig config = EmbedderConfig.builder().setRoot(getRoot())
+                .setOptions(CSSURLEmbedder.DATAURI_OPTION | CSSURLEmbedder.SKIP_MISSING_OPTION)
+                .setCache(new DataURICache(1048576)).setShareThreshold(2).build();
+        final String[] fragments = {
+            "a { background: url(folder.png); }",
+            "a { background: url(folder.png); }\nb { background: url(folder.png); }\nc { background: url(folder.png); }",
+            "a { background: url(missing.png); color: red; }",
+            "a { color: red; }"
+        };
+        final String[] expected = new String[fragments.length];
+        for (int i = 0; i < fragments.length; i++){
+            expected[i] = config.embed(fragments[i]);
+        }
+        assertTrue(expected[1].indexOf("var(--") > -1);
+        assertEquals(fragments[2], expected[2]);
+        
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        
+        try {
+            for (int i = 0; i < 8; i++){
+                final int thread = i;
+                results.add(executor.submit(new Callable<Boolean>(){
+                    public Boolean call() throws IOException {
+                        for (int j = 0; j < 200; j++){
+                            int k = (thread + j) % fragments.length;
+                            StringWriter writer = new StringWriter();
+                            config.embed(new StringReader(fragments[k]), writer);
+                            if (!writer.toString().equals(expected[k])){
+                                return Boolean.FALSE;
+                            }
+                        }
+                        return Boolean.TRUE;
+                    }
+                }));
+            }
+            
+            for (Future<Boolean> result : results){
+                assertTrue(result.get().booleanValue());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
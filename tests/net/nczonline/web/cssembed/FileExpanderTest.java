@@ -0,0 +1,85 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package net.nczonline.web.cssembed;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Nicholas C. Zakas
+ */
+public class FileExpanderTest {
+    
+    private File dir;
+    
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("cssembed", "");
+        dir.delete();
+        new File(dir, "sub").mkdirs();
+        new File(dir, "a.css").createNewFile();
+        new File(dir, "b.txt").createNewFile();
+        new File(dir, "sub/c.css").createNewFile();
+    }
+
+    @After
+    public void tearDown() {
+        new File(dir, "sub/c.css").delete();
+        new File(dir, "sub").delete();
+        new File(dir, "a.css").delete();
+        new File(dir, "b.txt").delete();
+        dir.delete();
+    }
+    
+    private List<String> getPaths(FileExpander expander){
+        return new ArrayList<String>(expander.getFiles().values());
+    }
+    
+    @Test
+    public void testGlobToRegex() {
+        assertTrue(FileExpander.toRegex("*.css").matcher("a.css").matches());
+        assertFalse(FileExpander.toRegex("*.css").matcher("sub/a.css").matches());
+        assertTrue(FileExpander.toRegex("**/*.css").matcher("a.css").matches());
+        assertTrue(FileExpander.toRegex("**/*.css").matcher("sub/deeper/a.css").matches());
+        assertTrue(FileExpander.toRegex("?.css").matcher("a.css").matches());
+        assertFalse(FileExpander.toRegex("?.css").matcher("ab.css").matches());
+    }
+    
+    @Test
+    public void testDirectory() throws IOException {
+        FileExpander expander = new FileExpander();
+        expander.add(dir.getPath());
+        
+        List<String> paths = getPaths(expander);
+        assertEquals(2, paths.size());
+        assertEquals("a.css", paths.get(0));
+        assertEquals("sub/c.css", paths.get(1));
+    }
+    
+    @Test
+    public void testPattern() throws IOException {
+        FileExpander expander = new FileExpander();
+        expander.add(dir.getPath() + File.separator + "*.css");
+        expander.add(dir.getPath() + File.separator + "**" + File.separator + "*.css");
+        
+        List<String> paths = getPaths(expander);
+        assertEquals(2, paths.size());
+        assertEquals("a.css", paths.get(0));
+        assertEquals("sub/c.css", paths.get(1));
+    }
+    
+    @Test(expected=IOException.class)
+    public void testNoMatches() throws IOException {
+        new FileExpander().add(dir.getPath() + File.separator + "*.gif");
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package net.nczonline.web.cssembed;
+
+import java.io.IOException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Nicholas C. Zakas
+ */
+public class MHTMLPartsTest {
+    
+    @Test
+    public void testSameImageWrittenOnce() throws IOException {
+        MHTMLParts parts = new MHTMLParts();
+        StringBuilder out = new StringBuilder();
+        
+        assertEquals("a.png", parts.add("a.png", "data:image/png;base64,AAAA", out));
+        int length = out.length();
+        assertEquals("a.png", parts.add("a.png", "data:image/png;base64,AAAA", out));
+        assertEquals(length, out.length());
+        assertEquals(1, parts.size());
+        assertEquals("--" + CSSURLEmbedder.MHTML_SEPARATOR + "\nContent-Location:a.png\n" +
+                "Content-Transfer-Encoding:base64\n\nAAAA\n", out.toString());
+    }
+    
+    @Test
+    public void testSameFilenameDifferentImages() throws IOException {
+        MHTMLParts parts = new MHTMLParts();
+        StringBuilder out = new StringBuilder();
+        String first = "data:image/png;base64,AAAA";
+        String second = "data:image/png;base64,BBBB";
+        
+        assertEquals("a.png", parts.add("a.png", first, out));
+        String name = parts.add("a.png", second, out);
+        assertEquals("a-" + Integer.toHexString(second.hashCode()) + ".png", name);
+        assertEquals(name, parts.add("a.png", second, out));
+        assertEquals(2, parts.size());
+        assertTrue(out.indexOf("Content-Location:" + name + "\n") > -1);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package net.nczonline.web.cssembed;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Nicholas C. Zakas
+ */
+public class StylesheetWatcherTest {
+    
+    private TestFiles files;
+    private File dir;
+    
+    @Before
+    public void setUp() throws IOException {
+        files = new TestFiles();
+        dir = files.getDir();
+    }
+
+    @After
+    public void tearDown() {
+        files.delete();
+    }
+    
+    @Test
+    public void testAffectedStylesheets() throws IOException {
+        File image1 = files.createFile("a.gif", "GIF89a");
+        File image2 = files.createFile("b.gif", "GIF87a");
+        List<File> inputs = new ArrayList<File>();
+        inputs.add(files.createFile("one.css", "a { background: url(a.gif); }"));
+        inputs.add(files.createFile("two.css", "a { background: url(a.gif); } b { background: url(b.gif); }"));
+        List<File> outputs = Arrays.asList(new File(dir, "one.out.css"), new File(dir, "two.out.css"));
+        
+        StylesheetWatcher watcher = new StylesheetWatcher(new FileEmbedder(CSSURLEmbedder.DATAURI_OPTION, false, "UTF-8"), 
+                inputs, outputs, false);
+        try {
+            watcher.buildAll();
+            assertTrue(outputs.get(0).isFile());
+            assertTrue(outputs.get(1).isFile());
+            
+            Set<Integer> affected = watcher.getAffected(Arrays.asList(image1));
+            assertEquals(2, affected.size());
+            
+            affected = watcher.getAffected(Arrays.asList(image2));
+            assertEquals(1, affected.size());
+            assertTrue(affected.contains(Integer.valueOf(1)));
+            
+            affected = watcher.getAffected(Arrays.asList(inputs.get(0), outputs.get(1)));
+            assertEquals(1, affected.size());
+            assertTrue(affected.contains(Integer.valueOf(0)));
+        } finally {
+            watcher.close();
+        }
+    }
+    
+    @Test(expected=IOException.class)
+    public void testOutputIsInput() throws IOException {
+        File input = files.createFile("one.css", "a {}");
+        new StylesheetWatcher(new FileEmbedder(CSSURLEmbedder.DATAURI_OPTION, false, "UTF-8"), 
+                Arrays.asList(input), Arrays.asList(input), false);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package net.nczonline.web.cssembed;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A temporary directory for tests that work with files. Everything in it
+ * is deleted along with it.
+ * @author Nicholas C. Zakas
+ */
+class TestFiles {
+    
+    private File dir;
+    
+    TestFiles() throws IOException {
+        dir = File.createTempFile("cssembed", "");
+        dir.delete();
+        dir.mkdir();
+    }
+    
+    File getDir(){
+        return dir;
+    }
+    
+    File createFile(String name, String contents) throws IOException {
+        return createFile(name, contents.getBytes("UTF-8"));
+    }
+    
+    File createFile(String name, byte[] bytes) throws IOException {
+        File file = new File(dir, name);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+    
+    String readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        byte[] bytes = new byte[(int) file.length()];
+        try {
+            int count = 0;
+            while (count < bytes.length){
+                count += in.read(bytes, count, bytes.length - count);
+            }
+        } finally {
+            in.close();
+        }
+        return new String(bytes, "UTF-8");
+    }
+    
+    void delete(){
+        delete(dir);
+    }
+    
+    private static void delete(File file){
+        File[] files = file.listFiles();
+        for (int i = 0; files != null && i < files.length; i++){
+            delete(files[i]);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package net.nczonline.web.datauri;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Nicholas C. Zakas
+ */
+public class Base64EncoderTest {
+    
+    private static final int[] SIZES = { 0, 1, 2, 3, 4, 5, 3071, 3072, 3073, 10000 };
+    
+    private static byte[] createBytes(int size){
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+    
+    @Test
+    public void testBytesMatchBase64() throws IOException {
+        for (int i = 0; i < SIZES.length; i++){
+            byte[] bytes = createBytes(SIZES[i]);
+            StringBuilder builder = new StringBuilder();
+            Base64Encoder.encode(bytes, 0, bytes.length, builder);
+            
+            assertEquals(Base64.encodeBytes(bytes), builder.toString());
+            assertEquals((long) builder.length(), Base64Encoder.encodedLength(bytes.length));
+        }
+    }
+    
+    @Test
+    public void testBackendsMatchBase64() throws IOException {
+        for (Base64Backend backend : Base64Backends.getAvailable()){
+            for (int i = 0; i < SIZES.length; i++){
+                byte[] bytes = createBytes(SIZES[i] + 2);
+                char[] chars = new char[(int) Base64Encoder.encodedLength(SIZES[i]) + 1];
+                
+                //start part way into both arrays
+                int count = backend.encode(bytes, 2, SIZES[i], chars, 1);
+                assertEquals(backend.getName(), Base64.encodeBytes(bytes, 2, SIZES[i]), new String(chars, 1, count));
+            }
+        }
+    }
+    
+    @Test
+    public void testSelectBackend(){
+        String property = System.getProperty(Base64Backends.PROPERTY);
+        
+        try {
+            System.setProperty(Base64Backends.PROPERTY, "WIDE");
+            assertSame(Base64Backends.wide(), Base64Backends.select());
+            
+            System.clearProperty(Base64Backends.PROPERTY);
+            Base64Backend selected = Base64Backends.select();
+            assertTrue(selected == Base64Backends.scalar() || selected == Base64Backends.wide());
+            
+            //the JDK backend is only used when asked for
+            if (Base64Backends.jdk() != null){
+                System.setProperty(Base64Backends.PROPERTY, "jdk");
+                assertSame(Base64Backends.jdk(), Base64Backends.select());
+            }
+        } finally {
+            if (property != null){
+                System.setProperty(Base64Backends.PROPERTY, property);
+            } else {
+                System.clearProperty(Base64Backends.PROPERTY);
+            }
+        }
+    }
+    
+    @Test
+    public void testStreamMatchesBase64() throws IOException {
+        for (int i = 0; i < SIZES.length; i++){
+            final byte[] bytes = createBytes(SIZES[i]);
+            
+            //return at most 7 bytes per read, to test reads that don't fill the buffer
+            InputStream in = new ByteArrayInputStream(bytes){
+                public synchronized int read(byte[] b, int off, int len){
+                    return super.read(b, off, Math.min(len, 7));
+                }
+            };
+            
+            StringWriter writer = new StringWriter();
+            assertEquals((long) bytes.length, Base64Encoder.encode(in, writer));
+            assertEquals(Base64.encodeBytes(bytes), writer.toString());
+        }
+    }
+    
+    @Test
+    public void testDataURI() throws IOException {
+        byte[] bytes = "GIF89a".getBytes("US-ASCII");
+        String uri = DataURIGenerator.toDataURI(bytes, "image/gif");
+        
+        assertEquals("data:image/gif;base64,R0lGODlh", uri);
+        assertEquals((long) uri.length(), DataURIGenerator.getDataURILength("image/gif", bytes.length));
+    }
+    
+    @Test
+    public void testDirectBufferMatchesBase64() throws IOException {
+        for (int i = 0; i < SIZES.length; i++){
+            byte[] bytes = createBytes(SIZES[i]);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+            buffer.put(bytes);
+            buffer.flip();
+            
+            StringBuilder builder = new StringBuilder();
+            Base64Encoder.encode(buffer, builder);
+            assertEquals(Base64.encodeBytes(bytes), builder.toString());
+            assertFalse(buffer.hasRemaining());
+        }
+    }
+    
+    @Test
+    public void testMappedFileMatchesRead() throws IOException {
+        File file = File.createTempFile("cssembed", ".png");
+        int threshold = DataURIGenerator.getMapThreshold();
+        
+        try {
+            OutputStream out = new FileOutputStream(file);
+            out.write(createBytes(10000));
+            out.close();
+            
+            String read = DataURIGenerator.toDataURI(file, null);
+            
+            DataURIGenerator.setMapThreshold(1);
+            assertTrue(DataURIGenerator.readFile(file).isDirect());
+            assertEquals(read, DataURIGenerator.toDataURI(file, null));
+        } finally {
+            DataURIGenerator.setMapThreshold(threshold);
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package net.nczonline.web.datauri;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Nicholas C. Zakas
+ */
+public class DataURICacheTest {
+    
+    private TestFiles files;
+    private File dir;
+    
+    @Before
+    public void setUp() throws IOException {
+        files = new TestFiles();
+        dir = files.getDir();
+    }
+
+    @After
+    public void tearDown() {
+        files.delete();
+    }
+    
+    @Test
+    public void testRepeatedFile() throws IOException {
+        File file = files.createFile("a.gif", "GIF89a");
+        DataURICache cache = new DataURICache(DataURICache.DEFAULT_MAX_SIZE);
+        
+        String uri = cache.generate(file, null);
+        assertEquals("data:image/gif;base64,R0lGODlh", uri);
+        assertSame(uri, cache.generate(file, null));
+        assertEquals(1L, cache.getMisses());
+        assertEquals(1L, cache.getHits());
+    }
+    
+    @Test
+    public void testIdenticalFiles() throws IOException {
+        File file1 = files.createFile("a.gif", "GIF89a");
+        File file2 = files.createFile("b.gif", "GIF89a");
+        DataURICache cache = new DataURICache(DataURICache.DEFAULT_MAX_SIZE);
+        
+        assertSame(cache.generate(file1, null), cache.generate(file2, null));
+        assertEquals(1L, cache.getMisses());
+        assertEquals(1L, cache.getContentHits());
+    }
+    
+    @Test
+    public void testChangedFile() throws IOException {
+        File file = files.createFile("a.gif", "GIF89a");
+        DataURICache cache = new DataURICache(DataURICache.DEFAULT_MAX_SIZE);
+        cache.generate(file, null);
+        
+        files.createFile("a.gif", "GIF89a+");
+        assertEquals("data:image/gif;base64,R0lGODlhKw==", cache.generate(file, null));
+        assertEquals(2L, cache.getMisses());
+    }
+    
+    @Test
+    public void testEviction() throws IOException {
+        File file1 = files.createFile("a.gif", "GIF89a");
+        File file2 = files.createFile("b.gif", "GIF87a");
+        
+        //room for only one data URI
+        DataURICache cache = new DataURICache(80);
+        cache.generate(file1, null);
+        cache.generate(file2, null);
+        assertEquals(1L, cache.getEvictions());
+        assertTrue(cache.getSize() <= 80);
+        
+        cache.generate(file1, null);
+        assertEquals(3L, cache.getMisses());
+    }
+    
+    @Test
+    public void testDiskCache() throws IOException {
+        File file = files.createFile("a.gif", "GIF89a");
+        DataURIDiskCache diskCache = new DataURIDiskCache(new File(dir, "cache"), DataURIDiskCache.DEFAULT_MAX_SIZE);
+        
+        DataURICache cache = new DataURICache(DataURICache.DEFAULT_MAX_SIZE);
+        String uri = cache.generate(file, null, diskCache);
+        assertEquals(1L, cache.getMisses());
+        
+        //a new cache, as in the next run, should find the file on disk
+        cache = new DataURICache(DataURICache.DEFAULT_MAX_SIZE);
+        assertEquals(uri, cache.generate(file, null, diskCache));
+        assertEquals(0L, cache.getMisses());
+        assertEquals(1L, cache.getDiskHits());
+    }
+    
+    @Test
+    public void testDiskCacheTrim() throws IOException {
+        File file1 = files.createFile("a.gif", "GIF89a");
+        File file2 = files.createFile("b.gif", "GIF87a");
+        DataURIDiskCache diskCache = new DataURIDiskCache(new File(dir, "cache"), 0);
+        
+        DataURICache cache = new DataURICache(0);
+        cache.generate(file1, null, diskCache);
+        cache.generate(file2, null, diskCache);
+        assertEquals(4, diskCache.trim());
+        
+        cache.generate(file1, null, diskCache);
+        assertEquals(3L, cache.getMisses());
+    }
+    
+    @Test
+    public void testMinifiedSVG() throws IOException {
+        File file = files.createFile("a.svg", "<svg xmlns=\"http://www.w3.org/2000/svg\">\n  <!-- square -->\n  <rect width=\"1\" height=\"1\"/>\n</svg>");
+        DataURIDiskCache diskCache = new DataURIDiskCache(new File(dir, "cache"), DataURIDiskCache.DEFAULT_MAX_SIZE);
+        DataURIEncoder plain = DataURIEncoder.builder().build();
+        DataURIEncoder minifying = plain.toBuilder().setMinifySVG(true).build();
+        
+        DataURICache cache = new DataURICache(DataURICache.DEFAULT_MAX_SIZE);
+        String uri = cache.generate(file, null, diskCache, null, plain);
+        String minified = cache.generate(file, null, diskCache, null, minifying);
+        assertTrue(uri.indexOf("square") > -1);
+        assertTrue(minified.indexOf("square") == -1);
+        assertEquals(uri, cache.generate(file, null, diskCache, null, plain));
+        assertEquals(2L, cache.getMisses());
+        
+        //each setting has its own entry on disk as well
+        cache = new DataURICache(DataURICache.DEFAULT_MAX_SIZE);
+        assertEquals(minified, cache.generate(file, null, diskCache, null, minifying));
+        assertEquals(uri, cache.generate(file, null, diskCache, null, plain));
+        assertEquals(2L, cache.getDiskHits());
+    }
+}
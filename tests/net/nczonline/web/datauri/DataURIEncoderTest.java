@@ -0,0 +1,148 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package net.nczonline.web.datauri;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Nicholas C. Zakas
+ */
+public class DataURIEncoderTest {
+    
+    private static final String SVG = "<svg xmlns=\"http://www.w3.org/2000/svg\">\n  <!-- square -->\n  <rect width=\"1\" height=\"1\"/>\n</svg>";
+    private static final byte[] PNG = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n', 0, 0, 0, 13, 'I', 'H', 'D', 'R' };
+    
+    private File svg;
+    private File png;
+    
+    @Before
+    public void setUp() throws IOException {
+        svg = File.createTempFile("encoder", ".svg");
+        write(svg, SVG.getBytes("UTF-8"));
+        
+        //no extension, so the type only comes from the contents
+        png = File.createTempFile("encoder", "");
+        write(png, PNG);
+    }
+    
+    @After
+    public void tearDown(){
+        svg.delete();
+        png.delete();
+    }
+    
+    private static void write(File file, byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+    
+    @Test
+    public void testSettingsArePerEncoder() throws IOException {
+        MimeTypeRegistry registry = MimeTypeRegistry.createDefault();
+        registry.addExtension("jxl", "image/jxl");
+        
+        DataURIEncoder minifying = DataURIEncoder.builder().setMimeTypes(registry).setMinifySVG(true).build();
+        DataURIEncoder plain = minifying.toBuilder().setMinifySVG(false).build();
+        
+        assertTrue(minifying.getMinifySVG());
+        assertSame(registry, plain.getMimeTypes());
+        assertEquals("image/jxl", plain.guessMimeType("a.jxl"));
+        assertNull(DataURIGenerator.guessMimeType("a.jxl"));
+        
+        assertTrue(minifying.toDataURI(svg, null).indexOf("square") == -1);
+        assertTrue(plain.toDataURI(svg, null).indexOf("square") > -1);
+        
+        //the default encoder isn't touched by either
+        assertEquals(DataURIGenerator.toDataURI(svg, null), plain.toDataURI(svg, null));
+        
+        //the backend only changes how fast it is
+        DataURIEncoder scalar = plain.toBuilder().setBase64Backend(Base64Backends.scalar()).build();
+        assertEquals("scalar", scalar.getBase64Backend().getName());
+        assertEquals(plain.toDataURI(png, null), scalar.toDataURI(png, null));
+        assertEquals("data:image/png;base64,", plain.toDataURI(png, null).substring(0, 22));
+    }
+    
+    @Test
+    public void testLog() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream log = new PrintStream(bytes, true, "UTF-8");
+        
+        DataURIEncoder quiet = DataURIEncoder.builder().setLog(log).build();
+        quiet.toDataURI(png, null);
+        assertEquals(0, bytes.size());
+        
+        DataURIEncoder verbose = quiet.toBuilder().setVerbose(true).build();
+        verbose.toDataURI(png, null);
+        assertTrue(bytes.toString("UTF-8").startsWith("[INFO] No MIME type provided, detected 'image/png'"));
+        assertFalse(quiet.isVerbose());
+    }
+    
+    @Test
+    public void testConcurrentUse() throws Exception {
+        final DataURIEncoder minifying = DataURIEncoder.builder().setMinifySVG(true).build();
+        final DataURIEncoder plain = DataURIEncoder.builder().setMapThreshold(1).build();
+        final String minified = minifying.toDataURI(svg, null);
+        final String unminified = plain.toDataURI(svg, null);
+        final String image = plain.toDataURI(png, null);
+        assertFalse(minified.equals(unminified));
+        
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        boolean verbose = DataURIGenerator.getVerbose();
+        
+        try {
+            for (int i = 0; i < 8; i++){
+                final int thread = i;
+                results.add(executor.submit(new Callable<Boolean>(){
+                    public Boolean call() throws IOException {
+                        for (int j = 0; j < 200; j++){
+                            
+                            //changing the defaults mustn't affect encoders already built
+                            if (thread == 0){
+                                DataURIGenerator.setMinifySVG(j % 2 == 0);
+                            }
+                            
+                            boolean minify = (thread + j) % 2 == 0;
+                            DataURIEncoder encoder = minify ? minifying : plain;
+                            if (!encoder.toDataURI(svg, null).equals(minify ? minified : unminified) ||
+                                    !encoder.toDataURI(png, null).equals(image)){
+                                return Boolean.FALSE;
+                            }
+                        }
+                        return Boolean.TRUE;
+                    }
+                }));
+            }
+            
+            for (Future<Boolean> result : results){
+                assertTrue(result.get().booleanValue());
+            }
+        } finally {
+            executor.shutdownNow();
+            DataURIGenerator.setMinifySVG(false);
+            DataURIGenerator.setVerbose(verbose);
+        }
+    }
+}
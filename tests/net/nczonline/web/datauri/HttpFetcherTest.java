@@ -0,0 +1,172 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package net.nczonline.web.datauri;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Nicholas C. Zakas
+ */
+public class HttpFetcherTest {
+    
+    private static final String ETAG = "\"v1\"";
+    
+    private HttpServer server;
+    private File dir;
+    private AtomicInteger downloads = new AtomicInteger();
+    private AtomicInteger active = new AtomicInteger();
+    private AtomicInteger maxActive = new AtomicInteger();
+    
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("cssembed", "");
+        dir.delete();
+        
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", new HttpHandler(){
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                
+                if (path.equals("/missing.gif")){
+                    exchange.sendResponseHeaders(404, -1);
+                } else if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))){
+                    exchange.sendResponseHeaders(304, -1);
+                } else {
+                    int now = active.incrementAndGet();
+                    synchronized (maxActive){
+                        maxActive.set(Math.max(maxActive.get(), now));
+                    }
+                    
+                    try {
+                        if (path.equals("/slow.gif")){
+                            Thread.sleep(50);
+                        }
+                    } catch (InterruptedException e){
+                        //ignore
+                    }
+                    
+                    byte[] body = "GIF89a".getBytes("US-ASCII");
+                    exchange.getResponseHeaders().set("Content-Type", "image/gif");
+                    exchange.getResponseHeaders().set("ETag", ETAG);
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                    
+                    downloads.incrementAndGet();
+                    active.decrementAndGet();
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        File[] files = dir.listFiles();
+        for (int i = 0; files != null && i < files.length; i++){
+            files[i].delete();
+        }
+        dir.delete();
+    }
+    
+    private URL getURL(String path) throws IOException {
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort() + path);
+    }
+    
+    @Test
+    public void testDataURI() throws IOException {
+        HttpFetcher fetcher = new HttpFetcher();
+        assertEquals("data:image/gif;base64,R0lGODlh", DataURIGenerator.toDataURI(getURL("/a.gif"), null, fetcher));
+    }
+    
+    @Test
+    public void testConditionalRequest() throws IOException {
+        HttpFetcher fetcher = new HttpFetcher(dir);
+        
+        RemoteResource resource = fetcher.fetch(getURL("/a.gif"), -1);
+        assertFalse(resource.isCached());
+        
+        //a new fetcher finds the copy left by the first
+        fetcher = new HttpFetcher(dir);
+        resource = fetcher.fetch(getURL("/a.gif"), -1);
+        assertTrue(resource.isCached());
+        assertEquals("GIF89a", new String(resource.getBytes(), "US-ASCII"));
+        assertEquals("image/gif", resource.getContentType());
+        assertEquals(1L, fetcher.getNotModified());
+        assertEquals(1, downloads.get());
+    }
+    
+    @Test
+    public void testTooLarge() throws IOException {
+        HttpFetcher fetcher = new HttpFetcher();
+        assertNull(fetcher.fetch(getURL("/a.gif"), 5));
+        assertNotNull(fetcher.fetch(getURL("/a.gif"), 6));
+        assertNull(DataURIGenerator.toDataURI(getURL("/a.gif"), null, fetcher, 5));
+    }
+    
+    @Test(expected=FileNotFoundException.class)
+    public void testMissing() throws IOException {
+        new HttpFetcher().fetch(getURL("/missing.gif"), -1);
+    }
+    
+    @Test
+    public void testHostConnectionLimit() throws Exception {
+        final HttpFetcher fetcher = new HttpFetcher();
+        fetcher.setMaxHostConnections(2);
+        
+        ExecutorService executor = Executors.newFixedThreadPool(6);
+        try {
+            List<Future<RemoteResource>> results = new ArrayList<Future<RemoteResource>>();
+            for (int i = 0; i < 6; i++){
+                results.add(executor.submit(new Callable<RemoteResource>(){
+                    public RemoteResource call() throws IOException {
+                        return fetcher.fetch(getURL("/slow.gif"), -1);
+                    }
+                }));
+            }
+            
+            for (Future<RemoteResource> result : results){
+                assertEquals(6, result.get().getBytes().length);
+            }
+        } finally {
+            executor.shutdown();
+        }
+        
+        assertTrue(maxActive.get() <= 2);
+        assertEquals(6L, fetcher.getRequests());
+    }
+    
+    @Test
+    public void testIsRemote() {
+        assertTrue(DataURIGenerator.isRemote("http://example.com/a.png"));
+        assertTrue(DataURIGenerator.isRemote("HTTPS://example.com/a.png"));
+        assertFalse(DataURIGenerator.isRemote("images/a.png"));
+    }
+}
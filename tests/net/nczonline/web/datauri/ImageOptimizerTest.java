@@ -0,0 +1,156 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package net.nczonline.web.datauri;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import javax.imageio.ImageIO;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Nicholas C. Zakas
+ */
+public class ImageOptimizerTest {
+    
+    private static BufferedImage createImage(int type){
+        BufferedImage image = new BufferedImage(40, 30, type);
+        for (int y = 0; y < image.getHeight(); y++){
+            for (int x = 0; x < image.getWidth(); x++){
+                image.setRGB(x, y, (x < 20) ? 0xff3366cc : (y < 15 ? 0xffffcc00 : 0xff000000));
+            }
+        }
+        return image;
+    }
+    
+    private static byte[] write(BufferedImage image, String format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, format, out);
+        return out.toByteArray();
+    }
+    
+    /*
+     * Adds a tEXt chunk after the IHDR chunk.
+     */
+    private static byte[] addText(byte[] png, String text){
+        byte[] data = ("Comment\0" + text).getBytes();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(png, 0, 33);
+        
+        CRC32 crc = new CRC32();
+        crc.update("tEXt".getBytes());
+        crc.update(data);
+        writeInt(out, data.length);
+        out.write("tEXt".getBytes(), 0, 4);
+        out.write(data, 0, data.length);
+        writeInt(out, (int) crc.getValue());
+        
+        out.write(png, 33, png.length - 33);
+        return out.toByteArray();
+    }
+    
+    private static void writeInt(ByteArrayOutputStream out, int value){
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+    
+    private static byte[] toArray(ByteBuffer buffer){
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+    
+    private static void assertSamePixels(byte[] expected, byte[] actual) throws IOException {
+        BufferedImage a = ImageIO.read(new ByteArrayInputStream(expected));
+        BufferedImage b = ImageIO.read(new ByteArrayInputStream(actual));
+        assertEquals(a.getWidth(), b.getWidth());
+        assertEquals(a.getHeight(), b.getHeight());
+        for (int y = 0; y < a.getHeight(); y++){
+            for (int x = 0; x < a.getWidth(); x++){
+                assertEquals(a.getRGB(x, y), b.getRGB(x, y));
+            }
+        }
+    }
+    
+    @Test
+    public void testPNGChunksRemoved() throws IOException {
+        byte[] png = addText(write(createImage(BufferedImage.TYPE_INT_ARGB), "png"), "Made with a very chatty image editor");
+        ImageOptimizer optimizer = new ImageOptimizer();
+        
+        byte[] result = toArray(optimizer.optimize(ByteBuffer.wrap(png)));
+        assertTrue(result.length < png.length);
+        assertEquals(-1, new String(result, "ISO-8859-1").indexOf("tEXt"));
+        assertSamePixels(png, result);
+        assertEquals(1L, optimizer.getImages());
+        assertEquals((long) (png.length - result.length), optimizer.getSavedBytes());
+    }
+    
+    @Test
+    public void testGIFConvertedWhenSmaller() throws IOException {
+        byte[] gif = write(createImage(BufferedImage.TYPE_BYTE_INDEXED), "gif");
+        ImageOptimizer optimizer = new ImageOptimizer();
+        
+        ByteBuffer result = optimizer.optimize(ByteBuffer.wrap(gif));
+        assertTrue(result.remaining() <= gif.length);
+        assertSamePixels(gif, toArray(result));
+        
+        if (result.remaining() < gif.length){
+            assertEquals("image/png", ImageOptimizer.getMimeType(result, "image/gif"));
+        }
+        
+        optimizer.setConvertGIF(false);
+        assertEquals(ByteBuffer.wrap(gif), optimizer.optimize(ByteBuffer.wrap(gif)));
+    }
+    
+    @Test
+    public void testOtherDataUnchanged() {
+        ByteBuffer bytes = ByteBuffer.wrap(new byte[] { 1, 2, 3, 4 });
+        ImageOptimizer optimizer = new ImageOptimizer();
+        assertSame(bytes, optimizer.optimize(bytes));
+        assertEquals(0L, optimizer.getImages());
+    }
+    
+    @Test
+    public void testOptimizedOncePerContent() throws IOException {
+        byte[] png = addText(write(createImage(BufferedImage.TYPE_INT_RGB), "png"), "Optimize me");
+        File dir = File.createTempFile("cssembed", "");
+        dir.delete();
+        dir.mkdir();
+        File a = new File(dir, "a.png");
+        File b = new File(dir, "b.png");
+        
+        try {
+            for (int i = 0; i < 2; i++){
+                OutputStream out = new FileOutputStream(i == 0 ? a : b);
+                out.write(png);
+                out.close();
+            }
+            
+            ImageOptimizer optimizer = new ImageOptimizer();
+            DataURICache cache = new DataURICache(DataURICache.DEFAULT_MAX_SIZE);
+            String uri = cache.generate(a, null, null, optimizer);
+            
+            assertSame(uri, cache.generate(b, null, null, optimizer));
+            assertEquals(1L, optimizer.getImages());
+            assertTrue(uri.length() < cache.generate(a, null).length());
+            assertTrue(uri.startsWith("data:image/png;base64,"));
+        } finally {
+            a.delete();
+            b.delete();
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package net.nczonline.web.datauri;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Nicholas C. Zakas
+ */
+public class MimeTypeRegistryTest {
+    
+    private static ByteBuffer bytes(String s) throws Exception {
+        return ByteBuffer.wrap(s.getBytes("ISO-8859-1"));
+    }
+    
+    @Test
+    public void testDetect() throws Exception {
+        MimeTypeRegistry registry = MimeTypeRegistry.createDefault();
+        assertEquals("image/png", registry.detect(bytes("\u0089PNG\r\n\u001a\n....")));
+        assertEquals("image/gif", registry.detect(bytes("GIF89a....")));
+        assertEquals("image/webp", registry.detect(bytes("RIFF\u0010\u0000\u0000\u0000WEBPVP8 ")));
+        assertEquals("font/woff2", registry.detect(bytes("wOF2....")));
+        assertNull(registry.detect(bytes("RIFF\u0010\u0000\u0000\u0000WAVEfmt ")));
+        assertNull(registry.detect(bytes("GIF")));
+        
+        //only the bytes from the position on are looked at, and they aren't used up
+        ByteBuffer buffer = bytes("xxGIF87a");
+        buffer.position(2);
+        assertEquals("image/gif", registry.detect(buffer));
+        assertEquals(2, buffer.position());
+    }
+    
+    @Test
+    public void testExtensionsIgnoreCase(){
+        MimeTypeRegistry registry = MimeTypeRegistry.createDefault();
+        assertEquals("image/png", registry.getExtensionType("PNG"));
+        assertEquals("image/x-icon", registry.getExtensionType("ico"));
+        assertNull(registry.getExtensionType("css"));
+        assertEquals("image/png", DataURIGenerator.guessMimeType("http://www.example.com/ICON.PNG?v=2"));
+    }
+    
+    @Test
+    public void testCustomTypes(){
+        MimeTypeRegistry registry = new MimeTypeRegistry();
+        assertEquals(0, registry.getSniffLength());
+        
+        registry.addExtension("JXL", "image/jxl");
+        registry.addSignature("image/jxl", "FF 0A");
+        assertEquals("image/jxl", registry.getExtensionType("jxl"));
+        assertEquals("image/jxl", registry.detect(ByteBuffer.wrap(new byte[]{ (byte) 0xff, 0x0a, 0 })));
+        assertTrue(registry.isKnownType("image/jxl"));
+        assertEquals(2, registry.getSniffLength());
+        
+        try {
+            registry.addSignature("image/jxl", "FF 0");
+            fail("Expected an invalid signature to be rejected.");
+        } catch (IllegalArgumentException e){
+            //expected
+        }
+    }
+    
+    @Test
+    public void testDetectedTypes(){
+        MimeTypeRegistry registry = new MimeTypeRegistry();
+        assertNull(registry.getDetectedType("images/icon"));
+        registry.putDetectedType("images/icon", "image/png");
+        assertEquals("image/png", registry.getDetectedType("images/icon"));
+        registry.clearDetectedTypes();
+        assertNull(registry.getDetectedType("images/icon"));
+    }
+}
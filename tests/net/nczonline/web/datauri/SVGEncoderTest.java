@@ -0,0 +1,62 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package net.nczonline.web.datauri;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Nicholas C. Zakas
+ */
+public class SVGEncoderTest {
+    
+    private static final String SVG = "<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"16\" height=\"16\">\n" +
+            "  <!-- exported by an editor -->\n" +
+            "  <path d=\"M0 0h16v16H0z\" fill=\"#f00\" />\n" +
+            "</svg>\n";
+    
+    private static String encode(String svg, boolean minify) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        SVGEncoder.generateDataURI(ByteBuffer.wrap(svg.getBytes("UTF-8")), builder, SVGEncoder.MIME_TYPE, minify);
+        return builder.toString();
+    }
+    
+    @Test
+    public void testPercentEncodedWhenSmaller() throws IOException {
+        String uri = encode(SVG, false);
+        assertTrue(uri.startsWith("data:image/svg+xml,%3Csvg xmlns=%22http://www.w3.org/2000/svg%22"));
+        assertTrue(uri.indexOf("fill=%22%23f00%22") > -1);
+        assertEquals(-1, uri.indexOf('\n'));
+        assertTrue(uri.length() < DataURIGenerator.getDataURILength(SVGEncoder.MIME_TYPE, SVG.length()));
+        
+        //converting back gives the original bytes
+        assertEquals("data:image/svg+xml;base64," + Base64.encodeBytes(SVG.getBytes("UTF-8")), SVGEncoder.toBase64(uri));
+    }
+    
+    @Test
+    public void testMinify() {
+        assertEquals("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"16\" height=\"16\">" +
+                "<path d=\"M0 0h16v16H0z\" fill=\"#f00\"/></svg>", SVGEncoder.minify(SVG));
+        
+        //whitespace in text is kept
+        String text = "<svg>\n  <text x=\"0\">Hello  <tspan>world</tspan></text>\n</svg>";
+        assertEquals(text, SVGEncoder.minify(text));
+        
+        String cdata = "<svg><!-- a --><style><![CDATA[ a { } ]]></style></svg>";
+        assertEquals(cdata, SVGEncoder.minify(cdata));
+    }
+    
+    @Test
+    public void testInvalidUTF8UsesBase64() throws IOException {
+        byte[] bytes = { '<', 's', 'v', 'g', (byte) 0xff, '>' };
+        StringBuilder builder = new StringBuilder();
+        SVGEncoder.generateDataURI(ByteBuffer.wrap(bytes), builder, SVGEncoder.MIME_TYPE, true);
+        assertEquals("data:image/svg+xml;base64," + Base64.encodeBytes(bytes), builder.toString());
+    }
+}